@@ -0,0 +1,49 @@
+package org.jgroups.benchmarks;
+
+import org.jgroups.Address;
+import org.jgroups.protocols.Bundler;
+import org.jgroups.protocols.TP;
+import org.jgroups.util.AsciiString;
+import org.jgroups.util.MockTransport;
+import org.jgroups.util.UUID;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link MockTransport} which counts the bytes handed to {@link #doSend(byte[], int, int, Address)} instead of sending
+ * them over the network. Used by benchmarks which exercise the send path (e.g. bundlers) without any I/O.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class BenchmarkTransport extends MockTransport {
+    protected final LongAdder bytes_sent=new LongAdder(), sends=new LongAdder();
+
+    public long bytesSent() {return bytes_sent.sum();}
+    public long sends()     {return sends.sum();}
+
+    /** Creates an initialized transport, with the given bundler started */
+    public static BenchmarkTransport create(String bundler_type) throws Exception {
+        BenchmarkTransport tp=new BenchmarkTransport();
+        tp.cluster(new AsciiString("bench"));
+        tp.setAddress(UUID.randomUUID());
+        tp.init();
+        if(bundler_type != null) {
+            Bundler bundler=TP.createBundler(bundler_type, BenchmarkTransport.class);
+            tp.setBundler(bundler);
+        }
+        return tp;
+    }
+
+    @Override
+    public void doSend(byte[] buf, int offset, int length, Address dest) throws Exception {
+        bytes_sent.add(length);
+        sends.increment();
+    }
+
+    public void close() {
+        Bundler b=getBundler();
+        if(b != null)
+            b.stop();
+        destroy();
+    }
+}
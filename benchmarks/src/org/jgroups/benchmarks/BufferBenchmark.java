@@ -0,0 +1,68 @@
+package org.jgroups.benchmarks;
+
+import org.jgroups.EmptyMessage;
+import org.jgroups.Message;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.DynamicBuffer;
+import org.jgroups.util.FixedBuffer;
+import org.jgroups.util.MessageBatch;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Buffer#add(long, Object)} followed by {@link Buffer#removeMany(boolean, int)} for {@link FixedBuffer}
+ * and {@link DynamicBuffer}: this is the path taken by NAKACK4 / UNICAST4 (fixed) and NAKACK3 / UNICAST3 (dynamic)
+ * on reception and delivery of messages.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class BufferBenchmark {
+    @Param({"fixed", "dynamic"})
+    protected String           type;
+
+    /** Number of messages added before they are removed in one go */
+    @Param({"1", "100"})
+    protected int              batch_size;
+
+    protected Buffer<Message>  buf;
+    protected long             seqno;
+    protected final Message    msg=new EmptyMessage();
+    protected final MessageBatch batch=new MessageBatch(128);
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        buf=type.equals("fixed")? new FixedBuffer<>(8192, 0) : new DynamicBuffer<>(0);
+        seqno=0;
+    }
+
+    @Benchmark
+    public List<Message> addAndRemoveMany() {
+        for(int i=0; i < batch_size; i++)
+            buf.add(++seqno, msg, null, false);
+        return buf.removeMany(true, batch_size);
+    }
+
+    @Benchmark
+    public MessageBatch addAndRemoveManyIntoBatch() {
+        for(int i=0; i < batch_size; i++)
+            buf.add(++seqno, msg, null, false);
+        batch.clear();
+        return buf.removeMany(true, batch_size, null, () -> batch, MessageBatch::add);
+    }
+
+    @Benchmark
+    public void addAndGet(Blackhole bh) {
+        buf.add(++seqno, msg, null, false);
+        bh.consume(buf.get(seqno));
+        buf.removeMany(true, 0);
+    }
+}
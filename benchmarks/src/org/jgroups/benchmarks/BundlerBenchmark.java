@@ -0,0 +1,65 @@
+package org.jgroups.benchmarks;
+
+import org.jgroups.Address;
+import org.jgroups.BytesMessage;
+import org.jgroups.Message;
+import org.jgroups.protocols.Bundler;
+import org.jgroups.util.UUID;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of {@link Bundler#send(Message)} for the different bundler implementations. Messages are
+ * sent to a {@link BenchmarkTransport}, which discards the marshalled bytes, so the numbers reflect queuing, bundling
+ * and marshalling only. Run with {@code -t N} to measure contention of N concurrent senders.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class BundlerBenchmark {
+    @Param({"transfer-queue", "per-destination", "striped-ring", "adaptive", "no-bundler"})
+    protected String             bundler_type;
+
+    @Param({"100", "1000"})
+    protected int                msg_size;
+
+    /** Number of unicast destinations; 0 sends multicasts only */
+    @Param({"0", "4"})
+    protected int                num_destinations;
+
+    protected BenchmarkTransport transport;
+    protected Bundler            bundler;
+    protected Message[]          msgs;
+
+    @Setup
+    public void setup() throws Exception {
+        transport=BenchmarkTransport.create(bundler_type);
+        bundler=transport.getBundler();
+        int num=Math.max(1, num_destinations);
+        msgs=new Message[num];
+        for(int i=0; i < num; i++) {
+            Address dest=num_destinations == 0? null : UUID.randomUUID();
+            // multicasts are not looped back: the mock transport has no thread pool or protocols above it
+            msgs[i]=new BytesMessage(dest, new byte[msg_size]).setSrc(transport.getAddress())
+              .setFlag(Message.TransientFlag.DONT_LOOPBACK);
+        }
+    }
+
+    @TearDown
+    public void destroy() {
+        transport.close();
+    }
+
+    @Benchmark
+    public void send() throws Exception {
+        Message msg=msgs.length == 1? msgs[0] : msgs[ThreadLocalRandom.current().nextInt(msgs.length)];
+        bundler.send(msg);
+    }
+}
@@ -0,0 +1,93 @@
+package org.jgroups.benchmarks;
+
+import org.jgroups.BytesMessage;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.Receiver;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures msgs/sec sent through a reliable stack over {@link SHARED_LOOPBACK} with encryption ({@link SYM_ENCRYPT})
+ * on and off. The message sizes are those typically used by UPerf; "none" disables encryption, the other values are
+ * the sym_algorithm used by SYM_ENCRYPT
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class EncryptBenchmark {
+    @Param({"none", "AES/CBC/PKCS5Padding", "AES/GCM/NoPadding"})
+    protected String          encryption;
+
+    @Param({"100", "1000", "10000"})
+    protected int             msg_size;
+
+    @Param({"0", "32"})
+    protected int             parallel_decrypt_threshold;
+
+    protected JChannel        a, b;
+    protected SecretKey       key;
+    protected final LongAdder received=new LongAdder();
+    protected byte[]          payload;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyGenerator gen=KeyGenerator.getInstance("AES");
+        gen.init(128);
+        key=gen.generateKey();
+        a=create("A");
+        b=create("B");
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+        b.setReceiver(new Receiver() {
+            public void receive(Message msg) {received.increment();}
+        });
+        payload=new byte[msg_size];
+    }
+
+    @TearDown
+    public void destroy() {
+        System.out.printf("\n-- received %,d msgs\n", received.sum());
+        Util.close(b, a);
+    }
+
+    @Benchmark
+    public void multicast() throws Exception {
+        a.send(new BytesMessage(null, payload));
+    }
+
+    @Benchmark
+    public void unicast() throws Exception {
+        a.send(new BytesMessage(b.getAddress(), payload));
+    }
+
+    protected JChannel create(String name) throws Exception {
+        List<Protocol> prots=new ArrayList<>(List.of(new SHARED_LOOPBACK(), new SHARED_LOOPBACK_PING()));
+        if(!"none".equals(encryption)) {
+            int iv_length="AES/CBC/PKCS5Padding".equals(encryption)? 16 : 0; // GCM picks its own IV length
+            SYM_ENCRYPT encr=new SYM_ENCRYPT().setSecretKey(key).symAlgorithm(encryption).symIvLength(iv_length)
+              .parallelDecryptThreshold(parallel_decrypt_threshold);
+            prots.add(encr);
+        }
+        prots.add(new NAKACK4().setXmitInterval(500));
+        prots.add(new UNICAST4().setXmitInterval(500));
+        prots.add(new GMS().printLocalAddress(false).setJoinTimeout(500));
+        JChannel ch=new JChannel(prots).name(name);
+        ch.getProtocolStack().getTransport().getDiagnosticsHandler().setEnabled(false);
+        return ch.connect("EncryptBenchmark");
+    }
+}
@@ -0,0 +1,70 @@
+package org.jgroups.benchmarks;
+
+import org.jgroups.EmptyMessage;
+import org.jgroups.Header;
+import org.jgroups.Message;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Message#putHeader(short, Header)} and {@link Message#getHeader(short)}, including resizing of the
+ * headers array when more headers than {@link org.jgroups.util.Util#DEFAULT_HEADERS} are added
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class HeadersBenchmark {
+    @Param({"1", "3", "6"})
+    protected int               num_headers;
+
+    protected static final short[] IDS={
+      ClassConfigurator.getProtocolId(TP.class),
+      ClassConfigurator.getProtocolId(NAKACK4.class),
+      ClassConfigurator.getProtocolId(UNICAST4.class),
+      ClassConfigurator.getProtocolId(GMS.class),
+      ClassConfigurator.getProtocolId(FRAG4.class),
+      ClassConfigurator.getProtocolId(UFC.class)
+    };
+
+    protected Header[]          hdrs;
+    protected Message           msg;
+
+    @Setup
+    public void setup() {
+        hdrs=new Header[num_headers];
+        for(int i=0; i < num_headers; i++)
+            hdrs[i]=new TpHeader("bench").setProtId(IDS[i]);
+        msg=new EmptyMessage();
+        for(int i=0; i < num_headers; i++)
+            msg.putHeader(IDS[i], hdrs[i]);
+    }
+
+    @Benchmark
+    public Message putHeaders() {
+        Message m=new EmptyMessage();
+        for(int i=0; i < num_headers; i++)
+            m.putHeader(IDS[i], hdrs[i]);
+        return m;
+    }
+
+    @Benchmark
+    public void getHeaders(Blackhole bh) {
+        for(int i=0; i < num_headers; i++)
+            bh.consume(msg.<Header>getHeader(IDS[i]));
+    }
+
+    @Benchmark
+    public Header getLastHeader() {
+        return msg.getHeader(IDS[num_headers-1]);
+    }
+}
@@ -0,0 +1,77 @@
+package org.jgroups.benchmarks;
+
+import org.jgroups.BytesMessage;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.Receiver;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.util.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends messages through a full (reliable) stack over {@link SHARED_LOOPBACK}, so that regressions in the interaction
+ * between transport, bundler and reliability protocols (NAKACK4, UNICAST4) show up without any network
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class LoopbackBenchmark {
+    @Param({"transfer-queue", "per-destination", "no-bundler"})
+    protected String          bundler_type;
+
+    @Param({"1000"})
+    protected int             msg_size;
+
+    protected JChannel        a, b;
+    protected final LongAdder received=new LongAdder();
+    protected byte[]          payload;
+
+    @Setup
+    public void setup() throws Exception {
+        a=create("A");
+        b=create("B");
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+        b.setReceiver(new Receiver() {
+            public void receive(Message msg) {received.increment();}
+        });
+        payload=new byte[msg_size];
+    }
+
+    @TearDown
+    public void destroy() {
+        System.out.printf("\n-- received %,d msgs\n", received.sum());
+        Util.close(b, a);
+    }
+
+    @Benchmark
+    public void multicast() throws Exception {
+        a.send(new BytesMessage(null, payload));
+    }
+
+    @Benchmark
+    public void unicast() throws Exception {
+        a.send(new BytesMessage(b.getAddress(), payload));
+    }
+
+    protected JChannel create(String name) throws Exception {
+        SHARED_LOOPBACK tp=new SHARED_LOOPBACK();
+        tp.setBundlerType(bundler_type);
+        JChannel ch=new JChannel(tp,
+                                 new SHARED_LOOPBACK_PING(),
+                                 new NAKACK4().setXmitInterval(500),
+                                 new UNICAST4().setXmitInterval(500),
+                                 new GMS().printLocalAddress(false).setJoinTimeout(500))
+          .name(name);
+        ch.getProtocolStack().getTransport().getDiagnosticsHandler().setEnabled(false);
+        return ch.connect("LoopbackBenchmark");
+    }
+}
@@ -0,0 +1,72 @@
+package org.jgroups.benchmarks;
+
+import org.jgroups.BytesMessage;
+import org.jgroups.Message;
+import org.jgroups.protocols.NakAckHeader;
+import org.jgroups.protocols.TpHeader;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.NAKACK4;
+import org.jgroups.protocols.TP;
+import org.jgroups.util.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures variable-length encoding of longs ({@link Bits#writeLongCompressed(long, byte[], int)} and friends) and
+ * marshalling of streamables ({@link Util#streamableToBuffer(Streamable)}), e.g. messages and digests
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class MarshallingBenchmark {
+    @Param({"10", "100000", "10000000000"})
+    protected long                            value;
+
+    @Param({"100", "1000"})
+    protected int                             msg_size;
+
+    protected final byte[]                    buf=new byte[16];
+    protected final ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(16);
+    protected Message                         msg;
+
+    @Setup
+    public void setup() {
+        msg=new BytesMessage(UUID.randomUUID(), new byte[msg_size]).setSrc(UUID.randomUUID())
+          .putHeader(ClassConfigurator.getProtocolId(TP.class), new TpHeader("bench"))
+          .putHeader(ClassConfigurator.getProtocolId(NAKACK4.class), NakAckHeader.createMessageHeader(value));
+    }
+
+    @Benchmark
+    public long writeAndReadLongCompressedArray() {
+        Bits.writeLongCompressed(value, buf, 0);
+        return Bits.readLongCompressed(buf, 0);
+    }
+
+    @Benchmark
+    public long writeLongCompressedStream() throws Exception {
+        out.position(0);
+        Bits.writeLongCompressed(value, out);
+        return out.position();
+    }
+
+    @Benchmark
+    public int sizeLong() {
+        return Bits.size(value);
+    }
+
+    @Benchmark
+    public ByteArray streamableToBuffer() throws Exception {
+        return Util.streamableToBuffer(msg);
+    }
+
+    @Benchmark
+    public ByteArray messageToBuffer() throws Exception {
+        return Util.messageToBuffer(msg);
+    }
+}
@@ -0,0 +1,66 @@
+package org.jgroups.benchmarks;
+
+import org.jgroups.EmptyMessage;
+import org.jgroups.Message;
+import org.jgroups.util.MessageBatch;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures iteration over {@link MessageBatch}, removal of messages while iterating (as done by protocols which
+ * consume some of the messages of a batch) and draining one batch into another
+ * ({@link MessageBatch#transferFrom(MessageBatch, boolean)})
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class MessageBatchBenchmark {
+    @Param({"10", "100", "1000"})
+    protected int          batch_size;
+
+    protected Message[]    msgs;
+    protected MessageBatch batch, target;
+
+    @Setup
+    public void setup() {
+        msgs=new Message[batch_size];
+        for(int i=0; i < msgs.length; i++)
+            msgs[i]=new EmptyMessage();
+        batch=new MessageBatch(batch_size);
+        target=new MessageBatch(batch_size);
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh) {
+        batch.reset().add(msgs, msgs.length);
+        for(Message msg: batch)
+            bh.consume(msg);
+    }
+
+    @Benchmark
+    public MessageBatch removeEverySecond() {
+        batch.reset().add(msgs, msgs.length);
+        int i=0;
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            it.next();
+            if(i++ % 2 == 0)
+                it.remove();
+        }
+        return batch;
+    }
+
+    @Benchmark
+    public int drain() {
+        batch.reset().add(msgs, msgs.length);
+        target.reset();
+        return target.transferFrom(batch, true);
+    }
+}
@@ -0,0 +1,66 @@
+package org.jgroups;
+
+import java.io.OutputStream;
+
+/**
+ * State which is split into partitions, which can be transferred independently, e.g. by
+ * {@link org.jgroups.protocols.pbcast.STATE_PARALLEL}. The partitions of a joiner's state are fetched in parallel from
+ * different members. Every provider takes a snapshot of all partitions atomically with its digest; a partition whose
+ * transfer was interrupted is resumed from the offset of the last byte received if it can be fetched from the same
+ * snapshot, or else restarted at offset 0.
+ * <p>
+ * Can be implemented by a {@link Receiver}, or set in the state transfer protocol directly.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public interface PartitionedState {
+
+    /** Returns the number of partitions. Called on the state provider; has to be the same on all members */
+    int numPartitions();
+
+    /**
+     * Takes a snapshot of all partitions. Called on the state provider while the delivery of messages is blocked, so that
+     * the snapshot reflects exactly the messages of the digest sent to the requester. The partitions are written from
+     * the snapshot long after this method returned, so messages delivered later must not change it (e.g. a copy, or a
+     * copy-on-write view of the state)
+     * @return The snapshot, passed to {@link #getState(Object,int,long,OutputStream)} and {@link #release(Object)}
+     */
+    Object snapshot() throws Exception;
+
+    /**
+     * Writes a partition of a snapshot to the given output stream. Called on the state provider. Different partitions
+     * may be written concurrently by different threads.
+     * @param snapshot The snapshot returned by {@link #snapshot()}
+     * @param partition The partition [0 .. numPartitions()-1]
+     * @param offset The offset at which to start writing: greater than 0 when an interrupted transfer is resumed. The
+     *               bytes written to out have to start at this offset of the partition
+     * @param out The output stream. Chunks are sent as they're filled; writing blocks when the requester is behind
+     */
+    void getState(Object snapshot, int partition, long offset, OutputStream out) throws Exception;
+
+    /**
+     * Called on the state provider when a snapshot is not needed anymore, after the last call to getState() on it
+     * returned
+     */
+    default void release(Object snapshot) {}
+
+    /**
+     * Sets a chunk of a partition. Called on the state requester, in the order of the offsets of a partition. Chunks of
+     * different partitions may be set concurrently by different threads. The checksum of the chunk has been verified.
+     * A partition is restarted at offset 0 when its provider left: the bytes set before have to be discarded, as they
+     * may be from a different snapshot.
+     * @param partition The partition
+     * @param offset The offset of the chunk in the partition
+     * @param buf The buffer
+     * @param off The offset of the chunk in buf
+     * @param len The length of the chunk
+     */
+    void setState(int partition, long offset, byte[] buf, int off, int len) throws Exception;
+
+    /**
+     * Called on the state requester when all chunks of a partition have been received
+     * @param partition The partition
+     * @param length The length of the partition
+     */
+    default void partitionReceived(int partition, long length) throws Exception {}
+}
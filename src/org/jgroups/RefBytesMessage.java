@@ -0,0 +1,86 @@
+package org.jgroups;
+
+import org.jgroups.util.PooledDataInputStream;
+import org.jgroups.util.RefCountedBuffer;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.function.Supplier;
+
+/**
+ * A {@link BytesMessage} whose payload references a slice of a pooled receive buffer ({@link RefCountedBuffer})
+ * rather than a copy. Created on reception (instead of a {@link BytesMessage}) when the transport's
+ * zero_copy_receive is enabled; it is sent as a regular {@link BytesMessage}.<br/>
+ * <br/>
+ * The message holds a reference to the receive buffer. There is no explicit release: protocols (e.g. NAKACK2 or
+ * UNICAST3 for retransmission) may keep a message after it has been delivered, so no single component knows when
+ * the buffer can be reused. The transport releases its own reference once all messages have been read from the
+ * buffer, and the buffer is returned to the pool when it has become unreachable, i.e. when all messages
+ * referencing it (and their copies) have been garbage collected. To limit the memory retained by such messages,
+ * the transports read into buffers sized to the received packet or frame. Therefore:
+ * <ul>
+ *     <li>The array returned by {@link #getArray()} is shared with other messages: only the bytes between
+ *         {@link #getOffset()} and {@link #getOffset()}+{@link #getLength()} belong to this message</li>
+ *     <li>The array must not be used after the last reference to the message has been dropped;
+ *         {@link #getBytes()} can be used to obtain a copy</li>
+ * </ul>
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class RefBytesMessage extends BytesMessage {
+    protected RefCountedBuffer ref;
+
+    public RefBytesMessage() {
+    }
+
+    public RefBytesMessage(Address dest) {
+        super(dest);
+    }
+
+    public Supplier<Message> create() {return RefBytesMessage::new;}
+    /** Returns the receive buffer referenced by this message, or null if the payload was copied */
+    public RefCountedBuffer  ref()    {return ref;}
+
+    @Override protected Message copyPayload(Message copy) {
+        RefCountedBuffer tmp=ref;
+        if(tmp != null && copy instanceof RefBytesMessage)
+            ((RefBytesMessage)copy).ref=tmp.retain();
+        return super.copyPayload(copy);
+    }
+
+    /**
+     * Reads the payload. If the input is a {@link PooledDataInputStream} and the payload has at least
+     * {@link PooledDataInputStream#minSize()} bytes, the payload references the stream's buffer, otherwise it is copied
+     */
+    public void readPayload(DataInput in) throws IOException {
+        if(!(in instanceof PooledDataInputStream pin)) {
+            super.readPayload(in);
+            return;
+        }
+        int len=pin.readInt();
+        if(len < 0)
+            return;
+        if(len < pin.minSize()) {
+            array=new byte[len];
+            pin.readFully(array, 0, len);
+            length=len;
+            return;
+        }
+        int pos=pin.position();
+        if(pos + len > pin.limit())
+            throw new IOException(String.format("payload (%d bytes at %d) exceeds limit %d", len, pos, pin.limit()));
+        ref=pin.ref().retain();
+        array=pin.buffer();
+        offset=pos;
+        length=len;
+        pin.skipBytes(len);
+    }
+
+    public String toString() {
+        return ref != null? super.toString() + " (ref)" : super.toString();
+    }
+
+    protected <T extends BytesMessage> T createMessage() {
+        return (T)new RefBytesMessage();
+    }
+}
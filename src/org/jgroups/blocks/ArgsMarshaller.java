@@ -0,0 +1,214 @@
+package org.jgroups.blocks;
+
+import org.jgroups.util.Bits;
+import org.jgroups.util.Streamable;
+import org.jgroups.util.Util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Marshals the arguments of a method with a given signature (parameter types). Contrary to
+ * {@link Util#objectToStream(Object, DataOutput)}, no type tags are written: since the types are known, primitives
+ * (and their wrappers) are written directly (ints and longs are compressed), strings and byte arrays with a length
+ * prefix, and {@link Streamable} arguments of the declared type are written without class information. Only
+ * arguments of other types fall back to {@link Util#objectToStream(Object, DataOutput)}.<br/>
+ * Marshallers are registered (by signature) in a static registry: the signature ID written by {@link MethodCall}
+ * is used by the receiver to find the marshaller, so both sender and receiver have to register the same signatures,
+ * e.g. via {@link MethodRegistry#register(short, java.lang.reflect.Method)}.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class ArgsMarshaller {
+    protected static final byte BOOLEAN=1, BYTE=2, SHORT=3, CHAR=4, INT=5, LONG=6, FLOAT=7, DOUBLE=8,
+      STRING=9, BYTES=10, STREAMABLE=11, OBJECT=12;
+
+    protected static final Map<Integer,ArgsMarshaller> MARSHALLERS=new ConcurrentHashMap<>();
+
+    protected final Class<?>[]     types;
+    protected final byte[]         kinds;   // how to marshal each argument
+    protected final boolean[]      boxed;   // the declared type is a wrapper (can be null)
+    protected final MethodHandle[] ctors;   // no-arg constructors of STREAMABLE types
+    protected final int            signature;
+
+    protected ArgsMarshaller(Class<?>[] types) {
+        this.types=types;
+        this.kinds=new byte[types.length];
+        this.boxed=new boolean[types.length];
+        this.ctors=new MethodHandle[types.length];
+        for(int i=0; i < types.length; i++) {
+            Class<?> type=types[i];
+            kinds[i]=kind(type);
+            boxed[i]=!type.isPrimitive() && kinds[i] <= DOUBLE;
+            if(kinds[i] == STREAMABLE)
+                ctors[i]=constructor(type);
+            if(kinds[i] == STREAMABLE && ctors[i] == null)
+                kinds[i]=OBJECT;
+        }
+        this.signature=signature(types);
+    }
+
+    /** Returns the marshaller for the given parameter types, creating and registering it if needed */
+    public static ArgsMarshaller register(Class<?>... types) {
+        Class<?>[] t=types != null? types : new Class<?>[0];
+        ArgsMarshaller m=MARSHALLERS.computeIfAbsent(signature(t), k -> new ArgsMarshaller(t));
+        if(!Arrays.equals(m.types, t))
+            throw new IllegalStateException(String.format("signature %s collides with %s", m, print(t)));
+        return m;
+    }
+
+    /** Returns the marshaller registered for the signature, or null */
+    public static ArgsMarshaller get(int signature) {
+        return MARSHALLERS.get(signature);
+    }
+
+    public int        signature() {return signature;}
+    public Class<?>[] types()     {return types;}
+    public int        numArgs()   {return types.length;}
+
+    public void write(Object[] args, DataOutput out) throws IOException {
+        for(int i=0; i < kinds.length; i++) {
+            Object arg=args[i];
+            if(boxed[i]) {
+                out.writeBoolean(arg != null);
+                if(arg == null)
+                    continue;
+            }
+            switch(kinds[i]) {
+                case BOOLEAN: out.writeBoolean((Boolean)arg); break;
+                case BYTE:    out.writeByte((Byte)arg); break;
+                case SHORT:   out.writeShort((Short)arg); break;
+                case CHAR:    out.writeChar((Character)arg); break;
+                case INT:     Bits.writeIntCompressed((Integer)arg, out); break;
+                case LONG:    Bits.writeLongCompressed((Long)arg, out); break;
+                case FLOAT:   Bits.writeFloat((Float)arg, out); break;
+                case DOUBLE:  Bits.writeDouble((Double)arg, out); break;
+                case STRING:  Bits.writeString((String)arg, out); break;
+                case BYTES:
+                    byte[] buf=(byte[])arg;
+                    out.writeBoolean(buf != null);
+                    if(buf != null) {
+                        Bits.writeIntCompressed(buf.length, out);
+                        out.write(buf);
+                    }
+                    break;
+                case STREAMABLE:
+                    if(arg == null)
+                        out.writeByte(0);
+                    else if(arg.getClass() == types[i]) {
+                        out.writeByte(1);
+                        ((Streamable)arg).writeTo(out);
+                    }
+                    else { // a subclass: needs type information
+                        out.writeByte(2);
+                        Util.objectToStream(arg, out);
+                    }
+                    break;
+                default:
+                    Util.objectToStream(arg, out);
+                    break;
+            }
+        }
+    }
+
+    public Object[] read(DataInput in) throws IOException, ClassNotFoundException {
+        Object[] args=new Object[kinds.length];
+        for(int i=0; i < kinds.length; i++) {
+            if(boxed[i] && !in.readBoolean())
+                continue;
+            switch(kinds[i]) {
+                case BOOLEAN: args[i]=in.readBoolean(); break;
+                case BYTE:    args[i]=in.readByte(); break;
+                case SHORT:   args[i]=in.readShort(); break;
+                case CHAR:    args[i]=in.readChar(); break;
+                case INT:     args[i]=Bits.readIntCompressed(in); break;
+                case LONG:    args[i]=Bits.readLongCompressed(in); break;
+                case FLOAT:   args[i]=Bits.readFloat(in); break;
+                case DOUBLE:  args[i]=Bits.readDouble(in); break;
+                case STRING:  args[i]=Bits.readString(in); break;
+                case BYTES:
+                    if(in.readBoolean()) {
+                        byte[] buf=new byte[Bits.readIntCompressed(in)];
+                        in.readFully(buf);
+                        args[i]=buf;
+                    }
+                    break;
+                case STREAMABLE:
+                    byte b=in.readByte();
+                    if(b == 1) {
+                        Streamable s=newInstance(i);
+                        s.readFrom(in);
+                        args[i]=s;
+                    }
+                    else if(b == 2)
+                        args[i]=Util.objectFromStream(in);
+                    break;
+                default:
+                    args[i]=Util.objectFromStream(in);
+                    break;
+            }
+        }
+        return args;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (signature=%d)", print(types), signature);
+    }
+
+    protected Streamable newInstance(int index) throws IOException {
+        try {
+            return (Streamable)ctors[index].invoke();
+        }
+        catch(Throwable t) {
+            throw new IOException(String.format("failed creating an instance of %s", types[index].getName()), t);
+        }
+    }
+
+    protected static int signature(Class<?>[] types) {
+        return print(types).hashCode(); // String.hashCode() is stable across JVMs
+    }
+
+    protected static String print(Class<?>[] types) {
+        return Stream.of(types).map(Class::getName).collect(Collectors.joining(",", "(", ")"));
+    }
+
+    protected static byte kind(Class<?> type) {
+        if(type == boolean.class || type == Boolean.class)   return BOOLEAN;
+        if(type == byte.class || type == Byte.class)         return BYTE;
+        if(type == short.class || type == Short.class)       return SHORT;
+        if(type == char.class || type == Character.class)    return CHAR;
+        if(type == int.class || type == Integer.class)       return INT;
+        if(type == long.class || type == Long.class)         return LONG;
+        if(type == float.class || type == Float.class)       return FLOAT;
+        if(type == double.class || type == Double.class)     return DOUBLE;
+        if(type == String.class)                             return STRING;
+        if(type == byte[].class)                             return BYTES;
+        if(Streamable.class.isAssignableFrom(type) && !type.isInterface() && !Modifier.isAbstract(type.getModifiers()))
+            return STREAMABLE;
+        return OBJECT;
+    }
+
+    /** Returns a handle to the no-arg constructor, or null if there is none */
+    protected static MethodHandle constructor(Class<?> type) {
+        try {
+            Constructor<?> ctor=type.getDeclaredConstructor();
+            if(!Modifier.isPublic(ctor.getModifiers()) || !Modifier.isPublic(type.getModifiers()))
+                ctor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(ctor);
+        }
+        catch(NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -4,6 +4,7 @@ package org.jgroups.blocks;
 import org.jgroups.*;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
+import org.jgroups.protocols.LATENCY;
 import org.jgroups.protocols.TP;
 import org.jgroups.protocols.relay.SiteAddress;
 import org.jgroups.stack.Protocol;
@@ -17,6 +18,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 
@@ -48,6 +50,8 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
     /** When enabled, responses are handled by the common ForkJoinPool (https://issues.redhat.com/browse/JGRP-2644) */
     protected boolean                               async_rsp_handling=!Util.virtualThreadsAvailable();
     protected boolean                               wrap_exceptions;
+    /** Stores pending requests in a seqno-indexed table (see {@link RequestCorrelator#useRequestTable(boolean)}) */
+    protected boolean                               use_request_table;
     protected ProtocolAdapter                       prot_adapter;
     protected volatile Collection<Address>          members=new HashSet<>();
     protected Address                               local_addr;
@@ -102,6 +106,7 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
     public UpHandler         getProtocolAdapter()         {return prot_adapter;}
     public UpHandler         protocolAdapter()            {return prot_adapter;}
     public RpcStats          rpcStats()                   {return corr.rpc_stats;}
+    public boolean           useRequestTable()            {return use_request_table;}
 
     public <X extends MessageDispatcher> X setChannel(JChannel ch) {
         if(ch == null)
@@ -124,7 +129,7 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
         stop();
         this.corr=c;
         corr.asyncDispatching(this.async_dispatching).asyncRspHandling(async_rsp_handling)
-          .wrapExceptions(this.wrap_exceptions);
+          .wrapExceptions(this.wrap_exceptions).useRequestTable(use_request_table);
         start();
         return (X)this;
     }
@@ -157,6 +162,13 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
         return (X)this;
     }
 
+    public <X extends MessageDispatcher> X useRequestTable(boolean flag) {
+        use_request_table=flag;
+        if(corr != null)
+            corr.useRequestTable(flag);
+        return (X)this;
+    }
+
     protected <X extends MessageDispatcher> X setMembers(List<Address> new_mbrs) {
         if(new_mbrs != null)
             members=new HashSet<>(new_mbrs); // volatile write - seen by a subsequent read
@@ -168,7 +180,7 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
         if(corr == null)
             corr=createRequestCorrelator(prot_adapter, this, local_addr)
               .asyncDispatching(async_dispatching).asyncRspHandling(async_rsp_handling)
-              .wrapExceptions(this.wrap_exceptions);
+              .wrapExceptions(this.wrap_exceptions).useRequestTable(use_request_table);
         corr.start();
 
         if(channel != null) {
@@ -177,6 +189,9 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
             if(channel instanceof JChannel) {
                 TP transport=channel.getProtocolStack().getTransport();
                 corr.registerProbeHandler(transport);
+                LATENCY latency=channel.getProtocolStack().findProtocol(LATENCY.class);
+                if(latency != null)
+                    corr.rttHistogram(latency.rpcHistogram());
             }
         }
         return (X)this;
@@ -260,6 +275,70 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
             options=RequestOptions.SYNC();
         }
 
+        List<Address> real_dests=realDestinations(dests, options);
+        if(real_dests.isEmpty()) {
+            log.trace("destination list is empty, won't send message");
+            return empty_group_request;
+        }
+
+        if(options.mode() == ResponseMode.GET_NONE) {
+            corr.sendMulticastRequest(real_dests, msg, null, options);
+            return null;
+        }
+
+        GroupRequest<T> req=new GroupRequest<>(corr, real_dests, options);
+        req.execute(msg, block_for_results);
+        return req;
+    }
+
+
+    /**
+     * Sends a message to all members (or dests, if non-null) and streams the responses: responders can send chunks
+     * via {@link Response#sendChunk(Object)} before their final response. The returned request is a
+     * {@link java.util.concurrent.Flow.Publisher} emitting chunks and final responses as they arrive, and a future
+     * completing when all final responses have been received. Items are buffered until a subscriber is registered.
+     * <p>
+     * Responders need to use asynchronous dispatching (see {@link #asyncDispatching(boolean)}) and
+     * {@link RequestHandler#handle(Message,Response)} to send chunks
+     * @param dests The members from which to expect responses, or null for all members
+     * @param msg The message to be sent
+     * @param opts The options; the mode must not be {@link ResponseMode#GET_NONE} and exclusion lists are not supported
+     * @param credits The number of chunks a responder can send before it blocks until the subscriber has consumed
+     *                chunks. Provides back-pressure against slow subscribers
+     * @return The request, to which a {@link java.util.concurrent.Flow.Subscriber} can be subscribed
+     * @throws Exception If the request cannot be sent
+     * @since 5.6.0
+     */
+    public <T> StreamingGroupRequest<T> castMessageStreaming(final Collection<Address> dests, Message msg,
+                                                             RequestOptions opts, int credits) throws Exception {
+        return castMessageStreaming(dests, msg, opts, credits, null);
+    }
+
+    /**
+     * Same as {@link #castMessageStreaming(Collection,Message,RequestOptions,int)}, but passes all chunks and final
+     * responses to consumer, which is called by the threads delivering the responses
+     */
+    public <T> StreamingGroupRequest<T> castMessageStreaming(final Collection<Address> dests, Message msg,
+                                                             RequestOptions opts, int credits,
+                                                             Consumer<StreamedRsp<T>> consumer) throws Exception {
+        if(opts == null) {
+            log.warn("request options were null, using default of sync");
+            opts=RequestOptions.SYNC();
+        }
+        List<Address> real_dests=realDestinations(dests, opts);
+        StreamingGroupRequest<T> req=new StreamingGroupRequest<>(corr, real_dests, opts, credits);
+        if(consumer != null)
+            req.subscribe(consumer);
+        if(real_dests.isEmpty())
+            log.trace("destination list is empty, won't send message");
+        else
+            req.execute(msg, false);
+        return req;
+    }
+
+
+    /** Returns the members (of dests, or all members if null) to which a group request is sent */
+    protected List<Address> realDestinations(final Collection<Address> dests, RequestOptions options) {
         List<Address> real_dests;
         // we need to clone because we don't want to modify the original
         if(dests != null) {
@@ -279,20 +358,7 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
 
         if(options.hasExclusionList())
             Stream.of(options.exclusionList()).forEach(real_dests::remove);
-
-        if(real_dests.isEmpty()) {
-            log.trace("destination list is empty, won't send message");
-            return empty_group_request;
-        }
-
-        if(options.mode() == ResponseMode.GET_NONE) {
-            corr.sendMulticastRequest(real_dests, msg, null, options);
-            return null;
-        }
-
-        GroupRequest<T> req=new GroupRequest<>(corr, real_dests, options);
-        req.execute(msg, block_for_results);
-        return req;
+        return real_dests;
     }
 
 
@@ -327,6 +393,18 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
     }
 
 
+    /**
+     * Creates a pipeline which sends unicast requests without blocking for their responses; responses are passed to
+     * the handler
+     * @param window The max number of outstanding requests; {@link RequestPipeline#send(Message)} blocks when exceeded
+     * @param opts The options; the mode must not be {@link ResponseMode#GET_NONE}
+     * @param handler The handler receiving responses or exceptions
+     */
+    public <T> RequestPipeline<T> pipeline(int window, RequestOptions opts, RequestPipeline.Handler<T> handler) {
+        return new RequestPipeline<>(corr, window, opts, handler);
+    }
+
+
     /* ------------------------ RequestHandler Interface ---------------------- */
     @Override
     public Object handle(Message msg) throws Exception {
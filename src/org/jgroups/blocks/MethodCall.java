@@ -28,6 +28,9 @@ public class MethodCall implements Streamable, Constructable<MethodCall> {
     protected Object[]     args;         // the arguments to the call
     protected Class<?>[]   types;        // the types of the arguments, e.g., new Class[]{String.class, int.class}
     protected Method       method;
+    protected ArgsMarshaller marshaller; // if set, args are marshalled without type information
+
+    protected static final byte USE_IDS=1, MARSHALLED_ARGS=2; // flags
 
 
     /** Needed for deserialization */
@@ -69,6 +72,10 @@ public class MethodCall implements Streamable, Constructable<MethodCall> {
 
     public Method     getMethod()              {return method;}
 
+    public ArgsMarshaller argsMarshaller()                 {return marshaller;}
+    /** Sets the marshaller for the args; sender and receiver need to have registered the same signature */
+    public MethodCall     argsMarshaller(ArgsMarshaller m) {this.marshaller=m; return this;}
+
 
     public MethodCall setMethod(Method m)      {
         this.method=Objects.requireNonNull(m);
@@ -160,25 +167,43 @@ public class MethodCall implements Streamable, Constructable<MethodCall> {
 
     @Override
     public void writeTo(DataOutput out) throws IOException {
-        out.writeBoolean(useIds());
+        ArgsMarshaller m=marshaller;
+        boolean marshalled=m != null && (args != null? args.length : 0) == m.numArgs();
+        out.writeByte((useIds()? USE_IDS : 0) | (marshalled? MARSHALLED_ARGS : 0));
         if(useIds())
             out.writeShort(method_id);
         else {
             Bits.writeString(method_name,out);
             writeTypes(out);
         }
-        writeArgs(out);
+        if(marshalled) {
+            out.writeInt(m.signature());
+            m.write(args, out);
+        }
+        else
+            writeArgs(out);
     }
 
     @Override
     public void readFrom(DataInput in) throws IOException, ClassNotFoundException {
-        if(in.readBoolean())
+        byte flags=in.readByte();
+        if((flags & USE_IDS) != 0)
             method_id=in.readShort();
         else {
             method_name=Bits.readString(in);
             readTypes(in);
         }
-        readArgs(in);
+        if((flags & MARSHALLED_ARGS) != 0) {
+            int signature=in.readInt();
+            ArgsMarshaller m=ArgsMarshaller.get(signature);
+            if(m == null)
+                throw new IOException(String.format("no marshaller registered for signature %d (method %s)",
+                                                    signature, getMethodName()));
+            marshaller=m;
+            args=m.read(in);
+        }
+        else
+            readArgs(in);
     }
 
 
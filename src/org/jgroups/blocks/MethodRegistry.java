@@ -0,0 +1,132 @@
+package org.jgroups.blocks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Registry of methods invoked by ID, used by {@link RpcDispatcher}. When a method is registered, an invoker
+ * ({@link MethodHandle}) is created, which is faster than reflection, plus an {@link ArgsMarshaller} for its
+ * signature, which marshals the arguments without type information.<br/>
+ * Both the caller and the callee need to register the same methods with the same IDs; calls can then be created
+ * with {@link #call(short, Object...)}, or are prepared by the RpcDispatcher.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class MethodRegistry implements MethodLookup, MethodInvoker {
+    protected volatile Entry[] entries=new Entry[16]; // indexed by method ID
+
+    protected static final MethodType INVOKER_TYPE=MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    /** Registers a method under the given ID. Replaces an existing registration with the same ID */
+    public synchronized MethodRegistry register(short id, Method method) {
+        MethodCall.assertNotNegative(id);
+        Entry e=new Entry(Objects.requireNonNull(method));
+        if(id >= entries.length)
+            entries=Arrays.copyOf(entries, Math.max(id+1, entries.length * 2));
+        entries[id]=e;
+        return this;
+    }
+
+    public MethodRegistry register(short id, Class<?> cl, String method_name, Class<?>... types)
+      throws NoSuchMethodException {
+        return register(id, cl.getDeclaredMethod(method_name, types));
+    }
+
+    public boolean isRegistered(short id) {
+        return entry(id) != null;
+    }
+
+    @Override
+    public Method findMethod(short id) {
+        Entry e=entry(id);
+        return e != null? e.method : null;
+    }
+
+    public ArgsMarshaller marshaller(short id) {
+        Entry e=entry(id);
+        return e != null? e.marshaller : null;
+    }
+
+    /** Creates a call to the method registered under id, whose args are marshalled without type information */
+    public MethodCall call(short id, Object... args) {
+        return prepare(new MethodCall(id, args));
+    }
+
+    /** Sets the marshaller of a call by ID (if not yet set and the method is registered) */
+    public MethodCall prepare(MethodCall call) {
+        if(call != null && call.useIds() && call.argsMarshaller() == null) {
+            Entry e=entry(call.getMethodId());
+            if(e != null)
+                call.argsMarshaller(e.marshaller);
+        }
+        return call;
+    }
+
+    @Override
+    public Object invoke(Object target, short id, Object[] args) throws Exception {
+        Entry e=entry(id);
+        if(e == null)
+            throw new NoSuchMethodException(String.format("no method registered for ID %d", id));
+        if(target == null && !e.is_static)
+            throw new IllegalArgumentException("target is null");
+        try {
+            return e.invoker.invokeExact(target, args);
+        }
+        catch(Exception | Error ex) {
+            throw ex;
+        }
+        catch(Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb=new StringBuilder();
+        Entry[] tmp=entries;
+        for(int i=0; i < tmp.length; i++)
+            if(tmp[i] != null)
+                sb.append(String.format("%d: %s\n", i, tmp[i].method));
+        return sb.toString();
+    }
+
+    protected Entry entry(short id) {
+        Entry[] tmp=entries;
+        return id >= 0 && id < tmp.length? tmp[id] : null;
+    }
+
+
+    protected static class Entry {
+        protected final Method         method;
+        protected final boolean        is_static;
+        protected final MethodHandle   invoker;    // (Object target, Object[] args) -> Object
+        protected final ArgsMarshaller marshaller;
+
+        protected Entry(Method method) {
+            this.method=method;
+            this.is_static=Modifier.isStatic(method.getModifiers());
+            this.invoker=createInvoker(method);
+            this.marshaller=ArgsMarshaller.register(method.getParameterTypes());
+        }
+
+        protected static MethodHandle createInvoker(Method m) {
+            try {
+                // allow invocation of protected or (package-) private methods, too
+                if(!Modifier.isPublic(m.getModifiers()) || !Modifier.isPublic(m.getDeclaringClass().getModifiers()))
+                    m.setAccessible(true);
+                MethodHandle h=MethodHandles.lookup().unreflect(m);
+                if(Modifier.isStatic(m.getModifiers()))
+                    h=MethodHandles.dropArguments(h, 0, Object.class); // ignore the target
+                return h.asSpreader(Object[].class, m.getParameterCount()).asType(INVOKER_TYPE);
+            }
+            catch(IllegalAccessException e) {
+                throw new IllegalArgumentException(String.format("method %s cannot be accessed", m), e);
+            }
+        }
+    }
+}
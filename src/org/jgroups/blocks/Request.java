@@ -16,7 +16,7 @@ import java.util.concurrent.TimeUnit;
  * @author Bela Ban
  */
 public abstract class Request<T> extends CompletableFuture<T> {
-    protected long                    req_id;
+    protected volatile long           req_id;
     protected final RequestCorrelator corr;         // either use RequestCorrelator or ...
     protected final RequestOptions    options;
     protected long                    start_time;   // in ns, to compute RTT for blocking RPCs
@@ -57,6 +57,15 @@ public abstract class Request<T> extends CompletableFuture<T> {
 
     public abstract void receiveResponse(Object response_value, Address sender, boolean is_exception);
 
+    /** Called by {@link RequestCorrelator} when a response for the request with the given ID has been received */
+    protected void receiveResponse(long req_id, Object response_value, Address sender, boolean is_exception) {
+        receiveResponse(response_value, sender, is_exception);
+    }
+
+    /** Called by {@link RequestCorrelator} when a chunk of a streamed response has been received; no-op by default */
+    protected void receiveChunk(Object chunk, Address sender) {
+    }
+
     public abstract void viewChange(View new_view, boolean handle_previous_subgroups);
 
     public abstract void siteUnreachable(String site);
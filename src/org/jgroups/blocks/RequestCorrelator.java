@@ -18,7 +18,13 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.*;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 
@@ -36,6 +42,23 @@ public class RequestCorrelator {
     /** The table of pending requests (keys=Long (request IDs), values=RequestEntry) */
     protected final Map<Long,Request<?>> requests=Util.createConcurrentMap();
 
+    /**
+     * Seqno-indexed table of pending requests, used instead of requests if enabled ({@link #useRequestTable(boolean)}).
+     * Request IDs are seqnos in the table, so no Longs are created and lookups of responses don't acquire a lock
+     */
+    protected volatile RequestTable<Request<?>> request_table;
+
+    /** Responses which stream chunks to the caller, keyed by caller and request ID. Used to add credits */
+    protected final Map<Address,Map<Long,ChunkedResponse>> chunked_rsps=Util.createConcurrentMap();
+
+    /**
+     * IDs of streams cancelled by a caller before its request was received (the cancellation is sent as OOB message
+     * and can overtake the request). Checked when a streaming request is received; bounded per caller
+     */
+    protected final Map<Address,BoundedHashMap<Long,Boolean>> cancelled_streams=Util.createConcurrentMap();
+
+    protected static final int           MAX_CANCELLED_STREAMS=128; // max number of cancelled stream IDs per caller
+
     /** To generate unique request IDs */
     protected static final AtomicLong    REQUEST_ID=new AtomicLong(1);
 
@@ -73,6 +96,9 @@ public class RequestCorrelator {
 
     protected final AverageMinMax        avg_rsp_delivery=new AverageMinMax(1024).unit(TimeUnit.NANOSECONDS);
 
+    /** If non-null, the round-trip times of synchronous RPCs are recorded */
+    protected volatile Histogram         rtt_histogram;
+
     protected static final Log           log=LogFactory.getLog(RequestCorrelator.class);
 
 
@@ -108,6 +134,38 @@ public class RequestCorrelator {
     public boolean                rpcStats()                     {return rpcstats;}
     public RequestCorrelator      rpcStats(boolean b)            {
         rpcstats=b; return this;}
+    public Histogram              rttHistogram()                 {return rtt_histogram;}
+    public RequestCorrelator      rttHistogram(Histogram h)      {rtt_histogram=h; return this;}
+    public boolean                useRequestTable()              {return request_table != null;}
+
+    /**
+     * Stores pending requests in a seqno-indexed {@link RequestTable} rather than in a map keyed by request ID. Can
+     * only be changed when no requests are pending
+     */
+    public RequestCorrelator useRequestTable(boolean flag) {
+        if(flag == useRequestTable())
+            return this;
+        if(numPendingRequests() > 0)
+            throw new IllegalStateException("the request table cannot be changed while requests are pending");
+        // start at the next request ID, so responses to previous requests cannot match new requests
+        RequestTable<Request<?>> table=request_table;
+        if(flag) {
+            long next=REQUEST_ID.get();
+            request_table=new RequestTable<Request<?>>(128, next, next).removesTillCompaction(1024);
+        }
+        else {
+            // the table handed out IDs up to high-1 without incrementing REQUEST_ID: skip them
+            long high=table.high();
+            REQUEST_ID.accumulateAndGet(high, Math::max);
+            request_table=null;
+        }
+        return this;
+    }
+
+    public int numPendingRequests() {
+        RequestTable<Request<?>> table=request_table;
+        return table != null? table.size() : requests.size();
+    }
 
 
     /**
@@ -121,8 +179,15 @@ public class RequestCorrelator {
     public <T> void sendMulticastRequest(Collection<Address> dest_mbrs, Message msg, Request<T> req, RequestOptions opts) throws Exception {
         // i.   Create the request correlator header and add it to the msg
         // ii.  If a reply is expected (coll != null), add a coresponding entry in the pending requests table
-        Header hdr=opts.hasExclusionList()? new MultiDestinationHeader(Header.REQ, 0, this.corr_id, opts.exclusionList())
-          : new Header(Header.REQ, 0, this.corr_id);
+        Header hdr;
+        if(req instanceof StreamingGroupRequest<?> sreq) {
+            if(opts.hasExclusionList())
+                throw new IllegalArgumentException("exclusion lists are not supported with streaming requests");
+            hdr=new StreamingHeader(Header.REQ, 0, this.corr_id, sreq.credits(), opts.timeout());
+        }
+        else
+            hdr=opts.hasExclusionList()? new MultiDestinationHeader(Header.REQ, 0, this.corr_id, opts.exclusionList())
+              : new Header(Header.REQ, 0, this.corr_id);
 
         msg.putHeader(this.corr_id, hdr)
           .setFlag(opts.flags(), false, true)
@@ -162,6 +227,16 @@ public class RequestCorrelator {
     }
 
 
+    /**
+     * Grants credits to a member streaming chunks for the given request (see {@link Response#sendChunk(Object)}).
+     * A negative number of credits cancels the stream
+     */
+    public void sendCredits(Address dest, long req_id, int credits) {
+        Message msg=new ObjectMessage(dest, credits).setFlag(Message.Flag.OOB).setFlag(Message.TransientFlag.DONT_BLOCK)
+          .putHeader(corr_id, new Header(Header.CREDIT, req_id, corr_id));
+        down_prot.down(msg);
+    }
+
     /** Used to signal that a certain request may be garbage collected as all responses have been received */
     public void done(long id) {
         removeEntry(id);
@@ -206,8 +281,14 @@ public class RequestCorrelator {
 
     public void stop() {
         started=false;
-        requests.values().forEach(Request::transportClosed);
+        forEachRequest(Request::transportClosed);
         requests.clear();
+        chunked_rsps.values().forEach(m -> m.values().forEach(ChunkedResponse::cancel));
+        chunked_rsps.clear();
+        cancelled_streams.clear();
+        RequestTable<Request<?>> table=request_table;
+        if(table != null)
+            table.clear(table.high());
     }
 
 
@@ -225,11 +306,11 @@ public class RequestCorrelator {
 
     /** An entire site is down; mark all requests that point to that site as unreachable (used by RELAY2) */
     public void setSiteUnreachable(String site) {
-        requests.values().stream().filter(Objects::nonNull).forEach(req -> req.siteUnreachable(site));
+        forEachRequest(req -> req.siteUnreachable(site));
     }
 
     public void setMemberUnreachable(Address mbr) {
-        requests.values().stream().filter(Objects::nonNull).forEach(req -> req.memberUnreachable(mbr));
+        forEachRequest(req -> req.memberUnreachable(mbr));
     }
 
 
@@ -238,8 +319,17 @@ public class RequestCorrelator {
      */
     public void receiveView(View new_view) {
         view=new_view; // move this before the iteration (JGRP-1428)
-        requests.values().stream().filter(Objects::nonNull).forEach(req -> req.viewChange(new_view, true));
+        forEachRequest(req -> req.viewChange(new_view, true));
         rpc_stats.retainAll(new_view.getMembers());
+        // cancel the streams to callers which left, so that responders don't block forever waiting for credits
+        for(Iterator<Map.Entry<Address,Map<Long,ChunkedResponse>>> it=chunked_rsps.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Address,Map<Long,ChunkedResponse>> e=it.next();
+            if(!new_view.containsMember(e.getKey())) {
+                e.getValue().values().forEach(ChunkedResponse::cancel);
+                it.remove();
+            }
+        }
+        cancelled_streams.keySet().retainAll(new_view.getMembers());
     }
 
 
@@ -292,6 +382,11 @@ public class RequestCorrelator {
                     if(process_reqs)
                         dispatch(msg, hdr);
                     break;
+                case Header.RSP_CHUNK: // chunks are processed in order, before a subsequent (final) response
+                case Header.CREDIT:
+                    if(process_rsps)
+                        dispatch(msg, hdr);
+                    break;
                 case Header.RSP:
                 case Header.EXC_RSP:
                     if(process_rsps) {
@@ -329,28 +424,42 @@ public class RequestCorrelator {
     }
 
     protected <T> void addEntry(Request<T> req, Header hdr, boolean unicast) {
-        long req_id=REQUEST_ID.getAndIncrement();
-        req.requestId(req_id);
+        RequestTable<Request<?>> table=request_table;
+        long req_id;
+        boolean added=true;
+        if(table != null)
+            req.requestId(req_id=table.add(req));
+        else {
+            req.requestId(req_id=REQUEST_ID.getAndIncrement());
+            added=requests.putIfAbsent(req_id, req) == null;
+        }
         hdr.requestId(req_id); // set the request-id only for *synchronous RPCs*
         if(log.isTraceEnabled())
             log.trace("%s: invoking %s RPC [req-id=%d]", local_addr, unicast? "unicast" : "multicast", req_id);
-        Request<?> existing=requests.putIfAbsent(req_id, req);
-        if(existing == null) {
+        if(added) {
             // make sure no view is received before we add ourself as a view handler (https://issues.jboss.org/browse/JGRP-1428)
             req.viewChange(view, false);
-            if(rpc_stats.extendedStats())
+            if(rpc_stats.extendedStats() || rtt_histogram != null)
                 req.start_time=System.nanoTime();
         }
     }
 
     protected RequestCorrelator removeEntry(long req_id) {
-        Request<?> req=requests.remove(req_id);
+        RequestTable<Request<?>> table=request_table;
+        Request<?> req=table != null? table.remove(req_id) : requests.remove(req_id);
         if(req != null) {
             long time_ns=rpc_stats.extendedStats()? System.nanoTime() - req.start_time : 0;
+            Histogram h=rtt_histogram;
+            if(h != null && req.start_time > 0)
+                h.add(System.nanoTime() - req.start_time);
             if(req instanceof UnicastRequest) {
                 if(rpcstats)
                     rpc_stats.add(RpcStats.Type.UNICAST, ((UnicastRequest<?>)req).target, true, time_ns);
             }
+            else if(req instanceof RequestPipeline.Slot) {
+                if(rpcstats)
+                    rpc_stats.add(RpcStats.Type.UNICAST, ((RequestPipeline.Slot<?>)req).target, true, time_ns);
+            }
             else if(req instanceof GroupRequest) {
                 if(rpcstats) {
                     if(req.options != null && req.options.anycasting())
@@ -389,6 +498,14 @@ public class RequestCorrelator {
                 }
                 break;
 
+            case Header.RSP_CHUNK:
+                handleChunk(msg, hdr);
+                break;
+
+            case Header.CREDIT:
+                handleCredits(msg, hdr);
+                break;
+
             default:
                 log.error(Util.getMessage("HeaderSTypeIsNeitherREQNorRSP"));
                 break;
@@ -404,7 +521,7 @@ public class RequestCorrelator {
             log.trace("calling (%s) with request %d",
                       request_handler != null? request_handler.getClass().getName() : "null", hdr.req_id);
         if(async_dispatching && request_handler != null) {
-            Response rsp=hdr.rspExpected()? new ResponseImpl(req, hdr.req_id) : null;
+            Response rsp=hdr.rspExpected()? createResponse(req, hdr) : null;
             try {
                 request_handler.handle(req, rsp);
             }
@@ -429,11 +546,94 @@ public class RequestCorrelator {
     }
 
     protected void handleResponse(Message rsp, Header hdr) {
-        Request<?> req=requests.get(hdr.req_id);
+        Request<?> req=getEntry(hdr.req_id);
         if(req != null) {
             Object retval=rsp.getPayload();
-            req.receiveResponse(retval, rsp.getSrc(), hdr.type == Header.EXC_RSP);
+            req.receiveResponse(hdr.req_id, retval, rsp.getSrc(), hdr.type == Header.EXC_RSP);
+        }
+    }
+
+    protected void handleChunk(Message msg, Header hdr) {
+        Request<?> req=getEntry(hdr.req_id);
+        if(req != null)
+            req.receiveChunk(msg.getPayload(), msg.getSrc());
+    }
+
+    protected void handleCredits(Message msg, Header hdr) {
+        Address caller=msg.getSrc();
+        int credits=msg.getObject();
+        ChunkedResponse rsp;
+        if(credits >= 0) {
+            rsp=getChunkedResponse(caller, hdr.req_id);
+            if(rsp != null)
+                rsp.addCredits(credits);
+            return;
+        }
+        // a cancellation: if the request hasn't been received yet, record it, so the stream is cancelled on reception
+        BoundedHashMap<Long,Boolean> cancelled=cancelledStreams(caller);
+        synchronized(cancelled) {
+            if((rsp=getChunkedResponse(caller, hdr.req_id)) == null)
+                cancelled.put(hdr.req_id, Boolean.TRUE);
         }
+        if(rsp != null)
+            rsp.cancel();
+    }
+
+    protected Response createResponse(Message req, Header hdr) {
+        if(!(hdr instanceof StreamingHeader))
+            return new ResponseImpl(req, hdr.req_id);
+        StreamingHeader sh=(StreamingHeader)hdr;
+        Address caller=req.getSrc();
+        ChunkedResponse rsp=new ChunkedResponse(req, hdr.req_id, sh.credits, sh.timeout);
+        BoundedHashMap<Long,Boolean> cancelled=cancelledStreams(caller);
+        boolean was_cancelled;
+        synchronized(cancelled) { // handleCredits() either sees the response, or adds the ID before it is checked
+            if(!(was_cancelled=cancelled.remove(hdr.req_id) != null))
+                chunked_rsps.computeIfAbsent(caller, k -> Util.createConcurrentMap()).put(hdr.req_id, rsp);
+        }
+        if(was_cancelled)
+            rsp.cancel();
+        return rsp;
+    }
+
+    protected ChunkedResponse getChunkedResponse(Address caller, long req_id) {
+        Map<Long,ChunkedResponse> m=chunked_rsps.get(caller);
+        return m != null? m.get(req_id) : null;
+    }
+
+    protected BoundedHashMap<Long,Boolean> cancelledStreams(Address caller) {
+        return cancelled_streams.computeIfAbsent(caller, k -> new BoundedHashMap<>(MAX_CANCELLED_STREAMS));
+    }
+
+    protected void removeChunkedResponse(Address caller, long req_id) {
+        Map<Long,ChunkedResponse> m=chunked_rsps.get(caller);
+        if(m != null) {
+            m.remove(req_id);
+            if(m.isEmpty())
+                chunked_rsps.remove(caller, m);
+        }
+    }
+
+    protected Request<?> getEntry(long req_id) {
+        RequestTable<Request<?>> table=request_table;
+        if(table == null)
+            return requests.get(req_id);
+        Request<?> req=table.getNonBlocking(req_id);
+        if(req == null || req.requestId() != req_id) // not yet visible, or a different request: check under the lock
+            req=table.get(req_id);
+        return req != null && req.requestId() == req_id? req : null;
+    }
+
+    protected void forEachRequest(Consumer<Request<?>> c) {
+        RequestTable<Request<?>> table=request_table;
+        if(table != null)
+            table.forEachNonBlocking(req -> {
+                if(req != null)
+                    c.accept(req);
+                return true;
+            });
+        else
+            requests.values().stream().filter(Objects::nonNull).forEach(c);
     }
 
 
@@ -481,6 +681,98 @@ public class RequestCorrelator {
     }
 
 
+    /**
+     * Response to a {@link StreamingHeader streaming request}: chunks can be sent before the final response. Each
+     * chunk consumes a credit; when no credits are left, {@link #sendChunk(Object)} blocks until the caller has
+     * granted more credits (or cancelled the stream), but no longer than the timeout of the request. Chunks and the
+     * final response are sent as regular messages, so that they're delivered in order
+     */
+    protected class ChunkedResponse extends ResponseImpl {
+        protected final Lock      lock=new ReentrantLock();
+        protected final Condition credits_available=lock.newCondition();
+        protected final long      timeout; // max time (ms) to wait for credits, 0 waits forever
+        protected int             credits;
+        protected boolean         cancelled;
+
+        public ChunkedResponse(Message req, long req_id, int credits, long timeout) {
+            super(req, req_id);
+            this.credits=credits;
+            this.timeout=timeout;
+        }
+
+        @Override
+        public void sendChunk(Object chunk) throws Exception {
+            lock.lock();
+            try {
+                long wait_time=TimeUnit.MILLISECONDS.toNanos(timeout);
+                while(credits <= 0 && !cancelled) {
+                    if(timeout <= 0)
+                        credits_available.await();
+                    else if((wait_time=credits_available.awaitNanos(wait_time)) <= 0 && credits <= 0 && !cancelled) {
+                        // the caller didn't grant credits within the timeout of its request: give up on the stream
+                        cancelled=true;
+                        removeChunkedResponse(req.getSrc(), req_id);
+                        throw new TimeoutException(String.format("no credits from %s for request %d within %d ms",
+                                                                 req.getSrc(), req_id, timeout));
+                    }
+                }
+                if(cancelled)
+                    throw new CancellationException(String.format("stream of request %d was cancelled by %s",
+                                                                  req_id, req.getSrc()));
+                credits--;
+            }
+            finally {
+                lock.unlock();
+            }
+            Message rsp=makeReply(req).setFlag(req.getFlags(false), false, true).setPayload(chunk)
+              .clearFlag(Message.Flag.RSVP, Message.Flag.OOB)
+              .putHeader(corr_id, new Header(Header.RSP_CHUNK, req_id, corr_id));
+            down_prot.down(rsp);
+        }
+
+        @Override
+        public void send(Object reply, boolean is_exception) {
+            removeChunkedResponse(req.getSrc(), req_id);
+            Message rsp=makeReply(req).setFlag(req.getFlags(false), false, true)
+              .setPayload(reply).setFlag(Message.TransientFlag.DONT_BLOCK)
+              .clearFlag(Message.Flag.RSVP, Message.Flag.OOB); // must not overtake the chunks
+            sendResponse(rsp, req_id, is_exception);
+        }
+
+        @Override
+        public void send(Message reply, boolean is_exception) {
+            removeChunkedResponse(req.getSrc(), req_id);
+            super.send(reply, is_exception);
+        }
+
+        protected void addCredits(int num) {
+            if(num < 0) {
+                cancel();
+                return;
+            }
+            lock.lock();
+            try {
+                credits+=num;
+                credits_available.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        protected void cancel() {
+            lock.lock();
+            try {
+                cancelled=true;
+                credits_available.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+
     /**
      * The header for RequestCorrelator messages
      */
@@ -488,6 +780,8 @@ public class RequestCorrelator {
         public static final byte REQ     = 0;
         public static final byte RSP     = 1;
         public static final byte EXC_RSP = 2; // exception
+        public static final byte RSP_CHUNK = 3; // part of a streamed response
+        public static final byte CREDIT    = 4; // credits (in the payload) granted to a streaming responder
 
         /** Type of header: request or reply */
         public byte    type;
@@ -536,6 +830,10 @@ public class RequestCorrelator {
                     break;
                 case EXC_RSP: ret.append("EXC_RSP");
                     break;
+                case RSP_CHUNK: ret.append("RSP_CHUNK");
+                    break;
+                case CREDIT: ret.append("CREDIT");
+                    break;
                 default: ret.append("<unknown>");
             }
             ret.append(", req_id=" + req_id).append(", rsp_expected=" + rspExpected());
@@ -609,6 +907,53 @@ public class RequestCorrelator {
 
 
 
+    /**
+     * Header of a streaming request: the responders can send a number of chunks (credits) before they block, for at
+     * most timeout ms (the timeout of the request)
+     */
+    public static final class StreamingHeader extends Header {
+        public int  credits;
+        public long timeout;
+
+        public StreamingHeader() {
+        }
+
+        public StreamingHeader(byte type, long id, short corr_id, int credits, long timeout) {
+            super(type, id, corr_id);
+            this.credits=credits;
+            this.timeout=timeout;
+        }
+        public short getMagicId() {return 70;}
+        public Supplier<? extends org.jgroups.Header> create() {
+            return StreamingHeader::new;
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            super.writeTo(out);
+            Bits.writeIntCompressed(credits, out);
+            Bits.writeLongCompressed(timeout, out);
+        }
+
+        @Override
+        public void readFrom(DataInput in) throws IOException, ClassNotFoundException {
+            super.readFrom(in);
+            credits=Bits.readIntCompressed(in);
+            timeout=Bits.readLongCompressed(in);
+        }
+
+        @Override
+        public int serializedSize() {
+            return super.serializedSize() + Bits.size(credits) + Bits.size(timeout);
+        }
+
+        public String toString() {
+            return super.toString() + ", credits=" + credits + ", timeout=" + timeout;
+        }
+    }
+
+
+
     protected class MyProbeHandler implements DiagnosticsHandler.ProbeHandler {
 
         public Map<String, String> handleProbe(String... keys) {
@@ -619,12 +964,13 @@ public class RequestCorrelator {
                 switch(key) {
                     case "requests":
                         StringBuilder sb=new StringBuilder();
-                        for(Map.Entry<Long,Request<?>> entry: requests.entrySet())
-                            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+                        forEachRequest(req -> sb.append(req.requestId()).append(": ").append(req).append("\n"));
                         retval.put(key, sb.toString());
                         break;
                     case "reqtable-info":
-                        retval.put(key, String.format("size=%d, next-id=%d", requests.size(), REQUEST_ID.get()));
+                        RequestTable<Request<?>> table=request_table;
+                        retval.put(key, table != null? String.format("request table: %s", table)
+                          : String.format("size=%d, next-id=%d", requests.size(), REQUEST_ID.get()));
                         break;
                     case "rpcs":
                         if(!rpcstats) {
@@ -0,0 +1,285 @@
+package org.jgroups.blocks;
+
+import org.jgroups.*;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.relay.SiteAddress;
+import org.jgroups.util.CondVar;
+import org.jgroups.util.TimeScheduler;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends unicast requests without waiting for their responses (pipelining): up to {@code window} requests can be
+ * outstanding (sent but not yet answered), {@link #send(Message)} blocks when the window is full. Responses (or
+ * failures) are passed to a {@link Handler}.<br/>
+ * Contrary to {@link MessageDispatcher#sendMessageWithFuture(Message, RequestOptions)}, no future is created per
+ * request: requests are pooled slots, which are reused once a response has been received. A request which has not
+ * received a response within {@link #rspTimeout()} ms (default: the timeout of the options) fails with a
+ * {@link TimeoutException}, so that lost responses don't hold on to slots. This is best combined with
+ * {@link RequestCorrelator#useRequestTable(boolean)}, which avoids the creation of Longs for request IDs.<br/>
+ * Example (with an {@link RpcDispatcher}):
+ * <pre>
+ *     try(RequestPipeline&lt;Integer&gt; p=disp.pipeline(64, RequestOptions.SYNC(), handler)) {
+ *         for(int i=0; i &lt; 1000; i++)
+ *             p.send(new ObjectMessage(target, new MethodCall(ADD, i)));
+ *         p.flush(10_000);
+ *     }
+ * </pre>
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class RequestPipeline<T> implements Closeable {
+    protected final RequestCorrelator   corr;
+    protected final RequestOptions      opts;
+    protected final Handler<T>          handler;
+    protected final Slot<T>[]           slots;
+    protected final BlockingQueue<Slot<T>> free;
+    protected final CondVar             cond=new CondVar();
+    protected final TimeScheduler       timer; // fails requests which didn't get a response within rsp_timeout
+    protected volatile long             rsp_timeout;
+    protected volatile boolean          closed;
+
+    public interface Handler<T> {
+        /**
+         * Called when a response has been received, or the request failed. Invoked by the thread delivering the
+         * response (or by the timer when the request timed out), so this method should not block
+         * @param req_id The ID of the request, as returned by {@link #send(Message)}
+         * @param target The target of the request
+         * @param rsp The response, or null if the request failed
+         * @param ex The exception if the request failed (e.g. thrown by the target, the target left or the request
+         *           timed out), else null
+         */
+        void handle(long req_id, Address target, T rsp, Throwable ex);
+    }
+
+
+    public RequestPipeline(RequestCorrelator corr, int window, RequestOptions opts, Handler<T> handler) {
+        if(window <= 0)
+            throw new IllegalArgumentException(String.format("window (%d) must be positive", window));
+        if(opts.mode() == ResponseMode.GET_NONE)
+            throw new IllegalArgumentException("pipelined requests need responses; use an asynchronous RPC instead");
+        this.corr=corr;
+        this.opts=opts;
+        this.handler=handler;
+        TP tp=corr.down_prot != null? corr.down_prot.getTransport() : null;
+        this.timer=tp != null? tp.getTimer() : null;
+        this.rsp_timeout=opts.timeout();
+        this.slots=new Slot[window];
+        this.free=new ArrayBlockingQueue<>(window);
+        for(int i=0; i < slots.length; i++)
+            free.add(slots[i]=new Slot<>(this));
+    }
+
+    public int     window()      {return slots.length;}
+    public int     outstanding() {return slots.length - free.size();}
+    public boolean isClosed()    {return closed;}
+    public long    rspTimeout()  {return rsp_timeout;}
+
+    /** Sets the time (ms) after which a request without a response fails with a TimeoutException. 0 disables this */
+    public RequestPipeline<T> rspTimeout(long t) {rsp_timeout=t; return this;}
+
+    /**
+     * Sends a request to the destination of the message, blocking until a slot is available if the window is full.
+     * If the options define a timeout, a {@link TimeoutException} is thrown if no slot becomes available within it.
+     * If the pipeline is closed while blocked, an {@link IllegalStateException} is thrown
+     * @return The ID of the request, passed to the handler along with the response
+     */
+    public long send(Message msg) throws Exception {
+        Address dest=msg.getDest();
+        if(dest == null)
+            throw new IllegalArgumentException("message destination is null, cannot send message");
+        if(closed)
+            throw new IllegalStateException("pipeline is closed");
+        long timeout=opts.timeout();
+        Slot<T> slot=timeout > 0? free.poll(timeout, TimeUnit.MILLISECONDS) : free.take();
+        if(slot == null)
+            throw new TimeoutException(String.format("no free slot (window=%d) within %d ms", slots.length, timeout));
+        if(closed) { // woken up by close(): pass the slot on to the next blocked sender
+            release(slot);
+            throw new IllegalStateException("pipeline is closed");
+        }
+        slot.target=dest;
+        try {
+            corr.sendUnicastRequest(msg, slot, opts);
+        }
+        catch(Exception ex) {
+            RequestCorrelator.Header hdr=msg.getHeader(corr.corr_id);
+            slot.abort(hdr != null? hdr.req_id : 0);
+            throw ex;
+        }
+        // the slot may already have been reused, but the header is per message
+        RequestCorrelator.Header hdr=msg.getHeader(corr.corr_id);
+        if(closed) // close() ran while sending and didn't see the request: fail it, or its slot might never be released
+            slot.complete(hdr.req_id, new IllegalStateException("pipeline was closed"), true);
+        return hdr.req_id;
+    }
+
+    /** Blocks until all outstanding requests have completed, or the timeout (ms) elapsed */
+    public boolean flush(long timeout) {
+        return cond.waitFor(() -> free.size() == slots.length, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fails all outstanding requests; subsequent sends throw an exception. Senders blocked on a full window are woken
+     * up: failing the requests releases their slots, and every woken sender passes its slot on to the next one
+     */
+    @Override
+    public void close() {
+        closed=true;
+        for(Slot<T> slot: slots)
+            slot.fail(new IllegalStateException("pipeline was closed"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("window=%d, outstanding=%d%s", slots.length, outstanding(), closed? " (closed)" : "");
+    }
+
+    protected void release(Slot<T> slot) {
+        free.offer(slot);
+        if(free.size() == slots.length)
+            cond.signal(true);
+    }
+
+
+    /** A reusable request; never completed as a future */
+    protected static class Slot<T> extends Request<T> {
+        protected final RequestPipeline<T> pipeline;
+        /** The ID of the request currently in progress, 0 if none. Completion CASes it back to 0 */
+        protected final AtomicLong         active=new AtomicLong();
+        protected volatile Address         target;
+        protected volatile Future<?>       timeout_task;
+
+        protected Slot(RequestPipeline<T> pipeline) {
+            super(pipeline.corr, pipeline.opts);
+            this.pipeline=pipeline;
+        }
+
+        @Override
+        public Request<T> requestId(long req_id) {
+            super.requestId(req_id);
+            active.set(req_id);
+            // called before the request is sent, so the task is scheduled before a response can complete the slot
+            long timeout=pipeline.rsp_timeout;
+            if(timeout > 0 && pipeline.timer != null)
+                timeout_task=pipeline.timer.schedule(() -> complete(req_id, new TimeoutException(
+                  String.format("no response from %s for request %d within %d ms", target, req_id, timeout)), true),
+                                                     timeout, TimeUnit.MILLISECONDS, false);
+            return this;
+        }
+
+        @Override
+        public void sendRequest(Message req) throws Exception {
+            throw new UnsupportedOperationException("requests are sent by RequestPipeline.send()");
+        }
+
+        @Override
+        protected void receiveResponse(long req_id, Object rsp, Address sender, boolean is_exception) {
+            complete(req_id, rsp, is_exception);
+        }
+
+        @Override
+        public void receiveResponse(Object rsp, Address sender, boolean is_exception) {
+            complete(active.get(), rsp, is_exception);
+        }
+
+        @Override
+        public void viewChange(View view, boolean handle_previous_subgroups) {
+            Address t=target;
+            if(view == null || t == null)
+                return;
+            if(view instanceof MergeView && handle_previous_subgroups) {
+                for(View v: ((MergeView)view).getSubgroups()) {
+                    if(v.containsMember(t) && !v.containsMember(corr.local_addr)) {
+                        fail(new SuspectedException(t));
+                        return;
+                    }
+                }
+            }
+            if(!(t instanceof SiteAddress) && !view.containsMember(t))
+                fail(new SuspectedException(t));
+        }
+
+        @Override
+        public void siteUnreachable(String site) {
+            Address t=target;
+            if(t instanceof SiteAddress && ((SiteAddress)t).getSite().equals(site))
+                fail(new UnreachableException(t));
+        }
+
+        @Override
+        public void memberUnreachable(Address mbr) {
+            Address t=target;
+            if(t != null && t.isSiteAddress() && t.equals(mbr))
+                fail(new UnreachableException(mbr));
+        }
+
+        @Override
+        public void transportClosed() {
+            fail(new IllegalStateException("transport was closed"));
+        }
+
+        @Override
+        public T waitForCompletion(long timeout, TimeUnit unit) {
+            throw new UnsupportedOperationException("pipelined requests pass their responses to a handler");
+        }
+
+        @Override
+        public T waitForCompletion() {
+            throw new UnsupportedOperationException("pipelined requests pass their responses to a handler");
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s, target=%s, req-id=%d", super.toString(), target, active.get());
+        }
+
+        protected void fail(Throwable t) {
+            complete(active.get(), t, true);
+        }
+
+        protected void complete(long req_id, Object rsp, boolean is_exception) {
+            if(req_id <= 0 || !active.compareAndSet(req_id, 0))
+                return; // completed (and possibly reused) already
+            Address t=target;
+            try {
+                corr.done(req_id);
+                if(is_exception && rsp instanceof Throwable)
+                    pipeline.handler.handle(req_id, t, null, (Throwable)rsp);
+                else
+                    pipeline.handler.handle(req_id, t, (T)rsp, null);
+            }
+            finally {
+                reset();
+            }
+        }
+
+        /** Releases the slot after sending failed; req_id is 0 if the request was not added to the correlator */
+        protected void abort(long req_id) {
+            if(req_id > 0) {
+                if(!active.compareAndSet(req_id, 0))
+                    return; // completed concurrently, e.g. by a view change
+                corr.done(req_id);
+            }
+            reset();
+        }
+
+        protected void reset() {
+            Future<?> f=timeout_task;
+            if(f != null) {
+                timeout_task=null;
+                f.cancel(false);
+            }
+            target=null;
+            start_time=0;
+            this.req_id=0;
+            pipeline.release(this);
+        }
+    }
+}
@@ -31,4 +31,19 @@ public interface Response {
      * @param is_exception Whether the payload of this message is an exception or a real reply object
      */
     void send(Message reply, boolean is_exception);
+
+
+    /**
+     * Sends a chunk of a streamed response to the caller, before the final response is sent with
+     * {@link #send(Object,boolean)}. Only supported if the caller sent a streaming request (e.g. via
+     * {@link MessageDispatcher#castMessageStreaming(java.util.Collection,Message,RequestOptions,int)}); blocks when
+     * the caller has not granted enough credits
+     * @param chunk The chunk
+     * @throws java.util.concurrent.CancellationException If the caller cancelled the stream (or left)
+     * @throws java.util.concurrent.TimeoutException If the caller didn't grant credits within the timeout of the
+     *         request
+     */
+    default void sendChunk(Object chunk) throws Exception {
+        throw new UnsupportedOperationException("the request was not sent as streaming request");
+    }
 }
@@ -22,6 +22,7 @@ public class RpcDispatcher extends MessageDispatcher {
     protected Object        server_obj;
     protected MethodLookup  method_lookup;
     protected MethodInvoker method_invoker;
+    protected MethodRegistry method_registry;
 
 
     public RpcDispatcher() {
@@ -42,6 +43,20 @@ public class RpcDispatcher extends MessageDispatcher {
     public RpcDispatcher setMethodLookup(MethodLookup ml)     {this.method_lookup=ml; return this;}
     public MethodInvoker getMethodInvoker()                   {return method_invoker;}
     public RpcDispatcher setMethodInvoker(MethodInvoker mi)   {this.method_invoker=mi; return this;}
+    public MethodRegistry methodRegistry()                    {return method_registry;}
+    public RpcDispatcher methodRegistry(MethodRegistry r)     {this.method_registry=r; return this;}
+
+    /**
+     * Registers a method to be invoked by ID. The method is invoked via a {@link java.lang.invoke.MethodHandle} and
+     * its arguments are marshalled without type information (see {@link MethodRegistry}). Callers and callees need
+     * to register the same methods with the same IDs
+     */
+    public RpcDispatcher registerMethod(short id, Method method) {
+        if(method_registry == null)
+            method_registry=new MethodRegistry();
+        method_registry.register(id, method);
+        return this;
+    }
 
 
     /**
@@ -82,7 +97,7 @@ public class RpcDispatcher extends MessageDispatcher {
             log.trace("destination list of %s() is empty: no need to send message", method_call.getMethodName());
             return empty_rsplist;
         }
-        Message msg=new ObjectMessage(null, method_call);
+        Message msg=new ObjectMessage(null, prepare(method_call));
         RspList<T> retval=super.castMessage(dests, msg, opts);
         if(log.isTraceEnabled())
             log.trace("dests=%s, method_call=%s, options=%s, responses: %s", dests, method_call, opts, retval);
@@ -106,7 +121,7 @@ public class RpcDispatcher extends MessageDispatcher {
             log.trace("destination list of %s() is empty: no need to send message", call.getMethodName());
             return CompletableFuture.completedFuture(empty_rsplist);
         }
-        Message msg=new ObjectMessage(null, call);
+        Message msg=new ObjectMessage(null, prepare(call));
         CompletableFuture<RspList<T>> retval=super.castMessageWithFuture(dests, msg, options);
         if(log.isTraceEnabled())
             log.trace("dests=%s, method_call=%s, options=%s", dests, call, options);
@@ -140,7 +155,7 @@ public class RpcDispatcher extends MessageDispatcher {
      * @throws Exception Thrown if the method invocation threw an exception, either at the caller or the callee
      */
     public <T> T callRemoteMethod(Address dest, MethodCall call, RequestOptions options) throws Exception {
-        Message req=new ObjectMessage(dest, call);
+        Message req=new ObjectMessage(dest, prepare(call));
         T retval=super.sendMessage(req, options);
         if(log.isTraceEnabled())
             log.trace("dest=%s, method_call=%s, options=%s, retval: %s", dest, call, options, retval);
@@ -160,13 +175,19 @@ public class RpcDispatcher extends MessageDispatcher {
     public <T> CompletableFuture<T> callRemoteMethodWithFuture(Address dest, MethodCall call, RequestOptions opts) throws Exception {
         if(log.isTraceEnabled())
             log.trace("dest=%s, method_call=%s, options=%s", dest, call, opts);
-        Message msg=new ObjectMessage(dest, call);
+        Message msg=new ObjectMessage(dest, prepare(call));
         return super.sendMessageWithFuture(msg, opts);
     }
 
 
 
 
+    protected MethodCall prepare(MethodCall call) {
+        MethodRegistry registry=method_registry;
+        return registry != null? registry.prepare(call) : call;
+    }
+
+
     /**
      * Message contains MethodCall. Execute it against *this* object and return result.
      * Use MethodCall.invoke() to do this. Return result.
@@ -189,6 +210,9 @@ public class RpcDispatcher extends MessageDispatcher {
         if(method_call.useIds()) {
             if(method_invoker != null) // this trumps a method lookup
                 return method_invoker.invoke(server_obj, method_call.getMethodId(), method_call.getArgs());
+            MethodRegistry registry=method_registry;
+            if(registry != null && registry.isRegistered(method_call.getMethodId()))
+                return registry.invoke(server_obj, method_call.getMethodId(), method_call.getArgs());
             if(method_lookup == null)
                 throw new Exception(String.format("MethodCall uses ID=%d, but method_lookup has not been set", method_call.getMethodId()));
             Method m=method_lookup.findMethod(method_call.getMethodId());
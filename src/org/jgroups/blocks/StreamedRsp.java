@@ -0,0 +1,21 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.util.Rsp;
+
+/**
+ * An item emitted by a {@link StreamingGroupRequest}: either a chunk sent by a responder, or its final response
+ * (which may also be a suspicion or unreachability)
+ * @param sender The member which sent the chunk or response
+ * @param rsp The chunk or response
+ * @param last True if this is the final response of sender; no more items from sender will follow
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public record StreamedRsp<T>(Address sender, Rsp<T> rsp, boolean last) {
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s%s", sender, rsp, last? " (last)" : "");
+    }
+}
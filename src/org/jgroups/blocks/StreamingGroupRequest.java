@@ -0,0 +1,307 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.View;
+import org.jgroups.annotations.GuardedBy;
+import org.jgroups.util.Rsp;
+import org.jgroups.util.RspList;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A {@link GroupRequest} whose responses are streamed to a {@link Flow.Subscriber} as they arrive, rather than being
+ * collected in an {@link RspList}. Responders (using asynchronous dispatching) can send any number of chunks via
+ * {@link Response#sendChunk(Object)} before their final response; each chunk and final response is emitted as a
+ * {@link StreamedRsp}. Final responses, suspicions and unreachable members are emitted with {@code last=true}.<br/>
+ * Back-pressure: a responder can send {@code credits} chunks before it blocks. Credits are returned to a responder
+ * after its chunks have been passed to the subscriber, so a slow subscriber (one which requests few items) throttles
+ * the responders. Values are not retained in the {@link RspList} returned by the future, so results larger than
+ * memory can be streamed.<br/>
+ * Items of different responders are emitted in the order in which they are received, items of the same responder in
+ * the order in which they were sent. {@link Flow.Subscriber#onComplete()} is called after the last final response
+ * has been emitted.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class StreamingGroupRequest<T> extends GroupRequest<T> implements Flow.Publisher<StreamedRsp<T>> {
+    /** The number of chunks a responder can send before it needs to wait for more credits */
+    protected final int                                    credits;
+    /** Credits are sent back to a responder when this number of its chunks has been consumed */
+    protected final int                                    threshold;
+    protected final Queue<StreamedRsp<T>>                  queue=new ConcurrentLinkedQueue<>();
+    protected final AtomicInteger                          wip=new AtomicInteger();
+    protected final AtomicLong                             demand=new AtomicLong();
+    @GuardedBy("lock")
+    protected final Set<Address>                           finished=new HashSet<>();
+    /** Number of consumed chunks per responder, for which no credits have been sent yet. Accessed by drain() only */
+    protected final Map<Address,Integer>                   consumed=new HashMap<>();
+    protected volatile Flow.Subscriber<? super StreamedRsp<T>> subscriber;
+    /** Set when the final items have been added to the queue */
+    protected volatile boolean                             stream_done;
+    protected volatile boolean                             cancelled;
+    protected boolean                                      completed; // accessed by drain() only
+
+
+    public StreamingGroupRequest(RequestCorrelator corr, Collection<Address> targets, RequestOptions options, int credits) {
+        super(corr, targets, options);
+        if(credits <= 0)
+            throw new IllegalArgumentException(String.format("credits (%d) must be positive", credits));
+        if(options.mode() == ResponseMode.GET_NONE)
+            throw new IllegalArgumentException("streaming requests need responses");
+        this.credits=credits;
+        this.threshold=Math.max(1, credits / 2);
+        if(targets.isEmpty()) {
+            stream_done=true;
+            complete(rsps);
+        }
+    }
+
+    public int credits() {return credits;}
+
+    /** Subscribes a consumer which requests all items; items are passed to it by the threads delivering them */
+    public StreamingGroupRequest<T> subscribe(Consumer<StreamedRsp<T>> c) {
+        subscribe(new Flow.Subscriber<StreamedRsp<T>>() {
+            public void onSubscribe(Flow.Subscription s) {s.request(Long.MAX_VALUE);}
+            public void onNext(StreamedRsp<T> item)      {c.accept(item);}
+            public void onError(Throwable t)             {}
+            public void onComplete()                     {}
+        });
+        return this;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super StreamedRsp<T>> s) {
+        Objects.requireNonNull(s);
+        synchronized(this) {
+            if(subscriber == null) {
+                subscriber=s;
+                s.onSubscribe(new StreamSubscription());
+                drain();
+                return;
+            }
+        }
+        s.onSubscribe(new Flow.Subscription() {
+            public void request(long n) {}
+            public void cancel() {}
+        });
+        s.onError(new IllegalStateException("a streaming request can only have a single subscriber"));
+    }
+
+    @Override
+    protected void receiveChunk(Object chunk, Address sender) {
+        if(isDone() || !rsps.containsKey(sender))
+            return;
+        lock.lock();
+        try {
+            if(finished.contains(sender))
+                return;
+            queue.add(new StreamedRsp<>(sender, new Rsp<>((T)chunk), false));
+        }
+        finally {
+            lock.unlock();
+        }
+        drain();
+    }
+
+    @Override
+    public void receiveResponse(Object response_value, Address sender, boolean is_exception) {
+        Rsp<T> rsp;
+        if(isDone() || (rsp=rsps.get(sender)) == null)
+            return;
+        RspFilter rsp_filter=options.rspFilter();
+        boolean done=false;
+        lock.lock();
+        try {
+            if(!rsp.wasReceived() && finished.add(sender)) {
+                if(!(rsp.wasSuspected() || rsp.wasUnreachable()))
+                    num_received++;
+                if(rsp_filter == null || rsp_filter.isAcceptable(response_value, sender)) {
+                    Rsp<T> item=is_exception && response_value instanceof Throwable?
+                      new Rsp<>((Throwable)response_value) : new Rsp<>((T)response_value);
+                    if(item.hasException()) // values are not retained, exceptions are
+                        rsp.setException(item.getException());
+                    else
+                        rsp.setReceived();
+                    num_valid++;
+                    queue.add(new StreamedRsp<>(sender, item, true));
+                }
+                else
+                    rsp.setReceived();
+            }
+            if(responsesComplete() || (rsp_filter != null && !rsp_filter.needMoreResponses())) {
+                stream_done=done=true;
+                complete(this.rsps);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        if(done) // e.g. GET_FIRST: the remaining responders don't need to send their chunks
+            cancelUnfinished();
+        drain();
+        if(done)
+            corrDone();
+    }
+
+    @Override
+    public void viewChange(View view, boolean handle_previous_subgroups) {
+        super.viewChange(view, handle_previous_subgroups);
+        emitFinished();
+    }
+
+    @Override
+    public void siteUnreachable(String site) {
+        super.siteUnreachable(site);
+        emitFinished();
+    }
+
+    @Override
+    public void memberUnreachable(Address mbr) {
+        super.memberUnreachable(mbr);
+        emitFinished();
+    }
+
+    @Override
+    public void transportClosed() {
+        super.transportClosed();
+        emitFinished();
+    }
+
+    /** Cancels the request and the stream: the responders are told to stop sending chunks */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        cancelled=stream_done=true;
+        cancelUnfinished();
+        try {
+            return super.cancel(mayInterruptIfRunning);
+        }
+        finally {
+            drain();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s, credits=%d, queued=%d, demand=%d", super.toString(), credits, queue.size(), demand.get());
+    }
+
+    /** Tells the responders which haven't sent their final responses yet to stop streaming */
+    protected void cancelUnfinished() {
+        long id=req_id;
+        if(corr == null || id <= 0)
+            return;
+        List<Address> unfinished=new ArrayList<>();
+        lock.lock();
+        try {
+            for(Address mbr: rsps.keySet())
+                if(finished.add(mbr))
+                    unfinished.add(mbr);
+        }
+        finally {
+            lock.unlock();
+        }
+        unfinished.forEach(mbr -> corr.sendCredits(mbr, id, -1));
+    }
+
+    /** Emits the members which are done (e.g. suspected) but haven't been emitted yet */
+    protected void emitFinished() {
+        lock.lock();
+        try {
+            for(Map.Entry<Address,Rsp<T>> e: rsps.entrySet()) {
+                Rsp<T> rsp=e.getValue();
+                if(!(rsp.wasReceived() || rsp.wasSuspected() || rsp.wasUnreachable()) || !finished.add(e.getKey()))
+                    continue;
+                Rsp<T> item=new Rsp<>();
+                if(rsp.hasException())
+                    item.setException(rsp.getException());
+                if(rsp.wasSuspected())
+                    item.setSuspected();
+                if(rsp.wasUnreachable())
+                    item.setUnreachable();
+                queue.add(new StreamedRsp<>(e.getKey(), item, true));
+            }
+            if(isDone())
+                stream_done=true;
+        }
+        finally {
+            lock.unlock();
+        }
+        drain();
+    }
+
+    /** Passes queued items to the subscriber, as long as it has demand. Only one thread drains at a time */
+    protected void drain() {
+        if(wip.getAndIncrement() != 0)
+            return;
+        int missed=1;
+        for(;;) {
+            Flow.Subscriber<? super StreamedRsp<T>> s=subscriber;
+            if(s != null && !completed) {
+                if(cancelled) {
+                    queue.clear();
+                    completed=true;
+                    continue;
+                }
+                StreamedRsp<T> item;
+                while(demand.get() > 0 && (item=queue.poll()) != null) {
+                    if(demand.get() != Long.MAX_VALUE)
+                        demand.decrementAndGet();
+                    try {
+                        s.onNext(item);
+                    }
+                    catch(Throwable t) {
+                        completed=true;
+                        cancel(false);
+                        s.onError(t);
+                        break;
+                    }
+                    if(!item.last())
+                        consumed(item.sender());
+                }
+                if(!completed && stream_done && queue.isEmpty()) {
+                    completed=true;
+                    s.onComplete();
+                }
+            }
+            missed=wip.addAndGet(-missed);
+            if(missed == 0)
+                break;
+        }
+    }
+
+    /** A chunk of sender has been consumed: return credits when the threshold has been reached */
+    protected void consumed(Address sender) {
+        int num=consumed.merge(sender, 1, Integer::sum);
+        if(num < threshold)
+            return;
+        consumed.remove(sender);
+        long id=req_id;
+        if(corr != null && id > 0 && !isDone())
+            corr.sendCredits(sender, id, num);
+    }
+
+
+    protected class StreamSubscription implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+            if(n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException(String.format("requested items (%d) must be positive", n)));
+                return;
+            }
+            demand.accumulateAndGet(n, (cur, add) -> cur + add < 0? Long.MAX_VALUE : cur + add);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            StreamingGroupRequest.this.cancel(false);
+        }
+    }
+}
@@ -144,7 +144,9 @@ public class NioConnection extends Connection {
 
     /**
      * Sends a message. If the previous write didn't complete, tries to complete it. If this still doesn't complete,
-     * the message is dropped (needs to be retransmitted, e.g. by UNICAST3 or NAKACK2).
+     * the message is dropped (needs to be retransmitted, e.g. by UNICAST3 or NAKACK2).<br/>
+     * Direct buffers are written to the channel as is. As callers may reuse buf (e.g. a pooled buffer) as soon as this
+     * method returns, {@link #copy_on_partial_write} needs to be true if the write doesn't complete.
      */
     @Override
     public void send(ByteBuffer buf) throws Exception {
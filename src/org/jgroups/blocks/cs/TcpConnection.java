@@ -36,6 +36,8 @@ public class TcpConnection extends Connection {
     protected volatile boolean    connected;
     protected final byte[]        length_buf=new byte[Integer.BYTES]; // used to write the length of the data
     protected boolean             use_lock_to_send=true; // e.g. a single sender doesn't need to acquire the send_lock
+    protected byte[]              copy_buf; // used to copy direct buffers to the output stream (created on demand)
+    protected static final int    COPY_BUF_SIZE=8192;
 
     /** Creates a connection to a remote peer, use {@link #connect(Address)} to connect */
     public TcpConnection(Address peer_addr, TcpBaseServer server) throws Exception {
@@ -144,17 +146,30 @@ public class TcpConnection extends Connection {
         doSend(data, offset, length, true);
     }
 
+    /**
+     * Sends the contents of buf (position to limit) synchronously; the buffer is not modified. Direct buffers are
+     * written in chunks, through a reusable array, so that no array of the buffer's size needs to be allocated
+     */
     public void send(ByteBuffer buf) throws Exception {
-        if(buf == null)
+        if(buf == null || out == null)
+            return;
+        if(buf.hasArray()) {
+            send(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            return;
+        }
+        if(!use_lock_to_send) {
+            doSend(buf, true);
             return;
-        int offset=buf.hasArray()? buf.arrayOffset() + buf.position() : buf.position(),
-          len=buf.remaining();
-        if(buf.hasArray())
-            send(buf.array(), offset, len);
-        else {
-            byte[] tmp=new byte[len];
-            buf.get(tmp, 0, len);
-            send(tmp, 0, len); // will get copied again if send-queues are enabled
+        }
+        writers.incrementAndGet();
+        send_lock.lock();
+        try {
+            doSend(buf, false);
+        }
+        finally {
+            send_lock.unlock();
+            if(writers.decrementAndGet() == 0) // only the last active writer thread calls flush()
+                flush(); // won't throw an exception
         }
     }
 
@@ -167,6 +182,23 @@ public class TcpConnection extends Connection {
             out.flush();
     }
 
+    @GuardedBy("send_lock")
+    protected void doSend(ByteBuffer buf, boolean flush) throws Exception {
+        int length=buf.remaining(), position=buf.position();
+        Bits.writeInt(length, length_buf, 0); // write the length of the data buffer first
+        out.write(length_buf, 0, length_buf.length);
+        if(copy_buf == null)
+            copy_buf=new byte[COPY_BUF_SIZE];
+        for(int offset=0; offset < length;) {
+            int len=Math.min(copy_buf.length, length - offset);
+            buf.get(position + offset, copy_buf, 0, len);
+            out.write(copy_buf, 0, len);
+            offset+=len;
+        }
+        if(flush)
+            out.flush();
+    }
+
     public void flush() {
         try {
             out.flush();
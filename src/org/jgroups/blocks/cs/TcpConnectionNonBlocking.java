@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.LongAdder;
 
@@ -73,6 +74,21 @@ public class TcpConnectionNonBlocking extends TcpConnection implements Runnable
             dropped_msgs.increment();
     }
 
+    @Override
+    public void send(ByteBuffer buf) throws Exception {
+        if(buf == null)
+            return;
+        if(buf.hasArray()) {
+            send(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            return;
+        }
+        byte[] tmp=new byte[buf.remaining()]; // the data is sent asynchronously, so the buffer has to be copied
+        buf.get(buf.position(), tmp);
+        boolean added=queue.offer(new ByteArray(tmp));
+        if(!added)
+            dropped_msgs.increment();
+    }
+
     public void run() {
         try {
             if(!isConnected())
@@ -0,0 +1,305 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.NullAddress;
+import org.jgroups.View;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.conf.AttributeType;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.Util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.jgroups.conf.AttributeType.SCALAR;
+
+/**
+ * Bundler which decides per destination whether to send messages immediately (on the sender's thread, like
+ * {@link NoBundler}) or to queue and bundle them (like {@link TransferQueueBundler}).<br/>
+ * Every eval_interval ms, the arrival rate of each destination is computed. A destination switches to batched mode
+ * when its rate exceeds rate_threshold, or when more than depth_threshold threads are concurrently sending to it. It
+ * switches back to immediate mode when its rate drops below half of rate_threshold.<br/>
+ * In batched mode, the number of bytes after which a bundle is sent (batch_size) is tuned between min_batch_size and
+ * max_size, so that the time a message spends in the bundler stays below latency_target.<br/>
+ * The decisions (per destination) and a histogram of the latencies can be fetched via probe.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class AdaptiveBundler extends TransferQueueBundler {
+    protected final Map<Address,DestState>    dests=Util.createConcurrentMap();
+    protected static final Address            NULL=new NullAddress();
+    protected final LatencyHistogram          histogram=new LatencyHistogram();
+    protected final LongAdder                 batch_latency_sum=new LongAdder(), batch_latency_count=new LongAdder();
+    protected Future<?>                       eval_task;
+    protected volatile int                    batch_size;
+
+    @Property(description="Max time (microseconds) a message should spend in the bundler. The batch size is tuned " +
+      "towards this target",type=AttributeType.TIME,unit=TimeUnit.MICROSECONDS)
+    protected long                            latency_target=500;
+
+    @Property(description="Number of messages per second to a destination above which messages to it are bundled",
+      type=SCALAR)
+    protected int                             rate_threshold=5000;
+
+    @Property(description="Number of threads concurrently sending to the same destination above which messages to it " +
+      "are bundled",type=SCALAR)
+    protected int                             depth_threshold=8;
+
+    @Property(description="Interval (ms) at which the arrival rates are computed and the batch size is adjusted",
+      type=AttributeType.TIME)
+    protected long                            eval_interval=100;
+
+    @Property(description="Min number of bytes after which a bundle is sent",type=AttributeType.BYTES)
+    protected int                             min_batch_size=8192;
+
+    @ManagedAttribute(description="Number of messages sent immediately (without bundling)",type=SCALAR)
+    protected final LongAdder                 num_immediate_sends=new LongAdder();
+
+    @ManagedAttribute(description="Number of switches between immediate and batched mode",type=SCALAR)
+    protected final LongAdder                 num_mode_switches=new LongAdder();
+
+    @ManagedAttribute(description="Number of times the batch size was adjusted",type=SCALAR)
+    protected final LongAdder                 num_batch_size_changes=new LongAdder();
+
+    public long            latencyTarget()                {return latency_target;}
+    public AdaptiveBundler latencyTarget(long t)          {latency_target=t; return this;}
+    public int             rateThreshold()                {return rate_threshold;}
+    public AdaptiveBundler rateThreshold(int t)           {rate_threshold=t; return this;}
+    public int             depthThreshold()               {return depth_threshold;}
+    public AdaptiveBundler depthThreshold(int t)          {depth_threshold=t; return this;}
+    public long            evalInterval()                 {return eval_interval;}
+    public AdaptiveBundler evalInterval(long i)           {eval_interval=i; return this;}
+    public int             minBatchSize()                 {return min_batch_size;}
+    public AdaptiveBundler minBatchSize(int s)            {min_batch_size=s; return this;}
+    public long            numImmediateSends()            {return num_immediate_sends.sum();}
+    public long            numModeSwitches()              {return num_mode_switches.sum();}
+
+    @ManagedAttribute(description="Current number of bytes after which a bundle is sent",type=AttributeType.BYTES)
+    public int batchSize() {return batch_size;}
+
+    @ManagedAttribute(description="Number of destinations in batched mode")
+    public int numBatchedDestinations() {return (int)dests.values().stream().filter(d -> d.batching).count();}
+
+    /** Returns true if messages to the given destination (null: multicast) are currently bundled */
+    public boolean isBatching(Address dest) {
+        DestState st=dests.get(dest == null? NULL : dest);
+        return st != null && st.batching;
+    }
+
+    @ManagedOperation(description="Shows the mode and the arrival rate of all destinations")
+    public String dests() {
+        return dests.entrySet().stream()
+          .map(e -> String.format("%s: %s", e.getKey() instanceof NullAddress? "<all>" : e.getKey(), e.getValue()))
+          .collect(Collectors.joining("\n"));
+    }
+
+    @ManagedOperation(description="Prints the histogram of the times messages spent in the bundler")
+    public String histogram() {
+        return histogram.toString();
+    }
+
+    @Override
+    public void init(TP transport) {
+        super.init(transport);
+        if(transport instanceof TCP tcp)
+            tcp.useLockToSend(true); // immediate sends are done by the sender threads
+        if(min_batch_size > max_size)
+            min_batch_size=max_size;
+        batch_size=max_size;
+    }
+
+    @Override
+    public synchronized void start() {
+        super.start();
+        if(eval_task == null || eval_task.isDone())
+            eval_task=transport.getTimer().scheduleWithFixedDelay(this::evaluate, eval_interval, eval_interval,
+                                                                  MILLISECONDS, false);
+    }
+
+    @Override
+    public synchronized void stop() {
+        Future<?> tmp=eval_task;
+        eval_task=null;
+        if(tmp != null)
+            tmp.cancel(false);
+        super.stop();
+    }
+
+    @Override
+    public void resetStats() {
+        super.resetStats();
+        Stream.of(num_immediate_sends, num_mode_switches, num_batch_size_changes).forEach(LongAdder::reset);
+        histogram.clear();
+    }
+
+    @Override
+    public void viewChange(View view) {
+        super.viewChange(view);
+        dests.keySet().removeIf(a -> !(a instanceof NullAddress) && !view.containsMember(a));
+    }
+
+    @Override
+    public void send(Message msg) throws Exception {
+        if(!running)
+            return;
+        Address dest=msg.dest();
+        DestState st=dests.computeIfAbsent(dest == null? NULL : dest, __ -> new DestState());
+        st.arrivals.increment();
+        // messages queued before cannot be overtaken by the same sender thread
+        if(!st.batching && st.queued.get() == 0) {
+            if(st.in_flight.incrementAndGet() > depth_threshold)
+                switchMode(st, true);
+            try {
+                sendImmediately(msg);
+            }
+            finally {
+                st.in_flight.decrementAndGet();
+            }
+            return;
+        }
+        if(st.queued.getAndIncrement() == 0)
+            st.first_queued=System.nanoTime();
+        if(!queue.offer(msg)) {
+            st.queued.decrementAndGet();
+            num_drops_on_full_queue.increment();
+        }
+    }
+
+    protected void sendImmediately(Message msg) throws Exception {
+        long start=System.nanoTime();
+        ByteArrayDataOutputStream out=buffer_pool != null? null // the message is marshalled into a pooled buffer
+          : new ByteArrayDataOutputStream(msg.length() + 128).growExponentially(true);
+        sendSingle(msg.dest(), msg, out);
+        long time=System.nanoTime() - start;
+        histogram.add(time);
+        if(transport.statsEnabled())
+            avg_send_time.add(time);
+        num_immediate_sends.increment();
+    }
+
+    @Override
+    protected void addAndSendIfSizeExceeded(Message msg) {
+        int size=msg.size();
+        if(count + size > batch_size) {
+            if(transport.statsEnabled())
+                avg_fill_count.add(count);
+            sendBundledMessages();
+            num_sends_because_full_queue.increment();
+        }
+        addMessage(msg, size);
+    }
+
+    @Override
+    protected void sendBundledMessages() {
+        for(Map.Entry<Address,List<Message>> e: msgs.entrySet()) {
+            int num=e.getValue().size();
+            if(num == 0)
+                continue;
+            Address dest=e.getKey();
+            DestState st=dests.get(dest == null? NULL : dest);
+            if(st != null)
+                st.sent(num);
+        }
+        long start=System.nanoTime();
+        super.sendBundledMessages();
+        for(DestState st: dests.values()) {
+            if(st.to_be_sent == 0)
+                continue;
+            long latency=System.nanoTime() - Math.min(st.first_queued, start);
+            histogram.add(latency);
+            batch_latency_sum.add(latency);
+            batch_latency_count.increment();
+            // the remaining queued messages were added after the start of the send
+            if(st.queued.addAndGet(-st.to_be_sent) > 0)
+                st.first_queued=start;
+            st.to_be_sent=0;
+        }
+    }
+
+    /** Computes the arrival rates, switches modes and adjusts the batch size */
+    protected void evaluate() {
+        for(DestState st: dests.values()) {
+            st.rate=st.arrivals.sumThenReset() * 1000.0 / eval_interval;
+            if(!st.batching && st.rate >= rate_threshold)
+                switchMode(st, true);
+            else if(st.batching && st.rate < rate_threshold / 2.0)
+                switchMode(st, false);
+        }
+        long cnt=batch_latency_count.sumThenReset(), sum=batch_latency_sum.sumThenReset();
+        if(cnt == 0)
+            return;
+        long avg_latency=TimeUnit.NANOSECONDS.toMicros(sum / cnt);
+        int old_size=batch_size, new_size=old_size;
+        if(avg_latency > latency_target)
+            new_size=Math.max(min_batch_size, old_size * 3 / 4);
+        else if(avg_latency < latency_target / 2)
+            new_size=Math.min(max_size, old_size + old_size / 4);
+        if(new_size != old_size) {
+            batch_size=new_size;
+            num_batch_size_changes.increment();
+            log.trace("%s: batch size changed from %,d to %,d (avg latency: %d us, target: %d us)",
+                      transport.getAddress(), old_size, new_size, avg_latency, latency_target);
+        }
+    }
+
+    protected void switchMode(DestState st, boolean batching) {
+        if(st.batching != batching) {
+            st.batching=batching;
+            st.switches++;
+            num_mode_switches.increment();
+        }
+    }
+
+
+    protected static class DestState {
+        protected final LongAdder     arrivals=new LongAdder();
+        protected final AtomicInteger queued=new AtomicInteger();    // messages added to the queue but not yet sent
+        protected final AtomicInteger in_flight=new AtomicInteger(); // number of threads sending immediately
+        protected volatile boolean    batching;
+        protected volatile long       first_queued;                  // time (ns) the oldest queued message was added
+        protected volatile double     rate;                          // messages / sec during the last interval
+        protected int                 to_be_sent;                    // only used by the bundler thread
+        protected volatile int        switches;
+
+        protected void sent(int num) {to_be_sent+=num;}
+
+        public String toString() {
+            return String.format("mode=%s rate=%,.0f/s queued=%d switches=%d",
+                                 batching? "batched" : "immediate", rate, queued.get(), switches);
+        }
+    }
+
+    /** Histogram of times (in ns) with power-of-2 microsecond buckets */
+    protected static class LatencyHistogram {
+        protected final AtomicLongArray buckets=new AtomicLongArray(32);
+
+        protected void add(long time_ns) {
+            long us=TimeUnit.NANOSECONDS.toMicros(time_ns);
+            int index=us == 0? 0 : Math.min(buckets.length()-1, 64 - Long.numberOfLeadingZeros(us));
+            buckets.incrementAndGet(index);
+        }
+
+        protected void clear() {
+            for(int i=0; i < buckets.length(); i++)
+                buckets.set(i, 0);
+        }
+
+        public String toString() {
+            return IntStream.range(0, buckets.length()).filter(i -> buckets.get(i) > 0)
+              .mapToObj(i -> String.format("%s: %,d", i == 0? "< 1 us" : String.format("< %,d us", 1L << i), buckets.get(i)))
+              .collect(Collectors.joining("\n"));
+        }
+    }
+}
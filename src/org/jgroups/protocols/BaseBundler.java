@@ -46,9 +46,12 @@ public abstract class BaseBundler implements Bundler {
     protected final ReentrantLock                   lock=new ReentrantLock();
     protected @GuardedBy("lock") long               count;    // current number of bytes accumulated
     protected ByteArrayDataOutputStream             output;
+    protected BufferPool                            buffer_pool; // if non-null, msgs are marshalled into pooled buffers
     protected MsgStats                              msg_stats;
     protected Log                                   log;
     protected SuppressLog<Address>                  suppress_log;
+    protected Histogram                             wait_histogram; // if non-null: time between first msg and send
+    protected @GuardedBy("lock") long               first_msg_time; // ns, time the first message was added to a bundle
     protected static final String                   FMT="%s: failed sending message to %s: %s";
 
     /**
@@ -141,6 +144,9 @@ public abstract class BaseBundler implements Bundler {
     public void                  suppressLogTimeout(long s)       {this.suppress_log_timeout=s;}
     public long                  removeDelay()                    {return remove_delay;}
     public Bundler               removeDelay(long remove_delay)   {this.remove_delay=remove_delay; return this;}
+    public Histogram             waitHistogram()                  {return wait_histogram;}
+    /** Records the time between adding the first message to a bundle and sending the bundle. Null disables it */
+    public Bundler               waitHistogram(Histogram h)       {this.wait_histogram=h; return this;}
 
     @ManagedAttribute(description="Average number of messages in an BatchMessage",gauge=true)
     public double avgBatchSize() {
@@ -157,6 +163,7 @@ public abstract class BaseBundler implements Bundler {
         log=transport.getLog();
         suppress_log=new SuppressLog<>(log);
         output=new ByteArrayDataOutputStream(max_size + MSG_OVERHEAD);
+        buffer_pool=transport.getBufferPool();
     }
 
     public void resetStats() {
@@ -221,6 +228,12 @@ public abstract class BaseBundler implements Bundler {
             list.clear();
         }
         count=0;
+        if(first_msg_time > 0) {
+            Histogram h=wait_histogram;
+            if(h != null)
+                h.add(System.nanoTime() - first_msg_time);
+            first_msg_time=0;
+        }
         if(stats_enabled) {
             long time=System.nanoTime() - start;
             avg_send_time.add(time);
@@ -312,24 +325,49 @@ public abstract class BaseBundler implements Bundler {
         loopback(dest, sender, fa, fa.size());
     }
 
+    /** Marshals msg into a pooled buffer if a buffer pool is set (out is then ignored and may be null), or into out */
     protected void sendSingleMessage(final Address dest, final Message msg, ByteArrayDataOutputStream out) throws Exception {
-        Util.writeMessage(msg, out, dest == null);
-        transport.doSend(out.buffer(), 0, out.position(), dest);
+        if(buffer_pool != null) {
+            try(PooledDataOutputStream pout=new PooledDataOutputStream(buffer_pool, msg.size() + MSG_OVERHEAD)) {
+                Util.writeMessage(msg, pout, dest == null);
+                transport.doSend(pout.byteBuffer(), dest);
+            }
+        }
+        else {
+            Util.writeMessage(msg, out, dest == null);
+            transport.doSend(out.buffer(), 0, out.position(), dest);
+        }
         transport.getMessageStats().incrNumSingleMsgsSent();
         num_single_msgs_sent.increment();
     }
 
     protected void sendMessageList(Address dest, Address src, List<Message> list, ByteArrayDataOutputStream out) throws Exception {
-        Util.writeMessageList(dest, src, transport.cluster_name.val(), list, out, dest == null);
-        transport.doSend(out.buffer(), 0, out.position(), dest);
+        if(buffer_pool != null) {
+            try(PooledDataOutputStream pout=new PooledDataOutputStream(buffer_pool, max_size + MSG_OVERHEAD)) {
+                Util.writeMessageList(dest, src, transport.cluster_name.val(), list, pout, dest == null);
+                transport.doSend(pout.byteBuffer(), dest);
+            }
+        }
+        else {
+            Util.writeMessageList(dest, src, transport.cluster_name.val(), list, out, dest == null);
+            transport.doSend(out.buffer(), 0, out.position(), dest);
+        }
         transport.getMessageStats().incrNumBatchesSent();
         num_batches_sent.increment();
     }
 
     protected void sendMessageListArray(final Address dest, final Address src, Message[] list, int len, ByteArrayDataOutputStream out) {
         try {
-            Util.writeMessageList(dest, src, transport.cluster_name.val(), list, 0, len, out, dest == null);
-            transport.doSend(out.buffer(), 0, out.position(), dest);
+            if(buffer_pool != null) {
+                try(PooledDataOutputStream pout=new PooledDataOutputStream(buffer_pool, max_size + MSG_OVERHEAD)) {
+                    Util.writeMessageList(dest, src, transport.cluster_name.val(), list, 0, len, pout, dest == null);
+                    transport.doSend(pout.byteBuffer(), dest);
+                }
+            }
+            else {
+                Util.writeMessageList(dest, src, transport.cluster_name.val(), list, 0, len, out, dest == null);
+                transport.doSend(out.buffer(), 0, out.position(), dest);
+            }
             transport.getMessageStats().incrNumBatchesSent();
         }
         catch(Throwable e) {
@@ -341,6 +379,8 @@ public abstract class BaseBundler implements Bundler {
         Address dest=msg.getDest();
         List<Message> tmp=msgs.computeIfAbsent(dest, FUNC);
         tmp.add(msg);
+        if(count == 0 && wait_histogram != null)
+            first_msg_time=System.nanoTime();
         count+=size;
     }
 }
\ No newline at end of file
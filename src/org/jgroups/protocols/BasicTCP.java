@@ -13,8 +13,11 @@ import org.jgroups.blocks.cs.ConnectionListener;
 import org.jgroups.blocks.cs.Receiver;
 import org.jgroups.conf.AttributeType;
 import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.util.RefCountedBuffer;
 
+import java.io.DataInput;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -179,10 +182,36 @@ public abstract class BasicTCP extends TP implements Receiver, ConnectionListene
         }
     }
 
+    /**
+     * With zero_copy_receive, the message is first read into a pooled buffer, so that the payloads of the messages
+     * can reference it rather than being copied
+     */
+    @Override
+    public void receive(Address sender, DataInput in, int length) throws Exception {
+        if(recv_buffer_pool == null || length <= 0 || in == null) {
+            super.receive(sender, in, length);
+            return;
+        }
+        RefCountedBuffer buf=acquireReceiveBuffer(length);
+        try {
+            in.readFully(buf.array(), buf.offset(), length);
+        }
+        catch(Exception ex) {
+            buf.release();
+            throw ex;
+        }
+        receive(sender, buf, buf.offset(), length);
+    }
+
     public void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {
         send(dest, data, offset, length);
     }
 
+    @Override
+    public void sendUnicast(PhysicalAddress dest, ByteBuffer buf) throws Exception {
+        send(dest, buf);
+    }
+
     public abstract String printConnections();
 
     @ManagedOperation(description="Clears all connections (they will get re-established). For testing only, don't use !")
@@ -190,6 +219,19 @@ public abstract class BasicTCP extends TP implements Receiver, ConnectionListene
 
     public abstract void send(Address dest, byte[] data, int offset, int length) throws Exception;
 
+    /**
+     * Sends the contents of buf (position to limit). The buffer must not be accessed after this method returns.
+     * The default implementation copies the buffer into a byte[] array
+     */
+    public void send(Address dest, ByteBuffer buf) throws Exception {
+        if(buf.hasArray())
+            send(dest, buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        else {
+            byte[] tmp=toArray(buf);
+            send(dest, tmp, 0, tmp.length);
+        }
+    }
+
     public abstract void retainAll(Collection<Address> members);
 
     @Override
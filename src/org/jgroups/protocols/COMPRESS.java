@@ -6,26 +6,31 @@ import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.conf.AttributeType;
 import org.jgroups.stack.Protocol;
-import org.jgroups.util.ByteArray;
-import org.jgroups.util.FastArray;
-import org.jgroups.util.MessageBatch;
-import org.jgroups.util.Util;
+import org.jgroups.util.*;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
-import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 /**
  * Compresses the payload of a message. Goal is to reduce the number of messages
  * sent across the wire. Should ideally be layered somewhere above a
  * fragmentation protocol (e.g. FRAG).
+ * <p>
+ * The codec is pluggable ({@link Compressor}): Deflate (default) or a fast LZ codec. Codecs are either pooled
+ * ({@link #pool_size}) or cached per thread ({@link #thread_local}). Messages without an array (e.g. a
+ * {@link BatchMessage} created by {@link BATCH2}) have their entire payload compressed in one pass, which yields a
+ * better ratio for many similar small messages than compressing them individually.
  * 
  * @author Bela Ban
  */
@@ -35,19 +40,31 @@ public class COMPRESS extends Protocol {
     /* -----------------------------------------    Properties     -------------------------------------------------- */
     
     @Property(description="Compression level (from java.util.zip.Deflater) " +
-      "(0=no compression, 1=best speed, 9=best compression). Default is 9")
+      "(0=no compression, 1=best speed, 9=best compression). Default is 9. Used only by the deflate codec")
     protected int                     compression_level=Deflater.BEST_COMPRESSION; // this is 9
    
     @Property(description="Minimal payload size of a message (in bytes) for compression to kick in. Default is 500 bytes",
       type=AttributeType.BYTES)
     protected int                     min_size=500;
     
-    @Property(description="Number of inflaters/deflaters for concurrent processing. Default is 2 ")
+    @Property(description="Number of codecs for concurrent processing. Default is 2. Ignored if thread_local is true")
     protected int                     pool_size=2;
-    
-    protected BlockingQueue<Deflater> deflater_pool;
-    protected BlockingQueue<Inflater> inflater_pool;
+
+    @Property(description="The codec used to compress messages: \"deflate\", \"lz\" (fast) or the fully " +
+      "qualified name of a class implementing Compressor. Received messages are uncompressed with the codec " +
+      "which compressed them")
+    protected String                  compressor="deflate";
+
+    @Property(description="Caches a codec per thread instead of using a pool of pool_size codecs. Avoids contention " +
+      "on the pool when many threads send or receive compressed messages")
+    protected boolean                 thread_local;
+
+    // the codecs to uncompress messages, indexed by codec ID
+    protected final Codecs[]          codecs=new Codecs[Byte.MAX_VALUE+1];
+    protected Codecs                  default_codecs; // used to compress messages
     protected final LongAdder         num_compressions=new LongAdder(), num_decompressions=new LongAdder();
+    protected final LongAdder         bytes_uncompressed=new LongAdder(), bytes_compressed=new LongAdder();
+    protected final LongAdder         compression_time=new LongAdder(), decompression_time=new LongAdder(); // ns
 
 
 
@@ -55,8 +72,12 @@ public class COMPRESS extends Protocol {
     public COMPRESS() {      
     }
 
-    public int      getMinSize()      {return min_size;}
-    public COMPRESS setMinSize(int s) {this.min_size=s; return this;}
+    public int      getMinSize()                  {return min_size;}
+    public COMPRESS setMinSize(int s)             {this.min_size=s; return this;}
+    public String   getCompressor()               {return compressor;}
+    public COMPRESS setCompressor(String c)       {this.compressor=c; return this;}
+    public boolean  threadLocal()                 {return thread_local;}
+    public COMPRESS threadLocal(boolean b)        {this.thread_local=b; return this;}
 
     @ManagedAttribute(description="Number of compressions",type=AttributeType.SCALAR)
     public long getNumCompressions() {return num_compressions.sum();}
@@ -64,23 +85,54 @@ public class COMPRESS extends Protocol {
     @ManagedAttribute(description="Number of un-compressions",type=AttributeType.SCALAR)
     public long getNumUncompressions() {return num_decompressions.sum();}
 
+    @ManagedAttribute(description="Number of bytes saved by compression",type=AttributeType.BYTES)
+    public long getBytesSaved() {return bytes_uncompressed.sum() - bytes_compressed.sum();}
+
+    @ManagedAttribute(description="Ratio between the compressed and uncompressed sizes of compressed messages")
+    public double getCompressionRatio() {
+        long uncompressed=bytes_uncompressed.sum();
+        return uncompressed == 0? 0 : bytes_compressed.sum() / (double)uncompressed;
+    }
+
+    @ManagedAttribute(description="Total time spent compressing (including messages which were not compressed " +
+      "because the result would not have been smaller)",type=AttributeType.TIME,unit=TimeUnit.NANOSECONDS)
+    public long getCompressionTime() {return compression_time.sum();}
+
+    @ManagedAttribute(description="Total time spent uncompressing",type=AttributeType.TIME,unit=TimeUnit.NANOSECONDS)
+    public long getDecompressionTime() {return decompression_time.sum();}
+
+    @ManagedAttribute(description="Bytes saved per millisecond of CPU time spent compressing and uncompressing")
+    public double getBytesSavedPerMs() {
+        long time=compression_time.sum() + decompression_time.sum();
+        return time == 0? 0 : getBytesSaved() / (time / 1_000_000.0);
+    }
+
     public void resetStats() {
         super.resetStats();
         num_compressions.reset(); num_decompressions.reset();
+        bytes_uncompressed.reset(); bytes_compressed.reset();
+        compression_time.reset(); decompression_time.reset();
     }
 
     public void init() throws Exception {
-        deflater_pool=new ArrayBlockingQueue<>(pool_size);
-        for(int i=0; i < pool_size; i++)
-            deflater_pool.add(new Deflater(compression_level));
-        inflater_pool=new ArrayBlockingQueue<>(pool_size);
-        for(int i=0; i < pool_size; i++)
-            inflater_pool.add(new Inflater());
+        Supplier<Compressor> supplier=supplier(compressor);
+        byte id;
+        try(Compressor c=supplier.get()) {
+            id=c.id();
+        }
+        if(id < 0)
+            throw new IllegalArgumentException(String.format("ID of codec %s (%d) must not be negative", compressor, id));
+        codecs[id]=default_codecs=new Codecs(supplier);
+        if(codecs[DeflateCompressor.ID] == null)
+            codecs[DeflateCompressor.ID]=new Codecs(supplier("deflate"));
+        if(codecs[LZCompressor.ID] == null)
+            codecs[LZCompressor.ID]=new Codecs(supplier("lz"));
     }
 
     public void destroy() {
-        deflater_pool.forEach(Deflater::end);
-        inflater_pool.forEach(Inflater::end);
+        for(Codecs c: codecs)
+            if(c != null)
+                c.destroy();
     }   
 
 
@@ -93,48 +145,9 @@ public class COMPRESS extends Protocol {
     public Object down(Message msg) {
         int length=msg.getLength(); // takes offset/length (if set) into account
         if(length >= min_size) {
-            boolean serialize=!msg.hasArray();
-            ByteArray tmp=null;
-            byte[] payload=serialize? (tmp=messageToByteArray(msg)).array() : msg.getArray();
-            int offset=serialize? tmp.offset() : msg.getOffset();
-            length=serialize? tmp.length() : msg.getLength();
-            byte[] compressed_payload=new byte[length];
-            Deflater deflater=null;
-            try {
-                deflater=deflater_pool.take();
-                deflater.reset();
-                deflater.setInput(payload, offset, length);
-                deflater.finish();
-                deflater.deflate(compressed_payload);
-                int compressed_size=deflater.getTotalOut();
-
-                if(compressed_size < length ) { // JGRP-1000
-                    Message copy=null;
-                    if(serialize)
-                        copy=new BytesMessage(msg.getDest());
-                    else
-                        copy=msg.copy(false, true);
-                    copy.setArray(compressed_payload, 0, compressed_size)
-                      .putHeader(this.id, new CompressHeader(length).needsDeserialization(serialize));
-                    if(log.isTraceEnabled())
-                        log.trace("compressed payload from %d bytes to %d bytes", length, compressed_size);
-                    num_compressions.increment();
-                    return down_prot.down(copy);
-                }
-                else {
-                    if(log.isTraceEnabled())
-                        log.trace("skipping compression since the compressed message (%d) is not " +
-                                    "smaller than the original (%d)", compressed_size, length);
-                }
-            }
-            catch(InterruptedException e) {
-                Thread.currentThread().interrupt(); // set interrupt flag again
-                throw new RuntimeException(e);
-            }
-            finally {
-                if(deflater != null)
-                    deflater_pool.offer(deflater);
-            }
+            Message compressed=compress(msg);
+            if(compressed != null)
+                return down_prot.down(compressed);
         }
         return down_prot.down(msg);
     }
@@ -145,7 +158,7 @@ public class COMPRESS extends Protocol {
     public Object up(Message msg) {
         CompressHeader hdr=msg.getHeader(this.id);
         if(hdr != null) {
-            Message uncompressed_msg=uncompress(msg, hdr.original_size, hdr.needsDeserialization());
+            Message uncompressed_msg=uncompress(msg, hdr);
             if(uncompressed_msg != null) {
                 if(log.isTraceEnabled())
                     log.trace("uncompressed %d bytes to %d bytes", msg.getLength(), uncompressed_msg.getLength());
@@ -162,7 +175,7 @@ public class COMPRESS extends Protocol {
             Message msg=it.next();
             CompressHeader hdr=msg.getHeader(this.id);
             if(hdr != null) {
-                Message uncompressed_msg=uncompress(msg, hdr.original_size, hdr.needsDeserialization());
+                Message uncompressed_msg=uncompress(msg, hdr);
                 if(uncompressed_msg != null) {
                     if(log.isTraceEnabled())
                         log.trace("uncompressed %d bytes to %d bytes", msg.getLength(), uncompressed_msg.getLength());
@@ -176,55 +189,179 @@ public class COMPRESS extends Protocol {
             up_prot.up(batch);
     }
 
+    /**
+     * Returns a copy of msg with a compressed payload, or null if the compressed payload would not be smaller. The
+     * payload of a message without an array (e.g. a BatchMessage) is marshalled and compressed in one pass
+     */
+    protected Message compress(Message msg) {
+        boolean serialize=!msg.hasArray();
+        ByteArray tmp=serialize? payloadToByteArray(msg) : null;
+        byte[] payload=serialize? tmp.array() : msg.getArray();
+        int offset=serialize? tmp.offset() : msg.getOffset();
+        int length=serialize? tmp.length() : msg.getLength();
+        byte[] compressed_payload=new byte[length];
+        Compressor c=default_codecs.acquire();
+        int compressed_size;
+        try {
+            long start=System.nanoTime();
+            compressed_size=c.compress(payload, offset, length, compressed_payload, 0, compressed_payload.length);
+            compression_time.add(System.nanoTime() - start);
+        }
+        finally {
+            default_codecs.release(c);
+        }
+        if(compressed_size < 0 || compressed_size >= length) { // JGRP-1000
+            if(log.isTraceEnabled())
+                log.trace("skipping compression since the compressed message is not smaller than the original (%d)",
+                          length);
+            return null;
+        }
+        Message copy=serialize? copyMetadata(msg, new BytesMessage()) : msg.copy(false, true);
+        copy.setArray(compressed_payload, 0, compressed_size)
+          .putHeader(this.id, new CompressHeader(length).needsDeserialization(serialize)
+            .originalType(msg.getType()).compressor(c.id()));
+        if(log.isTraceEnabled())
+            log.trace("compressed payload from %d bytes to %d bytes", length, compressed_size);
+        num_compressions.increment();
+        bytes_uncompressed.add(length);
+        bytes_compressed.add(compressed_size);
+        return copy;
+    }
+
     /** Returns a new message as a result of uncompressing msg, or null if msg couldn't be uncompressed */
-    protected Message uncompress(Message msg, int original_size, boolean needs_deserialization) {
+    protected Message uncompress(Message msg, CompressHeader hdr) {
         byte[] compressed_payload=msg.getArray();
-        if(compressed_payload != null && compressed_payload.length > 0) {
-            byte[] uncompressed_payload=new byte[original_size];
-            Inflater inflater=null;
+        if(compressed_payload == null || compressed_payload.length == 0)
+            return null;
+        Codecs cs=hdr.compressor >= 0? codecs[hdr.compressor] : null;
+        if(cs == null) {
+            log.error("%s: no codec found for ID %d; dropping message from %s", local_addr, hdr.compressor, msg.getSrc());
+            return null;
+        }
+        byte[] uncompressed_payload=new byte[hdr.original_size];
+        Compressor c=cs.acquire();
+        try {
+            long start=System.nanoTime();
+            c.decompress(compressed_payload, msg.getOffset(), msg.getLength(), uncompressed_payload, 0, hdr.original_size);
+            decompression_time.add(System.nanoTime() - start);
+            // we need to copy: https://issues.redhat.com/browse/JGRP-867
+            if(hdr.needsDeserialization())
+                return payloadFromByteArray(msg, hdr.original_type, uncompressed_payload);
+            return msg.copy(false, true).setArray(uncompressed_payload, 0, uncompressed_payload.length);
+        }
+        catch(Exception e) {
+            log.error(Util.getMessage("CompressionFailure"), e);
+            return null;
+        }
+        finally {
+            cs.release(c);
+        }
+    }
+
+    protected Supplier<Compressor> supplier(String name) throws Exception {
+        switch(name) {
+            case "deflate":
+                return () -> new DeflateCompressor(compression_level);
+            case "lz":
+                return LZCompressor::new;
+        }
+        Class<? extends Compressor> cl=(Class<? extends Compressor>)Util.loadClass(name, COMPRESS.class);
+        Constructor<? extends Compressor> ctor=cl.getDeclaredConstructor();
+        return () -> {
             try {
-                inflater=inflater_pool.take();
-                inflater.reset();
-                inflater.setInput(compressed_payload, msg.getOffset(), msg.getLength());
-                try {
-                    inflater.inflate(uncompressed_payload);
-                    // we need to copy: https://issues.redhat.com/browse/JGRP-867
-                    if(needs_deserialization) {
-                        return messageFromByteArray(uncompressed_payload);
-                    }
-                    else
-                        return msg.copy(false, true).setArray(uncompressed_payload, 0, uncompressed_payload.length);
-                }
-                catch(DataFormatException e) {
-                    log.error(Util.getMessage("CompressionFailure"), e);
-                }
+                return ctor.newInstance();
             }
-            catch(InterruptedException e) {
-                Thread.currentThread().interrupt(); // set the interrupt bit again, so caller can handle it
-            }
-            finally {
-                if(inflater != null)
-                    inflater_pool.offer(inflater);
+            catch(Exception e) {
+                throw new IllegalStateException(String.format("failed creating codec %s", name), e);
             }
-        }
-        return null;
+        };
     }
 
-    protected static ByteArray messageToByteArray(Message msg) {
+    protected static ByteArray payloadToByteArray(Message msg) {
         try {
-            return Util.messageToBuffer(msg);
+            ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(msg.size());
+            msg.writePayload(out);
+            return out.getBuffer();
         }
         catch(Exception ex) {
             throw new RuntimeException("failed marshalling message", ex);
         }
     }
 
-    protected static Message messageFromByteArray(byte[] uncompressed_payload) {
-        try {
-            return Util.messageFromBuffer(uncompressed_payload, 0, uncompressed_payload.length);
+    /** Creates a message of the original type with the metadata of msg and reads the payload into it */
+    protected static Message payloadFromByteArray(Message msg, short type, byte[] payload) throws Exception {
+        Message retval=copyMetadata(msg, MessageFactory.create(type));
+        retval.readPayload(new ByteArrayDataInputStream(payload));
+        return retval;
+    }
+
+    /** Copies destination, sender, flags and headers from msg to target */
+    protected static Message copyMetadata(Message msg, Message target) {
+        target.setDest(msg.getDest()).setSrc(msg.getSrc())
+          .setFlag(msg.getFlags(false), false).setFlag(msg.getFlags(true), true);
+        msg.getHeaders().forEach(target::putHeader);
+        return target;
+    }
+
+
+    /** A pool of codecs, or a codec per thread */
+    protected class Codecs {
+        protected final Supplier<Compressor>      supplier;
+        protected final BlockingQueue<Compressor> pool;
+        protected final ThreadLocal<Compressor>   cache;
+        // the codecs cached by the threads, so that they can be closed by destroy()
+        protected final Map<Thread,Compressor>    thread_codecs=new ConcurrentHashMap<>();
+
+        protected Codecs(Supplier<Compressor> s) {
+            this.supplier=s;
+            if(thread_local) {
+                cache=ThreadLocal.withInitial(this::create);
+                pool=null;
+            }
+            else {
+                cache=null;
+                pool=new ArrayBlockingQueue<>(pool_size);
+                for(int i=0; i < pool_size; i++)
+                    pool.add(supplier.get());
+            }
         }
-        catch(Exception ex) {
-            throw new RuntimeException("failed unmarshalling message", ex);
+
+        protected Compressor acquire() {
+            if(cache != null)
+                return cache.get();
+            try {
+                return pool.take();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt(); // set interrupt flag again
+                throw new RuntimeException(e);
+            }
+        }
+
+        protected void release(Compressor c) {
+            if(pool != null)
+                pool.offer(c);
+        }
+
+        /** Creates the codec of the current thread; the codecs of terminated threads are closed */
+        protected Compressor create() {
+            for(Map.Entry<Thread,Compressor> e: thread_codecs.entrySet()) {
+                if(!e.getKey().isAlive() && thread_codecs.remove(e.getKey(), e.getValue()))
+                    e.getValue().close();
+            }
+            Compressor c=supplier.get();
+            thread_codecs.put(Thread.currentThread(), c);
+            return c;
+        }
+
+        protected void destroy() {
+            if(pool != null)
+                pool.forEach(Compressor::close);
+            for(Iterator<Compressor> it=thread_codecs.values().iterator(); it.hasNext();) {
+                Compressor c=it.next();
+                it.remove();
+                c.close();
+            }
         }
     }
 
@@ -232,6 +369,8 @@ public class COMPRESS extends Protocol {
     public static class CompressHeader extends Header {
         protected int     original_size;
         protected boolean needs_deserialization;
+        protected short   original_type; // the type of the original message if needs_deserialization is true
+        protected byte    compressor=DeflateCompressor.ID; // the ID of the codec which compressed the payload
 
         public CompressHeader() {
             super();
@@ -245,18 +384,33 @@ public class COMPRESS extends Protocol {
         public Supplier<? extends Header> create()                           {return CompressHeader::new;}
         public boolean                    needsDeserialization()             {return needs_deserialization;}
         public CompressHeader             needsDeserialization(boolean flag) {needs_deserialization=flag; return this;}
-        @Override public int              serializedSize()                   {return Global.INT_SIZE + Global.BYTE_SIZE;}
+        public short                      originalType()                     {return original_type;}
+        public CompressHeader             originalType(short t)              {original_type=t; return this;}
+        public byte                       compressor()                       {return compressor;}
+        public CompressHeader             compressor(byte c)                 {compressor=c; return this;}
+        @Override public int              serializedSize()                   {
+            return Global.INT_SIZE + Global.BYTE_SIZE + Global.SHORT_SIZE + Global.BYTE_SIZE;
+        }
 
         @Override
         public void writeTo(DataOutput out) throws IOException {
             out.writeInt(original_size);
             out.writeBoolean(needs_deserialization);
+            out.writeShort(original_type);
+            out.writeByte(compressor);
         }
 
         @Override
         public void readFrom(DataInput in) throws IOException {
             original_size=in.readInt();
             needs_deserialization=in.readBoolean();
+            original_type=in.readShort();
+            compressor=in.readByte();
+        }
+
+        public String toString() {
+            return String.format("original size=%d, type=%d, compressor=%d%s", original_size, original_type,
+                                 compressor, needs_deserialization? ", needs deserialization" : "");
         }
     }
 }
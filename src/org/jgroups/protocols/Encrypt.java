@@ -4,10 +4,12 @@ import org.jgroups.*;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
+import org.jgroups.conf.AttributeType;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.*;
 
 import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import java.security.Key;
 import java.security.KeyStore;
@@ -17,15 +19,23 @@ import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
- * Super class of symmetric ({@link SYM_ENCRYPT}) and asymmetric ({@link ASYM_ENCRYPT}) encryption protocols.
+ * Super class of symmetric ({@link SYM_ENCRYPT}) and asymmetric ({@link ASYM_ENCRYPT}) encryption protocols.<br/>
+ * When sym_algorithm uses an AEAD mode (e.g. "AES/GCM/NoPadding" or "ChaCha20-Poly1305"), every payload is
+ * authenticated as well, and the version of the group key is bound to it as associated data. Messages without an
+ * array (e.g. BatchMessages created by {@link BATCH} or {@link BATCH2}) are marshalled and sealed in one pass, so a
+ * batch of messages is sent with a single IV and authentication tag.
  * @param <E> E
  * @author Bela Ban
  */
 public abstract class Encrypt<E extends KeyStore.Entry> extends Protocol {
     protected static final String DEFAULT_SYM_ALGO="AES";
+    protected static final int    GCM_IV_LENGTH=12, GCM_TAG_LENGTH=128; // bytes, bits
 
 
     /* -----------------------------------------    Properties     -------------------------------------------------- */
@@ -54,10 +64,21 @@ public abstract class Encrypt<E extends KeyStore.Entry> extends Protocol {
     @Property(description="Max number of keys in key_map")
     protected int                           key_map_max_size=20;
 
+    @Property(description="Received batches with at least this many messages are decrypted in parallel on the " +
+      "common ForkJoin pool, using up to cipher_pool_size ciphers. 0 disables parallel decryption")
+    protected int                           parallel_decrypt_threshold;
+
+    @ManagedAttribute(description="Number of batches decrypted in parallel",type=AttributeType.SCALAR)
+    protected final LongAdder               num_parallel_decryptions=new LongAdder();
+
+    @ManagedAttribute(description="Number of ciphers created by parallel decryption tasks because all pooled " +
+      "ciphers were in use",type=AttributeType.SCALAR)
+    protected final LongAdder               num_extra_ciphers=new LongAdder();
+
     protected volatile View                 view;
 
     // Cipher pools used for encryption and decryption. Size is cipher_pool_size
-    protected volatile BlockingQueue<Cipher> encoding_ciphers, decoding_ciphers;
+    protected volatile BlockingQueue<PooledCipher> encoding_ciphers, decoding_ciphers;
 
     // version filed for secret key
     protected volatile byte[]               sym_version;
@@ -95,6 +116,12 @@ public abstract class Encrypt<E extends KeyStore.Entry> extends Protocol {
     public SecureRandom             secureRandom()                  {return this.secure_random;}
     /** Allows callers to replace secure_random with impl of their choice, e.g. for performance reasons. */
     public <T extends Encrypt<E>> T secureRandom(SecureRandom sr)   {this.secure_random = sr; return (T)this;}
+    public int                      parallelDecryptThreshold()      {return parallel_decrypt_threshold;}
+    public <T extends Encrypt<E>> T parallelDecryptThreshold(int t) {this.parallel_decrypt_threshold=t; return (T)this;}
+    public long                     numParallelDecryptions()        {return num_parallel_decryptions.sum();}
+    public long                     numExtraCiphers()               {return num_extra_ciphers.sum();}
+    /** Whether sym_algorithm authenticates the encrypted data (AEAD), e.g. AES/GCM */
+    public boolean                  aead()                          {return isAead(sym_algorithm);}
     @ManagedAttribute public String version()                       {return Util.byteArrayToHexString(sym_version);}
 
 
@@ -111,10 +138,20 @@ public abstract class Encrypt<E extends KeyStore.Entry> extends Protocol {
             log.warn("%s: setting cipher_pool_size (%d) to %d (power of 2) for faster modulo operation", local_addr, cipher_pool_size, tmp);
             cipher_pool_size=tmp;
         }
+        if(aead() && sym_iv_length <= 0) {
+            log.debug("%s: setting sym_iv_length to %d, as %s requires an IV", local_addr, GCM_IV_LENGTH, sym_algorithm);
+            sym_iv_length=GCM_IV_LENGTH;
+        }
         key_map=new BoundedHashMap<>(key_map_max_size);
         initSymCiphers(sym_algorithm, secret_key);
     }
 
+    public void resetStats() {
+        super.resetStats();
+        num_parallel_decryptions.reset();
+        num_extra_ciphers.reset();
+    }
+
 
     public Object down(Event evt) {
         switch(evt.getType()) {
@@ -173,33 +210,32 @@ public abstract class Encrypt<E extends KeyStore.Entry> extends Protocol {
                       local_addr, batch.dest() == null? "mcast" : "unicast", batch.sender());
             return;
         }
-        BlockingQueue<Cipher> cipherQueue=decoding_ciphers;
+        BlockingQueue<PooledCipher> cipherQueue=decoding_ciphers;
         if(cipherQueue == null)
             return;
-        Cipher cipher=null;
+        if(parallel_decrypt_threshold > 0 && batch.size() >= parallel_decrypt_threshold && cipher_pool_size > 1) {
+            try {
+                decryptInParallel(batch, cipherQueue);
+            }
+            catch(Throwable t) {
+                log.error("%s: failed processing batch; discarding batch: %s", local_addr, t);
+                return;
+            }
+            if(!batch.isEmpty())
+                up_prot.up(batch);
+            return;
+        }
+        PooledCipher cipher=null;
         try {
             cipher=cipherQueue.take();
             FastArray<Message>.FastIterator it=(FastArray<Message>.FastIterator)batch.iterator();
             while(it.hasNext()) {
                 Message msg=it.next();
-                if(msg.getHeader(id) == null) {
-                    log.error("%s: received message without encrypt header from %s; dropping it",
-                              local_addr, batch.sender());
+                Message tmpMsg=decrypt(cipher, msg, batch);
+                if(tmpMsg != null)
+                    it.replace(tmpMsg);
+                else
                     it.remove(); // remove from batch to prevent passing the message further up as part of the batch
-                    continue;
-                }
-                try {
-                    Message tmpMsg=decrypt(cipher, msg.copy(true, true)); // need to copy for possible xmits
-                    if(tmpMsg != null)
-                        it.replace(tmpMsg);
-                    else
-                        it.remove();
-                }
-                catch(Exception e) {
-                    log.error("%s: failed decrypting message from %s (offset=%d, length=%d, buf.length=%d): %s, headers are %s",
-                              local_addr, msg.getSrc(), msg.getOffset(), msg.getLength(), msg.getArray().length, e, msg.printHeaders());
-                    it.remove();
-                }
             }
         }
         catch(InterruptedException e) {
@@ -223,11 +259,11 @@ public abstract class Encrypt<E extends KeyStore.Entry> extends Protocol {
         if(secret == null)
             return;
 
-        BlockingQueue<Cipher> tmp_encoding_ciphers=new ArrayBlockingQueue<>(cipher_pool_size);
-        BlockingQueue<Cipher> tmp_decoding_ciphers=new ArrayBlockingQueue<>(cipher_pool_size);
+        BlockingQueue<PooledCipher> tmp_encoding_ciphers=new ArrayBlockingQueue<>(cipher_pool_size);
+        BlockingQueue<PooledCipher> tmp_decoding_ciphers=new ArrayBlockingQueue<>(cipher_pool_size);
         for(int i=0; i < cipher_pool_size; i++ ) {
-            tmp_encoding_ciphers.offer(createCipher(algorithm));
-            tmp_decoding_ciphers.offer(createCipher(algorithm));
+            tmp_encoding_ciphers.offer(new PooledCipher(createCipher(algorithm)));
+            tmp_decoding_ciphers.offer(new PooledCipher(createCipher(algorithm)));
         }
 
         // set the version
@@ -247,11 +283,19 @@ public abstract class Encrypt<E extends KeyStore.Entry> extends Protocol {
 
     protected static void initCipher(Cipher cipher, int mode, Key secret_key, byte[] iv) throws Exception {
         if(iv != null)
-            cipher.init(mode, secret_key, new IvParameterSpec(iv));
+            cipher.init(mode, secret_key, isGcm(cipher.getAlgorithm())?
+              new GCMParameterSpec(GCM_TAG_LENGTH, iv) : new IvParameterSpec(iv));
         else
             cipher.init(mode, secret_key);
     }
 
+    /** Initializes the cipher and, with an AEAD cipher, binds the version of the key to the encrypted data */
+    protected static void initCipher(Cipher cipher, int mode, Key secret_key, byte[] iv, byte[] version) throws Exception {
+        initCipher(cipher, mode, secret_key, iv);
+        if(version != null && isAead(cipher.getAlgorithm()))
+            cipher.updateAAD(version);
+    }
+
     protected byte[] makeIv() {
         if(sym_iv_length > 0) {
             byte[] iv=new byte[sym_iv_length];
@@ -281,8 +325,50 @@ public abstract class Encrypt<E extends KeyStore.Entry> extends Protocol {
     }
 
 
+    /**
+     * Decrypts a message of a batch; returns null (and logs an error) if the message could not be decrypted.
+     * The message is copied, as it may be retransmitted.
+     */
+    protected Message decrypt(PooledCipher cipher, Message msg, MessageBatch batch) {
+        if(msg.getHeader(id) == null) {
+            log.error("%s: received message without encrypt header from %s; dropping it", local_addr, batch.sender());
+            return null;
+        }
+        try {
+            return decrypt(cipher, msg.copy(true, true));
+        }
+        catch(Exception e) {
+            log.error("%s: failed decrypting message from %s (offset=%d, length=%d, buf.length=%d): %s, headers are %s",
+                      local_addr, msg.getSrc(), msg.getOffset(), msg.getLength(), msg.getArray().length, e, msg.printHeaders());
+            return null;
+        }
+    }
+
+    /**
+     * Decrypts the messages of a batch in parallel: the batch is split into at most cipher_pool_size ranges, each of
+     * which is decrypted with its own cipher by a task of the common ForkJoin pool. The tasks never block on the
+     * cipher pool: if all pooled ciphers are in use, a task creates a new cipher
+     */
+    protected void decryptInParallel(MessageBatch batch, BlockingQueue<PooledCipher> cipherQueue) {
+        Message[] msgs=new Message[batch.size()];
+        int index=0;
+        for(Message msg: batch)
+            msgs[index++]=msg;
+        int chunk_size=Math.max(1, (index + cipher_pool_size - 1) / cipher_pool_size);
+        ForkJoinPool.commonPool().invoke(new DecryptTask(msgs, 0, index, chunk_size, cipherQueue, batch));
+        FastArray<Message>.FastIterator it=(FastArray<Message>.FastIterator)batch.iterator();
+        for(int i=0; it.hasNext(); i++) {
+            it.next();
+            if(msgs[i] != null)
+                it.replace(msgs[i]);
+            else
+                it.remove();
+        }
+        num_parallel_decryptions.increment();
+    }
+
     /** Does the actual work for decrypting - if version does not match current cipher then tries the previous cipher */
-    protected Message decrypt(Cipher cipher, Message msg) throws Exception {
+    protected Message decrypt(PooledCipher cipher, Message msg) throws Exception {
         EncryptHeader hdr=msg.getHeader(this.id);
         // If the versions of the group keys don't match, we only try to use a previous version if the sender is in
         // the current view
@@ -305,21 +391,33 @@ public abstract class Encrypt<E extends KeyStore.Entry> extends Protocol {
         return _decrypt(cipher, secret_key, msg, hdr);
     }
 
-    protected Message _decrypt(final Cipher cipher, Key key, Message msg, EncryptHeader hdr) throws Exception {
-        if(!msg.hasPayload())
+    /** Decrypts msg with the given cipher; if cipher is null, a cipher is taken from the pool */
+    protected Message _decrypt(final PooledCipher cipher, Key key, Message msg, EncryptHeader hdr) throws Exception {
+        if(!msg.hasPayload() || msg.getLength() == 0) // empty payloads are not encrypted (see encrypt())
             return msg;
+        if(cipher != null)
+            return _decrypt(cipher.cipher(), cipher, key, msg, hdr);
+        BlockingQueue<PooledCipher> queue=decoding_ciphers;
+        PooledCipher c=queue.take();
+        try {
+            return _decrypt(c.cipher(), c, key, msg, hdr);
+        }
+        finally {
+            queue.offer(c);
+        }
+    }
 
-        byte[] decrypted_msg;
-        if(cipher == null)
-            decrypted_msg=code(msg.getArray(), msg.getOffset(), msg.getLength(), hdr.iv(), true);
-        else {
-            initCipher(cipher, Cipher.DECRYPT_MODE, key, hdr.iv());
-            decrypted_msg=cipher.doFinal(msg.getArray(), msg.getOffset(), msg.getLength());
+    protected static Message _decrypt(Cipher cipher, PooledCipher c, Key key, Message msg, EncryptHeader hdr)
+      throws Exception {
+        initCipher(cipher, Cipher.DECRYPT_MODE, key, hdr.iv(), hdr.version());
+        if(hdr.needsDeserialization()) {
+            // the marshalled message is copied when it is read, so it can be decrypted into the reusable buffer
+            byte[] buf=c.buffer(cipher.getOutputSize(msg.getLength()));
+            int length=cipher.doFinal(msg.getArray(), msg.getOffset(), msg.getLength(), buf, 0);
+            return Util.messageFromBuffer(buf, 0, length);
         }
-        if(hdr.needsDeserialization())
-            return Util.messageFromBuffer(decrypted_msg, 0, decrypted_msg.length);
-        else
-            return msg.setArray(decrypted_msg, 0, decrypted_msg.length);
+        byte[] decrypted_msg=cipher.doFinal(msg.getArray(), msg.getOffset(), msg.getLength());
+        return msg.setArray(decrypted_msg, 0, decrypted_msg.length);
     }
 
     protected Message encrypt(Message msg) throws Exception {
@@ -329,14 +427,14 @@ public abstract class Encrypt<E extends KeyStore.Entry> extends Protocol {
         // copy needed because same message (object) may be retransmitted -> prevent double encryption
         if(!msg.hasPayload())
             return msg.putHeader(this.id, new EncryptHeader((byte)0, symVersion(), makeIv()));
-        boolean serialize=!msg.hasArray();
-        ByteArray tmp=null;
-        byte[] payload=serialize? (tmp=Util.messageToBuffer(msg)).array() : msg.getArray();
-        int offset=serialize? tmp.offset() : msg.getOffset();
-        int length=serialize? tmp.length() : msg.getLength();
         byte[] iv=makeIv();
-        Message encrypted=(serialize? new BytesMessage(msg.dest()) : msg.copy(false, true))
-          .putHeader(this.id, new EncryptHeader((byte)0, symVersion(), iv).needsDeserialization(serialize));
+        if(!msg.hasArray()) // e.g. a BatchMessage: marshal and encrypt the entire message with one IV (and tag)
+            return new BytesMessage(msg.dest())
+              .setArray(marshalAndEncrypt(msg, iv))
+              .putHeader(this.id, new EncryptHeader((byte)0, symVersion(), iv).needsDeserialization(true));
+        byte[] payload=msg.getArray();
+        int offset=msg.getOffset(), length=msg.getLength();
+        Message encrypted=msg.copy(false, true).putHeader(this.id, new EncryptHeader((byte)0, symVersion(), iv));
         if(length > 0)
             encrypted.setArray(code(payload, offset, length, iv, false));
         else // length is 0, but buffer may be "" (empty, but *not null* buffer)! [JGRP-2153]
@@ -344,16 +442,34 @@ public abstract class Encrypt<E extends KeyStore.Entry> extends Protocol {
         return encrypted;
     }
 
+    /** Marshals msg into the reusable output stream of a pooled cipher and encrypts the marshalled message */
+    protected byte[] marshalAndEncrypt(Message msg, byte[] iv) throws Exception {
+        BlockingQueue<PooledCipher> queue=encoding_ciphers;
+        PooledCipher c=queue.take();
+        try {
+            ByteArrayDataOutputStream out=c.output(msg.size() + Global.SHORT_SIZE);
+            out.writeShort(msg.getType());
+            msg.writeTo(out);
+            Cipher cipher=c.cipher();
+            initCipher(cipher, Cipher.ENCRYPT_MODE, secret_key, iv, sym_version);
+            return cipher.doFinal(out.buffer(), 0, out.position());
+        }
+        finally {
+            queue.offer(c);
+        }
+    }
+
 
     protected byte[] code(byte[] buf, int offset, int length, byte[] iv, boolean decode) throws Exception {
-        BlockingQueue<Cipher> queue=decode? decoding_ciphers : encoding_ciphers;
-        Cipher cipher=queue.take();
+        BlockingQueue<PooledCipher> queue=decode? decoding_ciphers : encoding_ciphers;
+        PooledCipher c=queue.take();
         try {
-            initCipher(cipher, decode ? Cipher.DECRYPT_MODE : Cipher.ENCRYPT_MODE, secret_key, iv);
+            Cipher cipher=c.cipher();
+            initCipher(cipher, decode ? Cipher.DECRYPT_MODE : Cipher.ENCRYPT_MODE, secret_key, iv, sym_version);
             return cipher.doFinal(buf, offset, length);
         }
         finally {
-            queue.offer(cipher);
+            queue.offer(c);
         }
     }
 
@@ -373,4 +489,96 @@ public abstract class Encrypt<E extends KeyStore.Entry> extends Protocol {
         return modeAndPadding;
     }
 
+    protected static boolean isGcm(String transformation) {
+        String mode=transformation != null? getModeAndPadding(transformation) : null;
+        return mode != null && mode.toUpperCase().startsWith("GCM");
+    }
+
+    /** Returns true if the transformation authenticates the encrypted data (authenticated encryption, AEAD) */
+    protected static boolean isAead(String transformation) {
+        return isGcm(transformation) || "ChaCha20-Poly1305".equalsIgnoreCase(transformation);
+    }
+
+
+    /**
+     * A cipher of the pool, plus buffers which are reused by whoever holds the cipher: one to marshal messages into
+     * before encrypting them and one to decrypt marshalled messages into before unmarshalling them
+     */
+    protected static class PooledCipher {
+        protected final Cipher                    cipher;
+        protected byte[]                          buf;
+        protected ByteArrayDataOutputStream       out;
+
+        protected PooledCipher(Cipher cipher) {
+            this.cipher=cipher;
+        }
+
+        protected Cipher cipher() {return cipher;}
+
+        /** Returns a buffer of at least the given size */
+        protected byte[] buffer(int size) {
+            if(buf == null || buf.length < size)
+                buf=new byte[Math.max(size, 1024)];
+            return buf;
+        }
+
+        /** Returns the output stream, reset to position 0 */
+        protected ByteArrayDataOutputStream output(int expected_size) {
+            if(out == null)
+                out=new ByteArrayDataOutputStream(Math.max(expected_size, 1024));
+            else
+                out.position(0);
+            return out;
+        }
+    }
+
+
+    /** Decrypts a range of messages with one cipher, or splits the range into two tasks */
+    protected class DecryptTask extends RecursiveAction {
+        protected final Message[]                   msgs;
+        protected final int                         from, to, chunk_size;
+        protected final BlockingQueue<PooledCipher> queue;
+        protected final MessageBatch                batch;
+
+        protected DecryptTask(Message[] msgs, int from, int to, int chunk_size,
+                              BlockingQueue<PooledCipher> queue, MessageBatch batch) {
+            this.msgs=msgs;
+            this.from=from;
+            this.to=to;
+            this.chunk_size=chunk_size;
+            this.queue=queue;
+            this.batch=batch;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from > chunk_size) {
+                int mid=from + (to - from) / 2;
+                invokeAll(new DecryptTask(msgs, from, mid, chunk_size, queue, batch),
+                          new DecryptTask(msgs, mid, to, chunk_size, queue, batch));
+                return;
+            }
+            // blocking in take() would block a worker of the common pool, which is shared with the rest of the JVM
+            PooledCipher cipher=queue.poll();
+            boolean pooled=cipher != null;
+            if(!pooled) {
+                try {
+                    cipher=new PooledCipher(createCipher(sym_algorithm));
+                }
+                catch(Exception e) {
+                    throw new IllegalStateException("failed creating a cipher", e);
+                }
+                num_extra_ciphers.increment();
+            }
+            try {
+                for(int i=from; i < to; i++)
+                    msgs[i]=decrypt(cipher, msgs[i], batch);
+            }
+            finally {
+                if(pooled)
+                    queue.offer(cipher);
+            }
+        }
+    }
+
 }
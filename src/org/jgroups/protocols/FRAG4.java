@@ -1,20 +1,23 @@
 package org.jgroups.protocols;
 
-import org.jgroups.Address;
-import org.jgroups.BytesMessage;
-import org.jgroups.FragmentedMessage;
-import org.jgroups.Message;
-import org.jgroups.MessageFactory;
-import org.jgroups.util.ByteArrayDataInputStream;
-import org.jgroups.util.Range;
-import org.jgroups.util.Util;
+import org.jgroups.*;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.conf.AttributeType;
+import org.jgroups.util.*;
 
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.InputStream;
 import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /**
@@ -33,17 +36,139 @@ import java.util.Objects;
  * the original message's byte array, plus and offset and length. Otherwise, we use a number of {@link FragmentedMessage}
  * instances, with a reference to the original message and also an offset and length. These serialize messages at the
  * last possible moment, just before being sent by the transport.
+ * <br/>
+ * If {@link #lanes} is greater than 1, the fragments of messages (with an array) larger than
+ * {@link #parallel_threshold} are sent in parallel by a number of lanes. These fragments carry a {@link Frag4Header}
+ * with their offset, so the receiver copies them into a preallocated buffer (optionally off-heap) as they are
+ * received, in any order, and without holding a lock while copying.
  * 
  * @author  Bela Ban
  * @version 5.0
  */
 public class FRAG4 extends FRAG2 {
 
+    @Property(description="Number of lanes sending the fragments of a large message in parallel. Values <= 1 " +
+      "send all fragments on the caller's thread")
+    protected int     lanes;
+
+    @Property(description="Min size (in bytes) of a message to be fragmented in parallel (if lanes > 1)",
+      type=AttributeType.BYTES)
+    protected int     parallel_threshold=4_000_000;
+
+    @Property(description="Reassembles messages which were fragmented in parallel into a direct (off-heap) " +
+      "ByteBuffer, and passes them up as NioMessages")
+    protected boolean off_heap;
+
+    @Property(description="Number of ids of messages reassembled from fragments sent in parallel that are remembered " +
+      "per sender. Fragments of these messages received late (e.g. duplicates) are dropped")
+    protected int     max_completed_ids=128;
+
+    // messages fragmented in parallel which are being reassembled, per sender
+    protected final ConcurrentMap<Address,ConcurrentMap<Long,Reassembly>> reassemblies=Util.createConcurrentMap(11);
+
+    // ids of the most recently reassembled messages, per sender. Reassemblies are only created and removed under the
+    // lock of the sender's map, so a late fragment cannot create a reassembly which would never complete
+    protected final ConcurrentMap<Address,BoundedHashMap<Long,Boolean>> completed=Util.createConcurrentMap(11);
+
+    protected ExecutorService     lane_pool;
+
+    protected final LongAdder     num_parallel_sent=new LongAdder();
+    protected final LongAdder     num_parallel_received=new LongAdder();
+    protected final LongAdder     num_late_frags_dropped=new LongAdder();
+    protected final AverageMinMax avg_reassembly_time=new AverageMinMax(1024).unit(TimeUnit.NANOSECONDS);
+    protected final AtomicLong    reassembly_memory=new AtomicLong();     // bytes allocated for reassembly
+    protected final AtomicLong    reassembly_memory_max=new AtomicLong(); // high-water mark of reassembly_memory
+
+    public int     lanes()                    {return lanes;}
+    public FRAG4   lanes(int l)               {this.lanes=l; return this;}
+    public int     parallelThreshold()        {return parallel_threshold;}
+    public FRAG4   parallelThreshold(int t)   {this.parallel_threshold=t; return this;}
+    public boolean offHeap()                  {return off_heap;}
+    public FRAG4   offHeap(boolean f)         {this.off_heap=f; return this;}
+    public int     maxCompletedIds()          {return max_completed_ids;}
+    public FRAG4   maxCompletedIds(int n)     {this.max_completed_ids=n; return this;}
+
+    @ManagedAttribute(description="Number of messages fragmented in parallel",type=AttributeType.SCALAR)
+    public long getNumParallelSent()          {return num_parallel_sent.sum();}
+
+    @ManagedAttribute(description="Number of messages reassembled from fragments sent in parallel",type=AttributeType.SCALAR)
+    public long getNumParallelReceived()      {return num_parallel_received.sum();}
+
+    @ManagedAttribute(description="Number of fragments of already reassembled messages which were dropped",
+      type=AttributeType.SCALAR)
+    public long getNumLateFragsDropped()      {return num_late_frags_dropped.sum();}
+
+    @ManagedAttribute(description="Time to reassemble a message fragmented in parallel, from the reception " +
+      "of the first to the last fragment")
+    public AverageMinMax getAvgReassemblyTime() {return avg_reassembly_time;}
+
+    @ManagedAttribute(description="Bytes currently allocated for messages being reassembled",type=AttributeType.BYTES)
+    public long getReassemblyMemory()         {return reassembly_memory.get();}
+
+    @ManagedAttribute(description="Max number of bytes allocated at the same time for messages being reassembled",
+      type=AttributeType.BYTES)
+    public long getReassemblyMemoryMax()      {return reassembly_memory_max.get();}
+
+    @Override
+    public void start() throws Exception {
+        super.start();
+        if(lanes > 1) {
+            org.jgroups.util.ThreadFactory tf=getThreadFactory();
+            lane_pool=Executors.newFixedThreadPool(lanes - 1, r -> tf != null? tf.newThread(r, "FRAG4-lane")
+              : new Thread(r, "FRAG4-lane"));
+        }
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if(lane_pool != null) {
+            lane_pool.shutdownNow();
+            lane_pool=null;
+        }
+    }
+
+    @Override
+    public void resetStats() {
+        super.resetStats();
+        num_parallel_sent.reset();
+        num_parallel_received.reset();
+        num_late_frags_dropped.reset();
+        avg_reassembly_time.clear();
+        reassembly_memory_max.set(reassembly_memory.get());
+    }
+
+    @ManagedOperation(description="removes all fragments sent by mbr")
+    @Override
+    public void clearFragmentsFor(Address mbr) {
+        super.clearFragmentsFor(mbr);
+        removeReassemblies(mbr);
+    }
+
+    @ManagedOperation(description="Removes all entries from the fragmentation table. " +
+      "Dangerous: this might remove fragments that are still needed to assemble an entire message")
+    @Override
+    public void clearAllFragments() {
+        super.clearAllFragments();
+        reassemblies.keySet().forEach(this::removeReassemblies);
+    }
+
+    @Override
+    protected void handleViewChange(View view) {
+        super.handleViewChange(view);
+        reassemblies.keySet().stream().filter(mbr -> !view.containsMember(mbr)).forEach(this::removeReassemblies);
+    }
+
 
     protected void fragment(Message msg) {
         try {
             if(msg.getSrc() == null && local_addr != null)
                 msg.setSrc(local_addr);
+            ExecutorService pool=lane_pool;
+            if(pool != null && lanes > 1 && msg.hasArray() && msg.getLength() >= parallel_threshold) {
+                fragmentInParallel(msg, pool);
+                return;
+            }
             int offset=msg.hasArray()? msg.getOffset() : 0, length=msg.hasArray()? msg.getLength() : msg.size();
             final List<Range> fragments=Util.computeFragOffsets(offset, length, frag_size);
             int num_frags=fragments.size();
@@ -72,6 +197,104 @@ public class FRAG4 extends FRAG2 {
     }
 
 
+    /**
+     * Splits the fragments into contiguous ranges, one per lane. The first lane (containing the first fragment, which
+     * carries the headers) is sent by the caller's thread, the others by the lane pool. Returns when all fragments
+     * have been sent
+     */
+    protected void fragmentInParallel(Message msg, ExecutorService pool) {
+        int offset=msg.getOffset(), length=msg.getLength();
+        final List<Range> fragments=Util.computeFragOffsets(offset, length, frag_size);
+        int num_frags=fragments.size(), num_lanes=Math.min(lanes, num_frags);
+        final long frag_id=getNextId();
+        num_frags_sent.add(num_frags);
+        num_parallel_sent.increment();
+        if(log.isTraceEnabled())
+            log.trace("%s: fragmenting message to %s (size=%d) into %d fragment(s) on %d lanes [frag_size=%d]",
+                      local_addr, msg.getDest() != null? msg.getDest() : "<all>", length, num_frags, num_lanes, frag_size);
+        CompletableFuture<?>[] futures=new CompletableFuture<?>[num_lanes-1];
+        int per_lane=num_frags / num_lanes, rest=num_frags % num_lanes, from=per_lane + (rest > 0? 1 : 0);
+        for(int i=1; i < num_lanes; i++) {
+            int to=from + per_lane + (i < rest? 1 : 0), start=from;
+            Runnable lane=() -> sendFragments(msg, fragments, start, to, frag_id, offset);
+            try {
+                futures[i-1]=CompletableFuture.runAsync(lane, pool);
+            }
+            catch(RejectedExecutionException ex) { // pool was shut down
+                lane.run();
+                futures[i-1]=CompletableFuture.completedFuture(null);
+            }
+            from=to;
+        }
+        sendFragments(msg, fragments, 0, per_lane + (rest > 0? 1 : 0), frag_id, offset);
+        CompletableFuture.allOf(futures).join();
+    }
+
+    /** Sends the fragments in range [from .. to) */
+    protected void sendFragments(Message msg, List<Range> fragments, int from, int to, long frag_id, int offset) {
+        int num_frags=fragments.size(), length=msg.getLength();
+        for(int i=from; i < to; i++) {
+            Range r=fragments.get(i);
+            Message frag_msg=msg.copy(false, i == 0).setArray(msg.getArray(), (int)r.low, (int)r.high)
+              .putHeader(this.id, new Frag4Header(frag_id, i, num_frags, length, (int)r.low - offset));
+            down_prot.down(frag_msg);
+        }
+    }
+
+    @Override
+    protected Message unfragment(Message msg, FragHeader hdr) {
+        if(!(hdr instanceof Frag4Header))
+            return super.unfragment(msg, hdr);
+        Frag4Header h=(Frag4Header)hdr;
+        Address sender=msg.getSrc();
+        num_frags_received.increment();
+        ConcurrentMap<Long,Reassembly> table=reassemblies.computeIfAbsent(sender, k -> Util.createConcurrentMap(16));
+        BoundedHashMap<Long,Boolean> done=completed.computeIfAbsent(sender, k -> new BoundedHashMap<>(max_completed_ids));
+        Reassembly r=table.get(h.id);
+        if(r == null) {
+            synchronized(done) {
+                if(done.containsKey(h.id)) {
+                    num_late_frags_dropped.increment();
+                    log.trace("%s: dropped fragment %d of message %d from %s: message was already reassembled",
+                              local_addr, h.frag_id, h.id, sender);
+                    return null;
+                }
+                r=table.computeIfAbsent(h.id, k -> new Reassembly(h.num_frags, h.original_length));
+            }
+        }
+        try {
+            if(!r.add(msg, h))
+                return null;
+            synchronized(done) {
+                done.put(h.id, Boolean.TRUE);
+                table.remove(h.id, r);
+            }
+            Message assembled=r.assemble();
+            long time=System.nanoTime() - r.start;
+            avg_reassembly_time.add(time);
+            num_parallel_received.increment();
+            if(log.isTraceEnabled())
+                log.trace("%s: reassembled message from %s (size=%d) from %d fragments in %s",
+                          local_addr, sender, h.original_length, h.num_frags, Util.printTime(time, TimeUnit.NANOSECONDS));
+            return assembled;
+        }
+        catch(Exception ex) {
+            log.error("%s: failed reassembling message from %s: %s", local_addr, sender, ex);
+            return null;
+        }
+        finally {
+            if(r.isDone())
+                r.release();
+        }
+    }
+
+    protected void removeReassemblies(Address mbr) {
+        ConcurrentMap<Long,Reassembly> table=reassemblies.remove(mbr);
+        completed.remove(mbr);
+        if(table != null)
+            table.values().forEach(Reassembly::release);
+    }
+
     @Override
     protected Message assembleMessage(Message[] fragments, boolean needs_deserialization, FragHeader hdr) throws Exception {
         if(fragments[0] instanceof FragmentedMessage) {
@@ -104,6 +327,68 @@ public class FRAG4 extends FRAG2 {
         }
         return retval.setArray(combined_buffer, 0, combined_buffer.length);
     }
-}
 
 
+    /**
+     * A message fragmented in parallel being reassembled. The buffer is allocated when the first fragment is received;
+     * fragments are copied into it at their offsets. Only the check for duplicates acquires a lock, copying is done
+     * concurrently by the threads delivering fragments. The thread delivering the last fragment assembles the message
+     */
+    protected class Reassembly {
+        protected final long            start=System.nanoTime();
+        protected final FixedSizeBitSet received; // guarded by itself
+        protected final AtomicInteger   remaining;
+        protected final int             length;
+        protected final byte[]          array;  // on-heap buffer, or
+        protected final ByteBuffer      buf;    // off-heap buffer
+        protected volatile Message      first;  // the first fragment (with the headers of the original message)
+        protected final AtomicInteger   released=new AtomicInteger();
+
+        protected Reassembly(int num_frags, int length) {
+            this.received=new FixedSizeBitSet(num_frags);
+            this.remaining=new AtomicInteger(num_frags);
+            this.length=length;
+            this.array=off_heap? null : new byte[length];
+            this.buf=off_heap? ByteBuffer.allocateDirect(length) : null;
+            long mem=reassembly_memory.addAndGet(length);
+            reassembly_memory_max.accumulateAndGet(mem, Math::max);
+        }
+
+        /** Adds a fragment. Returns true if all fragments have been received */
+        protected boolean add(Message frag, Frag4Header hdr) {
+            synchronized(received) {
+                if(!received.set(hdr.frag_id))
+                    return false; // duplicate
+            }
+            if(hdr.frag_id == 0)
+                first=frag;
+            if(array != null)
+                System.arraycopy(frag.getArray(), frag.getOffset(), array, hdr.offset, frag.getLength());
+            else
+                buf.put(hdr.offset, frag.getArray(), frag.getOffset(), frag.getLength());
+            return remaining.decrementAndGet() == 0;
+        }
+
+        protected boolean isDone() {return remaining.get() == 0;}
+
+        protected Message assemble() {
+            Message f=first;
+            if(array != null)
+                return f.copy(false, true).setArray(array, 0, length);
+            Message msg=new NioMessage(f.getDest(), buf).setSrc(f.getSrc())
+              .setFlag(f.getFlags(false), false).setFlag(f.getFlags(true), true);
+            f.getHeaders().forEach(msg::putHeader);
+            return msg;
+        }
+
+        /** Releases the memory accounted for this reassembly (once) */
+        protected void release() {
+            if(released.compareAndSet(0, 1))
+                reassembly_memory.addAndGet(-length);
+        }
+
+        public String toString() {
+            return String.format("[length=%d, remaining=%d]", length, remaining.get());
+        }
+    }
+}
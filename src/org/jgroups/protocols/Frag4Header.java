@@ -0,0 +1,58 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Header;
+import org.jgroups.util.Bits;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.function.Supplier;
+
+/**
+ * Header of fragments sent by {@link FRAG4} in parallel: in addition to the fields of {@link FragHeader}, it carries
+ * the length of the original message and the offset of the fragment, so that the receiver can copy a fragment into
+ * a preallocated buffer as soon as it is received, regardless of the order in which fragments are received
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class Frag4Header extends FragHeader {
+    protected int original_length; // the length of the original message
+    protected int offset;          // offset of this fragment in the original message; length is in Message.length()
+
+    public Frag4Header() {
+    }
+
+    public Frag4Header(long id, int frag_id, int num_frags, int original_length, int offset) {
+        super(id, frag_id, num_frags);
+        this.original_length=original_length;
+        this.offset=offset;
+    }
+
+    public short                      getMagicId()        {return 72;}
+    public Supplier<? extends Header> create()            {return Frag4Header::new;}
+    public int                        getOriginalLength() {return original_length;}
+    public int                        getOffset()         {return offset;}
+
+    public String toString() {
+        return String.format("%s, orig-length=%d, offset=%d", super.toString(), original_length, offset);
+    }
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        super.writeTo(out);
+        Bits.writeIntCompressed(original_length, out);
+        Bits.writeIntCompressed(offset, out);
+    }
+
+    @Override
+    public int serializedSize() {
+        return super.serializedSize() + Bits.size(original_length) + Bits.size(offset);
+    }
+
+    @Override
+    public void readFrom(DataInput in) throws IOException {
+        super.readFrom(in);
+        original_length=Bits.readIntCompressed(in);
+        offset=Bits.readIntCompressed(in);
+    }
+}
@@ -0,0 +1,377 @@
+package org.jgroups.protocols;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jgroups.Message;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.stack.DiagnosticsHandler;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.Histogram;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.SubmitToThreadPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Records latency histograms ({@link Histogram}) with percentiles, to find out which parts of the stack add tail
+ * latency. Should be placed at the top of the stack. The following histograms are recorded (each can be disabled):
+ * <ul>
+ *     <li>down.PROT / up.PROT: the time spent in down() and up() of every protocol below LATENCY, excluding the time
+ *         spent in the protocols below (down) or above (up). up.application is the time spent above LATENCY
+ *         (delivery to the application)</li>
+ *     <li>bundler.wait: the time between adding the first message to a bundle and sending the bundle</li>
+ *     <li>thread-pool.wait: the time between submitting a message or batch to the thread pool and processing it</li>
+ *     <li>rpc.rtt: the round-trip times of synchronous RPCs sent by MessageDispatchers (and subclasses)</li>
+ * </ul>
+ * The times of the protocols are recorded by probes, which are inserted between the protocols below LATENCY. The
+ * histograms are exposed via probe ("latency", "latency-text", "latency-reset"), JMX and, if http_port is set, as
+ * text (Prometheus exposition format) over HTTP (GET /metrics).
+ * Recording doesn't allocate any memory.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@MBean(description="Records latency histograms of protocols, bundler and thread pool queues, and RPCs")
+public class LATENCY extends Protocol implements DiagnosticsHandler.ProbeHandler {
+
+    @Property(description="Records the time spent in down() and up() of every protocol below LATENCY",writable=false)
+    protected boolean     protocols=true;
+
+    @Property(description="Records the time between adding the first message to a bundle and sending it",writable=false)
+    protected boolean     bundler=true;
+
+    @Property(description="Records the time messages and batches wait in the thread pool before being processed",
+      writable=false)
+    protected boolean     thread_pool=true;
+
+    @Property(description="Records the round-trip times of synchronous RPCs",writable=false)
+    protected boolean     rpcs=true;
+
+    @Property(description="Number of bits of the sub-buckets of a histogram: every power of 2 is divided into " +
+      "2^precision buckets, so the max relative error of a percentile is 1/2^precision",writable=false)
+    protected int         precision=5;
+
+    @Property(description="Port of the HTTP server serving the histograms in text format (GET /metrics). " +
+      "0 picks an ephemeral port, -1 disables the HTTP server",writable=false)
+    protected int         http_port=-1;
+
+    @Property(description="Bind address of the HTTP server. Binds to all interfaces if not set",writable=false)
+    protected InetAddress http_bind_addr;
+
+    /** Protocols are measured exclusive of the time spent in nested protocols (below for down, above for up) */
+    protected static final ThreadLocal<long[]> NESTED_TIME=ThreadLocal.withInitial(() -> new long[1]);
+    protected static final String              METRIC="jgroups_latency_seconds";
+    protected static final double[]            QUANTILES={50, 90, 99, 99.9};
+
+    protected final Map<String,Histogram>      histograms=new LinkedHashMap<>();
+    protected final List<Probe>                probes=new ArrayList<>();
+    protected Histogram                        down_hist, up_hist, rpc_hist;
+    protected HttpServer                       http_server;
+
+
+    public boolean   protocols()                   {return protocols;}
+    public LATENCY   protocols(boolean b)          {protocols=b; return this;}
+    public boolean   bundler()                     {return bundler;}
+    public LATENCY   bundler(boolean b)            {bundler=b; return this;}
+    public boolean   threadPool()                  {return thread_pool;}
+    public LATENCY   threadPool(boolean b)         {thread_pool=b; return this;}
+    public boolean   rpcs()                        {return rpcs;}
+    public LATENCY   rpcs(boolean b)               {rpcs=b; return this;}
+    public int       precision()                   {return precision;}
+    public LATENCY   precision(int p)              {precision=p; return this;}
+    public LATENCY   httpPort(int p)               {http_port=p; return this;}
+    public InetAddress httpBindAddress()           {return http_bind_addr;}
+    public LATENCY   httpBindAddress(InetAddress a){http_bind_addr=a; return this;}
+    /** The histogram for RPC round-trip times, or null if not recorded */
+    public Histogram rpcHistogram()                {return rpc_hist;}
+
+    @ManagedAttribute(description="The port of the HTTP server, or -1 if not running")
+    public int httpPort() {
+        return http_server != null? http_server.getAddress().getPort() : http_port;
+    }
+
+    /** Returns the histogram with the given name (e.g. "down.NAKACK2") or null */
+    public synchronized Histogram histogram(String name) {
+        return histograms.get(name);
+    }
+
+    public synchronized List<String> histogramNames() {
+        return new ArrayList<>(histograms.keySet());
+    }
+
+    @Override
+    public void init() throws Exception {
+        super.init();
+        if(protocols) {
+            down_hist=protocolHistogram("down", down_prot);
+            up_hist=createHistogram("up.application");
+            ProtocolStack st=getProtocolStack();
+            // insert a probe below every protocol (except the transport) below LATENCY
+            for(Protocol prot=down_prot; prot != null && prot.getDownProtocol() != null; ) {
+                Protocol below=prot.getDownProtocol();
+                Probe probe=new Probe("LATENCY-" + below.getName(), protocolHistogram("down", below),
+                                      protocolHistogram("up", prot));
+                probe.setProtocolStack(st);
+                st.insertProtocolInStack(probe, below, ProtocolStack.Position.ABOVE);
+                probes.add(probe);
+                prot=below;
+            }
+        }
+        TP tp=getTransport();
+        if(bundler && tp.getBundler() instanceof BaseBundler b)
+            b.waitHistogram(createHistogram("bundler.wait"));
+        if(thread_pool && tp.msgProcessingPolicy() instanceof SubmitToThreadPool p)
+            p.queueWaitHistogram(createHistogram("thread-pool.wait"));
+        if(rpcs)
+            rpc_hist=createHistogram("rpc.rtt");
+    }
+
+    @Override
+    public void start() throws Exception {
+        super.start();
+        getTransport().registerProbeHandler(this);
+        if(http_port >= 0)
+            startHttpServer();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        getTransport().unregisterProbeHandler(this);
+        stopHttpServer();
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+        ProtocolStack st=getProtocolStack();
+        probes.forEach(p -> {
+            Protocol above=p.getUpProtocol(), below=p.getDownProtocol();
+            if(above != null)
+                above.setDownProtocol(below);
+            if(below != null)
+                below.setUpProtocol(above);
+        });
+        probes.clear();
+        TP tp=st != null? st.getTransport() : null;
+        if(tp != null) {
+            if(tp.getBundler() instanceof BaseBundler b)
+                b.waitHistogram(null);
+            if(tp.msgProcessingPolicy() instanceof SubmitToThreadPool p)
+                p.queueWaitHistogram(null);
+        }
+    }
+
+    @Override
+    public synchronized void resetStats() {
+        super.resetStats();
+        histograms.values().forEach(Histogram::clear);
+    }
+
+    @Override
+    public Object down(Message msg) {
+        return down_hist == null? down_prot.down(msg) : down(down_prot, msg, down_hist);
+    }
+
+    @Override
+    public Object up(Message msg) {
+        return up_hist == null? up_prot.up(msg) : up(up_prot, msg, up_hist);
+    }
+
+    @Override
+    public void up(MessageBatch batch) {
+        if(up_hist == null)
+            up_prot.up(batch);
+        else
+            up(up_prot, batch, up_hist);
+    }
+
+    @ManagedOperation(description="Prints all histograms, or the ones whose names contain filter")
+    public synchronized String print(String filter) {
+        int max=histograms.keySet().stream().mapToInt(String::length).max().orElse(0);
+        return histograms.entrySet().stream()
+          .filter(e -> filter == null || e.getKey().contains(filter))
+          .map(e -> String.format("%-" + max + "s: %s", e.getKey(), e.getValue()))
+          .collect(Collectors.joining("\n"));
+    }
+
+    /** Prints all histograms as summaries in the Prometheus text exposition format (values in seconds) */
+    @ManagedOperation(description="Prints all histograms in the Prometheus text exposition format")
+    public synchronized String printText() {
+        StringBuilder sb=new StringBuilder("# HELP ").append(METRIC)
+          .append(" Latency of protocols, queues and RPCs\n# TYPE ").append(METRIC).append(" summary\n");
+        String cluster=escape(getTransport().getClusterName()), member=escape(String.valueOf(local_addr));
+        for(Map.Entry<String,Histogram> e: histograms.entrySet()) {
+            Histogram h=e.getValue();
+            String labels=String.format("cluster=\"%s\",member=\"%s\",name=\"%s\"", cluster, member, escape(e.getKey()));
+            for(double q: QUANTILES)
+                sb.append(String.format("%s{%s,quantile=\"%s\"} %s\n", METRIC, labels, q / 100, seconds(h.p(q))));
+            sb.append(String.format("%s_sum{%s} %s\n", METRIC, labels, seconds(h.sum())))
+              .append(String.format("%s_count{%s} %d\n", METRIC, labels, h.count()));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public Map<String,String> handleProbe(String... keys) {
+        Map<String,String> map=null;
+        for(String key: keys) {
+            String value=null;
+            if(key.equals("latency-reset"))
+                resetStats();
+            else if(key.equals("latency-text"))
+                value=printText();
+            else if(key.startsWith("latency")) {
+                int index=key.indexOf('=');
+                value=print(index >= 0? key.substring(index+1) : null);
+            }
+            if(value != null) {
+                if(map == null)
+                    map=new HashMap<>();
+                map.put(key, "\n" + value);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public String[] supportedKeys() {
+        return new String[]{"latency", "latency=<filter>", "latency-text", "latency-reset"};
+    }
+
+    protected Histogram protocolHistogram(String prefix, Protocol prot) {
+        return createHistogram(prefix + "." + prot.getName());
+    }
+
+    protected synchronized Histogram createHistogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram(precision).unit(NANOSECONDS));
+    }
+
+    protected void startHttpServer() throws IOException {
+        InetSocketAddress addr=http_bind_addr != null? new InetSocketAddress(http_bind_addr, http_port)
+          : new InetSocketAddress(http_port);
+        http_server=HttpServer.create(addr, 0);
+        http_server.createContext("/metrics", this::handleHttpRequest);
+        http_server.start();
+        log.info("%s: serving latency histograms on http://%s:%d/metrics", local_addr,
+                 addr.getHostString(), http_server.getAddress().getPort());
+    }
+
+    protected void stopHttpServer() {
+        if(http_server != null) {
+            http_server.stop(0);
+            http_server=null;
+        }
+    }
+
+    protected void handleHttpRequest(HttpExchange ex) throws IOException {
+        try {
+            byte[] body=printText().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            ex.sendResponseHeaders(200, body.length);
+            try(OutputStream out=ex.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        finally {
+            ex.close();
+        }
+    }
+
+    protected static String seconds(long ns) {
+        return String.valueOf(ns / 1_000_000_000.0);
+    }
+
+    protected static String escape(String s) {
+        return s == null? "" : s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    protected static Object down(Protocol prot, Message msg, Histogram h) {
+        long[] nested=NESTED_TIME.get();
+        long prev=nested[0], start=System.nanoTime();
+        nested[0]=0;
+        try {
+            return prot.down(msg);
+        }
+        finally {
+            long time=System.nanoTime() - start;
+            h.add(time - nested[0]);
+            nested[0]=prev + time;
+        }
+    }
+
+    protected static Object up(Protocol prot, Message msg, Histogram h) {
+        long[] nested=NESTED_TIME.get();
+        long prev=nested[0], start=System.nanoTime();
+        nested[0]=0;
+        try {
+            return prot.up(msg);
+        }
+        finally {
+            long time=System.nanoTime() - start;
+            h.add(time - nested[0]);
+            nested[0]=prev + time;
+        }
+    }
+
+    protected static void up(Protocol prot, MessageBatch batch, Histogram h) {
+        long[] nested=NESTED_TIME.get();
+        long prev=nested[0], start=System.nanoTime();
+        nested[0]=0;
+        try {
+            prot.up(batch);
+        }
+        finally {
+            long time=System.nanoTime() - start;
+            h.add(time - nested[0]);
+            nested[0]=prev + time;
+        }
+    }
+
+
+    /**
+     * Inserted between two protocols; records the time spent in down() of the protocol below and in up() of the
+     * protocol above
+     */
+    protected static class Probe extends Protocol {
+        protected final String    name;
+        protected final Histogram down_hist, up_hist;
+
+        protected Probe(String name, Histogram down_hist, Histogram up_hist) {
+            this.name=name;
+            this.down_hist=down_hist;
+            this.up_hist=up_hist;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Object down(Message msg) {
+            return LATENCY.down(down_prot, msg, down_hist);
+        }
+
+        @Override
+        public Object up(Message msg) {
+            return LATENCY.up(up_prot, msg, up_hist);
+        }
+
+        @Override
+        public void up(MessageBatch batch) {
+            LATENCY.up(up_prot, batch, up_hist);
+        }
+    }
+}
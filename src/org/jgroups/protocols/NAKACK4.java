@@ -10,14 +10,17 @@ import org.jgroups.annotations.Property;
 import org.jgroups.protocols.pbcast.STABLE;
 import org.jgroups.util.*;
 
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.function.IntBinaryOperator;
 import java.util.function.Predicate;
 
 import static org.jgroups.Message.Flag.OOB;
+import static org.jgroups.conf.AttributeType.BYTES;
 import static org.jgroups.conf.AttributeType.SCALAR;
 
 /**
@@ -41,6 +44,22 @@ public class NAKACK4 extends ReliableMulticast {
       "https://issues.redhat.com/browse/JGRP-2969",writable=false)
     protected boolean                 dynamic_buffers;
 
+    @Property(description="If enabled (and dynamic_buffers is false), create ConcurrentBuffers instead of FixedBuffers. " +
+      "Messages are added to and retrieved from a ConcurrentBuffer without acquiring a lock",writable=false)
+    protected boolean                 concurrent_buffers;
+
+    @Property(description="Directory in which sent messages are spilled to memory-mapped segment files when more " +
+      "than capacity messages are unacked. The send buffer then keeps only the positions of the spilled messages on " +
+      "the heap. Null disables spilling",writable=false)
+    protected String                  spill_dir;
+
+    @Property(description="Size of a segment file of the spilled messages",type=BYTES,writable=false)
+    protected int                     spill_segment_size=8 * 1024 * 1024;
+
+    @Property(description="Max number of bytes of spilled messages; senders block when this is reached. " +
+      "0 means no limit",type=BYTES,writable=false)
+    protected long                    max_spill_size;
+
     @ManagedAttribute(description="Number of ACKs received",type=SCALAR)
     protected final LongAdder         acks_received=new LongAdder();
 
@@ -56,6 +75,24 @@ public class NAKACK4 extends ReliableMulticast {
     public int               ackThreshold()            {return ack_threshold;}
     public NAKACK4           ackThreshold(int t)       {ack_threshold=t; return this;}
     public boolean           dynamicBuffers()          {return dynamic_buffers;}
+    public boolean           concurrentBuffers()       {return concurrent_buffers;}
+    public NAKACK4           concurrentBuffers(boolean b) {concurrent_buffers=b; return this;}
+    public String            spillDir()                {return spill_dir;}
+    public NAKACK4           spillDir(String d)        {spill_dir=d; return this;}
+    public int               spillSegmentSize()        {return spill_segment_size;}
+    public NAKACK4           spillSegmentSize(int s)   {spill_segment_size=s; return this;}
+    public long              maxSpillSize()            {return max_spill_size;}
+    public NAKACK4           maxSpillSize(long s)      {max_spill_size=s; return this;}
+
+    @ManagedAttribute(description="Number of bytes of sent messages spilled to disk",type=BYTES,gauge=true)
+    public long getSpillSize() {
+        return sendBuf() instanceof SpillBuffer sb? sb.spillSize() : 0;
+    }
+
+    @ManagedAttribute(description="Number of sent messages spilled to disk",type=SCALAR)
+    public long getNumSpilled() {
+        return sendBuf() instanceof SpillBuffer sb? sb.numSpilled() : 0;
+    }
 
     @ManagedAttribute(type=SCALAR,gauge=true)
     public long getNumUnackedMessages() {
@@ -71,20 +108,16 @@ public class NAKACK4 extends ReliableMulticast {
     @ManagedAttribute(description="Number of times sender threads were blocked on a full send window",type=SCALAR)
     public long getNumBlockings() {
         long retval=0;
-        for(Entry e: xmit_table.values()) {
-            if(e.buf() instanceof FixedBuffer)
-                retval+=((FixedBuffer<?>)e.buf()).numBlockings();
-        }
+        for(Entry e: xmit_table.values())
+            retval+=e.buf().numBlockings();
         return retval;
     }
 
     @ManagedAttribute(description="The number of received messages dropped due to full capacity of the buffer",type=SCALAR)
     public long getNumDroppedMessages() {
         long retval=0;
-        for(Entry e: xmit_table.values()) {
-            if(e.buf() instanceof FixedBuffer)
-                retval+=((FixedBuffer<?>)e.buf()).numDroppedMessages();
-        }
+        for(Entry e: xmit_table.values())
+            retval+=e.buf().numDroppedMessages();
         return retval;
     }
 
@@ -92,11 +125,9 @@ public class NAKACK4 extends ReliableMulticast {
     public AverageMinMax getAvgTimeBlocked() {
         AverageMinMax avg=new AverageMinMax(1024).unit(TimeUnit.NANOSECONDS);
         for(Entry e: xmit_table.values()) {
-            Buffer<Message> buf=e.buf();
-            if(buf instanceof FixedBuffer) {
-                AverageMinMax tmp=((FixedBuffer<Message>)buf).avgTimeBlocked();
+            AverageMinMax tmp=e.buf().avgTimeBlocked();
+            if(tmp != null)
                 avg.merge(tmp);
-            }
         }
         return avg;
     }
@@ -106,9 +137,32 @@ public class NAKACK4 extends ReliableMulticast {
         if(dynamic_buffers)
             return new DynamicBuffer<>(xmit_table_num_rows, xmit_table_msgs_per_row,
                                        initial_seqno, xmit_table_resize_factor, xmit_table_max_compaction_time);
+        if(concurrent_buffers)
+            return new ConcurrentBuffer<>(capacity, initial_seqno);
         return new FixedBuffer<>(capacity, initial_seqno);
     }
 
+    @Override
+    protected Buffer<Message> createXmitWindow(Address member, long initial_seqno) {
+        if(spill_dir != null && !dynamic_buffers && Objects.equals(member, local_addr)) {
+            try {
+                return new SpillBuffer(capacity, initial_seqno, Path.of(spill_dir), spill_segment_size, max_spill_size);
+            }
+            catch(Exception ex) {
+                log.error("%s: failed creating spill buffer in %s, using in-memory send buffer: %s",
+                          local_addr, spill_dir, ex);
+            }
+        }
+        return createXmitWindow(initial_seqno);
+    }
+
+    /** Deletes the segment files of a removed (or replaced) send buffer */
+    @Override
+    protected void xmitWindowRemoved(Address member, Buffer<Message> win) {
+        if(win instanceof SpillBuffer sb)
+            sb.close();
+    }
+
     @Override
     public boolean sendBufferCanBlock() {
         return dynamic_buffers == false;
@@ -180,6 +234,9 @@ public class NAKACK4 extends ReliableMulticast {
     public void changeCapacity(int new_capacity) {
         if(new_capacity == this.capacity)
             return;
+        if(concurrent_buffers)
+            throw new IllegalStateException(String.format("%s: the capacity cannot be changed when concurrent_buffers " +
+                                                            "is true", local_addr));
         xmit_table.values().stream().map(Entry::buf).filter(buf -> buf instanceof FixedBuffer<Message>)
           .forEach(buf -> ((FixedBuffer<Message>)buf).changeCapacity(new_capacity));
         this.capacity=new_capacity;
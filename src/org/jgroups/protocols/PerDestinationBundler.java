@@ -181,7 +181,7 @@ public class PerDestinationBundler extends BaseBundler implements Runnable {
         private final ByteArrayDataOutputStream output=new ByteArrayDataOutputStream(max_size + MSG_OVERHEAD);
         private Runner                          sendbuf_runner;
         private long                            count;
-
+        private long                            first_msg_time; // ns, time the first message was added to msgs
 
         public String dump() {
             return String.format("msgs cap: %,d, remove-q cap: %,d", msgs.capacity(), remove_queue.capacity());
@@ -264,6 +264,8 @@ public class PerDestinationBundler extends BaseBundler implements Runnable {
 
         protected void addMessage(Message msg, int size) {
             msgs.add(msg);
+            if(count == 0 && wait_histogram != null)
+                first_msg_time=System.nanoTime();
             count+=size;
         }
 
@@ -282,6 +284,12 @@ public class PerDestinationBundler extends BaseBundler implements Runnable {
             sendMessages(dest, local_addr, msgs);
             msgs.clear(false);
             count=0;
+            if(first_msg_time > 0) {
+                Histogram h=wait_histogram;
+                if(h != null)
+                    h.add(System.nanoTime() - first_msg_time);
+                first_msg_time=0;
+            }
         }
 
         protected void sendMessages(final Address dest, final Address src, final List<Message> list) {
@@ -86,6 +86,15 @@ public abstract class ReliableMulticast extends Protocol implements DiagnosticsH
       "the max bundle size in the transport",type=SCALAR)
     protected int     max_xmit_req_size=1024;
 
+    @Property(description="Tracks the missing messages of the retransmission buffers incrementally as messages are " +
+      "received, so that the retransmission task doesn't need to scan the buffers. Buffers which cannot track gaps " +
+      "(ConcurrentBuffer) ignore this",writable=false)
+    protected boolean track_gaps=true;
+
+    @Property(description="Sends retransmit requests as run-length encoded ranges of seqnos when that is smaller " +
+      "than a bitmap of the missing messages (e.g. few gaps in a large window). Has to be supported by all members")
+    protected boolean run_length_xmit_reqs;
+
     @Property(description="The max size of a message batch when delivering messages. 0 is unbounded",type=SCALAR)
     protected int     max_batch_size;
 
@@ -174,6 +183,14 @@ public abstract class ReliableMulticast extends Protocol implements DiagnosticsH
 
     protected abstract Buffer<Message> createXmitWindow(long initial_seqno);
 
+    /** Creates the buffer for messages from member; the local member's buffer is the send buffer */
+    protected Buffer<Message> createXmitWindow(Address member, long initial_seqno) {
+        return createXmitWindow(initial_seqno);
+    }
+
+    /** Called when a buffer has been removed from (or replaced in) xmit_table, e.g. to release its resources */
+    protected void xmitWindowRemoved(Address member, Buffer<Message> win) {}
+
     /** Whether addition of a message to the send buffer can block */
     public boolean sendBufferCanBlock() {return false;}
 
@@ -261,6 +278,10 @@ public abstract class ReliableMulticast extends Protocol implements DiagnosticsH
     public ReliableMulticast setSuppressTimeNonMemberWarnings(long s) {this.suppress_time_non_member_warnings=s; return this;}
     public int               getMaxXmitReqSize()                      {return max_xmit_req_size;}
     public ReliableMulticast setMaxXmitReqSize(int m)                 {this.max_xmit_req_size=m; return this;}
+    public boolean           trackGaps()                              {return track_gaps;}
+    public ReliableMulticast trackGaps(boolean b)                     {this.track_gaps=b; return this;}
+    public boolean           runLengthXmitReqs()                      {return run_length_xmit_reqs;}
+    public ReliableMulticast runLengthXmitReqs(boolean b)             {this.run_length_xmit_reqs=b; return this;}
     public boolean           sendsCanBlock()                          {return sends_can_block;}
     public ReliableMulticast sendsCanBlock(boolean s)                 {this.sends_can_block=s; return this;}
     public long              getNumMessagesSent()                     {return num_messages_sent.sum();}
@@ -316,6 +337,12 @@ public abstract class ReliableMulticast extends Protocol implements DiagnosticsH
         return xmit_table.values().stream().map(Entry::buf).map(Buffer::numMissing).reduce(Integer::sum).orElse(0);
     }
 
+    @ManagedAttribute(description="Total number of gaps (ranges of missing messages) in all retransmit buffers " +
+      "tracking gaps",type=SCALAR,gauge=true)
+    public int getXmitTableGaps() {
+        return xmit_table.values().stream().map(Entry::buf).mapToInt(Buffer::numGaps).filter(n -> n > 0).sum();
+    }
+
     @ManagedAttribute(description="Capacity of the retransmit buffer")
     public long getXmitTableCapacity() {
         Buffer<Message> win=sendBuf();
@@ -1040,7 +1067,12 @@ public abstract class ReliableMulticast extends Protocol implements DiagnosticsH
         if(my_highest_received >= 0 && seqno > my_highest_received) {
             log.trace("%s: my_highest_rcvd (%s#%d) < highest received (%s#%d): requesting retransmission",
                       local_addr, sender, my_highest_received, sender, seqno);
-            retransmit(seqno, seqno, sender, false);
+            // a window with a fixed capacity drops messages beyond it (the sender's send buffer may be larger, e.g.
+            // when spilling): ask for all messages it can add
+            if(sendBufferCanBlock() && seqno - win.low() > win.capacity())
+                retransmit(my_highest_received+1, win.low() + win.capacity(), sender, false);
+            else
+                retransmit(seqno, seqno, sender, false);
         }
         needToSendAck(recv_entry, 1); // https://issues.redhat.com/browse/JGRP-2874
     }
@@ -1085,12 +1117,12 @@ public abstract class ReliableMulticast extends Protocol implements DiagnosticsH
             if(!members.contains(member)) {
                 if(Objects.equals(local_addr, member))
                     continue;
-                if(xmit_table.remove(member) != null)
+                if(removeXmitWindow(member) != null)
                     log.debug("%s: removed %s from xmit_table (not member anymore)", local_addr, member);
             }
         }
         members.stream().filter(mbr -> !keys.contains(mbr))
-          .forEach(mbr -> xmit_table.putIfAbsent(mbr, new Entry(createXmitWindow(0))));
+          .forEach(mbr -> xmit_table.computeIfAbsent(mbr, m -> new Entry(createXmitWindow(m, 0).trackGaps(track_gaps))));
     }
 
     /** Returns a message digest: for each member P the highest delivered and received seqno is added */
@@ -1154,10 +1186,10 @@ public abstract class ReliableMulticast extends Protocol implements DiagnosticsH
                     win.highestDelivered(highest_delivered_seqno);
                     continue; // don't destroy my own window
                 }
-                xmit_table.remove(member);
+                removeXmitWindow(member);
             }
-            win=createXmitWindow(highest_delivered_seqno);
-            xmit_table.put(member, new Entry(win));
+            win=createXmitWindow(member, highest_delivered_seqno).trackGaps(track_gaps);
+            putXmitWindow(member, win);
         }
         sb.append("\n").append("resulting digest: " + getDigest().toString(digest));
         digest_history.add(sb.toString());
@@ -1196,15 +1228,15 @@ public abstract class ReliableMulticast extends Protocol implements DiagnosticsH
                   || win.highestDelivered() >= highest_delivered_seqno) // my seqno is >= digest's seqno for sender
                     continue;
 
-                xmit_table.remove(member);
+                removeXmitWindow(member);
                 // to get here, merge must be false!
                 if(member.equals(local_addr)) { // Adjust the seqno: https://issues.redhat.com/browse/JGRP-1251
                     seqno.set(highest_delivered_seqno);
                     set_own_seqno=true;
                 }
             }
-            win=createXmitWindow(highest_delivered_seqno);
-            xmit_table.put(member, new Entry(win));
+            win=createXmitWindow(member, highest_delivered_seqno).trackGaps(track_gaps);
+            putXmitWindow(member, win);
         }
         if(sb != null) {
             sb.append("\n").append("resulting digest: " + getDigest().toString(digest));
@@ -1269,6 +1301,7 @@ public abstract class ReliableMulticast extends Protocol implements DiagnosticsH
 
     protected void retransmit(SeqnoList missing_msgs, final Address sender, boolean multicast_xmit_request) {
         Address dest=(multicast_xmit_request || this.use_mcast_xmit_req)? null : sender; // to whom do we send the XMIT request ?
+        missing_msgs.runLength(run_length_xmit_reqs);
         Message retransmit_msg=new ObjectMessage(dest, missing_msgs).setFlag(OOB, NO_FC).setFlag(DONT_BLOCK)
           .putHeader(this.id, NakAckHeader.createXmitRequestHeader(sender));
 
@@ -1281,7 +1314,33 @@ public abstract class ReliableMulticast extends Protocol implements DiagnosticsH
 
     protected void reset() {
         seqno.set(0);
-        xmit_table.clear();
+        for(Iterator<Map.Entry<Address,Entry>> it=xmit_table.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Address,Entry> e=it.next();
+            it.remove();
+            removed(e.getKey(), e.getValue().buf());
+        }
+    }
+
+    /** Removes the buffer of member from xmit_table and returns it */
+    protected Entry removeXmitWindow(Address member) {
+        Entry e=xmit_table.remove(member);
+        if(e != null)
+            removed(member, e.buf());
+        return e;
+    }
+
+    protected void putXmitWindow(Address member, Buffer<Message> win) {
+        Entry old=xmit_table.put(member, new Entry(win));
+        if(old != null && old.buf() != win)
+            removed(member, old.buf());
+    }
+
+    protected void removed(Address member, Buffer<Message> win) {
+        if(Objects.equals(member, local_addr)) { // don't keep using a removed send buffer
+            local_xmit_table=null;
+            local_send_entry=null;
+        }
+        xmitWindowRemoved(member, win);
     }
 
     protected static long sizeOfAllMessages(Buffer<Message> win, boolean include_headers) {
@@ -76,6 +76,10 @@ public abstract class ReliableUnicast extends Protocol implements AgeOutCache.Ha
       "the max bundle size in the transport")
     protected int     max_xmit_req_size;
 
+    @Property(description="Sends retransmit requests as run-length encoded ranges of seqnos when that is smaller " +
+      "than a bitmap of the missing messages (e.g. few gaps in a large window). Has to be supported by all members")
+    protected boolean run_length_xmit_reqs;
+
     @Property(description="The max size of a message batch when delivering messages. 0 is unbounded")
     protected int     max_batch_size;
 
@@ -187,6 +191,18 @@ public abstract class ReliableUnicast extends Protocol implements AgeOutCache.Ha
     protected abstract Buffer<Message> createBuffer(long initial_seqno);
     protected abstract boolean         needToSendAck(Entry e, int num_acks);
 
+    /** Creates the buffer of a send connection */
+    protected Buffer<Message> createSendBuffer(long initial_seqno) {
+        return createBuffer(initial_seqno);
+    }
+
+    /**
+     * Whether adding a received message to a full receive window blocks (applying back-pressure to the sender).
+     * If false, the message is dropped and retransmitted later (required when senders can be ahead of a receiver
+     * by more than its capacity, e.g. when they spill sent messages)
+     */
+    protected boolean receiveBufferCanBlock() {return true;}
+
     public long getNumLoopbacks() {return num_loopbacks.sum();}
 
     @ManagedAttribute(description="Returns the number of outgoing (send) connections",type=SCALAR,gauge=true)
@@ -228,6 +244,8 @@ public abstract class ReliableUnicast extends Protocol implements AgeOutCache.Ha
     public ReliableUnicast setSyncMinInterval(long s)            {this.sync_min_interval=s; return this;}
     public int             getMaxXmitReqSize()                   {return max_xmit_req_size;}
     public ReliableUnicast setMaxXmitReqSize(int m)              {this.max_xmit_req_size=m; return this;}
+    public boolean         runLengthXmitReqs()                   {return run_length_xmit_reqs;}
+    public ReliableUnicast runLengthXmitReqs(boolean b)          {this.run_length_xmit_reqs=b; return this;}
     public boolean         reuseMessageBatches()                 {return reuse_message_batches;}
     public ReliableUnicast reuseMessageBatches(boolean b)        {this.reuse_message_batches=b; return this;}
     public boolean         sendsCanBlock()                       {return sends_can_block;}
@@ -757,6 +775,7 @@ public abstract class ReliableUnicast extends Protocol implements AgeOutCache.Ha
 
     /** Sends a retransmit request to the given sender */
     protected void retransmit(SeqnoList missing, Address sender, Address real_dest) {
+        missing.runLength(run_length_xmit_reqs);
         Message xmit_msg=new ObjectMessage(sender, missing).setFlag(OOB, NO_FC)
           .putHeader(id, UnicastHeader.createXmitReqHeader());
         if(!Objects.equals(local_addr, real_dest))
@@ -811,7 +830,8 @@ public abstract class ReliableUnicast extends Protocol implements AgeOutCache.Ha
         final Buffer<Message> win=entry.buf();
         update(entry, 1);
         boolean oob=msg.isFlagSet(OOB),
-          added=win.add(seqno, oob? DUMMY_OOB_MSG : msg); // adding the same dummy OOB msg saves space (we won't remove it)
+          // adding the same dummy OOB msg saves space (we won't remove it)
+          added=win.add(seqno, oob? DUMMY_OOB_MSG : msg, null, receiveBufferCanBlock());
 
         // An OOB message is passed up immediately. Later, when remove() is called, we discard it. This affects ordering !
         // https://issues.redhat.com/browse/JGRP-377
@@ -1398,8 +1418,10 @@ public abstract class ReliableUnicast extends Protocol implements AgeOutCache.Ha
                 long highest_sent=win.high();   // we use table as a *sender* win, so it's highest *sent*...
 
                 if(highest_acked < highest_sent && val.watermark[0] == highest_acked && val.watermark[1] == highest_sent) {
-                    // highest acked and sent hasn't moved up - let's resend the HS
-                    Message highest_sent_msg=win.get(highest_sent);
+                    // highest acked and sent hasn't moved up - let's resend the HS. If the send buffer holds more
+                    // messages than the receiver's window (e.g. when spilling), resend the highest message the receiver
+                    // can add, so that it detects the gap and asks for the missing messages
+                    Message highest_sent_msg=win.get(Math.min(highest_sent, highest_acked + win.capacity()));
                     if(highest_sent_msg != null)
                         retransmit(highest_sent_msg);
                 }
@@ -1536,7 +1558,7 @@ public abstract class ReliableUnicast extends Protocol implements AgeOutCache.Ha
         int              last_timestamp;  // to prevent out-of-order ACKs from a receiver
 
         public SenderEntry(short send_conn_id) {
-            super(send_conn_id, createBuffer(0));
+            super(send_conn_id, createSendBuffer(0));
         }
 
         long[]      watermark()                 {return watermark;}
@@ -0,0 +1,561 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.conf.AttributeType;
+import org.jgroups.util.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.jgroups.Message.Flag.*;
+
+/**
+ * Failure detection based on SWIM (Das, Gupta, Motivala: "SWIM: Scalable Weakly-consistent Infection-style Process
+ * Group Membership Protocol"). Instead of every member sending heartbeats to all others, every member pings one
+ * member per protocol period (interval). The targets are picked round-robin from a shuffled list of the members, so
+ * every member is probed within (cluster size - 1) periods. If no ack is received within ping_timeout, the target is
+ * probed indirectly through num_indirect_probes random members; if no ack is received by the end of the period, the
+ * target is suspected.<br/>
+ * Suspicions are disseminated by piggybacking them on pings, acks and (piggyback_on_data) regular messages, and by
+ * sending them to the coordinator directly. A suspected member which learns about its suspicion refutes it by
+ * incrementing its incarnation. The coordinator emits a SUSPECT event when a suspicion hasn't been refuted within
+ * timeout ms.<br/>
+ * The number of messages sent per member and period is constant (a ping and an ack, plus the indirect probes of failed
+ * pings), regardless of the cluster size.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class SWIM extends FailureDetection {
+
+    @Property(description="Time (ms) to wait for an ack to a ping before probing the target through other members. " +
+      "Needs to be smaller than interval",type=AttributeType.TIME)
+    protected long    ping_timeout=300;
+
+    @Property(description="Number of members asked to probe a target which didn't respond to a ping")
+    protected int     num_indirect_probes=3;
+
+    @Property(description="Max number of membership updates piggybacked on a message")
+    protected int     max_piggyback=8;
+
+    @Property(description="An update is piggybacked retransmit_multiplier * log2(cluster size) times")
+    protected int     retransmit_multiplier=3;
+
+    @Property(description="Piggyback membership updates on regular messages, too")
+    protected boolean piggyback_on_data=true;
+
+    @ManagedAttribute(description="The incarnation of this member: incremented when refuting a suspicion")
+    protected volatile int incarnation;
+
+    @ManagedAttribute(description="Number of pings sent",type=AttributeType.SCALAR)
+    protected final LongAdder num_pings_sent=new LongAdder();
+    @ManagedAttribute(description="Number of indirect ping requests sent",type=AttributeType.SCALAR)
+    protected final LongAdder num_ping_reqs_sent=new LongAdder();
+    @ManagedAttribute(description="Number of acks received from indirect probes",type=AttributeType.SCALAR)
+    protected final LongAdder num_indirect_acks=new LongAdder();
+    @ManagedAttribute(description="Number of messages sent by this protocol (pings, acks, ping requests, gossip)",
+      type=AttributeType.SCALAR)
+    protected final LongAdder num_msgs_sent=new LongAdder();
+    @ManagedAttribute(description="Number of suspicions of this member which were refuted",type=AttributeType.SCALAR)
+    protected final LongAdder num_refutations=new LongAdder();
+
+    // suspected (but not yet confirmed) members and the start of their suspicion (ns)
+    protected final Map<Address,Long>    suspicions=Util.createConcurrentMap();
+    // the last known incarnation of each member
+    protected final Map<Address,Integer> incarnations=Util.createConcurrentMap();
+    // membership updates to be disseminated, by member. Access needs to be synchronized
+    protected final Map<Address,Update>  updates=new LinkedHashMap<>();
+    protected volatile boolean           has_updates;
+
+    // the shuffled members to be probed, round-robin. Access needs to be synchronized on this
+    protected final List<Address>        targets=new ArrayList<>();
+    protected int                        target_index;
+
+    // the current probe: only accessed by the protocol period task, except acked
+    protected Address                    current_target;
+    protected volatile long              current_seqno;
+    protected volatile boolean           acked;
+
+
+    public SWIM() {
+        interval=1000;
+        timeout=5000;
+    }
+
+    public long    getPingTimeout()                 {return ping_timeout;}
+    public SWIM    setPingTimeout(long t)           {this.ping_timeout=t; return this;}
+    public int     getNumIndirectProbes()           {return num_indirect_probes;}
+    public SWIM    setNumIndirectProbes(int n)      {this.num_indirect_probes=n; return this;}
+    public int     getMaxPiggyback()                {return max_piggyback;}
+    public SWIM    setMaxPiggyback(int m)           {this.max_piggyback=m; return this;}
+    public int     getRetransmitMultiplier()        {return retransmit_multiplier;}
+    public SWIM    setRetransmitMultiplier(int m)   {this.retransmit_multiplier=m; return this;}
+    public boolean piggybackOnData()                {return piggyback_on_data;}
+    public SWIM    piggybackOnData(boolean b)       {this.piggyback_on_data=b; return this;}
+    public int     incarnation()                    {return incarnation;}
+    public long    getPingsSent()                   {return num_pings_sent.sum();}
+    public long    getPingReqsSent()                {return num_ping_reqs_sent.sum();}
+    public long    getIndirectAcks()                {return num_indirect_acks.sum();}
+    public long    getMessagesSent()                {return num_msgs_sent.sum();}
+    public long    getRefutations()                 {return num_refutations.sum();}
+
+    @ManagedAttribute(description="Members which are suspected, but not yet confirmed")
+    public String getSuspicions() {return suspicions.keySet().toString();}
+
+    @ManagedOperation(description="Prints the membership updates to be disseminated")
+    public String printUpdates() {
+        synchronized(updates) {
+            return updates.values().toString();
+        }
+    }
+
+    protected Map<Address,?> getTimestamps()            {return suspicions;}
+    protected long           getTimeoutCheckInterval()  {return interval;}
+    protected String         getTimeoutCheckerInfo()    {return SWIM.class.getSimpleName() + " (timeout=" + timeout + " ms)";}
+
+    public void init() throws Exception {
+        super.init();
+        if(ping_timeout >= interval)
+            throw new IllegalStateException(String.format("ping_timeout (%d) needs to be smaller than interval (%d)",
+                                                          ping_timeout, interval));
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        Stream.of(num_pings_sent, num_ping_reqs_sent, num_indirect_acks, num_msgs_sent, num_refutations)
+          .forEach(LongAdder::reset);
+    }
+
+    public synchronized void stop() {
+        super.stop();
+        suspicions.clear();
+        synchronized(updates) {
+            updates.clear();
+            has_updates=false;
+        }
+    }
+
+    public Object down(Message msg) {
+        if(piggyback_on_data && has_updates && msg.getHeader(id) == null) {
+            List<Update> list=selectUpdates();
+            // the updates are added to a copy: the message may be kept (e.g. by NAKACK2 for retransmission) or be
+            // sent again by the caller, and must not carry stale updates then
+            if(list != null)
+                msg=msg.copy(true, true).putHeader(id, new SwimHeader(SwimHeader.DATA).updates(list));
+        }
+        return super.down(msg);
+    }
+
+    public Object up(Message msg) {
+        Address sender=msg.getSrc();
+        update(sender, false, false);
+        if(has_suspected_mbrs)
+            unsuspect(sender);
+        SwimHeader hdr=msg.getHeader(id);
+        if(hdr == null)
+            return up_prot.up(msg);
+        handleUpdates(hdr.updates);
+        if(hdr.type == SwimHeader.DATA)
+            return up_prot.up(msg);
+        handle(hdr, sender);
+        return null;
+    }
+
+    public void up(MessageBatch batch) {
+        Address sender=batch.sender();
+        update(sender, false, false);
+        if(has_suspected_mbrs)
+            unsuspect(sender);
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            SwimHeader hdr=msg.getHeader(id);
+            if(hdr == null)
+                continue;
+            handleUpdates(hdr.updates);
+            if(hdr.type != SwimHeader.DATA) {
+                it.remove();
+                handle(hdr, sender);
+            }
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+    /** Any message from a member is proof that it's alive: acks the current probe and clears a local suspicion */
+    @Override protected void update(Address sender, boolean log_msg, boolean skip_if_exists) {
+        if(sender == null || skip_if_exists)
+            return;
+        if(sender.equals(current_target))
+            acked=true;
+        if(!suspicions.isEmpty() && suspicions.remove(sender) != null)
+            log.debug("%s: received a message from suspected member %s, clearing suspicion", local_addr, sender);
+    }
+
+    /** Returns true if the suspicion of mbr hasn't been refuted within timeout ms */
+    protected <T> boolean needsToBeSuspected(Address mbr, T value) {
+        long start=(Long)value;
+        if(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(timeout))
+            return false;
+        log.debug("%s: suspicion of %s wasn't refuted within %d ms, suspecting it", local_addr, mbr, timeout);
+        return true;
+    }
+
+    @Override protected void handleViewChange(View v) {
+        super.handleViewChange(v);
+        List<Address> mbrs=v.getMembers();
+        incarnations.keySet().retainAll(mbrs);
+        synchronized(updates) {
+            updates.keySet().retainAll(mbrs);
+            has_updates=!updates.isEmpty();
+        }
+        synchronized(this) {
+            targets.clear();
+            mbrs.stream().filter(m -> !m.equals(local_addr)).forEach(targets::add);
+            Collections.shuffle(targets);
+            target_index=0;
+        }
+    }
+
+    /** Starts the protocol period task instead of the heartbeat sender */
+    @Override protected void startHeartbeatSender() {
+        lock.lock();
+        try {
+            if(!isHeartbeatSenderRunning())
+                heartbeat_sender=timer.scheduleAtFixedRate(new ProbeTask(), interval, interval, TimeUnit.MILLISECONDS, false);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    protected void handle(SwimHeader hdr, Address sender) {
+        switch(hdr.type) {
+            case SwimHeader.PING:     // reply with an ack; hdr.addr is the member on whose behalf we were pinged
+                send(sender, new SwimHeader(SwimHeader.ACK).seqno(hdr.seqno).addr(hdr.addr));
+                break;
+            case SwimHeader.ACK:
+                if(hdr.addr != null) // we probed on behalf of hdr.addr: forward the ack to it
+                    send(hdr.addr, new SwimHeader(SwimHeader.ACK).seqno(hdr.seqno));
+                else if(hdr.seqno == current_seqno && !acked) {
+                    acked=true;
+                    if(!sender.equals(current_target))
+                        num_indirect_acks.increment();
+                }
+                break;
+            case SwimHeader.PING_REQ: // probe hdr.addr on behalf of the sender
+                send(hdr.addr, new SwimHeader(SwimHeader.PING).seqno(hdr.seqno).addr(sender));
+                break;
+            case SwimHeader.GOSSIP:   // the updates have already been handled
+                break;
+            default:
+                log.error("%s: SwimHeader type %d not known", local_addr, hdr.type);
+        }
+    }
+
+    protected void handleUpdates(List<Update> list) {
+        if(list == null)
+            return;
+        for(Update u: list)
+            handleUpdate(u);
+    }
+
+    /**
+     * Handles a membership update, applying the SWIM precedence rules: an ALIVE update overrides a SUSPECT update
+     * if its incarnation is greater, a SUSPECT update overrides an ALIVE update if its incarnation is greater or equal
+     */
+    protected void handleUpdate(Update u) {
+        if(u.mbr.equals(local_addr)) {
+            if(u.type == Update.SUSPECT && u.incarnation >= incarnation)
+                refute(u.incarnation);
+            return;
+        }
+        synchronized(this) {
+            if(!members.contains(u.mbr))
+                return;
+        }
+        int known=incarnations.getOrDefault(u.mbr, 0);
+        switch(u.type) {
+            case Update.ALIVE:
+                if(u.incarnation <= known)
+                    return;
+                incarnations.put(u.mbr, u.incarnation);
+                if(suspicions.remove(u.mbr) != null)
+                    log.debug("%s: %s refuted its suspicion (incarnation=%d)", local_addr, u.mbr, u.incarnation);
+                addUpdate(new Update(Update.ALIVE, u.mbr, u.incarnation));
+                unsuspect(u.mbr);
+                break;
+            case Update.SUSPECT:
+                if(u.incarnation < known)
+                    return;
+                incarnations.put(u.mbr, u.incarnation);
+                if(suspicions.putIfAbsent(u.mbr, System.nanoTime()) == null) {
+                    log.trace("%s: %s is suspected (incarnation=%d)", local_addr, u.mbr, u.incarnation);
+                    addUpdate(new Update(Update.SUSPECT, u.mbr, u.incarnation));
+                }
+                break;
+        }
+    }
+
+    /** Suspects a member which didn't ack a direct or indirect probe; tells the coordinator right away */
+    protected void startSuspicion(Address mbr) {
+        synchronized(this) {
+            if(!members.contains(mbr))
+                return;
+        }
+        if(suspicions.putIfAbsent(mbr, System.nanoTime()) != null)
+            return;
+        int inc=incarnations.getOrDefault(mbr, 0);
+        log.debug("%s: %s didn't respond to a probe, suspecting it (incarnation=%d)", local_addr, mbr, inc);
+        Update u=new Update(Update.SUSPECT, mbr, inc);
+        addUpdate(u);
+        sendToCoordinator(u);
+    }
+
+    /** Refutes a suspicion of this member by incrementing the incarnation and disseminating an ALIVE update */
+    protected void refute(int suspected_incarnation) {
+        Update u;
+        synchronized(this) {
+            if(suspected_incarnation < incarnation)
+                return;
+            incarnation=suspected_incarnation + 1;
+            u=new Update(Update.ALIVE, local_addr, incarnation);
+        }
+        num_refutations.increment();
+        log.debug("%s: refuting suspicion (incarnation=%d)", local_addr, u.incarnation);
+        addUpdate(u);
+        sendToCoordinator(u);
+    }
+
+    protected void sendToCoordinator(Update u) {
+        Address coord;
+        synchronized(this) {
+            coord=members.isEmpty()? null : members.get(0);
+        }
+        if(coord != null && !coord.equals(local_addr) && !coord.equals(u.mbr)) {
+            Message msg=new EmptyMessage(coord).setFlag(OOB, NO_RELIABILITY, NO_FC)
+              .putHeader(id, new SwimHeader(SwimHeader.GOSSIP).updates(List.of(u)));
+            num_msgs_sent.increment();
+            down_prot.down(msg);
+        }
+    }
+
+    protected void addUpdate(Update u) {
+        synchronized(updates) {
+            updates.put(u.mbr, u); // replaces an older update about the same member
+            has_updates=true;
+        }
+    }
+
+    /** Returns the least disseminated updates (max max_piggyback) and removes those which were sent often enough */
+    protected List<Update> selectUpdates() {
+        int max_transmits;
+        synchronized(this) {
+            max_transmits=retransmit_multiplier * (32 - Integer.numberOfLeadingZeros(Math.max(members.size(), 1)));
+        }
+        synchronized(updates) {
+            if(updates.isEmpty())
+                return null;
+            List<Update> list=new ArrayList<>(updates.values());
+            if(list.size() > max_piggyback) {
+                list.sort(Comparator.comparingInt(u -> u.transmits));
+                list=list.subList(0, max_piggyback);
+            }
+            List<Update> retval=new ArrayList<>(list.size());
+            for(Update u: list) {
+                retval.add(u);
+                if(++u.transmits >= max_transmits)
+                    updates.remove(u.mbr);
+            }
+            has_updates=!updates.isEmpty();
+            return retval;
+        }
+    }
+
+    protected void send(Address dest, SwimHeader hdr) {
+        if(dest == null)
+            return;
+        Message msg=new EmptyMessage(dest).setFlag(OOB, NO_RELIABILITY, NO_FC).putHeader(id, hdr.updates(selectUpdates()));
+        num_msgs_sent.increment();
+        down_prot.down(msg);
+    }
+
+    protected synchronized Address nextTarget() {
+        if(targets.isEmpty())
+            return null;
+        if(target_index >= targets.size()) { // start a new round in a different order
+            Collections.shuffle(targets);
+            target_index=0;
+        }
+        return targets.get(target_index++);
+    }
+
+    protected void sendIndirectProbes(Address target, long seqno) {
+        if(acked || seqno != current_seqno)
+            return;
+        List<Address> helpers;
+        synchronized(this) {
+            helpers=new ArrayList<>(members);
+        }
+        helpers.remove(local_addr);
+        helpers.remove(target);
+        int num=Math.min(num_indirect_probes, helpers.size());
+        ThreadLocalRandom rand=ThreadLocalRandom.current();
+        for(int i=0; i < num; i++) { // partial Fisher-Yates shuffle
+            Collections.swap(helpers, i, i + rand.nextInt(helpers.size() - i));
+            num_ping_reqs_sent.increment();
+            send(helpers.get(i), new SwimHeader(SwimHeader.PING_REQ).seqno(seqno).addr(target));
+        }
+        log.trace("%s: no ack from %s, probing it through %s", local_addr, target, helpers.subList(0, num));
+    }
+
+
+    /** Runs every protocol period: suspects the previous target if it didn't ack, then probes the next target */
+    protected class ProbeTask implements Runnable {
+        public void run() {
+            Address prev=current_target;
+            if(prev != null && !acked)
+                startSuspicion(prev);
+            Address target=nextTarget();
+            current_target=target;
+            if(target == null)
+                return;
+            long seqno=++current_seqno;
+            acked=false;
+            num_pings_sent.increment();
+            num_heartbeats_sent++;
+            send(target, new SwimHeader(SwimHeader.PING).seqno(seqno));
+            if(num_indirect_probes > 0)
+                timer.schedule(() -> sendIndirectProbes(target, seqno), ping_timeout, TimeUnit.MILLISECONDS, false);
+        }
+
+        public String toString() {
+            return String.format("%s: %s", SWIM.class.getSimpleName(), getClass().getSimpleName());
+        }
+    }
+
+
+    /** A membership update about a member, disseminated by piggybacking it on messages */
+    public static class Update {
+        public static final byte ALIVE=1, SUSPECT=2;
+        protected byte    type;
+        protected Address mbr;
+        protected int     incarnation;
+        protected int     transmits; // number of times this update was sent (not marshalled)
+
+        public Update(byte type, Address mbr, int incarnation) {
+            this.type=type;
+            this.mbr=mbr;
+            this.incarnation=incarnation;
+        }
+
+        public byte    type()        {return type;}
+        public Address mbr()         {return mbr;}
+        public int     incarnation() {return incarnation;}
+
+        public int serializedSize() {
+            return Global.BYTE_SIZE + Util.size(mbr) + Bits.size(incarnation);
+        }
+
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(type);
+            Util.writeAddress(mbr, out);
+            Bits.writeIntCompressed(incarnation, out);
+        }
+
+        public static Update readFrom(DataInput in) throws IOException, ClassNotFoundException {
+            byte type=in.readByte();
+            Address mbr=Util.readAddress(in);
+            return new Update(type, mbr, Bits.readIntCompressed(in));
+        }
+
+        public String toString() {
+            return String.format("%s(%s, %d)", type == ALIVE? "alive" : "suspect", mbr, incarnation);
+        }
+    }
+
+
+    public static class SwimHeader extends Header {
+        public static final byte PING     = 1; // addr: the member on whose behalf the ping is sent (indirect probe)
+        public static final byte ACK      = 2; // addr: the member to which the ack is to be forwarded (indirect probe)
+        public static final byte PING_REQ = 3; // addr: the member to be probed
+        public static final byte GOSSIP   = 4; // updates only
+        public static final byte DATA     = 5; // updates piggybacked on a regular message
+
+        protected byte         type;
+        protected long         seqno;
+        protected Address      addr;
+        protected List<Update> updates;
+
+        public SwimHeader() {
+        }
+
+        public SwimHeader(byte type)                              {this.type=type;}
+        public short                      getMagicId()            {return 79;}
+        public Supplier<? extends Header> create()                {return SwimHeader::new;}
+        public byte                       type()                  {return type;}
+        public long                       seqno()                 {return seqno;}
+        public SwimHeader                 seqno(long s)           {this.seqno=s; return this;}
+        public Address                    addr()                  {return addr;}
+        public SwimHeader                 addr(Address a)         {this.addr=a; return this;}
+        public List<Update>               updates()               {return updates;}
+        public SwimHeader                 updates(List<Update> l) {this.updates=l; return this;}
+
+        @Override
+        public int serializedSize() {
+            int retval=Global.BYTE_SIZE + Bits.size(seqno) + Util.size(addr) + Global.SHORT_SIZE;
+            if(updates != null)
+                for(Update u: updates)
+                    retval+=u.serializedSize();
+            return retval;
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(type);
+            Bits.writeLongCompressed(seqno, out);
+            Util.writeAddress(addr, out);
+            int size=updates != null? updates.size() : 0;
+            out.writeShort(size);
+            for(int i=0; i < size; i++)
+                updates.get(i).writeTo(out);
+        }
+
+        @Override
+        public void readFrom(DataInput in) throws IOException, ClassNotFoundException {
+            type=in.readByte();
+            seqno=Bits.readLongCompressed(in);
+            addr=Util.readAddress(in);
+            int size=in.readShort();
+            if(size > 0) {
+                updates=new ArrayList<>(size);
+                for(int i=0; i < size; i++)
+                    updates.add(Update.readFrom(in));
+            }
+        }
+
+        public String toString() {
+            return String.format("%s seqno=%d%s%s", type2String(type), seqno, addr != null? ", addr=" + addr : "",
+                                 updates != null? ", updates=" + updates : "");
+        }
+
+        static String type2String(byte t) {
+            return switch(t) {
+                case PING     -> "PING";
+                case ACK      -> "ACK";
+                case PING_REQ -> "PING_REQ";
+                case GOSSIP   -> "GOSSIP";
+                case DATA     -> "DATA";
+                default       -> "<unknown>";
+            };
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Message;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.Property;
+import org.jgroups.conf.AttributeType;
+import org.jgroups.util.FastArray;
+import org.jgroups.util.Util;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bundler which spreads sender threads over a number of lock-free rings (stripes), so that concurrent senders don't
+ * contend on a single queue (as in {@link TransferQueueBundler}). A sender thread always adds its messages to the
+ * same ring, which preserves the order of messages sent by the same thread.<br/>
+ * A single drainer thread removes messages from all rings, bundles them per destination and sends them as message
+ * lists when max_size has been exceeded or when no more messages are available. When all rings are empty, the
+ * drainer parks until the next message is added. When a ring is full, messages are dropped (to be retransmitted).
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class StripedRingBundler extends BaseBundler implements Runnable {
+    protected Ring[]               rings;
+    protected int                  mask;
+    protected List<Message>        remove_queue;
+    protected volatile Thread      bundler_thread;
+    protected volatile boolean     running;
+    protected final AtomicBoolean  sleeping=new AtomicBoolean();
+    protected static final String  THREAD_NAME="SR-Bundler";
+
+    @Property(description="Number of rings. Will be rounded up to the next power of 2. 0 uses the number of cores",
+      type=AttributeType.SCALAR)
+    protected int                  num_stripes;
+
+    public int                numStripes()      {return num_stripes;}
+    public StripedRingBundler numStripes(int n) {this.num_stripes=n; return this;}
+
+    @ManagedAttribute(description="Size of all rings",type=AttributeType.SCALAR,gauge=true)
+    public int getQueueSize() {
+        Ring[] tmp=rings;
+        if(tmp == null)
+            return 0;
+        int size=0;
+        for(Ring r: tmp)
+            size+=r.size();
+        return size;
+    }
+
+    @ManagedAttribute(description="Capacity of a ring")
+    public int ringCapacity() {
+        Ring[] tmp=rings;
+        return tmp == null? 0 : tmp[0].capacity();
+    }
+
+    @ManagedAttribute(description="Size of the remove-queue",type=AttributeType.SCALAR,gauge=true)
+    public int removeQueueSize() {return remove_queue != null? remove_queue.size() : 0;}
+
+    @ManagedAttribute(description="The number of unsent messages in the bundler",type=AttributeType.SCALAR,gauge=true)
+    public int size() {
+        return super.size() + removeQueueSize() + getQueueSize();
+    }
+
+    @Override
+    public void init(TP transport) {
+        super.init(transport);
+        if(transport instanceof TCP tcp) {
+            tcp.useLockToSend(false); // only the drainer thread sends
+            int size=tcp.getBufferedOutputStreamSize();
+            if(size < max_size) {
+                int new_size=max_size + Integer.BYTES;
+                log.warn("buffered_output_stream_size adjusted from %,d -> %,d", size, new_size);
+                tcp.setBufferedOutputStreamSize(new_size);
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if(running)
+            stop();
+        int stripes=Util.getNextHigherPowerOfTwo(num_stripes > 0? num_stripes : Runtime.getRuntime().availableProcessors());
+        int ring_capacity=Util.getNextHigherPowerOfTwo(Math.max(capacity / stripes, 64));
+        rings=new Ring[stripes];
+        for(int i=0; i < rings.length; i++)
+            rings[i]=new Ring(ring_capacity);
+        mask=stripes-1;
+        if(remove_queue_capacity == 0)
+            remove_queue_capacity=Math.max(capacity/4, 1024);
+        remove_queue=new FastArray<>(Math.min(remove_queue_capacity, ring_capacity));
+        running=true;
+        bundler_thread=transport.getThreadFactory().newThread(this, THREAD_NAME);
+        bundler_thread.start();
+    }
+
+    public synchronized void stop() {
+        running=false;
+        Thread tmp=bundler_thread;
+        bundler_thread=null;
+        if(tmp != null) {
+            LockSupport.unpark(tmp);
+            tmp.interrupt();
+            if(tmp.isAlive()) {
+                try {
+                    tmp.join(500);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        drain();
+    }
+
+    public void renameThread() {
+        transport.getThreadFactory().renameThread(THREAD_NAME, bundler_thread);
+    }
+
+    public void send(Message msg) throws Exception {
+        if(!running)
+            return;
+        Ring ring=rings[(int)Thread.currentThread().getId() & mask];
+        if(!ring.offer(msg)) {
+            num_drops_on_full_queue.increment();
+            return;
+        }
+        if(sleeping.get() && sleeping.compareAndSet(true, false))
+            LockSupport.unpark(bundler_thread);
+    }
+
+    public void run() {
+        while(running) {
+            if(drainRings() > 0)
+                continue;
+            if(count > 0) {
+                if(transport.statsEnabled())
+                    avg_fill_count.add(count);
+                sendBundledMessages();
+                num_sends_because_no_msgs.increment();
+                continue;
+            }
+            // no messages available: park until a sender adds a message
+            sleeping.set(true);
+            if(isEmpty() && running)
+                LockSupport.park(this);
+            sleeping.set(false);
+        }
+    }
+
+    /** Removes messages from all rings and adds them to the map. Returns the number of removed messages */
+    protected int drainRings() {
+        int total=0;
+        for(Ring ring: rings) {
+            remove_queue.clear();
+            int num=ring.drainTo(remove_queue, remove_queue_capacity);
+            if(num > 0) {
+                total+=num;
+                avg_remove_queue_size.add(num);
+                remove_queue.forEach(this::addAndSendIfSizeExceeded);
+            }
+        }
+        return total;
+    }
+
+    protected boolean isEmpty() {
+        for(Ring ring: rings)
+            if(ring.size() > 0)
+                return false;
+        return true;
+    }
+
+    protected void addAndSendIfSizeExceeded(Message msg) {
+        int size=msg.size();
+        if(count + size > max_size) {
+            if(transport.statsEnabled())
+                avg_fill_count.add(count);
+            sendBundledMessages();
+            num_sends_because_full_queue.increment();
+        }
+        addMessage(msg, size);
+    }
+
+    /** Removes all messages from the rings and sends them */
+    protected void drain() {
+        if(rings != null)
+            while(drainRings() > 0)
+                ;
+        if(!msgs.isEmpty())
+            sendBundledMessages();
+    }
+
+
+    /**
+     * Bounded multi-producer single-consumer ring. Producers claim a slot by incrementing tail, then publish the
+     * message into the slot. The (single) consumer removes published messages starting at head; a claimed but not
+     * yet published slot stops the removal until the producer has published it.
+     */
+    protected static class Ring {
+        protected final AtomicReferenceArray<Message> slots;
+        protected final int                           ring_mask;
+        protected final AtomicLong                    tail=new AtomicLong(); // next slot to be claimed by a producer
+        protected volatile long                       head;                  // next slot to be read by the consumer
+
+        protected Ring(int capacity) {
+            slots=new AtomicReferenceArray<>(capacity);
+            ring_mask=capacity-1;
+        }
+
+        protected int capacity() {return slots.length();}
+        protected int size()     {return (int)Math.max(0, tail.get() - head);}
+
+        protected boolean offer(Message msg) {
+            for(;;) {
+                long t=tail.get();
+                if(t - head >= slots.length())
+                    return false;
+                if(tail.compareAndSet(t, t+1)) {
+                    slots.set((int)t & ring_mask, msg);
+                    return true;
+                }
+            }
+        }
+
+        /** Must only be called by the consumer thread */
+        protected int drainTo(List<Message> list, int max) {
+            long h=head;
+            int num=0;
+            while(num < max) {
+                int index=(int)h & ring_mask;
+                Message msg=slots.get(index);
+                if(msg == null)
+                    break;
+                slots.lazySet(index, null);
+                list.add(msg);
+                h++; num++;
+            }
+            if(num > 0)
+                head=h;
+            return num;
+        }
+    }
+}
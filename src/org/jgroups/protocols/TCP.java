@@ -11,8 +11,10 @@ import org.jgroups.blocks.cs.TcpServer;
 import org.jgroups.conf.AttributeType;
 import org.jgroups.util.SocketFactory;
 import org.jgroups.util.TLS;
+import org.jgroups.util.ThreadFactory;
 import org.jgroups.util.Util;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 
 /**
@@ -117,6 +119,18 @@ public class TCP extends BasicTCP {
             srv.send(dest, data, offset, length);
     }
 
+    /** Direct buffers are written through a small reusable array, see {@link org.jgroups.blocks.cs.TcpConnection#send(ByteBuffer)} */
+    @Override
+    public boolean supportsDirectBuffers() {
+        return true;
+    }
+
+    @Override
+    public void send(Address dest, ByteBuffer buf) throws Exception {
+        if(srv != null)
+            srv.send(dest, buf);
+    }
+
     public void retainAll(Collection<Address> members) {
         srv.retainAll(members, is_member);
     }
@@ -126,7 +140,7 @@ public class TCP extends BasicTCP {
             SocketFactory factory=tls.createSocketFactory();
             setSocketFactory(factory);
         }
-        srv=new TcpServer(getThreadFactory(), getSocketFactory(), bind_addr, bind_port, bind_port+port_range,
+        srv=new TcpServer(connectionThreadFactory(), getSocketFactory(), bind_addr, bind_port, bind_port+port_range,
                           external_addr, external_port, recv_buf_size).setLogAcceptError(log_accept_error);
 
         srv.setBufferedInputStreamSize(buffered_input_stream_size).setBufferedOutputStreamSize(buffered_output_stream_size)
@@ -167,6 +181,11 @@ public class TCP extends BasicTCP {
         super.start();
     }
     
+    /** The thread factory used to create the acceptor, and the receiver and sender threads of the connections */
+    protected ThreadFactory connectionThreadFactory() {
+        return getThreadFactory();
+    }
+
     public void stop() {
         if(log.isDebugEnabled()) log.debug("%s: closing sockets and stopping threads", local_addr);
         super.stop();
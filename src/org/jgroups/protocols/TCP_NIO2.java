@@ -9,6 +9,7 @@ import org.jgroups.annotations.Property;
 import org.jgroups.blocks.cs.NioServer;
 import org.jgroups.conf.AttributeType;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
 import java.util.Collection;
@@ -103,11 +104,35 @@ public class TCP_NIO2 extends BasicTCP {
         }
     }
 
+    /** Direct buffers are written to the channel without copying (unless the write is partial) */
+    @Override
+    public boolean supportsDirectBuffers() {
+        return true;
+    }
+
+    @Override
+    public void send(Address dest, ByteBuffer buf) throws Exception {
+        if(server != null) {
+            try {
+                server.send(dest, buf);
+            }
+            catch(ClosedChannelException | CancelledKeyException ignored) {}
+            catch(Throwable ex) {
+                log.trace("%s: failed sending message to %s: %s", local_addr, dest, ex);
+            }
+        }
+    }
+
     public void retainAll(Collection<Address> members) {
         server.retainAll(members, is_member);
     }
 
     public void start() throws Exception {
+        if(buffer_pool != null && !copy_on_partial_write) {
+            // pooled buffers are reused as soon as send() returns, so data from a partial write needs to be copied
+            log.warn("%s: copy_on_partial_write is required with a buffer pool: setting it to true", local_addr);
+            copy_on_partial_write=true;
+        }
         server=new NioServer(getThreadFactory(), getSocketFactory(), bind_addr, bind_port, bind_port+port_range,
                              external_addr, external_port, recv_buf_size);
         server.receiver(this)
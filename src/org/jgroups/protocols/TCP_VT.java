@@ -0,0 +1,97 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.blocks.cs.TcpConnectionNonBlocking;
+import org.jgroups.conf.AttributeType;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.ThreadFactory;
+import org.jgroups.util.Util;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * TCP transport with a virtual thread per connection, designed for clusters with thousands of members.<br/>
+ * The receiver of every connection runs on its own virtual thread, blocking in a read of the socket. Sends to a peer
+ * are added to a bounded per-connection queue (see {@link TcpConnectionNonBlocking}); a virtual sender thread per
+ * connection drains the queue, writes all queued messages and flushes once, so that messages to the same peer are
+ * coalesced without acquiring a send lock.<br/>
+ * Compared to {@link TCP}, the defaults of the buffered input and output streams, and of the send queue are smaller,
+ * to reduce the memory footprint of thousands of connections.<br/>
+ * When virtual threads are not available (Java versions before 21), platform threads are used.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class TCP_VT extends TCP {
+    protected ThreadFactory conn_thread_factory;
+
+    public TCP_VT() {
+        non_blocking_sends=true;
+        use_lock_to_send=false;
+        buffered_input_stream_size=8192;
+        buffered_output_stream_size=16384;
+        max_send_queue=512;
+    }
+
+    @ManagedAttribute(description="True if the connection threads are virtual threads")
+    public boolean virtualConnectionThreads() {
+        return conn_thread_factory instanceof DefaultThreadFactory f && f.useVirtualThreads();
+    }
+
+    @ManagedAttribute(description="Number of messages dropped because the send queue of a connection was full",
+      type=AttributeType.SCALAR)
+    public long getNumDroppedMessages() {
+        LongAdder num=new LongAdder();
+        forAllConnections((__, c) -> num.add(c.droppedMessages()));
+        return num.sum();
+    }
+
+    @ManagedAttribute(description="Number of messages in the send queues of all connections",type=AttributeType.SCALAR)
+    public int getNumQueuedMessages() {
+        LongAdder num=new LongAdder();
+        forAllConnections((__, c) -> num.add(c.queueSize()));
+        return num.intValue();
+    }
+
+    @Override
+    public void init() throws Exception {
+        if(!non_blocking_sends) {
+            log.warn("%s: non_blocking_sends cannot be disabled; setting it to true", getClass().getSimpleName());
+            non_blocking_sends=true;
+        }
+        boolean vthreads=Util.virtualThreadsAvailable();
+        if(!vthreads)
+            log.warn("%s: virtual threads are not available in this Java version; connections use platform threads",
+                     getClass().getSimpleName());
+        conn_thread_factory=new DefaultThreadFactory("Connection", true, false).useVirtualThreads(vthreads);
+        super.init();
+    }
+
+    @Override
+    protected ThreadFactory connectionThreadFactory() {
+        return conn_thread_factory;
+    }
+
+    @Override
+    protected void setInAllThreadFactories(String cluster_name, Address local_address, String pattern) {
+        super.setInAllThreadFactories(cluster_name, local_address, pattern);
+        if(conn_thread_factory == null)
+            return;
+        if(pattern != null)
+            conn_thread_factory.setPattern(pattern);
+        if(cluster_name != null)
+            conn_thread_factory.setClusterName(cluster_name);
+        if(local_address != null)
+            conn_thread_factory.setAddress(local_address.toString());
+    }
+
+    protected void forAllConnections(BiConsumer<Address,TcpConnectionNonBlocking> c) {
+        if(srv == null)
+            return;
+        srv.forAllConnections((addr, conn) -> {
+            if(conn instanceof TcpConnectionNonBlocking nb)
+                c.accept(addr, nb);
+        });
+    }
+}
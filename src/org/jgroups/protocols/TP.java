@@ -11,6 +11,7 @@ import org.jgroups.util.*;
 
 import java.io.DataInput;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.*;
@@ -106,7 +107,7 @@ public abstract class TP extends TPConfig implements DiagnosticsHandler.ProbeHan
             suppress_log_different_cluster=new SuppressLog<>(log, "MsgDroppedDiffCluster");
 
         if(timer == null) {
-            timer=new TimeScheduler3(thread_pool, thread_factory, false); // don't start the timer thread yet (JGRP-2332)
+            timer=createTimer(timer_type); // don't start the timer thread yet (JGRP-2332)
             timer.setNonBlockingTaskHandling(timer_handle_non_blocking_tasks);
         }
 
@@ -141,6 +142,16 @@ public abstract class TP extends TPConfig implements DiagnosticsHandler.ProbeHan
         else
             msg_processing_policy.init(this);
 
+        if(buffer_pool == null && buffer_pool_type != null) {
+            buffer_pool=createBufferPool(buffer_pool_type, getClass());
+            // the default can be overridden by buffer_pool.direct, which is set after init()
+            if(buffer_pool instanceof SlabBufferPool)
+                ((SlabBufferPool)buffer_pool).direct(supportsDirectBuffers());
+        }
+
+        if(zero_copy_receive && recv_buffer_pool == null)
+            recv_buffer_pool=new SlabBufferPool().direct(false); // messages reference the arrays of receive buffers
+
         if(bundler == null)
             bundler=createBundler(bundler_type, getClass());
         bundler.init(this);
@@ -153,6 +164,8 @@ public abstract class TP extends TPConfig implements DiagnosticsHandler.ProbeHan
 
     /** Creates the unicast and multicast sockets and starts the unicast and multicast receiver threads */
     public void start() throws Exception {
+        if(recv_buffer_pool != null && recv_buffer_pool.isDirect())
+            throw new IllegalStateException("recv_buffer_pool needs to use heap buffers");
         timer.start();
         thread_pool.setAddress(local_addr);
         async_executor.start();
@@ -188,6 +201,10 @@ public abstract class TP extends TPConfig implements DiagnosticsHandler.ProbeHan
         thread_pool.destroy();
         if(bundler != null)
             bundler.destroy();
+        if(buffer_pool != null)
+            buffer_pool.destroy();
+        if(recv_buffer_pool != null)
+            recv_buffer_pool.destroy();
     }
 
 
@@ -279,6 +296,8 @@ public abstract class TP extends TPConfig implements DiagnosticsHandler.ProbeHan
                     bundler.viewChange(evt.getArg());
                 if(msg_processing_policy instanceof MaxOneThreadPerSender)
                     ((MaxOneThreadPerSender)msg_processing_policy).viewChange(view.getMembers());
+                else if(msg_processing_policy instanceof MailboxPerSender)
+                    ((MailboxPerSender)msg_processing_policy).viewChange(view.getMembers());
 
                 if(local_transport != null)
                     local_transport.viewChange(this.view);
@@ -464,6 +483,29 @@ public abstract class TP extends TPConfig implements DiagnosticsHandler.ProbeHan
 
     /** Subclasses must call this method when a unicast or multicast message has been received */
     public void receive(Address sender, byte[] data, int offset, int length) {
+        receive(sender, data, offset, length, null);
+    }
+
+    /**
+     * Same as {@link #receive(Address, byte[], int, int)}, but reads from a pooled receive buffer (acquired with
+     * {@link #acquireReceiveBuffer(int)}): messages may reference the buffer rather than copying their payloads
+     * (see {@link RefBytesMessage}). The caller's reference to the buffer is released when this method returns
+     */
+    public void receive(Address sender, RefCountedBuffer buf, int offset, int length) {
+        try {
+            receive(sender, buf.array(), offset, length, buf);
+        }
+        finally {
+            buf.release();
+        }
+    }
+
+    /** Returns a pooled receive buffer of at least size bytes if zero_copy_receive is enabled, or null otherwise */
+    public RefCountedBuffer acquireReceiveBuffer(int size) {
+        return recv_buffer_pool != null? new RefCountedBuffer(recv_buffer_pool, size) : null;
+    }
+
+    protected void receive(Address sender, byte[] data, int offset, int length, RefCountedBuffer ref) {
         if(data == null) return;
 
         // drop message from self; it has already been looped back up (https://issues.redhat.com/browse/JGRP-1765)
@@ -482,7 +524,9 @@ public abstract class TP extends TPConfig implements DiagnosticsHandler.ProbeHan
         offset+=Global.BYTE_SIZE;
 
         boolean is_message_list=(flags & LIST) == LIST, multicast=(flags & MULTICAST) == MULTICAST;
-        ByteArrayDataInputStream in=new ByteArrayDataInputStream(data, offset, length);
+        ByteArrayDataInputStream in=ref != null? // limit the stream to the message: the array is shared with other buffers
+          new PooledDataInputStream(ref, offset, length - Global.SHORT_SIZE - Global.BYTE_SIZE, zero_copy_min_size)
+          : new ByteArrayDataInputStream(data, offset, length);
         if(is_message_list) // used if message bundling is enabled
             handleMessageBatch(in, multicast);
         else
@@ -515,6 +559,49 @@ public abstract class TP extends TPConfig implements DiagnosticsHandler.ProbeHan
             sendToAll(buf, offset, length);
     }
 
+    /**
+     * Sends the contents of a buffer (from position to limit), e.g. a message marshalled into a buffer acquired from
+     * the {@link BufferPool}. The buffer is only valid until this method returns, so it must either be written
+     * synchronously or copied. Direct buffers are copied into a byte[] array unless the transport
+     * {@link #supportsDirectBuffers() supports them}.
+     */
+    public void doSend(ByteBuffer buf, Address dest) throws Exception {
+        if(buf.hasArray()) {
+            doSend(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), dest);
+            return;
+        }
+        if(!supportsDirectBuffers()) {
+            byte[] tmp=toArray(buf);
+            doSend(tmp, 0, tmp.length, dest);
+            return;
+        }
+        if(dest != null)
+            sendTo(dest, buf);
+        else
+            sendToAll(buf);
+    }
+
+    /**
+     * Whether this transport can send direct buffers without copying them into a byte[] array first. If true,
+     * {@link #sendUnicast(PhysicalAddress, ByteBuffer)} needs to be overridden
+     */
+    public boolean supportsDirectBuffers() {
+        return false;
+    }
+
+    /**
+     * Sends the contents of a buffer to a single physical address. The buffer is only valid until this method returns.
+     * The default implementation copies the buffer into a byte[] array
+     */
+    public void sendUnicast(PhysicalAddress dest, ByteBuffer buf) throws Exception {
+        if(buf.hasArray())
+            sendUnicast(dest, buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        else {
+            byte[] tmp=toArray(buf);
+            sendUnicast(dest, tmp, 0, tmp.length);
+        }
+    }
+
     public boolean unicastDestMismatch(Address dest) {
         return dest != null && !(Objects.equals(dest, local_addr) || Objects.equals(dest, local_physical_addr));
     }
@@ -546,7 +633,8 @@ public abstract class TP extends TPConfig implements DiagnosticsHandler.ProbeHan
     protected void handleSingleMessage(DataInput in, boolean multicast) {
         try {
             short type=in.readShort();
-            Message msg=MessageFactory.create(type); // don't create headers, readFrom() will do this
+            // don't create headers, readFrom() will do this
+            Message msg=in instanceof PooledDataInputStream pin? pin.createMessage(type) : MessageFactory.create(type);
             msg.readFrom(in);
 
             if(!multicast && unicastDestMismatch(msg.getDest()))
@@ -597,21 +685,44 @@ public abstract class TP extends TPConfig implements DiagnosticsHandler.ProbeHan
             }
         }
 
-        PhysicalAddress physical_dest=dest instanceof PhysicalAddress? (PhysicalAddress)dest : getPhysicalAddressFromCache(dest);
-        if(physical_dest != null) {
+        PhysicalAddress physical_dest=resolvePhysicalAddress(dest);
+        if(physical_dest != null)
             sendUnicast(physical_dest,buf,offset,length);
-            return;
+    }
+
+    protected void sendTo(final Address dest, ByteBuffer buf) throws Exception {
+        if(local_transport != null && local_transport.isLocalMember(dest)) {
+            try {
+                byte[] tmp=toArray(buf); // the local transport only accepts byte[] arrays
+                local_transport.sendTo(dest, tmp, 0, tmp.length);
+                return;
+            }
+            catch(Exception ex) {
+                log.warn("failed sending message to %s via local transport, sending message via regular transport: %s",
+                         dest, ex);
+            }
         }
+        PhysicalAddress physical_dest=resolvePhysicalAddress(dest);
+        if(physical_dest != null)
+            sendUnicast(physical_dest, buf);
+    }
+
+    /**
+     * Returns the physical address for dest, either from the cache or by asking the discovery protocol. Returns null
+     * if not found, or if a discovery request for dest was sent recently (who_has_cache_timeout)
+     */
+    protected PhysicalAddress resolvePhysicalAddress(Address dest) {
+        PhysicalAddress physical_dest=dest instanceof PhysicalAddress? (PhysicalAddress)dest : getPhysicalAddressFromCache(dest);
+        if(physical_dest != null)
+            return physical_dest;
         if(who_has_cache.addIfAbsentOrExpired(dest)) { // true if address was added
             // FIND_MBRS must return quickly
             Responses responses=fetchResponsesFromDiscoveryProtocol(Collections.singletonList(dest));
             try {
                 for(PingData data: responses) {
                     if(data.getAddress() != null && data.getAddress().equals(dest)) {
-                        if((physical_dest=data.getPhysicalAddr()) != null) {
-                            sendUnicast(physical_dest, buf, offset, length);
-                            return;
-                        }
+                        if((physical_dest=data.getPhysicalAddr()) != null)
+                            return physical_dest;
                     }
                 }
                 log.warn(Util.getMessage("PhysicalAddrMissing"), local_addr, dest);
@@ -620,6 +731,7 @@ public abstract class TP extends TPConfig implements DiagnosticsHandler.ProbeHan
                 responses.done();
             }
         }
+        return null;
     }
 
     /** Fetches the physical addrs for all mbrs and sends the msg to each physical address. Asks discovery for missing
@@ -663,6 +775,68 @@ public abstract class TP extends TPConfig implements DiagnosticsHandler.ProbeHan
             fetchPhysicalAddrs(missing);
     }
 
+    /** Same as {@link #sendToAll(byte[], int, int)}, but sends the contents of a (possibly direct) buffer */
+    protected void sendToAll(ByteBuffer buf) throws Exception {
+        List<Address> missing=null;
+        Set<Address>  mbrs=members;
+        boolean       local_send_successful=true;
+
+        if(mbrs == null || mbrs.isEmpty())
+            mbrs=logical_addr_cache.keySet();
+
+        if(local_transport != null) {
+            try {
+                byte[] tmp=toArray(buf); // the local transport only accepts byte[] arrays
+                local_transport.sendToAll(tmp, 0, tmp.length);
+            }
+            catch(Exception ex) {
+                log.warn("failed sending group message via local transport, sending it via regular transport", ex);
+                local_send_successful=false;
+            }
+        }
+
+        List<PhysicalAddress> dests=new ArrayList<>(mbrs.size());
+        for(Address mbr: mbrs) {
+            if(local_send_successful && local_transport != null && local_transport.isLocalMember(mbr))
+                continue; // skip if local transport sent the message successfully
+
+            PhysicalAddress target=mbr instanceof PhysicalAddress? (PhysicalAddress)mbr : logical_addr_cache.get(mbr);
+            if(target == null) {
+                if(missing == null)
+                    missing=new ArrayList<>(mbrs.size());
+                missing.add(mbr);
+                continue;
+            }
+            if(!Objects.equals(local_physical_addr, target))
+                dests.add(target);
+        }
+        if(!dests.isEmpty())
+            sendUnicasts(dests, buf);
+        if(missing != null)
+            fetchPhysicalAddrs(missing);
+    }
+
+    protected void sendUnicasts(List<PhysicalAddress> dests, ByteBuffer buf) throws Exception {
+        for(PhysicalAddress dest: dests) {
+            try {
+                sendUnicast(dest, buf);
+            }
+            catch(SocketException | SocketTimeoutException sock_ex) {
+                log.trace(Util.getMessage("FailureSendingToPhysAddr"), local_addr, dest, sock_ex);
+            }
+            catch(Throwable t) {
+                log.error(Util.getMessage("FailureSendingToPhysAddr"), local_addr, dest, t);
+            }
+        }
+    }
+
+    /** Copies the remaining bytes of buf into a new array, without changing the buffer's position */
+    protected static byte[] toArray(ByteBuffer buf) {
+        byte[] tmp=new byte[buf.remaining()];
+        buf.get(buf.position(), tmp);
+        return tmp;
+    }
+
     protected void sendUnicasts(List<PhysicalAddress> dests, byte[] data, int offset, int length) throws Exception {
         for(PhysicalAddress dest: dests) {
             try {
@@ -116,10 +116,36 @@ public class TPConfig extends Protocol {
       "disables this.",type=AttributeType.TIME)
     protected long                    suppress_time_different_cluster_warnings=60000;
 
-    @Property(description="The type of bundler used (\"ring-buffer\", \"transfer-queue\" (default), \"sender-sends\" or " +
-      "\"no-bundler\") or the fully qualified classname of a Bundler implementation")
+    @Property(description="The type of bundler used (\"per-destination\" (default), \"transfer-queue\", " +
+      "\"striped-ring\", \"adaptive\" or \"no-bundler\") or the fully qualified classname of a Bundler implementation")
     protected String                  bundler_type="per-destination";
 
+    @Property(description="The type of timer (\"default\" (TimeScheduler3) or \"wheel\" (TimingWheelScheduler)) or " +
+      "the fully qualified classname of a TimeScheduler implementation with a no-args constructor")
+    protected String                  timer_type="default";
+
+    @Property(description="The length of a tick of the timing wheel (timer_type=wheel). Tasks are executed up to " +
+      "one tick later than scheduled",type=AttributeType.TIME)
+    protected long                    timer_tick=10;
+
+    @Property(description="The number of slots per level of the timing wheel (timer_type=wheel)")
+    protected int                     timer_wheel_size=512;
+
+    @Property(description="The type of buffer pool used to marshal outgoing messages (\"slab\") or the fully " +
+      "qualified classname of a BufferPool implementation. If null, messages are marshalled into byte[] arrays")
+    protected String                  buffer_pool_type;
+
+    @Property(description="If true, messages are received into pooled buffers (recv_buffer_pool), and BytesMessages " +
+      "with payloads of at least zero_copy_min_size bytes are created as RefBytesMessages, which reference the " +
+      "receive buffer instead of copying the payload. The array of such a message must not be used beyond the " +
+      "lifetime of the message")
+    protected boolean                 zero_copy_receive;
+
+    @Property(description="Min number of bytes of a payload to reference the receive buffer (zero_copy_receive). " +
+      "Smaller payloads are copied, so that they don't keep a (possibly much larger) receive buffer from being reused",
+      type=AttributeType.BYTES)
+    protected int                     zero_copy_min_size=8192;
+
     @ManagedAttribute(description="If enabled, the timer will run non-blocking tasks on its own (runner) thread, and " +
       "not submit them to the thread pool. Otherwise, all tasks are submitted to the thread pool")
     protected boolean                 timer_handle_non_blocking_tasks=true;
@@ -166,6 +192,12 @@ public class TPConfig extends Protocol {
     @Component(name="bundler")
     protected Bundler                 bundler;
 
+    @Component(name="buffer_pool")
+    protected BufferPool              buffer_pool;
+
+    @Component(name="recv_buffer_pool")
+    protected BufferPool              recv_buffer_pool;
+
     @Component(name="thread_pool")
     protected ThreadPool              thread_pool=new ThreadPool().log(this.log);
 
@@ -231,6 +263,22 @@ public class TPConfig extends Protocol {
     public <T extends TP> T setSuppressTimeDifferentClusterWarnings(long s) {this.suppress_time_different_cluster_warnings=s; return (T)this;}
     public String           getBundlerType()                  {return bundler_type;}
     public <T extends TP> T setBundlerType(String b)          {this.bundler_type=b; return (T)this;}
+    public String           getTimerType()                    {return timer_type;}
+    public <T extends TP> T setTimerType(String t)            {this.timer_type=t; return (T)this;}
+    public long             getTimerTick()                    {return timer_tick;}
+    public <T extends TP> T setTimerTick(long t)              {this.timer_tick=t; return (T)this;}
+    public int              getTimerWheelSize()               {return timer_wheel_size;}
+    public <T extends TP> T setTimerWheelSize(int s)          {this.timer_wheel_size=s; return (T)this;}
+    public String           getBufferPoolType()               {return buffer_pool_type;}
+    public <T extends TP> T setBufferPoolType(String b)       {this.buffer_pool_type=b; return (T)this;}
+    public BufferPool       getBufferPool()                   {return buffer_pool;}
+    /** Sets the buffer pool; needs to be done before the transport is initialized */
+    public <T extends TP> T setBufferPool(BufferPool p)       {this.buffer_pool=p; return (T)this;}
+    public boolean          zeroCopyReceive()                 {return zero_copy_receive;}
+    public <T extends TP> T zeroCopyReceive(boolean z)        {this.zero_copy_receive=z; return (T)this;}
+    public int              zeroCopyMinSize()                 {return zero_copy_min_size;}
+    public <T extends TP> T zeroCopyMinSize(int s)            {this.zero_copy_min_size=s; return (T)this;}
+    public BufferPool       getReceiveBufferPool()            {return recv_buffer_pool;}
     public boolean          isTrace()                         {return is_trace;}
     public <T extends TP> T isTrace(boolean i)                {this.is_trace=i; return (T)this;}
     public MsgStats         getMessageStats()                 {return msg_stats;}
@@ -299,6 +347,8 @@ public class TPConfig extends Protocol {
         this.thread_pool.setThreadPool(thread_pool);
         if(timer instanceof TimeScheduler3)
             ((TimeScheduler3)timer).setThreadPool(thread_pool);
+        else if(timer instanceof TimingWheelScheduler)
+            ((TimingWheelScheduler)timer).setThreadPool(thread_pool);
         return (T)this;
     }
 
@@ -361,11 +411,39 @@ public class TPConfig extends Protocol {
             case "pdb":
             case "per-destination":
                 return new PerDestinationBundler();
+            case "sr":
+            case "striped-ring":
+                return new StripedRingBundler();
+            case "adaptive":
+                return new AdaptiveBundler();
         }
         Class<Bundler> clazz=(Class<Bundler>)Util.loadClass(type, cl);
         return clazz.getDeclaredConstructor().newInstance();
     }
 
+    /** Creates the timer; the timer thread is not started yet (JGRP-2332) */
+    protected TimeScheduler createTimer(String type) throws Exception {
+        if(type == null)
+            throw new IllegalArgumentException("timer type has to be non-null");
+        switch(type) {
+            case "default":
+                return new TimeScheduler3(thread_pool, thread_factory, false);
+            case "wheel":
+                return new TimingWheelScheduler(thread_pool, thread_factory, timer_tick, timer_wheel_size, false);
+        }
+        Class<TimeScheduler> clazz=(Class<TimeScheduler>)Util.loadClass(type, getClass());
+        return clazz.getDeclaredConstructor().newInstance();
+    }
+
+    public static BufferPool createBufferPool(String type, Class<?> cl) throws Exception {
+        if(type == null)
+            throw new IllegalArgumentException("buffer pool type has to be non-null");
+        if(type.equals("slab"))
+            return new SlabBufferPool();
+        Class<BufferPool> clazz=(Class<BufferPool>)Util.loadClass(type, cl);
+        return clazz.getDeclaredConstructor().newInstance();
+    }
+
     @ManagedOperation(description="Changes the message processing policy. The fully qualified name of a class " +
       "implementing MessageProcessingPolicy needs to be given")
     public <T extends TP> T setMessageProcessingPolicy(String policy) {
@@ -383,6 +461,8 @@ public class TPConfig extends Protocol {
             msg_processing_policy=new PassAllMessagesUpDirectly();
         else if(policy.startsWith("unbatch"))
             msg_processing_policy=new UnbatchOOBBatches();
+        else if(policy.startsWith("mailbox"))
+            msg_processing_policy=new MailboxPerSender();
         try {
             if(msg_processing_policy == null) {
                 Class<MessageProcessingPolicy> clazz=(Class<MessageProcessingPolicy>)Util.loadClass(policy, getClass());
@@ -81,6 +81,12 @@ public class TUNNEL extends TP implements RouterStub.StubReceiver {
     @Property(description="when sending and non_blocking, how many messages to queue max")
     protected int     max_send_queue=128;
 
+    @Property(description="Number of GossipRouters (of gossip_router_hosts) to register with. The routers are picked " +
+      "based on the hash of the local address, which spreads the members over a mesh of GossipRouters (see " +
+      "GossipRouter.peers). Routers which cannot be connected to are replaced with the next routers in the list. " +
+      "0 registers with all routers")
+    protected int     router_subset;
+
     /* ------------------------------------------ Fields ----------------------------------------------------- */
 
     protected final List<InetSocketAddress> gossip_routers=new ArrayList<>();
@@ -109,6 +115,8 @@ public class TUNNEL extends TP implements RouterStub.StubReceiver {
     public TUNNEL  nonBlockingSends(boolean b)  {this.non_blocking_sends=b; return this;}
     public int     maxSendQueue()               {return max_send_queue;}
     public TUNNEL  maxSendQueue(int s)          {this.max_send_queue=s; return this;}
+    public int     routerSubset()               {return router_subset;}
+    public TUNNEL  routerSubset(int s)          {this.router_subset=s; return this;}
 
     /** We can simply send a message with dest == null and the GossipRouter will take care of routing it to all
      * members in the cluster */
@@ -229,18 +237,18 @@ public class TUNNEL extends TP implements RouterStub.StubReceiver {
                 stubManager=new RouterStubManager(log,timer,group,local, logical_name, physical_addr, reconnect_interval)
                   .useNio(this.use_nio).socketFactory(getSocketFactory()).heartbeat(heartbeat_interval, heartbeat_timeout)
                   .nonBlockingSends(non_blocking_sends).maxSendQueue(max_send_queue);
-                for(InetSocketAddress gr: gossip_routers) {
-                    try {
-                        InetSocketAddress target=gr.isUnresolved()? new InetSocketAddress(gr.getHostString(), gr.getPort())
-                          : new InetSocketAddress(gr.getAddress(), gr.getPort());
-                        stubManager.createAndRegisterStub(new InetSocketAddress(bind_addr, bind_port), target, linger)
-                          .receiver(this).tcpNoDelay(tcp_nodelay);
-                    }
-                    catch(Throwable t) {
-                        log.error("%s: failed creating stub to %s: %s", local, bind_addr + ":" + bind_port, t);
-                    }
-                }
+                List<InetSocketAddress> routers=pickRouters(local);
+                int num=router_subset > 0? Math.min(router_subset, routers.size()) : routers.size(), next=0;
+                for(; next < num; next++)
+                    createStub(routers.get(next), local);
                 stubManager.connectStubs();
+                // replace the routers which could not be connected to with the next ones in the ring; the former
+                // remain in the reconnect list
+                while(stubManager.connectedStubs() < num && next < routers.size()) {
+                    RouterStub stub=createStub(routers.get(next++), local);
+                    if(stub != null && stubManager.connectStub(stub))
+                        log.debug("%s: connected to GossipRouter %s instead of an unreachable router", local, stub.remote());
+                }
                 break;
 
             case Event.DISCONNECT:
@@ -296,6 +304,35 @@ public class TUNNEL extends TP implements RouterStub.StubReceiver {
         return sock != null ? new IpAddress(bind_addr, sock.getLocalPort()) : null;
     }
 
+    /**
+     * Returns all routers of gossip_routers, starting at an index derived from the hash of addr (if router_subset is
+     * set). The first router_subset routers are registered with, the others are used when some of these cannot be
+     * connected to
+     */
+    protected List<InetSocketAddress> pickRouters(Address addr) {
+        int size=gossip_routers.size();
+        if(router_subset <= 0 || router_subset >= size || addr == null)
+            return gossip_routers;
+        int start=(addr.hashCode() & Integer.MAX_VALUE) % size;
+        List<InetSocketAddress> retval=new ArrayList<>(size);
+        for(int i=0; i < size; i++)
+            retval.add(gossip_routers.get((start + i) % size));
+        return retval;
+    }
+
+    protected RouterStub createStub(InetSocketAddress gr, Address local) {
+        try {
+            InetSocketAddress target=gr.isUnresolved()? new InetSocketAddress(gr.getHostString(), gr.getPort())
+              : new InetSocketAddress(gr.getAddress(), gr.getPort());
+            return stubManager.createAndRegisterStub(new InetSocketAddress(bind_addr, bind_port), target, linger)
+              .receiver(this).tcpNoDelay(tcp_nodelay);
+        }
+        catch(Throwable t) {
+            log.error("%s: failed creating stub to %s: %s", local, bind_addr + ":" + bind_port, t);
+            return null;
+        }
+    }
+
 
     private class DefaultTUNNELPolicy implements TUNNELPolicy {
 
@@ -1,6 +1,7 @@
 package org.jgroups.protocols;
 
 
+import org.jgroups.Address;
 import org.jgroups.Event;
 import org.jgroups.Global;
 import org.jgroups.PhysicalAddress;
@@ -9,6 +10,7 @@ import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
 import org.jgroups.conf.AttributeType;
 import org.jgroups.stack.IpAddress;
+import org.jgroups.util.RefCountedBuffer;
 import org.jgroups.util.SuppressLog;
 import org.jgroups.util.Util;
 
@@ -66,6 +68,8 @@ public class UDP extends TP {
 
     protected static final String UCAST_NAME="ucast-receiver";
     protected static final String MCAST_NAME="mcast-receiver";
+    /** Size of a pooled receive buffer (zero_copy_receive): larger than the max UDP payload of IPv4 and IPv6 */
+    protected static final int    MAX_DATAGRAM_SIZE=64 * 1024;
 
     @Property(name="mcast_addr", description="The multicast address used for sending and receiving packets",
               defaultValueIPv4="239.8.8.8", defaultValueIPv6="ff0e::8:8:8",
@@ -307,8 +311,7 @@ public class UDP extends TP {
                 try {
                     // if we have local members, we send the multicast through the local transport, and do *not* need
                     // to receive a copy on the local host
-                    sock.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, false);
-                    mcast_sock.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, false);
+                    disableMulticastLoopback();
                 }
                 catch(IOException e) {
                     log.error("failed enabling loopback-mode to", e);
@@ -337,9 +340,7 @@ public class UDP extends TP {
             destroySockets();
             throw ex;
         }
-        ucast_receivers=createReceivers(unicast_receiver_threads, sock, UCAST_NAME);
-        if(ip_mcast)
-            mcast_receivers=createReceivers(multicast_receiver_threads, mcast_sock, MCAST_NAME);
+        createReceivers();
     }
 
 
@@ -474,6 +475,18 @@ public class UDP extends TP {
         closeUnicastSocket();
     }
 
+    /** Creates the receivers for the unicast and multicast sockets; they're started by {@link #startThreads()} */
+    protected void createReceivers() {
+        ucast_receivers=createReceivers(unicast_receiver_threads, sock, UCAST_NAME);
+        if(ip_mcast)
+            mcast_receivers=createReceivers(multicast_receiver_threads, mcast_sock, MCAST_NAME);
+    }
+
+    protected void disableMulticastLoopback() throws IOException {
+        sock.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, false);
+        mcast_sock.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, false);
+    }
+
     protected PacketReceiver[] createReceivers(int num, DatagramSocket sock, String name) {
         PacketReceiver[] receivers=new PacketReceiver[num];
         for(int i=0; i < num; i++)
@@ -610,7 +623,7 @@ public class UDP extends TP {
     }
 
 
-    void setBufferSizes() throws SocketException {
+    protected void setBufferSizes() throws IOException {
         if(sock != null) {
             setBufferSize(sock, ucast_send_buf_size, ucast_recv_buf_size);
             if(ucast_send_buf_size <= 0)
@@ -728,7 +741,7 @@ public class UDP extends TP {
     protected void stopUcastReceiverThreads() {Util.close(ucast_receivers);}
     protected void stopMcastReceiverThreads() {Util.close(mcast_receivers);}
 
-    protected void handleConfigEvent(Map<String,Object> map) throws SocketException {
+    protected void handleConfigEvent(Map<String,Object> map) throws IOException {
         boolean set_buffers=false;
         if(map == null) return;
 
@@ -792,33 +805,73 @@ public class UDP extends TP {
             final byte[]         receive_buf=new byte[66000]; // to be on the safe side (IPv6 == 65575 bytes, IPv4 = 65535)
             final DatagramPacket packet=new DatagramPacket(receive_buf, receive_buf.length);
 
-            while(Thread.currentThread().equals(thread)) {
-                try {
-                    // solves Android ISSUE #24748 - DatagramPacket truncated UDP in ICS
-                    if(is_android)
-                        packet.setLength(receive_buf.length);
-
-                    receiver_socket.receive(packet);
-                    int len=packet.getLength();
-                    if(len > receive_buf.length && log.isErrorEnabled())
-                        log.error(Util.getMessage("SizeOfTheReceivedPacket"), len, receive_buf.length, receive_buf.length);
-                    receive(new IpAddress(packet.getAddress(), packet.getPort()),
-                            receive_buf, packet.getOffset(), len);
-                }
-                catch(SocketException sock_ex) {
-                    if(receiver_socket.isClosed()) {
-                        log.debug("%s: receiver socket is closed, exception=%s", local_addr, sock_ex.getMessage());
-                        break;
+            // with zero_copy_receive, packets are received into a pooled buffer of MAX_DATAGRAM_SIZE bytes, which is
+            // reused for the next packet unless it is handed off to the messages read from it
+            RefCountedBuffer ref=null;
+            try {
+                while(Thread.currentThread().equals(thread)) {
+                    try {
+                        if(ref == null)
+                            ref=acquireReceiveBuffer(MAX_DATAGRAM_SIZE);
+                        if(ref != null)
+                            packet.setData(ref.array(), ref.offset(), MAX_DATAGRAM_SIZE);
+                        // solves Android ISSUE #24748 - DatagramPacket truncated UDP in ICS
+                        else if(is_android)
+                            packet.setLength(receive_buf.length);
+
+                        receiver_socket.receive(packet);
+                        int len=packet.getLength();
+                        IpAddress sender=new IpAddress(packet.getAddress(), packet.getPort());
+                        if(ref != null) {
+                            if(len <= MAX_DATAGRAM_SIZE / 2)
+                                receiveCopy(sender, ref, packet.getOffset(), len);
+                            else {
+                                RefCountedBuffer tmp=ref;
+                                ref=null; // released by receive()
+                                receive(sender, tmp, packet.getOffset(), len);
+                            }
+                            continue;
+                        }
+                        if(len > receive_buf.length && log.isErrorEnabled())
+                            log.error(Util.getMessage("SizeOfTheReceivedPacket"), len, receive_buf.length, receive_buf.length);
+                        receive(sender, receive_buf, packet.getOffset(), len);
+                    }
+                    catch(SocketException sock_ex) {
+                        if(receiver_socket.isClosed()) {
+                            log.debug("%s: receiver socket is closed, exception=%s", local_addr, sock_ex.getMessage());
+                            break;
+                        }
+                        log.error(Util.getMessage("FailedReceivingPacket"), sock_ex);
+                    }
+                    catch(Throwable ex) {
+                        log.error(Util.getMessage("FailedReceivingPacket"), ex);
                     }
-                    log.error(Util.getMessage("FailedReceivingPacket"), sock_ex);
-                }
-                catch(Throwable ex) {
-                    log.error(Util.getMessage("FailedReceivingPacket"), ex);
                 }
             }
+            finally {
+                if(ref != null)
+                    ref.release();
+            }
             if(log.isDebugEnabled()) log.debug(name + " thread terminated");
         }
 
+        /**
+         * Reads the messages from a packet (of at most half of MAX_DATAGRAM_SIZE) in a pooled buffer, without handing
+         * off the buffer, so it can be reused. Packets smaller than zero_copy_min_size cannot contain a payload
+         * referencing the buffer and are read directly from it. Larger packets are copied to a pooled
+         * buffer of matching size, so that a message referencing it doesn't keep a buffer of MAX_DATAGRAM_SIZE bytes
+         * from being reused.
+         */
+        protected void receiveCopy(Address sender, RefCountedBuffer buf, int offset, int len) {
+            if(len < zero_copy_min_size) { // the buffer's reference is not released
+                UDP.this.receive(sender, buf.array(), offset, len, buf);
+                return;
+            }
+            RefCountedBuffer copy=acquireReceiveBuffer(len);
+            System.arraycopy(buf.array(), offset, copy.array(), copy.offset(), len);
+            UDP.this.receive(sender, copy, copy.offset(), len);
+        }
+
         public String toString() {
             return receiver_socket != null? receiver_socket.getLocalSocketAddress().toString() : "null";
         }
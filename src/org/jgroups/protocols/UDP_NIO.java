@@ -0,0 +1,536 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.MessageFactory;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.Property;
+import org.jgroups.conf.AttributeType;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.jgroups.util.MessageBatch.Mode.OOB;
+import static org.jgroups.util.MessageBatch.Mode.REG;
+
+/**
+ * UDP transport based on {@link DatagramChannel}s. On every wakeup of the selector, the receiver thread drains as many
+ * datagrams as are available (up to receive_batch_size) into a preallocated ring of direct buffers. The single
+ * messages of all datagrams received in one wakeup are passed up as one {@link MessageBatch} per sender; message
+ * lists are passed up as batches, as in {@link UDP}.<br/>
+ * Sending writes the (possibly direct) buffer of a bundle to all destinations in a tight loop, so a buffer from the
+ * {@link BufferPool} is written without being copied into a byte[] array.<br/>
+ * Only a single receiver thread is used for both the unicast and multicast channel (unicast_receiver_threads and
+ * multicast_receiver_threads are ignored). zero_copy_receive is not supported.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class UDP_NIO extends UDP {
+
+    @Property(description="Max number of datagrams read on a single wakeup of the selector. Each datagram needs a " +
+      "direct buffer of 64KB",type=AttributeType.SCALAR)
+    protected int                    receive_batch_size=32;
+
+    @Property(description="Max time (microseconds) to wait for space in the send buffer when sending a datagram. " +
+      "If there's still no space, the datagram is dropped (and later retransmitted)",
+      type=AttributeType.TIME,unit=TimeUnit.MICROSECONDS)
+    protected long                   max_send_wait=1000;
+
+    protected DatagramChannel        ucast_ch, mcast_ch;
+    protected Selector               selector;
+    protected NioReceiver            receiver;
+    protected static final String    NIO_RECEIVER_NAME="nio-receiver";
+
+    @ManagedAttribute(description="Number of wakeups of the receiver",type=AttributeType.SCALAR)
+    protected final LongAdder        num_wakeups=new LongAdder();
+
+    @ManagedAttribute(description="Number of datagrams received",type=AttributeType.SCALAR)
+    protected final LongAdder        num_packets_received=new LongAdder();
+
+    @ManagedAttribute(description="Number of datagrams received per wakeup",gauge=true)
+    protected final AverageMinMax    avg_packets_per_wakeup=new AverageMinMax(1024);
+
+    @ManagedAttribute(description="Number of datagrams sent",type=AttributeType.SCALAR)
+    protected final LongAdder        num_packets_sent=new LongAdder();
+
+    @ManagedAttribute(description="Number of destinations a buffer was sent to in a loop",gauge=true)
+    protected final AverageMinMax    avg_dests_per_send=new AverageMinMax(1024);
+
+    @ManagedAttribute(description="Number of datagrams dropped because the send buffer was full",type=AttributeType.SCALAR)
+    protected final LongAdder        num_send_drops=new LongAdder();
+
+    public int     receiveBatchSize()        {return receive_batch_size;}
+    public UDP_NIO receiveBatchSize(int s)   {receive_batch_size=s; return this;}
+    public long    maxSendWait()             {return max_send_wait;}
+    public UDP_NIO maxSendWait(long w)       {max_send_wait=w; return this;}
+    public long    numWakeups()              {return num_wakeups.sum();}
+    public long    numPacketsReceived()      {return num_packets_received.sum();}
+    public long    numPacketsSent()          {return num_packets_sent.sum();}
+
+    @Override
+    public void resetStats() {
+        super.resetStats();
+        num_wakeups.reset(); num_packets_received.reset(); num_packets_sent.reset(); num_send_drops.reset();
+        avg_packets_per_wakeup.clear(); avg_dests_per_send.clear();
+    }
+
+    @Override
+    public void init() throws Exception {
+        if(zero_copy_receive) {
+            log.warn("%s: zero_copy_receive is not supported by %s and is ignored", local_addr, getClass().getSimpleName());
+            zero_copy_receive=false;
+        }
+        super.init();
+    }
+
+    /** Direct buffers are written to the channel without copying */
+    @Override
+    public boolean supportsDirectBuffers() {
+        return true;
+    }
+
+    @Override
+    public void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {
+        send(((IpAddress)dest).getSocketAddress(), ByteBuffer.wrap(data, offset, length));
+    }
+
+    @Override
+    public void sendUnicast(PhysicalAddress dest, ByteBuffer buf) throws Exception {
+        send(((IpAddress)dest).getSocketAddress(), buf);
+    }
+
+    @Override
+    protected void _send(InetAddress dest, int port, byte[] data, int offset, int length) throws Exception {
+        send(new InetSocketAddress(dest, port), ByteBuffer.wrap(data, offset, length));
+    }
+
+    @Override
+    protected void sendToAll(ByteBuffer buf) throws Exception {
+        if(!ip_mcast || mcast_addr == null) {
+            super.sendToAll(buf);
+            return;
+        }
+        if(local_transport != null) {
+            try {
+                byte[] tmp=toArray(buf); // the local transport only accepts byte[] arrays
+                local_transport.sendToAll(tmp, 0, tmp.length);
+            }
+            catch(Exception ex) {
+                log.warn("failed sending group message via local transport, sending it via regular transport", ex);
+            }
+        }
+        send(mcast_addr.getSocketAddress(), buf);
+    }
+
+    /** Copies the data into a direct buffer (if a buffer pool is available) once, then sends it to all destinations */
+    @Override
+    protected void sendUnicasts(List<PhysicalAddress> dests, byte[] data, int offset, int length) throws Exception {
+        if(dests.size() == 1 || buffer_pool == null || !buffer_pool.isDirect()) {
+            sendUnicasts(dests, ByteBuffer.wrap(data, offset, length));
+            return;
+        }
+        ByteBuffer buf=buffer_pool.acquire(length);
+        try {
+            buf.put(data, offset, length).flip();
+            sendUnicasts(dests, buf);
+        }
+        finally {
+            buffer_pool.release(buf);
+        }
+    }
+
+    @Override
+    protected void sendUnicasts(List<PhysicalAddress> dests, ByteBuffer buf) throws Exception {
+        avg_dests_per_send.add(dests.size());
+        for(int i=0; i < dests.size(); i++) {
+            PhysicalAddress dest=dests.get(i);
+            try {
+                send(((IpAddress)dest).getSocketAddress(), buf);
+            }
+            catch(SocketException | SocketTimeoutException sock_ex) {
+                log.trace(Util.getMessage("FailureSendingToPhysAddr"), local_addr, dest, sock_ex);
+            }
+            catch(Throwable t) {
+                log.error(Util.getMessage("FailureSendingToPhysAddr"), local_addr, dest, t);
+            }
+        }
+    }
+
+    /**
+     * Sends the remaining bytes of buf as a single datagram. The position of buf is not changed, so the same buffer
+     * can be sent to multiple destinations. As the channel is non-blocking, a full send buffer is retried for up to
+     * max_send_wait microseconds before the datagram is dropped
+     */
+    protected void send(SocketAddress dest, ByteBuffer buf) throws IOException {
+        DatagramChannel ch=ucast_ch;
+        if(ch == null)
+            return;
+        int pos=buf.position();
+        try {
+            long deadline=0;
+            while(ch.send(buf, dest) == 0 && buf.hasRemaining()) {
+                long now=System.nanoTime();
+                if(deadline == 0)
+                    deadline=now + TimeUnit.MICROSECONDS.toNanos(max_send_wait);
+                else if(now - deadline >= 0) {
+                    num_send_drops.increment();
+                    return;
+                }
+                LockSupport.parkNanos(1000);
+            }
+            num_packets_sent.increment();
+        }
+        catch(IOException ex) {
+            if(suppress_log_out_of_buffer_space != null) {
+                InetAddress addr=dest instanceof InetSocketAddress sa? sa.getAddress() : null;
+                suppress_log_out_of_buffer_space.log(SuppressLog.Level.warn, addr, suppress_time_out_of_buffer_space,
+                                                     local_addr, dest, ex);
+            }
+            else
+                throw ex;
+        }
+        finally {
+            buf.position(pos);
+        }
+    }
+
+    @Override
+    protected void createSockets() throws Exception {
+        if(bind_addr == null)
+            throw new IllegalArgumentException("bind_addr cannot be null");
+        Util.checkIfValidAddress(bind_addr, getName());
+        ProtocolFamily family=bind_addr instanceof Inet6Address? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+        NetworkInterface intf=NetworkInterface.getByInetAddress(bind_addr);
+
+        ucast_ch=createUnicastChannel(family);
+        if(intf != null)
+            ucast_ch.setOption(StandardSocketOptions.IP_MULTICAST_IF, intf);
+        ucast_ch.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ip_ttl);
+        if(tos > 0) {
+            try {
+                ucast_ch.setOption(StandardSocketOptions.IP_TOS, tos);
+            }
+            catch(IOException e) {
+                log.warn(Util.getMessage("TrafficClass"), tos, e);
+            }
+        }
+
+        if(ip_mcast) {
+            mcast_ch=getSocketFactory().createDatagramChannel("jgroups.udp.mcast_sock", family);
+            mcast_ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            // binding to mcast_addr:mcast_port drops multicasts to different multicast addresses
+            mcast_ch.bind(Util.can_bind_to_mcast_addr? new InetSocketAddress(mcast_group_addr, mcast_port)
+                            : new InetSocketAddress(mcast_port));
+            if(disable_loopback) {
+                mcast_ch.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, false);
+                ucast_ch.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, false);
+            }
+            mcast_addr=new IpAddress(mcast_group_addr, mcast_port);
+            if(diag_handler.isEnabled() && diag_handler.getMcastAddress().equals(mcast_group_addr)
+              && diag_handler.getPort() == mcast_port)
+                throw new IllegalArgumentException("diagnostics_addr:diagnostics_port and mcast_addr:mcast_port " +
+                                                     "have to be different");
+            List<NetworkInterface> interfaces=receive_interfaces != null? receive_interfaces
+              : receive_on_all_interfaces? Util.getAllAvailableInterfaces() : null;
+            if(interfaces != null) {
+                for(NetworkInterface i: interfaces) {
+                    try {
+                        mcast_ch.join(mcast_group_addr, i);
+                        log.debug("joined %s on %s", mcast_addr, i.getName());
+                    }
+                    catch(IOException e) {
+                        log.warn(Util.getMessage("InterfaceJoinFailed"), mcast_addr, i.getName());
+                    }
+                }
+            }
+            else
+                mcast_ch.join(mcast_group_addr, intf);
+        }
+        setBufferSizes();
+        selector=getSocketFactory().getSelectorProvider().openSelector();
+        for(DatagramChannel ch: new DatagramChannel[]{ucast_ch, mcast_ch}) {
+            if(ch != null) {
+                ch.configureBlocking(false);
+                ch.register(selector, SelectionKey.OP_READ);
+            }
+        }
+        log.debug("socket information:\n%s", dumpSocketInfo());
+    }
+
+    /** Binds the unicast channel to bind_addr:bind_port, incrementing the port until port_range has been exceeded */
+    protected DatagramChannel createUnicastChannel(ProtocolFamily family) throws Exception {
+        int port=bind_port, max_port=bind_port > 0? bind_port + port_range : 0;
+        IOException saved_exception=null;
+        for(; port <= max_port; port++) {
+            DatagramChannel ch=getSocketFactory().createDatagramChannel("jgroups.udp.sock", family);
+            try {
+                ch.setOption(StandardSocketOptions.SO_REUSEADDR, false);
+                return ch.bind(new InetSocketAddress(bind_addr, port));
+            }
+            catch(IOException bind_ex) {
+                getSocketFactory().close(ch);
+                saved_exception=bind_ex;
+            }
+        }
+        throw new Exception(String.format("failed to open a port in range %d-%d (last exception: %s, bind_addr: %s)",
+                                          bind_port, max_port, saved_exception, bind_addr));
+    }
+
+    @Override
+    protected void destroySockets() {
+        Util.close(selector);
+        if(mcast_ch != null) {
+            getSocketFactory().close(mcast_ch); // drops the membership of the multicast group
+            mcast_ch=null;
+            mcast_addr=null;
+        }
+        getSocketFactory().close(ucast_ch);
+    }
+
+    @Override
+    protected void createReceivers() {
+        receiver=new NioReceiver();
+    }
+
+    @Override
+    protected void startThreads() throws Exception {
+        if(receiver != null)
+            receiver.start();
+    }
+
+    @Override
+    protected void stopThreads() {
+        Util.close(receiver);
+    }
+
+    @Override
+    protected void disableMulticastLoopback() throws IOException {
+        ucast_ch.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, false);
+        if(mcast_ch != null)
+            mcast_ch.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, false);
+    }
+
+    @Override
+    protected IpAddress createLocalAddress() {
+        if(ucast_ch == null || !ucast_ch.isOpen())
+            return null;
+        try {
+            InetSocketAddress local=(InetSocketAddress)ucast_ch.getLocalAddress();
+            if(external_addr != null)
+                return new IpAddress(external_addr, external_port > 0? external_port : local.getPort());
+            return new IpAddress(local.getAddress(), local.getPort());
+        }
+        catch(IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected void setBufferSizes() throws IOException {
+        setBufferSize(ucast_ch, ucast_send_buf_size, ucast_recv_buf_size);
+        setBufferSize(mcast_ch, mcast_send_buf_size, mcast_recv_buf_size);
+    }
+
+    protected void setBufferSize(DatagramChannel ch, int send_buf_size, int recv_buf_size) throws IOException {
+        if(ch == null)
+            return;
+        int min_size=Global.MAX_DATAGRAM_PACKET_SIZE + MSG_OVERHEAD;
+        setBufferSize(ch, StandardSocketOptions.SO_SNDBUF, Math.max(send_buf_size, min_size));
+        setBufferSize(ch, StandardSocketOptions.SO_RCVBUF, Math.max(recv_buf_size, min_size));
+    }
+
+    protected void setBufferSize(DatagramChannel ch, SocketOption<Integer> option, int size) {
+        try {
+            ch.setOption(option, size);
+            int actual_size=ch.getOption(option);
+            if(actual_size < size && log.isWarnEnabled())
+                log.warn(Util.getMessage("IncorrectBufferSize"), option.name(), ch.getClass().getSimpleName(),
+                         Util.printBytes(size), Util.printBytes(actual_size));
+        }
+        catch(Throwable ex) {
+            log.warn(Util.getMessage("BufferSizeFailed"), option.name(), size, ch, ex);
+        }
+    }
+
+    @Override
+    protected String dumpSocketInfo() throws Exception {
+        StringBuilder sb=new StringBuilder(String.format("mcast_addr=%s, bind_addr=%s, ttl=%d", mcast_addr, bind_addr, ip_ttl));
+        for(DatagramChannel ch: new DatagramChannel[]{ucast_ch, mcast_ch}) {
+            if(ch != null)
+                sb.append(String.format("\n%s: bound to %s, receive buffer size=%d, send buffer size=%d",
+                                        ch == ucast_ch? "ucast_ch" : "mcast_ch", ch.getLocalAddress(),
+                                        ch.getOption(StandardSocketOptions.SO_RCVBUF),
+                                        ch.getOption(StandardSocketOptions.SO_SNDBUF)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Unmarshals a datagram. Message lists are passed up directly, single messages are added to batches, which are
+     * passed up by {@link #flush(Map)}
+     */
+    protected void receive(IpAddress sender, ByteBuffer buf, Map<Address,MessageBatch[]> batches) {
+        // drop message from self; it has already been looped back up (https://issues.redhat.com/browse/JGRP-1765)
+        if(Objects.equals(local_physical_addr, sender))
+            return;
+        if(buf.remaining() < Global.SHORT_SIZE + Global.BYTE_SIZE)
+            return;
+        try {
+            ByteBufferInputStream in=new ByteBufferInputStream(buf);
+            short version=in.readShort();
+            if(!versionMatch(version, sender))
+                return;
+            byte flags=in.readByte();
+            boolean is_message_list=(flags & LIST) == LIST, multicast=(flags & MULTICAST) == MULTICAST;
+            if(is_message_list) {
+                handleMessageBatch(in, multicast);
+                return;
+            }
+            Message msg=MessageFactory.create(in.readShort());
+            msg.readFrom(in);
+            if(!multicast && unicastDestMismatch(msg.getDest()))
+                return;
+            boolean oob=msg.isFlagSet(Message.Flag.OOB);
+            int index=(multicast? 2 : 0) + (oob? 1 : 0);
+            MessageBatch[] arr=batches.computeIfAbsent(msg.getSrc(), __ -> new MessageBatch[4]);
+            MessageBatch batch=arr[index];
+            if(batch == null)
+                batch=arr[index]=new MessageBatch(multicast? null : msg.getDest(), msg.getSrc(), cluster_name, multicast,
+                                                  oob? OOB : REG, receive_batch_size);
+            batch.add(msg);
+        }
+        catch(Throwable t) {
+            log.error(String.format(Util.getMessage("IncomingMsgFailure"), local_addr), t);
+        }
+    }
+
+    /** Passes up the batches of single messages; batches with a single message are passed up as a message */
+    protected void flush(Map<Address,MessageBatch[]> batches) {
+        for(MessageBatch[] arr: batches.values()) {
+            for(MessageBatch batch: arr) {
+                if(batch == null || batch.isEmpty())
+                    continue;
+                boolean oob=batch.getMode() == OOB;
+                if(batch.size() == 1) {
+                    Message msg=batch.first();
+                    msg_processing_policy.process(msg, oob);
+                    msg_stats.received(msg);
+                }
+                else {
+                    msg_stats.received(batch);
+                    processBatch(batch, oob);
+                }
+            }
+        }
+        batches.clear();
+    }
+
+
+    /** Reads datagrams from the unicast and multicast channel into a ring of direct buffers */
+    protected class NioReceiver implements Runnable, Closeable {
+        protected Thread                              thread;
+        protected final ByteBuffer[]                  ring;
+        protected final IpAddress[]                   senders;
+        protected final Map<Address,MessageBatch[]>   batches=new HashMap<>();
+
+        protected NioReceiver() {
+            ring=new ByteBuffer[Math.max(1, receive_batch_size)];
+            senders=new IpAddress[ring.length];
+            for(int i=0; i < ring.length; i++)
+                ring[i]=ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        }
+
+        public synchronized void start() {
+            if(thread == null || !thread.isAlive()) {
+                thread=getThreadFactory().newThread(this, NIO_RECEIVER_NAME);
+                thread.start();
+            }
+        }
+
+        public void close() throws IOException {stop();}
+
+        public synchronized void stop() {
+            Thread tmp=thread;
+            thread=null;
+            if(tmp != null && tmp.isAlive()) {
+                Selector sel=selector;
+                if(sel != null)
+                    sel.wakeup();
+                tmp.interrupt();
+                try {
+                    tmp.join(Global.THREAD_SHUTDOWN_WAIT_TIME);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt(); // set interrupt flag again
+                }
+            }
+        }
+
+        public void run() {
+            final Selector sel=selector;
+            while(Thread.currentThread().equals(thread) && sel.isOpen()) {
+                try {
+                    if(sel.select() == 0)
+                        continue;
+                    num_wakeups.increment();
+                    int total=0;
+                    for(Iterator<SelectionKey> it=sel.selectedKeys().iterator(); it.hasNext();) {
+                        SelectionKey key=it.next();
+                        it.remove();
+                        if(key.isValid() && key.isReadable())
+                            total+=drain((DatagramChannel)key.channel());
+                    }
+                    avg_packets_per_wakeup.add(total);
+                }
+                catch(ClosedSelectorException | ClosedChannelException closed) {
+                    break;
+                }
+                catch(Throwable ex) {
+                    if(!sel.isOpen())
+                        break;
+                    log.error(Util.getMessage("FailedReceivingPacket"), ex);
+                }
+            }
+            log.debug("%s: %s thread terminated", local_addr, NIO_RECEIVER_NAME);
+        }
+
+        /** Reads as many datagrams as are available (up to the size of the ring) and passes them up */
+        protected int drain(DatagramChannel ch) throws IOException {
+            int total=0, num;
+            do {
+                num=0;
+                for(int i=0; i < ring.length; i++) {
+                    ByteBuffer buf=ring[i].clear();
+                    SocketAddress sa=ch.receive(buf);
+                    if(sa == null)
+                        break;
+                    buf.flip();
+                    senders[i]=new IpAddress((InetSocketAddress)sa);
+                    num++;
+                }
+                for(int i=0; i < num; i++)
+                    receive(senders[i], ring[i], batches);
+                flush(batches);
+                num_packets_received.add(num);
+                total+=num;
+            }
+            while(num == ring.length); // the ring was full: more datagrams might be available
+            return total;
+        }
+
+        public String toString() {
+            return String.format("%s (ring: %d)", NIO_RECEIVER_NAME, ring.length);
+        }
+    }
+}
@@ -1,16 +1,17 @@
 package org.jgroups.protocols;
 
+import org.jgroups.Address;
 import org.jgroups.Message;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Preview;
 import org.jgroups.annotations.Property;
-import org.jgroups.util.AverageMinMax;
-import org.jgroups.util.Buffer;
-import org.jgroups.util.FixedBuffer;
+import org.jgroups.util.*;
 
+import java.nio.file.Path;
 import java.util.function.IntBinaryOperator;
 
+import static org.jgroups.conf.AttributeType.BYTES;
 import static org.jgroups.conf.AttributeType.SCALAR;
 
 /**
@@ -28,6 +29,22 @@ public class UNICAST4 extends ReliableUnicast {
       "every 500th ACk is sent; all others are dropped. If not set, defaulted to capacity/4",type=SCALAR)
     protected int ack_threshold;
 
+    @Property(description="If enabled, create ConcurrentBuffers instead of FixedBuffers. Messages are added to and " +
+      "retrieved from a ConcurrentBuffer without acquiring a lock",writable=false)
+    protected boolean concurrent_buffers;
+
+    @Property(description="Directory in which sent messages are spilled to memory-mapped segment files when more " +
+      "than capacity messages to a destination are unacked. The send buffer then keeps only the positions of the " +
+      "spilled messages on the heap. Null disables spilling",writable=false)
+    protected String  spill_dir;
+
+    @Property(description="Size of a segment file of the spilled messages",type=BYTES,writable=false)
+    protected int     spill_segment_size=8 * 1024 * 1024;
+
+    @Property(description="Max number of bytes of spilled messages per destination; senders block when this is " +
+      "reached. 0 means no limit",type=BYTES,writable=false)
+    protected long    max_spill_size;
+
     protected final IntBinaryOperator add_acks=(current_acks_sent, acks_to_be_sent) -> {
         if(current_acks_sent+acks_to_be_sent >= ack_threshold)
             return 0;
@@ -38,10 +55,8 @@ public class UNICAST4 extends ReliableUnicast {
     @ManagedAttribute(description="Number of times sender threads were blocked on a full send window",type=SCALAR)
     public long getNumBlockings() {
         long total=0;
-        for(Entry e: send_table.values()) {
-            FixedBuffer<Message> buf=(FixedBuffer<Message>)e.buf();
-            total+=buf.numBlockings();
-        }
+        for(Entry e: send_table.values())
+            total+=e.buf().numBlockings();
         return total;
     }
 
@@ -49,8 +64,9 @@ public class UNICAST4 extends ReliableUnicast {
     public AverageMinMax getAvgTimeBlocked() {
         AverageMinMax first=null;
         for(Entry e: send_table.values()) {
-            FixedBuffer<Message> buf=(FixedBuffer<Message>)e.buf();
-            AverageMinMax avg=buf.avgTimeBlocked();
+            AverageMinMax avg=e.buf().avgTimeBlocked();
+            if(avg == null)
+                continue;
             if(first == null)
                 first=avg;
             else
@@ -59,28 +75,91 @@ public class UNICAST4 extends ReliableUnicast {
         return first;
     }
 
+    @ManagedAttribute(description="Number of bytes of sent messages spilled to disk",type=BYTES,gauge=true)
+    public long getSpillSize() {
+        return send_table.values().stream().map(Entry::buf).filter(b -> b instanceof SpillBuffer)
+          .mapToLong(b -> ((SpillBuffer)b).spillSize()).sum();
+    }
+
+    @ManagedAttribute(description="Number of sent messages spilled to disk",type=SCALAR)
+    public long getNumSpilled() {
+        return send_table.values().stream().map(Entry::buf).filter(b -> b instanceof SpillBuffer)
+          .mapToLong(b -> ((SpillBuffer)b).numSpilled()).sum();
+    }
+
     /**
      * Changes the capacity of all buffers, basically by creating new buffers and copying the messages from the
-     * old ones. This method is only supposed to be used by perf testing, so DON'T USE!
+     * old ones. This method is only supposed to be used by perf testing, so DON'T USE!<br/>
+     * {@link ConcurrentBuffer}s cannot be resized: throws an {@link IllegalStateException} if concurrent_buffers
+     * is true
      */
     @ManagedOperation
     public void changeCapacity(int new_capacity) {
         if(new_capacity == this.capacity)
             return;
-        send_table.values().stream().map(Entry::buf)
+        if(concurrent_buffers)
+            throw new IllegalStateException(String.format("%s: the capacity cannot be changed when concurrent_buffers " +
+                                                            "is true", local_addr));
+        send_table.values().stream().map(Entry::buf).filter(buf -> buf instanceof FixedBuffer<Message>)
           .forEach(buf -> ((FixedBuffer<Message>)buf).changeCapacity(new_capacity));
-        recv_table.values().stream().map(Entry::buf)
+        recv_table.values().stream().map(Entry::buf).filter(buf -> buf instanceof FixedBuffer<Message>)
           .forEach(buf -> ((FixedBuffer<Message>)buf).changeCapacity(new_capacity));
         this.capacity=new_capacity;
         this.ack_threshold=capacity / 4;
     }
 
     @Override
-    protected Buffer<Message> createBuffer(long s) {return new FixedBuffer<>(capacity, s);}
-    public int                capacity()           {return capacity;}
-    public UNICAST4           capacity(int c)      {capacity=c; return this;}
-    public int                ackThreshold()       {return ack_threshold;}
-    public UNICAST4           ackThreshold(int t)  {ack_threshold=t; return this;}
+    protected Buffer<Message> createBuffer(long s) {
+        return concurrent_buffers? new ConcurrentBuffer<>(capacity, s) : new FixedBuffer<>(capacity, s);
+    }
+
+    @Override
+    protected Buffer<Message> createSendBuffer(long s) {
+        if(spill_dir != null) {
+            try {
+                return new SpillBuffer(capacity, s, Path.of(spill_dir), spill_segment_size, max_spill_size);
+            }
+            catch(Exception ex) {
+                log.error("%s: failed creating spill buffer in %s, using in-memory send buffer: %s",
+                          local_addr, spill_dir, ex);
+            }
+        }
+        return createBuffer(s);
+    }
+
+    /** When spilling, senders can be ahead of us by more than capacity: adding to a full window must not block */
+    @Override
+    protected boolean receiveBufferCanBlock() {
+        return spill_dir == null;
+    }
+
+    /** Deletes the spilled messages of a closed send connection */
+    @Override
+    public void removeSendConnection(Address mbr) {
+        SenderEntry entry=send_table.get(mbr);
+        super.removeSendConnection(mbr);
+        if(entry != null && entry.buf() instanceof SpillBuffer sb)
+            sb.close();
+    }
+
+    @Override
+    public void removeAllConnections() {
+        send_table.values().stream().map(Entry::buf).filter(b -> b instanceof SpillBuffer).forEach(Util::close);
+        super.removeAllConnections();
+    }
+
+    public int                capacity()                   {return capacity;}
+    public UNICAST4           capacity(int c)              {capacity=c; return this;}
+    public int                ackThreshold()               {return ack_threshold;}
+    public UNICAST4           ackThreshold(int t)          {ack_threshold=t; return this;}
+    public boolean            concurrentBuffers()          {return concurrent_buffers;}
+    public UNICAST4           concurrentBuffers(boolean b) {concurrent_buffers=b; return this;}
+    public String             spillDir()                   {return spill_dir;}
+    public UNICAST4           spillDir(String d)           {spill_dir=d; return this;}
+    public int                spillSegmentSize()           {return spill_segment_size;}
+    public UNICAST4           spillSegmentSize(int s)      {spill_segment_size=s; return this;}
+    public long               maxSpillSize()               {return max_spill_size;}
+    public UNICAST4           maxSpillSize(long s)         {max_spill_size=s; return this;}
 
     @Override
     public void init() throws Exception {
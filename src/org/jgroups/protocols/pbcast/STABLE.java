@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -38,11 +39,17 @@ import static org.jgroups.conf.AttributeType.SCALAR;
  * and initially contains no data, when such a message is received. <br/>
  * When messages from all members have been received, a stability message is mcast, which causes all
  * members to send a STABLE event down the stack (triggering garbage collection in the NAKACK{2,3} layer).
+ * <p>
+ * For large clusters, digests can be sent as deltas ({@link DeltaDigest}) against the digest of the last stability
+ * message (delta_digests), and members can be split into groups of consecutive ranks (group_size): members send their
+ * digests to the first member of their group, which merges them and forwards a single digest to the coordinator. The
+ * coordinator then merges one digest per group instead of one per member.
  * @author Bela Ban
  */
 @MBean(description="Computes the broadcast messages that are stable")
 public class STABLE extends Protocol {
     protected static final long MAX_SUSPEND_TIME=200000;
+    protected static final int  MAX_ROUNDS=8; // number of stability digests kept as references for delta digests
 
     /* ------------------------------------------ Properties  ------------------------------------------ */
 
@@ -61,6 +68,16 @@ public class STABLE extends Protocol {
       type=AttributeType.BYTES)
     protected long   max_bytes=2000000;
 
+    @Property(description="Sends digests as deltas against the digest of the last stability message: only the entries " +
+      "which changed are sent, identified by rank and varint-encoded. Has to be the same in all members")
+    protected boolean delta_digests;
+
+    @Property(description="Splits the members into groups of group_size consecutive ranks. Members send their digests " +
+      "to the first member of their group, which merges them and forwards one digest to the coordinator. 0 sends " +
+      "all digests to the coordinator, a negative value uses groups of sqrt(cluster size). Has to be the same in " +
+      "all members")
+    protected int     group_size;
+
 
     /* --------------------------------------------- JMX  ---------------------------------------------- */
     @ManagedAttribute(description="Number of stable messages sent",type= SCALAR)
@@ -71,6 +88,11 @@ public class STABLE extends Protocol {
     protected final LongAdder num_stability_msgs_sent=new LongAdder();
     @ManagedAttribute(description="Number of stability messages received",type= SCALAR)
     protected final LongAdder num_stability_msgs_received=new LongAdder();
+    @ManagedAttribute(description="Number of merged digests forwarded to the coordinator (group leader)",type=SCALAR)
+    protected final LongAdder num_digests_forwarded=new LongAdder();
+    @ManagedAttribute(description="Number of delta digests which were rejected, as their reference was unknown",
+      type=SCALAR)
+    protected final LongAdder num_deltas_rejected=new LongAdder();
 
     
     /* --------------------------------------------- Fields ------------------------------------------------------ */
@@ -86,6 +108,22 @@ public class STABLE extends Protocol {
     @GuardedBy("lock")
     protected FixedSizeBitSet     votes;
 
+    /** The round of the last stability message (in the current view). Incremented by the coordinator */
+    @GuardedBy("lock")
+    protected long                round;
+
+    /** The digests of the last stability messages, by round: the references for delta digests */
+    @GuardedBy("lock")
+    protected final Map<Long,Digest> stability_digests=new BoundedHashMap<>(MAX_ROUNDS);
+
+    /** Set when a delta digest was rejected: the next digest is sent in full (against round 0) */
+    @GuardedBy("lock")
+    protected boolean             send_full;
+
+    /** Group leader: whether the merged digest of the group has been forwarded to the coordinator in this round */
+    @GuardedBy("lock")
+    protected boolean             forwarded;
+
     protected final Lock          lock=new ReentrantLock();
 
     @GuardedBy("stable_task_lock")
@@ -124,6 +162,14 @@ public class STABLE extends Protocol {
     public STABLE setDesiredAverageGossip(long g) {desired_avg_gossip=g; return this;}
     public long   getMaxBytes()                   {return max_bytes;}
     public STABLE setMaxBytes(long m)             {this.max_bytes=m; return this;}
+    public boolean deltaDigests()                 {return delta_digests;}
+    public STABLE  deltaDigests(boolean d)        {this.delta_digests=d; return this;}
+    public int     groupSize()                    {return group_size;}
+    public STABLE  groupSize(int s)               {this.group_size=s; return this;}
+    public long    getDigestsForwarded()          {return num_digests_forwarded.sum();}
+    public long    getDeltasRejected()            {return num_deltas_rejected.sum();}
+    @ManagedAttribute(description="The round of the last stability message")
+    public long    round()                        {return round;}
 
     // @ManagedAttribute(name="bytes_received")
     public long getBytes() {return num_bytes_received;}
@@ -169,7 +215,8 @@ public class STABLE extends Protocol {
 
     public void resetStats() {
         super.resetStats();
-        Stream.of(num_stability_msgs_received,num_stability_msgs_sent,num_stable_msgs_sent,num_stable_msgs_received)
+        Stream.of(num_stability_msgs_received,num_stability_msgs_sent,num_stable_msgs_sent,num_stable_msgs_received,
+                  num_digests_forwarded,num_deltas_rejected)
           .forEach(LongAdder::reset);
     }
 
@@ -285,13 +332,16 @@ public class STABLE extends Protocol {
     }
 
 
-    protected Object handle(StableHeader hdr, Address sender, Digest digest) {
+    protected Object handle(StableHeader hdr, Address sender, Object digest) {
         switch(hdr.type) {
             case StableHeader.STABLE_GOSSIP:
-                handleStableMessage(digest, sender, hdr.view_id);
+                handleStableMessage(digest, sender, hdr);
                 break;
             case StableHeader.STABILITY:
-                handleStabilityMessage(digest, sender, hdr.view_id);
+                handleStabilityMessage(digest, sender, hdr);
+                break;
+            case StableHeader.DELTA_REJECTED:
+                handleDeltaRejected(sender, hdr.view_id);
                 break;
             default:
                 log.error("%s: StableHeader type %s not known", local_addr, hdr.type);
@@ -328,6 +378,9 @@ public class STABLE extends Protocol {
         try {
             this.view=v;
             coordinator=v.getCoord();
+            round=0;
+            stability_digests.clear();
+            send_full=false;
             resetDigest();
             if(!initialized)
                 initialized=true;
@@ -377,6 +430,54 @@ public class STABLE extends Protocol {
             return;
         digest=new MutableDigest(view.getMembersRaw()); // .set(getDigest());
         votes=new FixedSizeBitSet(view.size()); // all 0's initially
+        forwarded=false;
+    }
+
+    /** Returns true if any of the votes in range [from .. to-1] has already been received */
+    @GuardedBy("lock")
+    protected boolean hasVote(int from, int to) {
+        for(int i=from; i < to; i++)
+            if(votes.get(i))
+                return true;
+        return false;
+    }
+
+    /** Returns true if all votes in range [from .. to-1] have been received */
+    @GuardedBy("lock")
+    protected boolean allVotesReceived(int from, int to) {
+        for(int i=from; i < to; i++)
+            if(!votes.get(i))
+                return false;
+        return true;
+    }
+
+    /** Returns the size of the groups of members for a cluster of the given size; 0 if members are not grouped */
+    protected int sizeOfGroups(int cluster_size) {
+        int size=group_size < 0? (int)Math.ceil(Math.sqrt(cluster_size)) : group_size;
+        return size <= 1 || size >= cluster_size? 0 : size;
+    }
+
+    /** Returns the rank of the first member (the leader) of the group of the member with the given rank */
+    protected int groupStart(int rank, int cluster_size) {
+        int size=sizeOfGroups(cluster_size);
+        return size == 0? 0 : rank / size * size;
+    }
+
+    /** Returns the rank following the last member of the group starting at rank start */
+    protected int groupEnd(int start, int cluster_size) {
+        int size=sizeOfGroups(cluster_size);
+        return size == 0? cluster_size : Math.min(start + size, cluster_size);
+    }
+
+    /** Returns the digest of the given payload (a {@link Digest} or a {@link DeltaDigest}), or null if the reference
+     *  of a delta digest is not known */
+    @GuardedBy("lock")
+    protected Digest toDigest(Object payload) {
+        if(payload instanceof DeltaDigest delta) {
+            Digest ref=delta.refRound() == 0? null : stability_digests.get(delta.refRound());
+            return ref == null && delta.refRound() != 0? null : delta.apply(view.getMembersRaw(), ref);
+        }
+        return (Digest)payload;
     }
 
     /**
@@ -472,6 +573,15 @@ public class STABLE extends Protocol {
      for details).
      */
     protected void handleStableMessage(final Digest d, final Address sender, final ViewId view_id) {
+        handleStableMessage(d, sender, new StableHeader(StableHeader.STABLE_GOSSIP, view_id));
+    }
+
+    /**
+     * Handles a digest (or delta digest) from a member, or the merged digest of a group of members, forwarded by the
+     * group leader. When all votes have been received (coordinator), a stability message is sent. When the votes
+     * of its group have been received, a group leader forwards the merged digest to the coordinator.
+     */
+    protected void handleStableMessage(final Object d, final Address sender, final StableHeader hdr) {
         if(d == null || sender == null) {
             if(log.isErrorEnabled()) log.error(Util.getMessage("DigestOrSenderIsNull"));
             return;
@@ -483,25 +593,56 @@ public class STABLE extends Protocol {
         }
 
         // Check if STABLE message is from the same view
-        if(!view_id.equals(view.getViewId())) {
+        if(!hdr.view_id.equals(view.getViewId())) {
             log.trace("%s: discarded STABLE message with different view-id %s (my view-id=%s)",
-                      local_addr, view_id, view.getViewId());
+                      local_addr, hdr.view_id, view.getViewId());
             return;
         }
 
-        Digest stable_digest=null;
+        Digest stable_digest=null, merged_digest=null;
         ViewId stable_view_id=null;
+        long stable_round=0;
+        int group_start=0, group_end=0;
+        boolean rejected=false;
         lock.lock();
         try {
-            int rank=getRank(sender, view);
-            if(rank < 0 || votes.get(rank))  // already received gossip from sender; discard it
+            if(hdr.round > round) { // a group leader missed a stability message: start a new round
+                round=hdr.round;
+                resetDigest();
+            }
+            int from=hdr.first_rank, to=from + hdr.num_ranks, size=view.size();
+            if(hdr.num_ranks == 0) {
+                if((from=getRank(sender, view)) < 0)
+                    return;
+                to=from+1;
+            }
+            if(to > size || hasVote(from, to))  // already received gossip from sender; discard it
                 return;
-            num_stable_msgs_received.increment();
-            updateLocalDigest(d, sender);
-            if(addVote(rank)) {       // votes from all members have been received
-                stable_digest=digest; // no need to copy, as digest (although mutable) is reassigned below
-                stable_view_id=view.getViewId();
-                resetDigest();        // sets digest
+            Digest digest=toDigest(d);
+            if(digest == null)
+                rejected=true;
+            else {
+                num_stable_msgs_received.increment();
+                updateLocalDigest(digest, sender);
+                for(int i=from; i < to; i++)
+                    votes.set(i);
+                if(allVotesReceived(votes)) { // votes from all members have been received
+                    stable_digest=this.digest; // no need to copy, as digest (although mutable) is reassigned below
+                    stable_view_id=view.getViewId();
+                    stable_round=++round;
+                    if(delta_digests)
+                        stability_digests.put(stable_round, stable_digest);
+                    resetDigest();             // sets digest
+                }
+                else if(!forwarded && !Objects.equals(local_addr, coordinator)) {
+                    int my_rank=getRank(local_addr, view);
+                    group_start=groupStart(my_rank, size);
+                    group_end=groupEnd(group_start, size);
+                    if(my_rank == group_start && allVotesReceived(group_start, group_end)) {
+                        merged_digest=this.digest; // not modified anymore, as all votes of the group have been received
+                        forwarded=true;
+                    }
+                }
             }
         }
         catch(Throwable t) {
@@ -511,16 +652,68 @@ public class STABLE extends Protocol {
             lock.unlock();
         }
 
+        if(rejected) {
+            sendDeltaRejected(sender, hdr.view_id);
+            return;
+        }
+        if(merged_digest != null) {
+            forwardToCoordinator(merged_digest, hdr.view_id, group_start, group_end);
+            return;
+        }
+
         // we don't yet reset digest: new STABLE messages will be discarded anyway as we have already
         // received votes from their senders
         if(stable_digest != null) {
             resetNumBytes();
-            sendStabilityMessage(stable_digest, stable_view_id);
+            sendStabilityMessage(stable_digest, stable_view_id, stable_round);
             // we discard our own STABILITY message: pass it down now, so NAKACK can purge old messages
             down_prot.down(new Event(Event.STABLE, stable_digest));
         }
     }
 
+    /** Group leader: sends the merged digest of the members in range [from .. to-1] to the coordinator */
+    protected void forwardToCoordinator(Digest merged, ViewId view_id, int from, int to) {
+        Address coord=coordinator;
+        log.trace("%s: forwarding merged digest of ranks %d-%d to %s: %s", local_addr, from, to-1, coord, printDigest(merged));
+        Message msg=createStableMessage(coord, merged, view_id, from, to - from);
+        num_stable_msgs_sent.increment();
+        num_digests_forwarded.increment();
+        down_prot.down(msg);
+    }
+
+    /** Tells the sender of a delta digest that its reference is unknown, so it resends the digest in full */
+    protected void sendDeltaRejected(Address dest, ViewId view_id) {
+        log.trace("%s: rejecting delta digest from %s, as its reference is unknown", local_addr, dest);
+        num_deltas_rejected.increment();
+        Message msg=new EmptyMessage(dest).setFlag(OOB, NO_RELIABILITY, NO_FC)
+          .putHeader(id, new StableHeader(StableHeader.DELTA_REJECTED, view_id));
+        down_prot.down(msg);
+    }
+
+    /** Resends the digest in full: a group leader resends the merged digest, other members their own digest */
+    protected void handleDeltaRejected(Address sender, ViewId view_id) {
+        Digest merged=null;
+        int from=0, to=0;
+        lock.lock();
+        try {
+            if(view == null || !view_id.equals(view.getViewId()))
+                return;
+            send_full=true;
+            if(forwarded && Objects.equals(sender, coordinator)) {
+                merged=digest;
+                from=groupStart(getRank(local_addr, view), view.size());
+                to=groupEnd(from, view.size());
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        if(merged != null)
+            forwardToCoordinator(merged, view_id, from, to);
+        else
+            sendStableMessage(true);
+    }
+
     protected void resetNumBytes() {
         received.lock();
         try {
@@ -533,7 +726,11 @@ public class STABLE extends Protocol {
 
 
     protected void handleStabilityMessage(final Digest stable_digest, final Address sender, final ViewId view_id) {
-        if(stable_digest == null) {
+        handleStabilityMessage(stable_digest, sender, new StableHeader(StableHeader.STABILITY, view_id));
+    }
+
+    protected void handleStabilityMessage(final Object payload, final Address sender, final StableHeader hdr) {
+        if(payload == null) {
             if(log.isErrorEnabled()) log.error(Util.getMessage("StabilityDigestIsNull"));
             return;
         }
@@ -542,17 +739,23 @@ public class STABLE extends Protocol {
             return;
         }
 
+        Digest stable_digest;
         lock.lock();
         try {
             // we won't handle the stable_digest, if its members don't match the membership in my own digest,
             // this is part of the fix for the NAKACK problem (bugs #943480 and #938584)
-            if(!view_id.equals(this.view.getViewId())) {
+            if(!hdr.view_id.equals(this.view.getViewId())) {
                 log.trace("%s: discarded STABILITY message with different view-id %s (my view-id=%s)",
-                          local_addr, view_id, view);
+                          local_addr, hdr.view_id, view);
                 return;
             }
+            stable_digest=toDigest(payload); // a stability digest is always self-contained (round 0)
             log.trace("%s: received stability msg from %s: %s", local_addr, sender, printDigest(stable_digest));
             num_stability_msgs_received.increment();
+            if(hdr.round > round)
+                round=hdr.round;
+            if(delta_digests)
+                stability_digests.put(hdr.round, stable_digest);
             resetDigest();
         }
         finally {
@@ -571,9 +774,12 @@ public class STABLE extends Protocol {
         if(suspended || view == null)
             return;
         View          current_view=view;
-        Address       dest=coordinator;
-        boolean       is_coord=Objects.equals(local_addr, coordinator);
-        MutableDigest d=new MutableDigest(current_view.getMembersRaw()).set(getDigest());
+        Address[]     members=current_view.getMembersRaw();
+        int           rank=getRank(local_addr, current_view);
+        // the coordinator, or the leader of my group
+        Address       dest=rank < 0? coordinator : members[groupStart(rank, members.length)];
+        boolean       is_dest=Objects.equals(local_addr, dest);
+        MutableDigest d=new MutableDigest(members).set(getDigest());
         boolean       all_set=d.allSet() || d.set(getDigest()).allSet();
 
         if(!all_set) {
@@ -581,17 +787,15 @@ public class STABLE extends Protocol {
                       local_addr, current_view, d.getNonSetMembers());
             return;
         }
-        // don't send a STABLE message to self when coord, but instead update the digest directly
-        if(is_coord) {
+        // don't send a STABLE message to self when coord (or group leader), but instead update the digest directly
+        if(is_dest) {
             log.trace("%s: updating the local digest with a stable message (coordinator): %s", local_addr, d);
             num_stable_msgs_sent.increment();
             handleStableMessage(d, local_addr, current_view.getViewId());
             return;
         }
         log.trace("%s: sending stable msg to %s: %s", local_addr, dest, printDigest(d));
-        final ObjectMessage msg=new ObjectMessage(dest, d);
-        msg.setFlag(OOB, NO_RELIABILITY, NO_FC)
-          .putHeader(this.id, new StableHeader(StableHeader.STABLE_GOSSIP, current_view.getViewId()));
+        final Message msg=createStableMessage(dest, d, current_view.getViewId(), 0, 0);
         try {
             if(!send_in_background) {
                 num_stable_msgs_sent.increment();
@@ -623,7 +827,7 @@ public class STABLE extends Protocol {
      Sends a stability message to all members except self.
      @param d A copy of the stability digest, so we don't need to copy it again
      */
-    protected void sendStabilityMessage(Digest d, final ViewId view_id) {
+    protected void sendStabilityMessage(Digest d, final ViewId view_id, long stability_round) {
         if(suspended) {
             log.debug("%s: STABILITY message will not be sent as suspended=%b", local_addr, suspended);
             return;
@@ -632,9 +836,12 @@ public class STABLE extends Protocol {
         // https://issues.redhat.com/browse/JGRP-1638: we reverted to sending the STABILITY message *unreliably*,
         // but clear votes *before* sending it
         try {
-            Message msg=new ObjectMessage(null, d)
+            // the stability digest is sent as a delta against round 0, so that members which missed the previous
+            // stability message can still use it
+            Object payload=delta_digests? DeltaDigest.create(d, null, 0) : d;
+            Message msg=new ObjectMessage(null, payload)
               .setFlag(OOB, NO_RELIABILITY, NO_RELAY, NO_FC).setFlag(DONT_LOOPBACK,DONT_BLOCK)
-              .putHeader(id, new StableHeader(StableHeader.STABILITY, view_id));
+              .putHeader(id, new StableHeader(StableHeader.STABILITY, view_id).round(sendRounds()? stability_round : 0));
             log.trace("%s: sending stability msg %s", local_addr, printDigest(d));
             num_stability_msgs_sent.increment();
             num_stability_msgs_received.increment(); // since we don't receive this message
@@ -645,10 +852,43 @@ public class STABLE extends Protocol {
         }
     }
 
+    /**
+     * Creates a STABLE message with digest d; with delta_digests, the digest is sent as a delta against the digest
+     * of the last stability message
+     * @param first_rank The rank of the first member whose digest was merged into d (group leader only)
+     * @param num_ranks The number of members whose digests were merged into d; 0 if d is the digest of the sender
+     */
+    protected Message createStableMessage(Address dest, Digest d, ViewId view_id, int first_rank, int num_ranks) {
+        StableHeader hdr=new StableHeader(StableHeader.STABLE_GOSSIP, view_id).ranks(first_rank, num_ranks);
+        Object payload=d;
+        lock.lock();
+        try {
+            if(sendRounds())
+                hdr.round(round);
+            if(delta_digests) {
+                Digest ref=send_full? null : stability_digests.get(round);
+                payload=DeltaDigest.create(d, ref, round);
+                send_full=false;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        return new ObjectMessage(dest, payload).setFlag(OOB, NO_RELIABILITY, NO_FC).putHeader(this.id, hdr);
+    }
+
     protected Digest getDigest() {
         return (Digest)down_prot.down(Event.GET_DIGEST_EVT);
     }
 
+    /**
+     * Rounds are only needed by delta digests and groups; without them, rounds are not sent, so that the headers
+     * can be read by members running a version without rounds (rolling upgrades)
+     */
+    protected boolean sendRounds() {
+        return delta_digests || group_size != 0;
+    }
+
     protected String printDigest(final Digest digest) {
         if(digest == null)
             return null;
@@ -666,9 +906,16 @@ public class STABLE extends Protocol {
     public static class StableHeader extends Header {
         public static final byte STABLE_GOSSIP=1;
         public static final byte STABILITY=2;
+        public static final byte DELTA_REJECTED=3;
+
+        // flags in the type byte, set when the optional fields are present (only with delta digests or groups)
+        protected static final byte ROUND=0x40, RANKS=0x20, TYPE_MASK=0x0f;
 
         protected byte   type;
         protected ViewId view_id;
+        protected long   round;      // STABILITY: the round of the stability message, else the last round of the sender
+        protected int    first_rank; // the digest was merged from the digests of members first_rank ..
+        protected int    num_ranks;  // .. first_rank + num_ranks - 1; 0 if it's the digest of the sender only
 
         public StableHeader() {
         }
@@ -682,34 +929,63 @@ public class STABLE extends Protocol {
 
         public Supplier<? extends Header> create() {return StableHeader::new;}
 
+        public long         round()                    {return round;}
+        public StableHeader round(long r)              {this.round=r; return this;}
+        public StableHeader ranks(int first, int num)  {this.first_rank=first; this.num_ranks=num; return this;}
+
         static String type2String(byte t) {
             return switch(t) {
-                case STABLE_GOSSIP -> "STABLE_GOSSIP";
-                case STABILITY ->     "STABILITY";
+                case STABLE_GOSSIP  -> "STABLE_GOSSIP";
+                case STABILITY      -> "STABILITY";
+                case DELTA_REJECTED -> "DELTA_REJECTED";
                 default ->            "<unknown>";
             };
         }
 
         public String toString() {
-            return String.format("[%s] view-id= %s", type2String(type), view_id);
+            return String.format("[%s] view-id= %s, round=%d", type2String(type), view_id, round)
+              + (num_ranks > 0? String.format(", ranks=%d-%d", first_rank, first_rank + num_ranks - 1) : "");
         }
 
         @Override
         public int serializedSize() {
-            return Global.BYTE_SIZE // type
+            int retval=Global.BYTE_SIZE // type
               + Util.size(view_id);
+            if(round != 0)
+                retval+=Bits.size(round);
+            if(num_ranks > 0)
+                retval+=Bits.size(first_rank) + Bits.size(num_ranks);
+            return retval;
         }
 
         @Override
         public void writeTo(DataOutput out) throws IOException {
-            out.writeByte(type);
+            byte t=type;
+            if(round != 0)
+                t|=ROUND;
+            if(num_ranks > 0)
+                t|=RANKS;
+            out.writeByte(t);
             Util.writeViewId(view_id, out);
+            if(round != 0)
+                Bits.writeLongCompressed(round, out);
+            if(num_ranks > 0) {
+                Bits.writeIntCompressed(first_rank, out);
+                Bits.writeIntCompressed(num_ranks, out);
+            }
         }
 
         @Override
         public void readFrom(DataInput in) throws IOException, ClassNotFoundException {
-            type=in.readByte();
+            byte t=in.readByte();
+            type=(byte)(t & TYPE_MASK);
             view_id=Util.readViewId(in);
+            if((t & ROUND) != 0)
+                round=Bits.readLongCompressed(in);
+            if((t & RANKS) != 0) {
+                first_rank=Bits.readIntCompressed(in);
+                num_ranks=Bits.readIntCompressed(in);
+            }
         }
     }
 
@@ -0,0 +1,1138 @@
+package org.jgroups.protocols.pbcast;
+
+import org.jgroups.*;
+import org.jgroups.annotations.*;
+import org.jgroups.conf.AttributeType;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.StateTransferInfo;
+import org.jgroups.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * State transfer of partitioned state ({@link PartitionedState}): the partitions are fetched in parallel from
+ * different members, so that the time to transfer the state to a joiner decreases with the number of providers.
+ * <p>
+ * The requester sends a state request to every provider (all members, or max_providers, starting with the target of
+ * the state request, which is the coordinator by default). A provider blocks the delivery of messages, takes its
+ * digest and a snapshot of all partitions, and returns the digest, the number of partitions and the ID of the
+ * snapshot. The digest of the target is set in the requester; partitions are only fetched from providers whose digest
+ * is the same, so that all partitions reflect the same messages. Providers whose digest differs (e.g. because messages
+ * were being multicast while the snapshots were taken) are not used.
+ * <p>
+ * partitions_per_provider partitions are requested from every provider; when a partition has been received, the next
+ * partition is requested from the same provider.
+ * <p>
+ * A partition is streamed in chunks of chunk_size bytes, every chunk carries its offset and (if enabled) its checksum.
+ * The provider can have at most max_credits unacked chunks of a partition in flight, blocking the application's
+ * writes when the requester falls behind. A chunk with an invalid checksum causes the partition to be requested again
+ * from the same snapshot, at the offset of the chunk. A state request while a state transfer is in progress (e.g.
+ * after the previous one timed out) resumes the transfer, requesting the partitions being fetched again from the same
+ * snapshots, at the offsets reached. When a provider leaves, its partitions are requested from the remaining
+ * providers; as these have different snapshots, the partitions are restarted at offset 0.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@MBean(description="Parallel state transfer of partitioned state")
+public class STATE_PARALLEL extends Protocol {
+
+    /* ----------------------------------------------Properties ----------------------------------- */
+    @Property(description="Size (in bytes) of a chunk of a partition",type=AttributeType.BYTES)
+    protected int     chunk_size=64 * 1024;
+
+    @Property(description="Max number of chunks of a partition sent to a requester, but not yet acked")
+    protected int     max_credits=8;
+
+    @Property(description="Number of partitions requested from a provider at the same time")
+    protected int     partitions_per_provider=2;
+
+    @Property(description="Max number of members from which partitions are fetched. 0 uses all members")
+    protected int     max_providers;
+
+    @Property(description="Compute a checksum for every chunk, which is verified by the requester")
+    protected boolean checksums=true;
+
+    @Property(description="Maximum number of pool threads serving partition requests")
+    protected int     max_pool=10;
+
+    @Property(description="Keep alive for pool threads serving partition requests",type=AttributeType.TIME)
+    protected long    pool_thread_keep_alive=20000;
+
+
+    /* --------------------------------------------- JMX statistics ------------------------------- */
+    @ManagedAttribute(description="Number of state requests received",type=AttributeType.SCALAR)
+    protected final LongAdder num_state_reqs=new LongAdder();
+    @ManagedAttribute(description="Number of partitions sent",type=AttributeType.SCALAR)
+    protected final LongAdder num_partitions_sent=new LongAdder();
+    @ManagedAttribute(description="Number of partitions received",type=AttributeType.SCALAR)
+    protected final LongAdder num_partitions_received=new LongAdder();
+    @ManagedAttribute(description="Number of bytes of state sent",type=AttributeType.BYTES)
+    protected final LongAdder num_bytes_sent=new LongAdder();
+    @ManagedAttribute(description="Number of bytes of state received",type=AttributeType.BYTES)
+    protected final LongAdder num_bytes_received=new LongAdder();
+    @ManagedAttribute(description="Number of chunks with an invalid checksum",type=AttributeType.SCALAR)
+    protected final LongAdder num_checksum_failures=new LongAdder();
+    @ManagedAttribute(description="Number of partitions whose transfer was resumed at an offset > 0 of the same snapshot",
+      type=AttributeType.SCALAR)
+    protected final LongAdder num_resumed=new LongAdder();
+    @ManagedAttribute(description="Number of partitions restarted at offset 0 from a different provider",
+      type=AttributeType.SCALAR)
+    protected final LongAdder num_restarted=new LongAdder();
+    @ManagedAttribute(description="Number of providers not used, as their digest was different",type=AttributeType.SCALAR)
+    protected final LongAdder num_rejected_providers=new LongAdder();
+
+
+    /* --------------------------------------------- Fields --------------------------------------- */
+    /** The partitioned state; if null, the channel's receiver is used if it implements {@link PartitionedState} */
+    protected PartitionedState                        state;
+
+    @GuardedBy("members")
+    protected final List<Address>                     members=new ArrayList<>();
+
+    /** Runs the transfers of partitions to requesters */
+    protected ThreadPoolExecutor                      thread_pool;
+
+    /** Provider: the snapshots taken for requesters (STABLE is suspended while a requester has a snapshot) */
+    protected final Map<Address,Snapshot>             snapshots=Util.createConcurrentMap();
+
+    /** Provider: used to create the IDs of snapshots */
+    protected final AtomicLong                        snapshot_ids=new AtomicLong();
+
+    /** Requester: the current state transfer */
+    @GuardedBy("this")
+    protected Fetch                                   fetch;
+
+    /** Requester: incremented for every state transfer */
+    @GuardedBy("this")
+    protected int                                     fetch_attempts;
+
+
+    public int              getChunkSize()                    {return chunk_size;}
+    public STATE_PARALLEL   setChunkSize(int s)               {this.chunk_size=s; return this;}
+    public int              getMaxCredits()                   {return max_credits;}
+    public STATE_PARALLEL   setMaxCredits(int c)              {this.max_credits=c; return this;}
+    public int              getPartitionsPerProvider()        {return partitions_per_provider;}
+    public STATE_PARALLEL   setPartitionsPerProvider(int p)   {this.partitions_per_provider=p; return this;}
+    public int              getMaxProviders()                 {return max_providers;}
+    public STATE_PARALLEL   setMaxProviders(int m)            {this.max_providers=m; return this;}
+    public boolean          checksums()                       {return checksums;}
+    public STATE_PARALLEL   checksums(boolean c)              {this.checksums=c; return this;}
+    public PartitionedState getPartitionedState()             {return state;}
+    public STATE_PARALLEL   setPartitionedState(PartitionedState s) {this.state=s; return this;}
+    public long             getPartitionsSent()               {return num_partitions_sent.sum();}
+    public long             getPartitionsReceived()           {return num_partitions_received.sum();}
+    public long             getBytesSent()                    {return num_bytes_sent.sum();}
+    public long             getBytesReceived()                {return num_bytes_received.sum();}
+    public long             getChecksumFailures()             {return num_checksum_failures.sum();}
+    public long             getResumed()                      {return num_resumed.sum();}
+    public long             getRestarted()                    {return num_restarted.sum();}
+    public long             getRejectedProviders()            {return num_rejected_providers.sum();}
+
+    @ManagedAttribute(description="Number of partitions currently being sent")
+    public int getActiveTransfers() {return snapshots.values().stream().mapToInt(s -> s.transfers.size()).sum();}
+
+    @ManagedAttribute(description="Number of snapshots taken for requesters")
+    public int getSnapshots() {return snapshots.size();}
+
+    @ManagedOperation(description="Prints the progress of the current state transfer")
+    public synchronized String printProgress() {
+        return fetch != null? fetch.toString() : "n/a";
+    }
+
+    public List<Integer> requiredDownServices() {
+        return List.of(Event.GET_DIGEST, Event.OVERWRITE_DIGEST);
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        Stream.of(num_state_reqs, num_partitions_sent, num_partitions_received, num_bytes_sent, num_bytes_received,
+                  num_checksum_failures, num_resumed, num_restarted, num_rejected_providers).forEach(LongAdder::reset);
+    }
+
+    public void init() throws Exception {
+        super.init();
+        if(chunk_size <= 0 || max_credits <= 0 || partitions_per_provider <= 0)
+            throw new IllegalArgumentException("chunk_size, max_credits and partitions_per_provider have to be > 0");
+        thread_pool=createThreadPool();
+    }
+
+    public void destroy() {
+        if(thread_pool != null)
+            thread_pool.shutdownNow();
+        super.destroy();
+    }
+
+    public void start() throws Exception {
+        Map<String,Object> map=new HashMap<>();
+        map.put("state_transfer", true);
+        map.put("protocol_class", getClass().getName());
+        up_prot.up(new Event(Event.CONFIG, map));
+    }
+
+    public void stop() {
+        super.stop();
+        snapshots.values().forEach(Snapshot::close);
+        snapshots.clear();
+    }
+
+    public Object down(Event evt) {
+        switch(evt.getType()) {
+            case Event.VIEW_CHANGE:
+                handleViewChange(evt.getArg());
+                break;
+            case Event.GET_STATE:
+                StateTransferInfo info=evt.getArg();
+                getState(info.target);
+                return null; // don't pass down any further !
+            case Event.CONFIG:
+                handleConfig(evt.getArg());
+                break;
+        }
+        return down_prot.down(evt);
+    }
+
+    public Object up(Event evt) {
+        switch(evt.getType()) {
+            case Event.TMP_VIEW:
+            case Event.VIEW_CHANGE:
+                handleViewChange(evt.getArg());
+                break;
+            case Event.CONFIG:
+                handleConfig(evt.getArg());
+                break;
+        }
+        return up_prot.up(evt);
+    }
+
+    public Object up(Message msg) {
+        StateHeader hdr=msg.getHeader(this.id);
+        if(hdr != null) {
+            handle(hdr, msg);
+            return null;
+        }
+        return up_prot.up(msg);
+    }
+
+    public void up(MessageBatch batch) {
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            StateHeader hdr=msg.getHeader(id);
+            if(hdr != null) {
+                it.remove();
+                handle(hdr, msg);
+            }
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+    protected void handle(StateHeader hdr, Message msg) {
+        Address sender=msg.getSrc();
+        switch(hdr.type) {
+            case StateHeader.STATE_REQ:
+                handleStateReq(sender, hdr.attempt);
+                break;
+            case StateHeader.STATE_RSP:
+                handleStateRsp(sender, hdr);
+                break;
+            case StateHeader.PARTITION_REQ:
+                handlePartitionReq(sender, hdr);
+                break;
+            case StateHeader.CHUNK:
+                handleChunk(sender, hdr, msg.getArray(), msg.getOffset(), msg.getLength());
+                break;
+            case StateHeader.CHUNK_ACK:
+                Transfer t=getTransfer(sender, hdr.snapshot, hdr.partition);
+                if(t != null && t.attempt == hdr.attempt)
+                    t.credits.release();
+                break;
+            case StateHeader.PARTITION_EOF:
+                handleEOF(sender, hdr);
+                break;
+            case StateHeader.STATE_EX:
+                Throwable ex;
+                try {
+                    ex=Util.exceptionFromBuffer(msg.getArray(), msg.getOffset(), msg.getLength());
+                }
+                catch(Throwable th) {
+                    ex=th;
+                }
+                handleException(sender, hdr, ex);
+                break;
+            case StateHeader.STATE_DONE:
+                handleStateDone(sender, hdr.attempt);
+                break;
+            default:
+                log.error("%s: type %d not known in StateHeader", local_addr, hdr.type);
+                break;
+        }
+    }
+
+    /* ------------------------------------------- Requester ------------------------------------------ */
+
+    protected void getState(Address target) {
+        if(Objects.equals(target, local_addr)) {
+            log.error("%s: cannot fetch state from myself", local_addr);
+            target=null;
+        }
+        if(target == null)
+            target=determineCoordinator();
+        if(target == null) {
+            log.debug("%s: first member (no state)", local_addr);
+            up_prot.up(new Event(Event.STATE_TRANSFER_INPUTSTREAM_CLOSED, new StateTransferResult()));
+            return;
+        }
+        List<Address> providers;
+        synchronized(members) {
+            providers=new ArrayList<>(members);
+        }
+        providers.remove(local_addr);
+        providers.remove(target);
+        providers.add(0, target);
+        if(max_providers > 0 && providers.size() > max_providers)
+            providers=providers.subList(0, max_providers);
+
+        Fetch prev, f=null;
+        List<StateHeader> reqs=null;
+        synchronized(this) {
+            // a previous state transfer timed out: resume it (its snapshots and digest are still valid)
+            if((prev=fetch) != null && prev.digest != null)
+                reqs=prev.resume();
+            else
+                fetch=f=new Fetch(target, providers, ++fetch_attempts);
+        }
+        if(f == null) {
+            log.debug("%s: resuming the state transfer in progress (%s)", local_addr, prev);
+            sendPartitionRequests(reqs);
+            return;
+        }
+        if(prev != null)
+            done(prev);
+        log.debug("%s: asking %s for their digests and snapshots", local_addr, providers);
+        for(Address provider: providers)
+            send(new EmptyMessage(provider).setFlag(Message.Flag.SKIP_BARRIER, Message.Flag.DONT_BUNDLE, Message.Flag.OOB),
+                 new StateHeader(StateHeader.STATE_REQ).attempt(f.attempt));
+    }
+
+    protected void handleStateRsp(Address provider, StateHeader hdr) {
+        Fetch f;
+        synchronized(this) {
+            if((f=fetch) == null || f.attempt != hdr.attempt || !f.asked.contains(provider))
+                return;
+            if(!provider.equals(f.primary) && f.digest == null) { // the primary's digest has not yet been received
+                f.rsps.put(provider, hdr);
+                return;
+            }
+        }
+        if(provider.equals(f.primary))
+            start(f, hdr);
+        else
+            addProvider(f, provider, hdr);
+    }
+
+    /** Sets the digest of the primary and starts fetching the partitions */
+    protected void start(Fetch f, StateHeader hdr) {
+        if(partitionedState() == null) {
+            fail(f, new IllegalStateException(String.format("%s: no %s found", local_addr,
+                                                            PartitionedState.class.getSimpleName())));
+            return;
+        }
+        try {
+            closeBarrierAndSuspendStable();
+            down_prot.down(new Event(Event.OVERWRITE_DIGEST, hdr.digest)); // set the digest (e.g. in NAKACK)
+        }
+        catch(Throwable t) {
+            fail(f, t);
+            return;
+        }
+        List<Address> rejected=new ArrayList<>();
+        List<StateHeader> reqs;
+        synchronized(this) {
+            if(fetch != f)
+                return;
+            f.start(hdr);
+            for(Map.Entry<Address,StateHeader> e: f.rsps.entrySet()) {
+                if(!f.accept(e.getKey(), e.getValue()))
+                    rejected.add(e.getKey());
+            }
+            f.rsps.clear();
+            reqs=f.assign();
+        }
+        rejected.forEach(p -> rejectProvider(p, f.attempt));
+        log.debug("%s: fetching %d partitions from %s", local_addr, hdr.num_partitions, f.providers);
+        if(f.isDone())
+            finish(f);
+        else
+            sendPartitionRequests(reqs);
+    }
+
+    /** Fetches partitions from a provider if its digest is the same as the primary's, or else releases its snapshot */
+    protected void addProvider(Fetch f, Address provider, StateHeader hdr) {
+        boolean accepted;
+        List<StateHeader> reqs=null;
+        synchronized(this) {
+            if(fetch != f)
+                return;
+            if(accepted=f.accept(provider, hdr))
+                reqs=f.assign();
+        }
+        if(accepted)
+            sendPartitionRequests(reqs);
+        else
+            rejectProvider(provider, f.attempt);
+    }
+
+    protected void rejectProvider(Address provider, int attempt) {
+        num_rejected_providers.increment();
+        log.debug("%s: not fetching partitions from %s, as its digest is different", local_addr, provider);
+        send(new EmptyMessage(provider).setFlag(Message.Flag.OOB, Message.Flag.DONT_BUNDLE),
+             new StateHeader(StateHeader.STATE_DONE).attempt(attempt));
+    }
+
+    protected void handleChunk(Address sender, StateHeader hdr, byte[] buf, int off, int len) {
+        int p=hdr.partition;
+        Fetch f;
+        synchronized(this) {
+            if((f=fetch) == null || !f.isCurrent(sender, p, hdr.snapshot, hdr.attempt) || hdr.offset != f.offsets[p])
+                return; // chunk of a cancelled transfer
+        }
+        if(checksums && checksum(buf, off, len) != hdr.checksum) {
+            num_checksum_failures.increment();
+            log.warn("%s: chunk of partition %d at offset %d from %s has an invalid checksum, requesting it again",
+                     local_addr, p, hdr.offset, sender);
+            StateHeader req;
+            synchronized(this) {
+                req=f.isCurrent(sender, p, hdr.snapshot, hdr.attempt)? f.request(p, sender) : null;
+            }
+            sendPartitionRequests(req != null? List.of(req) : null);
+            return;
+        }
+        try {
+            partitionedState().setState(p, hdr.offset, buf, off, len);
+        }
+        catch(Throwable t) {
+            fail(f, t);
+            return;
+        }
+        num_bytes_received.add(len);
+        synchronized(this) {
+            if(!f.isCurrent(sender, p, hdr.snapshot, hdr.attempt) || hdr.offset != f.offsets[p])
+                return; // reassigned in the meantime: the chunk will be set again
+            f.offsets[p]+=len;
+        }
+        send(new EmptyMessage(sender).setFlag(Message.Flag.OOB, Message.Flag.DONT_BUNDLE),
+             new StateHeader(StateHeader.CHUNK_ACK).partition(p).snapshot(hdr.snapshot).attempt(hdr.attempt));
+    }
+
+    protected void handleEOF(Address sender, StateHeader hdr) {
+        int p=hdr.partition;
+        Fetch f;
+        List<StateHeader> reqs;
+        synchronized(this) {
+            if((f=fetch) == null || !f.isCurrent(sender, p, hdr.snapshot, hdr.attempt) || hdr.offset != f.offsets[p])
+                return;
+            f.received(p, sender);
+            reqs=f.assign();
+        }
+        num_partitions_received.increment();
+        log.trace("%s: received partition %d (%d bytes) from %s", local_addr, p, hdr.offset, sender);
+        try {
+            partitionedState().partitionReceived(p, hdr.offset);
+        }
+        catch(Throwable t) {
+            fail(f, t);
+            return;
+        }
+        if(f.isDone())
+            finish(f);
+        else
+            sendPartitionRequests(reqs);
+    }
+
+    protected void handleException(Address sender, StateHeader hdr, Throwable ex) {
+        Fetch f;
+        synchronized(this) {
+            if((f=fetch) == null)
+                return;
+            if(hdr.partition < 0) { // the state request failed
+                if(f.attempt != hdr.attempt || !f.asked.contains(sender))
+                    return;
+                if(!sender.equals(f.primary)) {
+                    f.asked.remove(sender);
+                    f.rsps.remove(sender);
+                    log.warn("%s: not fetching partitions from %s: %s", local_addr, sender, ex);
+                    return;
+                }
+            }
+            else if(!f.isCurrent(sender, hdr.partition, hdr.snapshot, hdr.attempt))
+                return;
+        }
+        fail(f, ex);
+    }
+
+    protected void finish(Fetch f) {
+        synchronized(this) {
+            if(fetch != f)
+                return;
+            fetch=null;
+        }
+        log.debug("%s: received %d partitions from %s", local_addr, f.num_partitions, f.providers);
+        done(f);
+        up_prot.up(new Event(Event.STATE_TRANSFER_INPUTSTREAM_CLOSED, new StateTransferResult()));
+        down_prot.down(new Event(Event.GET_VIEW_FROM_COORD)); // https://issues.redhat.com/browse/JGRP-1751
+    }
+
+    /** Fails the state transfer. The snapshots are released, so the next state transfer starts from scratch */
+    protected void fail(Fetch f, Throwable ex) {
+        synchronized(this) {
+            if(fetch != f)
+                return;
+            fetch=null;
+        }
+        log.warn("%s: state transfer failed: %s", local_addr, ex);
+        done(f);
+        up_prot.up(new Event(Event.STATE_TRANSFER_INPUTSTREAM_CLOSED, new StateTransferResult(ex)));
+    }
+
+    /** Tells all providers that the state transfer is done (releasing their snapshots), opens BARRIER and resumes
+     * STABLE */
+    protected void done(Fetch f) {
+        List<Address> providers;
+        synchronized(this) {
+            providers=new ArrayList<>(f.asked);
+        }
+        for(Address provider: providers) {
+            send(new EmptyMessage(provider).setFlag(Message.Flag.OOB, Message.Flag.DONT_BUNDLE),
+                 new StateHeader(StateHeader.STATE_DONE).attempt(f.attempt));
+        }
+        openBarrierAndResumeStable();
+        providers.forEach(this::closeHoleFor);
+    }
+
+    protected void sendPartitionRequests(List<StateHeader> reqs) {
+        if(reqs == null)
+            return;
+        for(StateHeader req: reqs) {
+            punchHoleFor(req.provider);
+            log.trace("%s: requesting partition %d (offset %d) from %s", local_addr, req.partition, req.offset, req.provider);
+            send(new EmptyMessage(req.provider).setFlag(Message.Flag.OOB, Message.Flag.DONT_BUNDLE), req);
+        }
+    }
+
+
+    /* ------------------------------------------- Provider ------------------------------------------- */
+
+    protected void handleStateReq(Address requester, int attempt) {
+        log.debug("%s: received state request from %s", local_addr, requester);
+        num_state_reqs.increment();
+        Snapshot prev=snapshots.get(requester);
+        if(prev != null && prev.attempt > attempt)
+            return; // a newer state request has already been received
+        PartitionedState ps=partitionedState();
+        if(ps == null) {
+            sendException(requester, -1, 0, attempt, new IllegalStateException(String.format("%s: no %s found", local_addr,
+                                                                               PartitionedState.class.getSimpleName())));
+            return;
+        }
+        Digest digest;
+        Object snapshot;
+        int num_partitions;
+        try {
+            punchHoleFor(requester);
+            closeBarrierAndSuspendStable();
+            // the digest and the snapshot of all partitions are taken while the delivery of messages is blocked
+            digest=(Digest)down_prot.down(Event.GET_DIGEST_EVT);
+            snapshot=ps.snapshot();
+            num_partitions=ps.numPartitions();
+        }
+        catch(Throwable t) {
+            sendException(requester, -1, 0, attempt, t);
+            if(!snapshots.containsKey(requester)) {
+                resumeStable();
+                closeHoleFor(requester);
+            }
+            return;
+        }
+        finally {
+            openBarrier();
+        }
+        Snapshot s=new Snapshot(snapshot_ids.incrementAndGet(), attempt, requester, ps, snapshot);
+        if((prev=snapshots.put(requester, s)) != null)
+            prev.close();
+        StateHeader hdr=new StateHeader(StateHeader.STATE_RSP).digest(digest).numPartitions(num_partitions)
+          .snapshot(s.id).attempt(attempt);
+        send(new EmptyMessage(requester), hdr);
+    }
+
+    protected void handlePartitionReq(Address requester, StateHeader hdr) {
+        Snapshot s=snapshots.get(requester);
+        if(s == null || s.id != hdr.snapshot) {
+            sendException(requester, hdr.partition, hdr.snapshot, hdr.attempt, new IllegalStateException(
+              String.format("%s: snapshot %d of %s not found", local_addr, hdr.snapshot, requester)));
+            return;
+        }
+        Transfer t=new Transfer(s, hdr.partition, hdr.offset, hdr.attempt);
+        if(!s.add(t))
+            return; // the snapshot was released
+        try {
+            thread_pool.execute(t);
+        }
+        catch(RejectedExecutionException ex) {
+            s.remove(t);
+            sendException(requester, hdr.partition, hdr.snapshot, hdr.attempt, ex);
+        }
+    }
+
+    /** The requester is done (or failed): cancels all transfers, releases the snapshot and resumes STABLE */
+    protected void handleStateDone(Address requester, int attempt) {
+        Snapshot s=snapshots.get(requester);
+        if(s == null || s.attempt > attempt)
+            return; // the snapshot belongs to a newer state request
+        if(snapshots.remove(requester, s)) {
+            s.close();
+            resumeStable();
+            closeHoleFor(requester);
+        }
+    }
+
+    protected Transfer getTransfer(Address requester, long snapshot, int partition) {
+        Snapshot s=snapshots.get(requester);
+        return s != null && s.id == snapshot? s.transfers.get(partition) : null;
+    }
+
+    protected void sendException(Address requester, int partition, long snapshot, int attempt, Throwable exception) {
+        try {
+            Message ex_msg=new BytesMessage(requester).setArray(Util.exceptionToBuffer(exception));
+            send(ex_msg, new StateHeader(StateHeader.STATE_EX).partition(partition).snapshot(snapshot).attempt(attempt));
+        }
+        catch(Throwable t) {
+            log.error("%s: failed sending exception %s to %s", local_addr, exception.toString(), requester);
+        }
+    }
+
+
+    /* ------------------------------------------- Common ------------------------------------------- */
+
+    protected PartitionedState partitionedState() {
+        if(state != null)
+            return state;
+        JChannel ch=stack != null? stack.getChannel() : null;
+        return ch != null && ch.getReceiver() instanceof PartitionedState ps? ps : null;
+    }
+
+    protected void send(Message msg, StateHeader hdr) {
+        down_prot.down(msg.putHeader(id, hdr));
+    }
+
+    protected static int checksum(byte[] buf, int off, int len) {
+        CRC32C crc=new CRC32C();
+        crc.update(buf, off, len);
+        return (int)crc.getValue();
+    }
+
+    /** Returns true if both digests have the same members and highest delivered seqnos */
+    protected static boolean sameDelivered(Digest d1, Digest d2) {
+        if(d1 == null || d2 == null)
+            return d1 == d2;
+        if(d1.capacity() != d2.capacity())
+            return false;
+        for(Digest.Entry e: d1) {
+            long[] seqnos=d2.get(e.member());
+            if(seqnos == null || seqnos[0] != e.hd())
+                return false;
+        }
+        return true;
+    }
+
+    protected void handleConfig(Map<String,Object> config) {
+        if(config != null && config.containsKey("state_transfer"))
+            throw new IllegalArgumentException("Protocol stack must have only one state transfer protocol");
+    }
+
+    protected void handleViewChange(View v) {
+        List<Address> new_members=v.getMembers();
+        synchronized(members) {
+            members.clear();
+            members.addAll(new_members);
+        }
+        // provider: release the snapshots of requesters which left
+        for(Address requester: snapshots.keySet())
+            if(!new_members.contains(requester))
+                handleStateDone(requester, Integer.MAX_VALUE);
+
+        // requester: restart the partitions of providers which left at other providers
+        Fetch f;
+        List<StateHeader> reqs=null;
+        Throwable ex=null;
+        synchronized(this) {
+            if((f=fetch) != null) {
+                if(f.digest == null) {
+                    if(!new_members.contains(f.primary))
+                        ex=new EOFException(String.format("%s left before sending its digest", f.primary));
+                    else
+                        f.removeProviders(new_members);
+                }
+                else {
+                    int restarted=f.removeProviders(new_members);
+                    num_restarted.add(restarted);
+                    if(f.providers.isEmpty())
+                        ex=new EOFException("all state providers left");
+                    else if(restarted > 0)
+                        reqs=f.assign();
+                }
+            }
+        }
+        if(ex != null)
+            fail(f, ex);
+        else
+            sendPartitionRequests(reqs);
+    }
+
+    protected Address determineCoordinator() {
+        synchronized(members) {
+            for(Address member: members) {
+                if(!local_addr.equals(member))
+                    return member;
+            }
+        }
+        return null;
+    }
+
+    protected ThreadPoolExecutor createThreadPool() {
+        ThreadPoolExecutor pool=new ThreadPoolExecutor(max_pool, max_pool, pool_thread_keep_alive,
+                                                       TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        pool.allowCoreThreadTimeOut(true);
+        AtomicInteger thread_id=new AtomicInteger(1);
+        pool.setThreadFactory(r -> getThreadFactory().newThread(r, "STATE_PARALLEL-sender-" + thread_id.getAndIncrement()));
+        pool.setRejectedExecutionHandler(new ShutdownRejectedExecutionHandler(pool.getRejectedExecutionHandler()));
+        return pool;
+    }
+
+    public void closeBarrierAndSuspendStable() {
+        down_prot.down(new Event(Event.CLOSE_BARRIER));
+        down_prot.down(new Event(Event.SUSPEND_STABLE));
+    }
+
+    public void openBarrierAndResumeStable() {
+        openBarrier();
+        resumeStable();
+    }
+
+    protected void openBarrier()                  {down_prot.down(new Event(Event.OPEN_BARRIER));}
+    protected void resumeStable()                 {down_prot.down(new Event(Event.RESUME_STABLE));}
+    protected void punchHoleFor(Address member)   {down_prot.down(new Event(Event.PUNCH_HOLE, member));}
+    protected void closeHoleFor(Address member)   {down_prot.down(new Event(Event.CLOSE_HOLE, member));}
+
+
+    /** Requester: the progress of a state transfer */
+    protected class Fetch {
+        protected final Address              primary;  // the provider of the digest
+        protected final int                  attempt;  // the attempt of the state request
+        protected final Set<Address>         asked;    // the providers which were sent a state request
+        protected final Map<Address,StateHeader> rsps=new HashMap<>(); // received before the digest of the primary
+        protected Digest                     digest;   // the digest of the primary, set in the requester
+        protected int                        num_partitions;
+        protected long[]                     offsets;  // offset of the next chunk, by partition
+        protected boolean[]                  done;     // partitions which have been received
+        protected Address[]                  assigned; // the provider from which a partition is fetched, by partition
+        protected int[]                      attempts; // incremented every time a partition is requested
+        protected final List<Address>        providers=new ArrayList<>(); // providers with the same digest as the primary
+        protected final Map<Address,Long>    snapshot_ids=new HashMap<>(); // the IDs of the snapshots of the providers
+        protected final Deque<Integer>       pending=new ArrayDeque<>();
+        protected final Map<Address,Integer> load=new HashMap<>(); // partitions being fetched, by provider
+        protected int                        num_done;
+        protected int                        next_provider;
+
+        protected Fetch(Address primary, Collection<Address> providers, int attempt) {
+            this.primary=primary;
+            this.asked=new LinkedHashSet<>(providers);
+            this.attempt=attempt;
+        }
+
+        /** Starts fetching the partitions from the snapshot of the primary */
+        protected void start(StateHeader rsp) {
+            digest=rsp.digest;
+            num_partitions=rsp.num_partitions;
+            offsets=new long[num_partitions];
+            done=new boolean[num_partitions];
+            assigned=new Address[num_partitions];
+            attempts=new int[num_partitions];
+            for(int i=0; i < num_partitions; i++)
+                pending.add(i);
+            providers.add(primary);
+            snapshot_ids.put(primary, rsp.snapshot);
+        }
+
+        /** Adds a provider if its snapshot was taken at the same digest as the primary's. Returns false if not */
+        protected boolean accept(Address provider, StateHeader rsp) {
+            if(rsp.num_partitions != num_partitions || !sameDelivered(digest, rsp.digest)) {
+                asked.remove(provider);
+                return false;
+            }
+            providers.add(provider);
+            snapshot_ids.put(provider, rsp.snapshot);
+            return true;
+        }
+
+        protected boolean isDone() {return offsets != null && num_done == num_partitions;}
+
+        protected boolean isCurrent(Address provider, int p, long snapshot, int attempt) {
+            return offsets != null && p >= 0 && p < num_partitions && !done[p] && provider.equals(assigned[p])
+              && attempts[p] == attempt && Objects.equals(snapshot_ids.get(provider), snapshot);
+        }
+
+        /** Assigns pending partitions to providers with less than partitions_per_provider partitions */
+        protected List<StateHeader> assign() {
+            List<StateHeader> reqs=null;
+            int idle=0;
+            while(!pending.isEmpty() && idle < providers.size()) {
+                Address provider=providers.get(next_provider++ % providers.size());
+                if(load.getOrDefault(provider, 0) >= partitions_per_provider) {
+                    idle++;
+                    continue;
+                }
+                idle=0;
+                if(reqs == null)
+                    reqs=new ArrayList<>();
+                reqs.add(request(pending.poll(), provider));
+            }
+            return reqs;
+        }
+
+        /** Requests partition p from the snapshot of provider, at the offset of the next chunk */
+        protected StateHeader request(int p, Address provider) {
+            if(!provider.equals(assigned[p])) {
+                if(assigned[p] != null)
+                    load.merge(assigned[p], -1, Integer::sum);
+                load.merge(provider, 1, Integer::sum);
+                assigned[p]=provider;
+            }
+            return new StateHeader(StateHeader.PARTITION_REQ).partition(p).offset(offsets[p])
+              .snapshot(snapshot_ids.get(provider)).attempt(++attempts[p]).provider(provider);
+        }
+
+        /** Requests the partitions being fetched again from the same snapshots, at the offsets reached */
+        protected List<StateHeader> resume() {
+            List<StateHeader> reqs=new ArrayList<>();
+            for(int i=0; i < num_partitions; i++) {
+                if(!done[i] && assigned[i] != null) {
+                    reqs.add(request(i, assigned[i]));
+                    if(offsets[i] > 0)
+                        num_resumed.increment();
+                }
+            }
+            List<StateHeader> tmp=assign();
+            if(tmp != null)
+                reqs.addAll(tmp);
+            return reqs;
+        }
+
+        protected void received(int p, Address provider) {
+            done[p]=true;
+            num_done++;
+            assigned[p]=null;
+            load.merge(provider, -1, Integer::sum);
+        }
+
+        /** Removes providers which are not members anymore, and re-queues their partitions at offset 0 (the other
+         * providers have different snapshots). Returns the number of partitions which have to be restarted */
+        protected int removeProviders(Collection<Address> mbrs) {
+            asked.retainAll(mbrs);
+            rsps.keySet().retainAll(mbrs);
+            if(!providers.removeIf(p -> !mbrs.contains(p)))
+                return 0;
+            snapshot_ids.keySet().retainAll(mbrs);
+            int count=0;
+            for(int i=0; i < num_partitions; i++) {
+                if(!done[i] && assigned[i] != null && !mbrs.contains(assigned[i])) {
+                    load.remove(assigned[i]);
+                    assigned[i]=null;
+                    offsets[i]=0;
+                    pending.addFirst(i);
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public String toString() {
+            if(offsets == null)
+                return String.format("waiting for the digest from %s", primary);
+            return String.format("%d/%d partitions received (%,d bytes), providers: %s", num_done, num_partitions,
+                                 Arrays.stream(offsets).sum(), providers);
+        }
+    }
+
+
+    /** Provider: a snapshot of all partitions taken for a requester, and the transfers of its partitions */
+    protected class Snapshot {
+        protected final long                  id;
+        protected final int                   attempt;   // the attempt of the state request
+        protected final Address               requester;
+        protected final PartitionedState      ps;
+        protected final Object                state;     // returned by PartitionedState.snapshot()
+        protected final Map<Integer,Transfer> transfers=new ConcurrentHashMap<>();
+        protected int                         running;   // transfers which have not yet returned from getState()
+        protected boolean                     closed;
+
+        protected Snapshot(long id, int attempt, Address requester, PartitionedState ps, Object state) {
+            this.id=id;
+            this.attempt=attempt;
+            this.requester=requester;
+            this.ps=ps;
+            this.state=state;
+        }
+
+        /** Adds a transfer, cancelling the previous transfer of the same partition. Returns false if closed */
+        protected synchronized boolean add(Transfer t) {
+            if(closed)
+                return false;
+            Transfer old=transfers.put(t.partition, t);
+            if(old != null)
+                old.cancel();
+            running++;
+            return true;
+        }
+
+        protected void remove(Transfer t) {
+            boolean release;
+            synchronized(this) {
+                transfers.remove(t.partition, t);
+                release=--running == 0 && closed;
+            }
+            if(release)
+                release();
+        }
+
+        /** Cancels all transfers; the snapshot is released when the last transfer has returned */
+        protected void close() {
+            boolean release;
+            synchronized(this) {
+                if(closed)
+                    return;
+                closed=true;
+                transfers.values().forEach(Transfer::cancel);
+                release=running == 0;
+            }
+            if(release)
+                release();
+        }
+
+        protected void release() {
+            try {
+                ps.release(state);
+            }
+            catch(Throwable t) {
+                log.error("%s: failed releasing snapshot %d of %s: %s", local_addr, id, requester, t);
+            }
+        }
+
+        public String toString() {
+            return String.format("snapshot %d for %s (%d transfers)", id, requester, transfers.size());
+        }
+    }
+
+
+    /** Provider: sends a partition of a snapshot to a requester */
+    protected class Transfer implements Runnable {
+        protected final Snapshot         snapshot;
+        protected final Address          requester;
+        protected final int              partition, attempt;
+        protected final long             start_offset;
+        protected final Semaphore        credits=new Semaphore(max_credits);
+        protected volatile boolean       cancelled;
+
+        protected Transfer(Snapshot s, int partition, long offset, int attempt) {
+            this.snapshot=s;
+            this.requester=s.requester;
+            this.partition=partition;
+            this.start_offset=offset;
+            this.attempt=attempt;
+        }
+
+        protected void cancel() {
+            cancelled=true;
+            credits.release(max_credits); // unblocks a writer waiting for credits
+        }
+
+        public void run() {
+            ChunkOutputStream out=new ChunkOutputStream(this);
+            try {
+                snapshot.ps.getState(snapshot.state, partition, start_offset, out);
+                out.flush();
+                if(cancelled)
+                    return;
+                send(new EmptyMessage(requester), new StateHeader(StateHeader.PARTITION_EOF).partition(partition)
+                  .offset(out.offset).snapshot(snapshot.id).attempt(attempt));
+                num_partitions_sent.increment();
+            }
+            catch(Throwable t) {
+                if(!cancelled)
+                    sendException(requester, partition, snapshot.id, attempt, t);
+            }
+            finally {
+                snapshot.remove(this);
+            }
+        }
+
+        public String toString() {
+            return String.format("partition %d of snapshot %d to %s (attempt %d)", partition, snapshot.id, requester, attempt);
+        }
+    }
+
+
+    /** Sends the bytes written in chunks of chunk_size; blocks when the transfer has no credits left */
+    protected class ChunkOutputStream extends OutputStream {
+        protected final Transfer transfer;
+        protected byte[]         buf=new byte[chunk_size];
+        protected int            pos;
+        protected long           offset; // the offset of the next chunk
+
+        protected ChunkOutputStream(Transfer t) {
+            this.transfer=t;
+            this.offset=t.start_offset;
+        }
+
+        public void write(int b) throws IOException {
+            if(pos >= buf.length)
+                sendChunk();
+            buf[pos++]=(byte)b;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                if(pos >= buf.length)
+                    sendChunk();
+                int n=Math.min(len, buf.length - pos);
+                System.arraycopy(b, off, buf, pos, n);
+                pos+=n;
+                off+=n;
+                len-=n;
+            }
+        }
+
+        public void flush() throws IOException {
+            if(pos > 0)
+                sendChunk();
+        }
+
+        protected void sendChunk() throws IOException {
+            try {
+                transfer.credits.acquire();
+            }
+            catch(InterruptedException e) {
+                throw new InterruptedIOException("transfer of " + transfer + " was interrupted");
+            }
+            if(transfer.cancelled)
+                throw new InterruptedIOException("transfer of " + transfer + " was cancelled");
+            StateHeader hdr=new StateHeader(StateHeader.CHUNK).partition(transfer.partition).offset(offset)
+              .snapshot(transfer.snapshot.id).attempt(transfer.attempt).checksum(checksums? checksum(buf, 0, pos) : 0);
+            // the message keeps a reference to buf (for retransmission): a new buffer is used for the next chunk
+            send(new BytesMessage(transfer.requester, buf, 0, pos), hdr);
+            num_bytes_sent.add(pos);
+            offset+=pos;
+            buf=new byte[chunk_size];
+            pos=0;
+        }
+    }
+
+
+    public static class StateHeader extends Header {
+        public static final byte STATE_REQ     = 1; // requester -> provider: attempt (take a digest and a snapshot)
+        public static final byte STATE_RSP     = 2; // provider -> requester: digest, number of partitions, snapshot, attempt
+        public static final byte PARTITION_REQ = 3; // requester -> provider: partition, offset, snapshot, attempt
+        public static final byte CHUNK         = 4; // provider -> requester: partition, offset, snapshot, attempt, checksum
+        public static final byte CHUNK_ACK     = 5; // requester -> provider: partition, snapshot, attempt
+        public static final byte PARTITION_EOF = 6; // provider -> requester: partition, offset (length), snapshot, attempt
+        public static final byte STATE_EX      = 7; // provider -> requester: partition (-1 if none), snapshot, attempt
+        public static final byte STATE_DONE    = 8; // requester -> provider: attempt (release the snapshot)
+
+        protected byte    type;
+        protected int     partition;
+        protected long    offset;
+        protected long    snapshot; // the ID of the provider's snapshot
+        protected int     attempt;
+        protected int     checksum;
+        protected int     num_partitions;
+        protected Digest  digest;
+        protected Address provider; // not marshalled
+
+        public StateHeader() {
+        }
+
+        public StateHeader(byte type)                           {this.type=type;}
+        public short                      getMagicId()          {return 81;}
+        public Supplier<? extends Header> create()              {return StateHeader::new;}
+        public byte                       type()                {return type;}
+        public StateHeader                partition(int p)      {this.partition=p; return this;}
+        public StateHeader                offset(long o)        {this.offset=o; return this;}
+        public StateHeader                snapshot(long s)      {this.snapshot=s; return this;}
+        public StateHeader                attempt(int a)        {this.attempt=a; return this;}
+        public StateHeader                checksum(int c)       {this.checksum=c; return this;}
+        public StateHeader                numPartitions(int n)  {this.num_partitions=n; return this;}
+        public StateHeader                digest(Digest d)      {this.digest=d; return this;}
+        protected StateHeader             provider(Address p)   {this.provider=p; return this;}
+
+        @Override
+        public int serializedSize() {
+            return Global.BYTE_SIZE + Bits.size(partition) + Bits.size(offset) + Bits.size(snapshot) + Bits.size(attempt) + Global.INT_SIZE
+              + Bits.size(num_partitions) + Global.BYTE_SIZE + (digest != null? digest.serializedSize(true) : 0);
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(type);
+            Bits.writeIntCompressed(partition, out);
+            Bits.writeLongCompressed(offset, out);
+            Bits.writeLongCompressed(snapshot, out);
+            Bits.writeIntCompressed(attempt, out);
+            out.writeInt(checksum);
+            Bits.writeIntCompressed(num_partitions, out);
+            Util.writeStreamable(digest, out);
+        }
+
+        @Override
+        public void readFrom(DataInput in) throws IOException, ClassNotFoundException {
+            type=in.readByte();
+            partition=Bits.readIntCompressed(in);
+            offset=Bits.readLongCompressed(in);
+            snapshot=Bits.readLongCompressed(in);
+            attempt=Bits.readIntCompressed(in);
+            checksum=in.readInt();
+            num_partitions=Bits.readIntCompressed(in);
+            digest=Util.readStreamable(Digest::new, in);
+        }
+
+        public String toString() {
+            return switch(type) {
+                case STATE_REQ, STATE_DONE -> String.format("%s attempt=%d", type2Str(type), attempt);
+                case STATE_RSP -> String.format("%s partitions=%d, snapshot=%d, attempt=%d, digest=%s", type2Str(type),
+                                                num_partitions, snapshot, attempt, digest);
+                default -> String.format("%s partition=%d, offset=%d, snapshot=%d, attempt=%d", type2Str(type), partition,
+                                         offset, snapshot, attempt);
+            };
+        }
+
+        static String type2Str(byte t) {
+            return switch(t) {
+                case STATE_REQ     -> "STATE_REQ";
+                case STATE_RSP     -> "STATE_RSP";
+                case PARTITION_REQ -> "PARTITION_REQ";
+                case CHUNK         -> "CHUNK";
+                case CHUNK_ACK     -> "CHUNK_ACK";
+                case PARTITION_EOF -> "PARTITION_EOF";
+                case STATE_EX      -> "STATE_EX";
+                case STATE_DONE    -> "STATE_DONE";
+                default            -> "<unknown>";
+            };
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.jgroups.annotations.MBean;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
+import org.jgroups.conf.AttributeType;
 import org.jgroups.protocols.UNICAST3;
 import org.jgroups.protocols.relay.SiteAddress.Type;
 import org.jgroups.protocols.relay.SiteStatus.Status;
@@ -44,6 +45,20 @@ public class RELAY3 extends RELAY {
       "RelayTest.testFailover() for details")
     protected long             delay_site_unreachable_events=3000;
 
+    @Property(description="When true, messages relayed to a remote site are queued and sent as batches over the " +
+      "bridge. Repeated addresses are marshalled only once per batch")
+    protected boolean          bridge_batching;
+
+    @Property(description="Number of send queues (lanes) per route when bridge_batching is enabled. Messages from " +
+      "the same sender always use the same lane, so their order is preserved")
+    protected int              bridge_lanes=1;
+
+    @Property(description="Max number of bytes in a batch sent over the bridge",type=AttributeType.BYTES)
+    protected int              max_bridge_batch_size=64_000;
+
+    @Property(description="Max number of messages queued in a lane; senders block when a lane is full")
+    protected int              bridge_queue_capacity=1024;
+
     protected Delayer<String>  site_unreachable_delayer;
     protected UNICAST3         unicast;
 
@@ -54,6 +69,14 @@ public class RELAY3 extends RELAY {
         if(site_unreachable_delayer != null)
             site_unreachable_delayer.timeout(t);
         return this;}
+    public boolean    bridgeBatching()                   {return bridge_batching;}
+    public RELAY3     bridgeBatching(boolean b)          {bridge_batching=b; return this;}
+    public int        bridgeLanes()                      {return bridge_lanes;}
+    public RELAY3     bridgeLanes(int n)                 {bridge_lanes=n; return this;}
+    public int        maxBridgeBatchSize()               {return max_bridge_batch_size;}
+    public RELAY3     maxBridgeBatchSize(int s)          {max_bridge_batch_size=s; return this;}
+    public int        bridgeQueueCapacity()              {return bridge_queue_capacity;}
+    public RELAY3     bridgeQueueCapacity(int c)         {bridge_queue_capacity=c; return this;}
 
     @Override public void configure() throws Exception {
         super.configure();
@@ -82,6 +105,21 @@ public class RELAY3 extends RELAY {
         site_unreachable_delayer.clear();
     }
 
+    @ManagedOperation(description="Prints the number of messages, batches and bytes sent, the throughput and the " +
+      "number of queued messages of each route. Only available if we're a site master")
+    public String printRouteStats() {
+        Relayer r=relayer;
+        return r != null? r.printRouteStats() : "n/a (not site master)";
+    }
+
+    @Override
+    public void resetStats() {
+        super.resetStats();
+        Relayer r=relayer;
+        if(r != null)
+            r.resetRouteStats();
+    }
+
     @ManagedOperation(description="Prints the topology (site masters and local members) of this site")
     public String printTopology(boolean all_sites) {
         if(!all_sites)
@@ -277,6 +315,10 @@ public class RELAY3 extends RELAY {
             log.warn("%s: received a message without a relay header; discarding it", local_addr);
             return;
         }
+        if(hdr.type == BATCH) {
+            handleRelayBatch(msg);
+            return;
+        }
         try {
             Header[] original_hdrs=hdr.originalHeaders();
             Message copy=copy(msg).dest(hdr.final_dest).src(hdr.original_sender);
@@ -294,6 +336,20 @@ public class RELAY3 extends RELAY {
         }
     }
 
+    /** Unmarshals the messages of a batch sent by a remote site master and handles them one by one, in order */
+    protected void handleRelayBatch(Message batch) {
+        List<Message> msgs;
+        try {
+            msgs=Route.readBatch(batch, id);
+        }
+        catch(Exception ex) {
+            log.error("%s: failed reading batch relayed from %s: %s", local_addr, batch.src(), ex);
+            return;
+        }
+        for(Message msg: msgs)
+            handleRelayMessage(msg);
+    }
+
     /** Handles SITES_UP/SITES_DOWN/TOPO_REQ/TOPO_RSP messages */
     protected boolean handleAdminMessage(RelayHeader hdr, Message msg) {
         switch(hdr.type) {
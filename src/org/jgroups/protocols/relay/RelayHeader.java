@@ -26,6 +26,7 @@ public class RelayHeader extends Header {
     public static final byte SITES_DOWN       = 5;
     public static final byte TOPO_REQ         = 6;
     public static final byte TOPO_RSP         = 7; // View is the payload of the response message (site: hdr.sites)
+    public static final byte BATCH            = 8; // the payload contains multiple relayed messages (RELAY3 only)
 
     protected byte        type;
     protected Address     final_dest;
@@ -196,6 +197,7 @@ public class RelayHeader extends Header {
             case SITES_DOWN:       return "SITES_DOWN";
             case TOPO_REQ:         return "TOPO_REQ";
             case TOPO_RSP:         return "TOPO_RSP";
+            case BATCH:            return "BATCH";
             default:               return "<unknown>";
         }
     }
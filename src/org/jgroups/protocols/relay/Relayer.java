@@ -95,6 +95,19 @@ public abstract class Relayer {
         return sb.toString();
     }
 
+    protected synchronized String printRouteStats() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<String,List<Route>> entry: routes.entrySet()) {
+            for(Route r: entry.getValue())
+                sb.append(entry.getKey()).append(" --> ").append(r.printStats()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    protected synchronized void resetRouteStats() {
+        routes.values().forEach(l -> l.forEach(Route::resetStats));
+    }
+
     /** Returns a Route matching any of the ForwardingRoutes, or null if none matches */
     protected synchronized Route getForwardingRouteMatching(String site, Address sender) {
         if(site == null)
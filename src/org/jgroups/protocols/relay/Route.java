@@ -3,13 +3,17 @@ package org.jgroups.protocols.relay;
 
 import org.jgroups.*;
 import org.jgroups.logging.Log;
-import org.jgroups.util.Headers;
-import org.jgroups.util.Util;
+import org.jgroups.util.*;
 
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+import static org.jgroups.protocols.relay.RelayHeader.BATCH;
 import static org.jgroups.protocols.relay.RelayHeader.DATA;
 
 
@@ -26,6 +30,12 @@ public class Route implements Comparable<Route> {
     protected final Log      log;
     protected boolean        stats=true;
     protected final boolean  relay3;
+    /** Send queues whose messages are sent as batches (RELAY3 with bridge_batching=true only), null otherwise */
+    protected final Lane[]   lanes;
+    protected final int      max_batch_size;
+    protected final long     created=System.nanoTime();
+    protected final LongAdder num_msgs_sent=new LongAdder(), num_batches_sent=new LongAdder(),
+      num_batched_msgs_sent=new LongAdder(), num_bytes_sent=new LongAdder(), num_hand_offs=new LongAdder();
 
     public Route(Address site_master, JChannel bridge, RELAY relay, Log log) {
         this.site_master=site_master;
@@ -33,12 +43,72 @@ public class Route implements Comparable<Route> {
         this.relay=relay;
         this.log=log;
         this.relay3=Objects.requireNonNull(relay) instanceof RELAY3;
+        RELAY3 r=relay3? (RELAY3)relay : null;
+        if(r != null && r.bridgeBatching()) {
+            lanes=new Lane[Math.max(1, r.bridgeLanes())];
+            for(int i=0; i < lanes.length; i++)
+                lanes[i]=new Lane(r.bridgeQueueCapacity());
+            max_batch_size=r.maxBridgeBatchSize();
+        }
+        else {
+            lanes=null;
+            max_batch_size=0;
+        }
+    }
+
+    public JChannel bridge()             {return bridge;}
+    public Address  siteMaster()         {return site_master;}
+    public boolean  stats()              {return stats;}
+    public Route    stats(boolean f)     {stats=f; return this;}
+    public boolean  batching()           {return lanes != null;}
+    public int      numLanes()           {return lanes != null? lanes.length : 0;}
+    public long     numMsgsSent()        {return num_msgs_sent.sum();}
+    public long     numBatchesSent()     {return num_batches_sent.sum();}
+    public long     numBatchedMsgsSent() {return num_batched_msgs_sent.sum();}
+    public long     numBytesSent()       {return num_bytes_sent.sum();}
+    /** The number of times an adder handed the sending of the queued messages of a lane to a pool thread */
+    public long     numHandOffs()        {return num_hand_offs.sum();}
+
+    /** The number of messages queued in all lanes */
+    public int queueSize() {
+        if(lanes == null)
+            return 0;
+        int size=0;
+        for(Lane l: lanes)
+            size+=l.queue.size();
+        return size;
+    }
+
+    /** The average number of messages per batch */
+    public double avgBatchSize() {
+        long batches=num_batches_sent.sum();
+        return batches == 0? 0 : num_batched_msgs_sent.sum() / (double)batches;
     }
 
-    public JChannel bridge()         {return bridge;}
-    public Address  siteMaster()     {return site_master;}
-    public boolean  stats()          {return stats;}
-    public Route    stats(boolean f) {stats=f; return this;}
+    /** Messages / sec sent since this route was created */
+    public double throughput() {
+        long time=System.nanoTime() - created;
+        return time <= 0? 0 : num_msgs_sent.sum() / (time / (double)TimeUnit.SECONDS.toNanos(1));
+    }
+
+    public Route resetStats() {
+        num_msgs_sent.reset(); num_batches_sent.reset(); num_batched_msgs_sent.reset(); num_bytes_sent.reset();
+        num_hand_offs.reset();
+        return this;
+    }
+
+    public String printStats() {
+        StringBuilder sb=new StringBuilder(String.format("%s: sent=%,d msgs (%s), %,.2f msgs/sec", site_master,
+                                                         numMsgsSent(), Util.printBytes(numBytesSent()), throughput()));
+        if(lanes != null) {
+            sb.append(String.format(", batches=%,d (avg size: %.2f), hand-offs=%,d, queued=%d, lanes=[", numBatchesSent(),
+                                    avgBatchSize(), numHandOffs(), queueSize()));
+            for(int i=0; i < lanes.length; i++)
+                sb.append(i > 0? ", " : "").append(lanes[i].queue.size());
+            sb.append("]");
+        }
+        return sb.toString();
+    }
 
     public void send(Address final_destination, Address original_sender, final Message msg) {
         send(final_destination, original_sender, msg, null);
@@ -58,7 +128,11 @@ public class Route implements Comparable<Route> {
                 if(!multicast)
                     copy.setFlag(Message.Flag.NO_RELIABILITY);
             }
-            bridge.send(copy);
+            // OOB messages are not ordered, so they bypass the lanes
+            if(lanes != null && !copy.isFlagSet(Message.Flag.OOB))
+                lane(original_sender).add(copy);
+            else
+                send(copy, 1, stats? copy.size() : 0, false);
             if(stats) {
                 relay.addToRelayedTime(System.nanoTime() - start);
                 relay.incrementRelayed();
@@ -85,6 +159,98 @@ public class Route implements Comparable<Route> {
         return (site_master != null? site_master.toString() : "");
     }
 
+    /** Messages from the same sender always use the same lane, so that they are relayed in order */
+    protected Lane lane(Address original_sender) {
+        int hash=original_sender != null? original_sender.hashCode() & Integer.MAX_VALUE : 0;
+        return lanes[hash % lanes.length];
+    }
+
+    protected void send(Message msg, int num_msgs, int size, boolean batch) throws Exception {
+        bridge.send(msg);
+        if(stats) {
+            num_msgs_sent.add(num_msgs);
+            num_bytes_sent.add(size);
+            if(batch) {
+                num_batches_sent.increment();
+                num_batched_msgs_sent.add(num_msgs);
+            }
+        }
+    }
+
+    /**
+     * Marshals a list of relayed messages into the payload of a single message to the remote site master. The dest
+     * address of the messages (the site master) is not marshalled, and the addresses of the relay headers (final
+     * destination and original sender) are written only once; subsequent occurrences refer to them by index.
+     */
+    protected static Message createBatch(Address site_master, List<Message> msgs, short relay_id, int size)
+      throws IOException {
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(size + msgs.size() * Global.SHORT_SIZE * 3 + 16);
+        Map<Address,Integer> addrs=new HashMap<>();
+        out.writeInt(msgs.size());
+        for(Message msg: msgs) {
+            RelayHeader hdr=msg.getHeader(relay_id);
+            Address final_dest=hdr.final_dest, original_sender=hdr.original_sender;
+            writeAddress(final_dest, addrs, out);
+            writeAddress(original_sender, addrs, out);
+            hdr.final_dest=hdr.original_sender=null;
+            try {
+                out.writeShort(msg.getType());
+                msg.writeToNoAddrs(null, out);
+            }
+            finally {
+                hdr.final_dest=final_dest;
+                hdr.original_sender=original_sender;
+            }
+        }
+        return new BytesMessage(site_master, out.buffer(), 0, out.position())
+          .putHeader(relay_id, new RelayHeader(BATCH)).setFlag(Message.Flag.NO_RELIABILITY);
+    }
+
+    /** Unmarshals the messages of a batch created by {@link #createBatch(Address, List, short, int)} */
+    protected static List<Message> readBatch(Message batch, short relay_id) throws Exception {
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(batch.getArray(), batch.getOffset(), batch.getLength());
+        int num=in.readInt();
+        List<Message> msgs=new ArrayList<>(num);
+        List<Address> addrs=new ArrayList<>();
+        for(int i=0; i < num; i++) {
+            Address final_dest=readAddress(addrs, in), original_sender=readAddress(addrs, in);
+            Message msg=Util.readMessage(in).dest(batch.dest()).src(batch.src());
+            RelayHeader hdr=msg.getHeader(relay_id);
+            hdr.final_dest=final_dest;
+            hdr.original_sender=original_sender;
+            msgs.add(msg);
+        }
+        return msgs;
+    }
+
+    protected static void writeAddress(Address addr, Map<Address,Integer> addrs, ByteArrayDataOutputStream out)
+      throws IOException {
+        if(addr == null) {
+            out.writeShort(-1);
+            return;
+        }
+        Integer index=addrs.get(addr);
+        if(index != null) {
+            out.writeShort(index);
+            return;
+        }
+        index=addrs.size(); // the first occurrence is followed by the address itself
+        addrs.put(addr, index);
+        out.writeShort(index);
+        Util.writeAddress(addr, out);
+    }
+
+    protected static Address readAddress(List<Address> addrs, ByteArrayDataInputStream in) throws Exception {
+        short index=in.readShort();
+        if(index < 0)
+            return null;
+        if(index < addrs.size())
+            return addrs.get(index);
+        Address addr=Util.readAddress(in);
+        addrs.add(addr);
+        return addr;
+    }
+
     protected Message createMessage(Address target, Address final_destination, Address original_sender,
                                     final Message msg, Collection<String> visited_sites) throws IOException {
         Message copy=relay.copy(msg).setDest(target).setSrc(null);
@@ -104,4 +270,72 @@ public class Route implements Comparable<Route> {
         copy.putHeader(relay.getId(), hdr);
         return copy;
     }
+
+    /**
+     * A send queue to the remote site master. The first thread adding a message sends a batch of the queued
+     * messages; concurrent adders only add their message and return. If more messages are queued after the first
+     * batch, they are sent by a thread of the bridge's thread pool, so that the adder isn't kept busy sending the
+     * messages of other adders. A full queue blocks adders.
+     */
+    protected class Lane {
+        protected final BlockingQueue<Message> queue;
+        protected final AtomicInteger          adders=new AtomicInteger();
+        protected final List<Message>          batch=new ArrayList<>();
+
+        protected Lane(int capacity) {
+            queue=new ArrayBlockingQueue<>(Math.max(1, capacity));
+        }
+
+        protected void add(Message msg) throws InterruptedException {
+            queue.put(msg);
+            if(adders.getAndIncrement() == 0)
+                drain(true);
+        }
+
+        /**
+         * Sends batches until the queue is empty. An adder sends at most one batch (unless the thread pool is
+         * disabled or rejects the task) and hands the sending of the remaining messages to a pool thread
+         */
+        protected void drain(boolean adder) {
+            boolean sent;
+            do {
+                sent=sendBatch();
+                if(sent && adder && !queue.isEmpty() && handOff())
+                    return;
+            }
+            while(sent || adders.decrementAndGet() != 0);
+        }
+
+        protected boolean handOff() {
+            ThreadPool pool=bridge.getProtocolStack().getTransport().getThreadPool();
+            if(pool == null || !pool.isEnabled() || pool.isShutdown() || !pool.execute(() -> drain(false)))
+                return false;
+            num_hand_offs.increment();
+            return true;
+        }
+
+        /** Removes messages from the queue and sends them. Returns false if the queue was empty */
+        protected boolean sendBatch() {
+            int size=0;
+            Message msg;
+            batch.clear();
+            while(size < max_batch_size && (msg=queue.poll()) != null) {
+                batch.add(msg);
+                size+=msg.size();
+            }
+            if(batch.isEmpty())
+                return false;
+            try {
+                if(batch.size() == 1)
+                    Route.this.send(batch.get(0), 1, size, false);
+                else
+                    Route.this.send(createBatch(site_master, batch, relay.getId(), size), batch.size(), size, true);
+            }
+            catch(Exception e) {
+                log.error(Util.getMessage("FailureRelayingMessage"), e);
+            }
+            batch.clear();
+            return true;
+        }
+    }
 }
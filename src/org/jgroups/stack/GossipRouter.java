@@ -1,6 +1,7 @@
 package org.jgroups.stack;
 
 import org.jgroups.Address;
+import org.jgroups.Global;
 import org.jgroups.Message;
 import org.jgroups.PhysicalAddress;
 import org.jgroups.Version;
@@ -15,17 +16,19 @@ import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 import org.jgroups.protocols.PingData;
 import org.jgroups.util.*;
+import org.jgroups.util.ThreadFactory;
 
 import javax.net.ssl.*;
 import java.io.DataInput;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.jgroups.Global.ALL_GROUPS;
 import static org.jgroups.stack.GossipType.GET_MBRS_RSP;
@@ -110,9 +113,72 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
     @ManagedAttribute(description="When sending and non_blocking, how many messages to queue max")
     protected int                  max_send_queue=128;
 
+    @ManagedAttribute(description="Forwards messages asynchronously: a message is copied once into a shared buffer " +
+      "and added to the send queues of all destinations, which are drained by num_shards writer threads. A slow " +
+      "member therefore doesn't delay the reader thread, or members whose queues are drained by different shards")
+    protected boolean              async_fanout;
+
+    @ManagedAttribute(description="Number of writer threads (shards) sending queued messages. Every connection " +
+      "is assigned to one shard. Only used when async_fanout is true or peers are set")
+    protected int                  num_shards=Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    @ManagedAttribute(description="Max number of messages queued for a connection. When full, messages to that " +
+      "connection are dropped (and retransmitted by the sender). Only used when async_fanout is true or peers are set")
+    protected int                  fanout_queue_size=1024;
+
+    @ManagedAttribute(description="Number of messages forwarded to members",type=AttributeType.SCALAR)
+    protected final LongAdder      num_msgs_forwarded=new LongAdder();
+
+    @ManagedAttribute(description="Number of bytes forwarded to members",type=AttributeType.BYTES)
+    protected final LongAdder      num_bytes_forwarded=new LongAdder();
+
+    @ManagedAttribute(description="Number of messages dropped because the send queue of a member was full",
+      type=AttributeType.SCALAR)
+    protected final LongAdder      num_msgs_dropped=new LongAdder();
+
+    // time (ns) between the reception of a message and its forwarding to a member
+    protected final Histogram      forwarding_latency=new Histogram().unit(TimeUnit.NANOSECONDS);
+    protected long                 stats_start=System.nanoTime();
+
+    @ManagedAttribute(description="Comma-delimited list of the other GossipRouters of a mesh, e.g. " +
+      "\"host1[12001],host2[12001]\". Members registered with a peer are announced to this router, and messages " +
+      "to them are forwarded to that peer in batches. All routers of a mesh need to list each other")
+    protected String               peers;
+
+    @ManagedAttribute(description="Interval (ms) at which connections to peers are checked and re-established",
+      type=AttributeType.TIME)
+    protected long                 peer_reconnect_interval=2000;
+
+    @ManagedAttribute(description="Max number of bytes of a batch of messages forwarded to a peer",
+      type=AttributeType.BYTES)
+    protected int                  max_peer_batch_size=64_000;
+
+    @ManagedAttribute(description="Number of messages forwarded to peers",type=AttributeType.SCALAR)
+    protected final LongAdder      num_peer_msgs_sent=new LongAdder();
+
+    @ManagedAttribute(description="Number of batches forwarded to peers",type=AttributeType.SCALAR)
+    protected final LongAdder      num_peer_batches_sent=new LongAdder();
+
+    @ManagedAttribute(description="Number of messages received from peers",type=AttributeType.SCALAR)
+    protected final LongAdder      num_peer_msgs_received=new LongAdder();
+
+    // connections to the peers, used to announce local members and to receive messages forwarded by the peers
+    protected final List<RouterStub> peer_stubs=new CopyOnWriteArrayList<>();
+    protected volatile Thread      peer_connector;
+
+    // used when async_fanout is true or peers are set
+    protected Shard[]              shards;
+    protected final Map<Address,SendQueue> send_queues=new ConcurrentHashMap<>();
+    protected final BufferPool     buffer_pool=new SlabBufferPool().direct(false).minSize(256);
+
     // mapping between groups and <member address> - <physical addr / logical name> pairs
     protected final Map<String,ConcurrentMap<Address,Entry>> address_mappings=new ConcurrentHashMap<>();
 
+    // the registrations announced by peers (group -> member -> peer -> entry), including those of members which are
+    // registered locally, too: when the entry of a member in address_mappings is removed, one of them replaces it.
+    // Registrations and unregistrations are done under the lock of this map
+    protected final Map<String,Map<Address,Map<Address,Entry>>> peer_registrations=new HashMap<>();
+
     // to cache output streams for serialization (https://issues.redhat.com/browse/JGRP-2576)
     protected final Map<Address,ByteArrayDataOutputStream>   output_streams=new ConcurrentHashMap<>();
 
@@ -168,7 +234,56 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
     public GossipRouter  nonBlockingSends(boolean b)        {this.non_blocking_sends=b; return this;}
     public int           maxSendQueue()                     {return max_send_queue;}
     public GossipRouter  maxSendQueue(int s)                {this.max_send_queue=s; return this;}
+    public boolean       asyncFanout()                      {return async_fanout;}
+    public GossipRouter  asyncFanout(boolean b)             {this.async_fanout=b; return this;}
+    public int           numShards()                        {return num_shards;}
+    public GossipRouter  numShards(int n)                   {this.num_shards=n; return this;}
+    public int           fanoutQueueSize()                  {return fanout_queue_size;}
+    public GossipRouter  fanoutQueueSize(int s)             {this.fanout_queue_size=s; return this;}
+    public Histogram     forwardingLatency()                {return forwarding_latency;}
+    public long          numMsgsForwarded()                 {return num_msgs_forwarded.sum();}
+    public long          numBytesForwarded()                {return num_bytes_forwarded.sum();}
+    public long          numMsgsDropped()                   {return num_msgs_dropped.sum();}
+    public String        peers()                            {return peers;}
+    public GossipRouter  peers(String p)                    {this.peers=p; return this;}
+    public long          peerReconnectInterval()            {return peer_reconnect_interval;}
+    public GossipRouter  peerReconnectInterval(long i)      {this.peer_reconnect_interval=i; return this;}
+    public int           maxPeerBatchSize()                 {return max_peer_batch_size;}
+    public GossipRouter  maxPeerBatchSize(int s)            {this.max_peer_batch_size=s; return this;}
+    public long          numPeerMsgsSent()                  {return num_peer_msgs_sent.sum();}
+    public long          numPeerBatchesSent()               {return num_peer_batches_sent.sum();}
+    public long          numPeerMsgsReceived()              {return num_peer_msgs_received.sum();}
+
+
+    @ManagedAttribute(description="Number of messages forwarded per second (since the last reset)")
+    public double getThroughput() {
+        double secs=(System.nanoTime() - stats_start) / 1_000_000_000.0;
+        return secs > 0? num_msgs_forwarded.sum() / secs : 0;
+    }
+
+    @ManagedAttribute(description="Latency of forwarding messages to a member (min, percentiles, max)")
+    public String getForwardingLatency() {
+        return forwarding_latency.toString();
+    }
+
+    @ManagedAttribute(description="Number of messages in the send queues (async_fanout only)")
+    public int getNumQueuedMessages() {
+        return send_queues.values().stream().mapToInt(q -> q.queue.size()).sum();
+    }
 
+    @ManagedAttribute(description="Number of peers this router is connected to")
+    public int getNumConnectedPeers() {
+        return (int)peer_stubs.stream().filter(RouterStub::isConnected).count();
+    }
+
+    @ManagedOperation(description="Resets all statistics")
+    public GossipRouter resetStats() {
+        Stream.of(num_msgs_forwarded, num_bytes_forwarded, num_msgs_dropped, num_peer_msgs_sent,
+                  num_peer_batches_sent, num_peer_msgs_received).forEach(LongAdder::reset);
+        forwarding_latency.clear();
+        stats_start=System.nanoTime();
+        return this;
+    }
 
     @ManagedAttribute(description="operational status", name="running")
     public boolean running() {return running.get();}
@@ -183,6 +298,11 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
         return (int)address_mappings.values().stream().mapToLong(Map::size).sum();
     }
 
+    @ManagedAttribute(description="The number of clients registered with peers (all clusters)",gauge=true)
+    public int numRemoteClients() {
+        return (int)address_mappings.values().stream().flatMap(m -> m.values().stream()).filter(Entry::remote).count();
+    }
+
     public GossipRouter init() throws Exception {
         diag=new DiagnosticsHandler(log, socket_factory, thread_factory)
           .registerProbeHandler(this)
@@ -220,6 +340,19 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
           .connExpireTimeout(expiry_time).reaperInterval(reaper_interval).linger(linger_timeout);
         server.start();
 
+        List<InetSocketAddress> peer_addrs=peers != null? Util.parseCommaDelimitedHosts2(peers, 0) : List.of();
+        if(async_fanout || !peer_addrs.isEmpty()) {
+            if(num_shards < 1 || fanout_queue_size < 1)
+                throw new IllegalArgumentException(String.format("num_shards (%d) and fanout_queue_size (%d) have to be > 0",
+                                                                 num_shards, fanout_queue_size));
+            buffer_pool.init();
+            shards=new Shard[num_shards];
+            for(int i=0; i < shards.length; i++)
+                (shards[i]=new Shard(i)).start();
+        }
+        if(!peer_addrs.isEmpty())
+            startPeers(peer_addrs);
+
         if(diag.isEnabled()) {
             StackType ip_version=bind_addr instanceof Inet6Address? StackType.IPv6 : StackType.IPv4;
             Configurator.setDefaultAddressValues(diag, ip_version);
@@ -245,7 +378,18 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
         catch(Exception ex) {
             log.error(Util.getMessage("MBeanDeRegistrationFailed"), ex);
         }
+        stopPeers();
         Util.close(diag, server);
+        if(shards != null) {
+            Stream.of(shards).forEach(Shard::stop);
+            shards=null;
+        }
+        send_queues.values().forEach(SendQueue::clear);
+        send_queues.clear();
+        synchronized(peer_registrations) {
+            peer_registrations.clear();
+        }
+        buffer_pool.destroy();
         log.debug("router stopped");
     }
 
@@ -270,7 +414,8 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
                 Entry val2=entry2.getValue();
                 if(val2 == null)
                     continue;
-                sb.append(String.format("  %s: %s (client_addr: %s, uuid:%s)\n", val2.logical_name, val2.phys_addr, val2.client_addr, logical_addr));
+                sb.append(String.format("  %s: %s (client_addr: %s, uuid:%s)%s\n", val2.logical_name, val2.phys_addr,
+                                        val2.client_addr, logical_addr, val2.remote? " [peer]" : ""));
             }
         }
         return sb.toString();
@@ -283,6 +428,7 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
 
     @Override
     public void receive(Address sender, ByteBuffer buf) {
+        long start=System.nanoTime();
         int original_pos=buf.position();
         GossipType type;
         try {
@@ -305,7 +451,17 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
                     DataInput in=new ByteArrayDataInputStream(buf);
                     String group=Bits.readString(in);
                     Address dest=Util.readAddress(in);
-                    route(group, dest, buf.position(original_pos));
+                    buf.position(original_pos);
+                    if(async_fanout) {
+                        int len=buf.remaining();
+                        RefCountedBuffer rb=new RefCountedBuffer(buffer_pool, len);
+                        buf.duplicate().get(rb.array(), rb.offset(), len);
+                        routeAsync(group, dest, rb, len, start, true);
+                    }
+                    else {
+                        route(group, dest, buf, start);
+                        forwarding_latency.add(System.nanoTime() - start);
+                    }
 
                     if(dump_msgs == DumpMessages.ALL) {
                         ByteArrayDataInputStream input=new ByteArrayDataInputStream(buf);
@@ -331,10 +487,19 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
             case UNREGISTER:
                 handleUnregister(new ByteArrayDataInputStream(buf));
                 break;
+
+            case PEER_REGISTER:
+                handlePeerRegister(sender, new ByteArrayDataInputStream(buf));
+                break;
+
+            case PEER_UNREGISTER:
+                handlePeerUnregister(sender, new ByteArrayDataInputStream(buf));
+                break;
         }
     }
 
     public void receive(Address sender, DataInput in, int length) throws Exception {
+        long start=System.nanoTime();
         GossipType type=GossipType.values()[in.readByte()];
 
         GossipData request=null;
@@ -347,7 +512,16 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
                 try {
                     // inefficient: we should transfer bytes from input stream to output stream, but that is not
                     // available natively
-                    if((request=readRequest(in, type)) != null) {
+                    if((request=readRequest(in, type)) != null && async_fanout) {
+                        // marshalled once into a buffer shared by all destinations
+                        int size=request.serializedSize();
+                        RefCountedBuffer rb=new RefCountedBuffer(buffer_pool, size);
+                        request.writeTo(new ByteBufferOutputStream(ByteBuffer.wrap(rb.array(), rb.offset(), size)));
+                        routeAsync(request.group, request.addr, rb, size, start, true);
+                        if(dump_msgs == DumpMessages.ALL)
+                            dump(request);
+                    }
+                    else if(request != null) {
                         ByteArrayDataOutputStream out=getOutputStream(request.sender, request.serializedSize());
 
                         // we might be concurrent traffic from *different* (senders) TcpConnections for the
@@ -356,8 +530,9 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
                         synchronized(out) {
                             out.position(0);
                             request.writeTo(out);
-                            route(request.group, request.addr, out.buffer(), 0, out.position());
+                            route(request.group, request.addr, out.buffer(), 0, out.position(), start, true);
                         }
+                        forwarding_latency.add(System.nanoTime() - start);
                         if(dump_msgs == DumpMessages.ALL)
                             dump(request);
                     }
@@ -380,6 +555,14 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
             case UNREGISTER:
                 handleUnregister(in);
                 break;
+
+            case PEER_REGISTER:
+                handlePeerRegister(sender, in);
+                break;
+
+            case PEER_UNREGISTER:
+                handlePeerUnregister(sender, in);
+                break;
         }
     }
 
@@ -437,13 +620,32 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
             }
             if(key.startsWith("dump")) {
                 map.put(key, Util.dumpThreads());
+                continue;
+            }
+            if(key.startsWith("router-stats")) {
+                map.put(key, printStats());
+                if(key.contains("reset"))
+                    resetStats();
             }
         }
         return map;
     }
 
     public String[] supportedKeys() {
-        return new String[]{"ops", "op", "invoke", "keys", "member-addrs", "dump"};
+        return new String[]{"ops", "op", "invoke", "keys", "member-addrs", "dump", "router-stats", "router-stats-reset"};
+    }
+
+    @ManagedOperation(description="Prints the number of messages forwarded and dropped, throughput and latency")
+    public String printStats() {
+        String s=String.format("forwarded=%,d msgs (%s), dropped=%,d msgs, queued=%,d msgs, throughput=%,.2f msgs/sec," +
+                                 " latency: %s",
+                               num_msgs_forwarded.sum(), Util.printBytes(num_bytes_forwarded.sum()), num_msgs_dropped.sum(),
+                               getNumQueuedMessages(), getThroughput(), forwarding_latency);
+        if(peer_stubs.isEmpty())
+            return s;
+        return s + String.format("\npeers: %d/%d connected, sent=%,d msgs in %,d batches, received=%,d msgs",
+                                 getNumConnectedPeers(), peer_stubs.size(), num_peer_msgs_sent.sum(),
+                                 num_peer_batches_sent.sum(), num_peer_msgs_received.sum());
     }
 
     protected ByteArrayDataOutputStream getOutputStream(Address mbr, int size) {
@@ -472,7 +674,10 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
             Address         addr=req.getAddress();
             PhysicalAddress phys_addr=req.getPhysicalAddress();
             String          logical_name=req.getLogicalName();
-            addAddressMapping(sender, group, addr, phys_addr, logical_name);
+            synchronized(peer_registrations) {
+                addAddressMapping(sender, group, addr, phys_addr, logical_name, false);
+            }
+            announce(new GossipData(GossipType.PEER_REGISTER, group, addr, logical_name, phys_addr));
             if(log.isDebugEnabled())
                 log.debug("added %s (%s) to group %s", logical_name, phys_addr, group);
             if(dump_msgs == DumpMessages.REGISTRATION || dump_msgs == DumpMessages.ALL)
@@ -482,8 +687,90 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
 
     protected void handleUnregister(DataInput in) {
         GossipData req=readRequest(in, GossipType.UNREGISTER);
-        if(req != null)
-            removeAddressMapping(req.getGroup(), req.getAddress());
+        if(req == null)
+            return;
+        String group=req.getGroup();
+        Entry e;
+        synchronized(peer_registrations) {
+            e=removeAddressMapping(group, req.getAddress());
+            if(e != null && !e.remote) // the member may still be registered with a peer
+                restorePeerRegistration(group, req.getAddress());
+        }
+        if(e != null && !e.remote)
+            announce(new GossipData(GossipType.PEER_UNREGISTER, group, req.getAddress()));
+    }
+
+    /**
+     * A member registered with a peer: messages to it are forwarded to that peer. A local member (or a member
+     * registered with a different peer) is not replaced, but the registration is kept as fallback
+     */
+    protected void handlePeerRegister(Address peer, DataInput in) {
+        GossipData req=readRequest(in, GossipType.PEER_REGISTER);
+        if(req == null)
+            return;
+        String group=req.getGroup();
+        Address addr=req.getAddress();
+        Entry entry=new Entry(peer, req.getPhysicalAddress(), req.getLogicalName(), true);
+        synchronized(peer_registrations) {
+            peer_registrations.computeIfAbsent(group, k -> new HashMap<>())
+              .computeIfAbsent(addr, k -> new HashMap<>()).put(peer, entry);
+            ConcurrentMap<Address,Entry> m=address_mappings.get(group);
+            Entry e=m != null? m.get(addr) : null;
+            if(e != null && !(e.remote && peer.equals(e.client_addr)))
+                return;
+            addAddressMapping(peer, group, addr, req.getPhysicalAddress(), req.getLogicalName(), true);
+        }
+        log.debug("added %s (%s) to group %s (peer %s)", req.getLogicalName(), req.getPhysicalAddress(), group, peer);
+    }
+
+    protected void handlePeerUnregister(Address peer, DataInput in) {
+        GossipData req=readRequest(in, GossipType.PEER_UNREGISTER);
+        if(req == null)
+            return;
+        String group=req.getGroup();
+        Address addr=req.getAddress();
+        synchronized(peer_registrations) {
+            removePeerRegistration(group, addr, peer);
+            ConcurrentMap<Address,Entry> m=address_mappings.get(group);
+            Entry e=m != null? m.get(addr) : null;
+            if(e != null && e.remote && peer.equals(e.client_addr)) {
+                removeAddressMapping(group, addr);
+                restorePeerRegistration(group, addr);
+            }
+        }
+    }
+
+    /** Adds the registration of a member with a peer, if there is one. Called with the lock of peer_registrations */
+    protected Entry restorePeerRegistration(String group, Address addr) {
+        Map<Address,Map<Address,Entry>> m=peer_registrations.get(group);
+        Map<Address,Entry> regs=m != null? m.get(addr) : null;
+        Entry e=regs != null? regs.values().stream().findFirst().orElse(null) : null;
+        if(e != null) {
+            addAddressMapping(e.client_addr, group, addr, e.phys_addr, e.logical_name, true);
+            log.debug("added %s (%s) to group %s (peer %s)", e.logical_name, e.phys_addr, group, e.client_addr);
+        }
+        return e;
+    }
+
+    /** Called with the lock of peer_registrations */
+    protected void removePeerRegistration(String group, Address addr, Address peer) {
+        Map<Address,Map<Address,Entry>> m=peer_registrations.get(group);
+        Map<Address,Entry> regs=m != null? m.get(addr) : null;
+        if(regs != null && regs.remove(peer) != null && regs.isEmpty()) {
+            m.remove(addr);
+            if(m.isEmpty())
+                peer_registrations.remove(group);
+        }
+    }
+
+    /** Removes all registrations announced by a peer whose connection was closed. Called with the lock held */
+    protected void removePeerRegistrations(Address peer) {
+        for(Iterator<Map<Address,Map<Address,Entry>>> it=peer_registrations.values().iterator(); it.hasNext();) {
+            Map<Address,Map<Address,Entry>> m=it.next();
+            m.values().removeIf(regs -> regs.remove(peer) != null && regs.isEmpty());
+            if(m.isEmpty())
+                it.remove();
+        }
     }
 
     protected void handleGetMembersRequest(Address sender, DataInput in) {
@@ -540,6 +827,9 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
     @Override
     public void connectionClosed(Connection conn) {
         removeFromAddressMappings(conn.peerAddress());
+        SendQueue q=send_queues.remove(conn.peerAddress());
+        if(q != null)
+            q.clear();
     }
 
     @Override
@@ -572,7 +862,8 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
     }
 
 
-    protected void addAddressMapping(Address sender, String group, Address addr, PhysicalAddress phys_addr, String logical_name) {
+    protected void addAddressMapping(Address sender, String group, Address addr, PhysicalAddress phys_addr,
+                                     String logical_name, boolean remote) {
         NameCache.add(addr, logical_name);
         ConcurrentMap<Address,Entry> m=address_mappings.get(group);
         if(m == null) {
@@ -580,13 +871,13 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
             if(existing != null)
                 m=existing;
         }
-        m.put(addr, new Entry(sender, phys_addr, logical_name));
+        m.put(addr, new Entry(sender, phys_addr, logical_name, remote));
     }
 
-    protected void removeAddressMapping(String group, Address addr) {
+    protected Entry removeAddressMapping(String group, Address addr) {
         Map<Address,Entry> m=address_mappings.get(group);
         if(m == null)
-            return;
+            return null;
         Entry e=m.get(addr);
         if(e != null) {
             if(log.isDebugEnabled())
@@ -594,35 +885,48 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
             if(dump_msgs == DumpMessages.REGISTRATION || dump_msgs == DumpMessages.ALL)
                 System.out.printf("removed %s (%s) from group %s\n", e.logical_name, e.phys_addr, group);
         }
-        if(m.remove(addr) != null && m.isEmpty())
+        Entry removed=m.remove(addr);
+        if(removed != null && m.isEmpty())
             address_mappings.remove(group);
         output_streams.remove(addr);
+        return removed;
     }
 
 
     protected void removeFromAddressMappings(Address client_addr) {
         if(client_addr == null) return;
         Set<Tuple<String,Address>> suspects=null; // group/address pairs
-        for(Map.Entry<String,ConcurrentMap<Address,Entry>> entry: address_mappings.entrySet()) {
-            ConcurrentMap<Address,Entry> map=entry.getValue();
-            for(Map.Entry<Address,Entry> entry2: map.entrySet()) {
-                Entry e=entry2.getValue();
-                if(client_addr.equals(e.client_addr)) {
-                    map.remove(entry2.getKey());
-                    output_streams.remove(entry2.getKey());
-                    log.debug("connection to %s closed", client_addr);
-                    if(log.isDebugEnabled())
-                        log.debug("removed %s (%s) from group %s", e.logical_name, e.phys_addr, entry.getKey());
-                    if(dump_msgs == DumpMessages.REGISTRATION || dump_msgs == DumpMessages.ALL)
-                        System.out.printf("removed %s (%s) from group %s\n", e.logical_name, e.phys_addr, entry.getKey());
-                    if(map.isEmpty())
-                        address_mappings.remove(entry.getKey());
-                    if(suspects == null) suspects=new HashSet<>();
-                    suspects.add(new Tuple<>(entry.getKey(), entry2.getKey()));
-                    break;
+        List<GossipData> unregistrations=null;    // local members to be unregistered from the peers
+        synchronized(peer_registrations) {
+            removePeerRegistrations(client_addr); // in case client_addr is a peer
+            for(Map.Entry<String,ConcurrentMap<Address,Entry>> entry: address_mappings.entrySet()) {
+                ConcurrentMap<Address,Entry> map=entry.getValue();
+                for(Map.Entry<Address,Entry> entry2: map.entrySet()) {
+                    Entry e=entry2.getValue();
+                    if(client_addr.equals(e.client_addr)) {
+                        map.remove(entry2.getKey());
+                        output_streams.remove(entry2.getKey());
+                        log.debug("connection to %s closed", client_addr);
+                        if(log.isDebugEnabled())
+                            log.debug("removed %s (%s) from group %s", e.logical_name, e.phys_addr, entry.getKey());
+                        if(dump_msgs == DumpMessages.REGISTRATION || dump_msgs == DumpMessages.ALL)
+                            System.out.printf("removed %s (%s) from group %s\n", e.logical_name, e.phys_addr, entry.getKey());
+                        if(!e.remote)
+                            (unregistrations == null? unregistrations=new ArrayList<>() : unregistrations)
+                              .add(new GossipData(GossipType.PEER_UNREGISTER, entry.getKey(), entry2.getKey()));
+                        // the member is still reachable if it is registered with a(nother) peer
+                        if(restorePeerRegistration(entry.getKey(), entry2.getKey()) != null)
+                            continue;
+                        if(map.isEmpty())
+                            address_mappings.remove(entry.getKey());
+                        if(suspects == null) suspects=new HashSet<>();
+                        suspects.add(new Tuple<>(entry.getKey(), entry2.getKey()));
+                    }
                 }
             }
         }
+        if(unregistrations != null)
+            unregistrations.forEach(this::announce);
         if(emit_suspect_events && suspects != null && !suspects.isEmpty()) {
            for(Tuple<String,Address> suspect: suspects) {
                String group=suspect.val1();
@@ -637,41 +941,237 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
     }
 
 
-    protected void route(String group, Address dest, byte[] msg, int offset, int length) {
+    /**
+     * Sends a message to its destination(s). Members registered with this router get the message directly; a copy
+     * is added to the send queue of every peer that has members in the group (or the destination) if to_peers is true
+     */
+    protected void route(String group, Address dest, byte[] msg, int offset, int length, long start, boolean to_peers) {
         ConcurrentMap<Address,Entry> map=address_mappings.get(group);
         if(map == null)
             return;
         if(dest != null) { // unicast
             Entry entry=map.get(dest);
-            if(entry != null)
-                sendToMember(entry.client_addr, msg, offset, length);
-            else
+            if(entry == null)
                 log.warn("dest %s in cluster %s not found", dest, group);
+            else if(!entry.remote)
+                sendToMember(entry.client_addr, msg, offset, length);
+            else if(to_peers)
+                forwardToPeers(List.of(entry), msg, offset, length, start);
         }
         else {             // multicast - send to all members in group
             Set<Map.Entry<Address,Entry>> dests=map.entrySet();
             sendToAllMembersInGroup(dests, msg, offset, length);
+            if(to_peers)
+                forwardToPeers(map.values(), msg, offset, length, start);
         }
     }
 
-    protected void route(String group, Address dest, ByteBuffer buf) {
+    protected void route(String group, Address dest, ByteBuffer buf, long start) {
         ConcurrentMap<Address,Entry> map=address_mappings.get(group);
         if(map == null)
             return;
         if(dest != null) { // unicast
             Entry entry=map.get(dest);
-            if(entry != null)
+            if(entry == null)
+                log.warn("dest %s in cluster %s not found", dest, group);
+            else if(!entry.remote)
                 sendToMember(entry.client_addr, buf);
             else
-                log.warn("dest %s in cluster %s not found", dest, group);
+                forwardToPeers(List.of(entry), buf, start);
         }
         else {             // multicast - send to all members in group
             Set<Map.Entry<Address,Entry>> dests=map.entrySet();
             sendToAllMembersInGroup(dests, buf);
+            forwardToPeers(map.values(), buf, start);
         }
     }
 
+    /**
+     * Adds the message in buf to the send queues of its destination(s). Every queued message holds a reference to
+     * buf; the reference held by the caller is released before returning. A peer gets only one copy of a multicast,
+     * regardless of the number of its members
+     */
+    protected void routeAsync(String group, Address dest, RefCountedBuffer buf, int length, long start, boolean to_peers) {
+        try {
+            ConcurrentMap<Address,Entry> map=address_mappings.get(group);
+            if(map == null)
+                return;
+            if(dest != null) { // unicast
+                Entry entry=map.get(dest);
+                if(entry == null)
+                    log.warn("dest %s in cluster %s not found", dest, group);
+                else if(!entry.remote || to_peers)
+                    enqueue(entry.client_addr, buf, length, start, entry.remote);
+            }
+            else {             // multicast - send to all members in group
+                Set<Address> peers_sent=null;
+                for(Entry e: map.values()) {
+                    if(!e.remote)
+                        enqueue(e.client_addr, buf, length, start, false);
+                    else if(to_peers && (peers_sent == null? peers_sent=new HashSet<>() : peers_sent).add(e.client_addr))
+                        enqueue(e.client_addr, buf, length, start, true);
+                }
+            }
+        }
+        finally {
+            buf.release();
+        }
+    }
 
+    protected void enqueue(Address client_addr, RefCountedBuffer buf, int length, long start, boolean peer) {
+        Shard[] tmp=shards;
+        if(tmp == null)
+            return;
+        SendQueue q=send_queues.get(client_addr);
+        boolean created=false;
+        if(q == null) {
+            SendQueue new_q=new SendQueue(client_addr, tmp[(client_addr.hashCode() & Integer.MAX_VALUE) % tmp.length], peer);
+            if((q=send_queues.putIfAbsent(client_addr, new_q)) == null) {
+                q=new_q;
+                created=true;
+            }
+        }
+        q.add(new Queued(buf.retain(), length, start));
+        // connectionClosed() may have removed the previous queue before this one was created: as it won't be called
+        // again for this connection, the queue is removed here (its messages would never be sent)
+        if(created && !server.hasConnection(client_addr) && send_queues.remove(client_addr, q))
+            q.clear();
+    }
+
+    /** Copies the message once and adds it to the send queues of the peers with members in dests */
+    protected void forwardToPeers(Collection<Entry> dests, byte[] buf, int offset, int length, long start) {
+        if(shards == null)
+            return;
+        RefCountedBuffer rb=null;
+        Set<Address> peers_sent=null;
+        try {
+            for(Entry e: dests) {
+                if(!e.remote || !(peers_sent == null? peers_sent=new HashSet<>() : peers_sent).add(e.client_addr))
+                    continue;
+                if(rb == null) {
+                    rb=new RefCountedBuffer(buffer_pool, length);
+                    System.arraycopy(buf, offset, rb.array(), rb.offset(), length);
+                }
+                enqueue(e.client_addr, rb, length, start, true);
+            }
+        }
+        finally {
+            if(rb != null)
+                rb.release();
+        }
+    }
+
+    protected void forwardToPeers(Collection<Entry> dests, ByteBuffer buf, long start) {
+        if(shards == null || dests.stream().noneMatch(Entry::remote))
+            return;
+        if(buf.hasArray())
+            forwardToPeers(dests, buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), start);
+        else {
+            byte[] tmp=new byte[buf.remaining()];
+            buf.duplicate().get(tmp);
+            forwardToPeers(dests, tmp, 0, tmp.length, start);
+        }
+    }
+
+    /** Sends a registration or unregistration of a local member to all connected peers */
+    protected void announce(GossipData data) {
+        for(RouterStub stub: peer_stubs) {
+            if(!stub.isConnected())
+                continue;
+            try {
+                stub.writeRequest(data);
+            }
+            catch(Exception ex) {
+                log.warn("failed sending %s to peer %s: %s", data.getType(), stub.remote(), ex);
+            }
+        }
+    }
+
+    /** Sends a PEER_REGISTER for every local member to a peer, e.g. after (re-)connecting to it */
+    protected void announceLocalMembers(RouterStub stub) throws Exception {
+        for(Map.Entry<String,ConcurrentMap<Address,Entry>> entry: address_mappings.entrySet()) {
+            for(Map.Entry<Address,Entry> e: entry.getValue().entrySet()) {
+                Entry val=e.getValue();
+                if(!val.remote)
+                    stub.writeRequest(new GossipData(GossipType.PEER_REGISTER, entry.getKey(), e.getKey(),
+                                                     val.logical_name, val.phys_addr));
+            }
+        }
+    }
+
+    /**
+     * Delivers a batch of messages forwarded by a peer to the local members. Every message is a length-prefixed
+     * MESSAGE request, as sent by a client. Messages are never forwarded to other peers
+     */
+    protected void handlePeerMessages(GossipData data) {
+        long start=System.nanoTime();
+        byte[] buf=data.getBuffer();
+        if(buf == null)
+            return;
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(buf, data.getOffset(), data.getLength());
+        try {
+            while(in.available() > 0) {
+                int len=in.readInt(), off=in.position();
+                in.skipBytes(Global.BYTE_SIZE); // type
+                String group=Bits.readString(in);
+                Address dest=Util.readAddress(in);
+                in.skipBytes(off + len - in.position());
+                num_peer_msgs_received.increment();
+                if(async_fanout) {
+                    RefCountedBuffer rb=new RefCountedBuffer(buffer_pool, len);
+                    System.arraycopy(buf, off, rb.array(), rb.offset(), len);
+                    routeAsync(group, dest, rb, len, start, false);
+                }
+                else {
+                    route(group, dest, buf, off, len, start, false);
+                    forwarding_latency.add(System.nanoTime() - start);
+                }
+            }
+        }
+        catch(Throwable t) {
+            log.error("failed handling messages from peer: %s", t);
+        }
+    }
+
+    protected void startPeers(List<InetSocketAddress> peer_addrs) {
+        for(InetSocketAddress addr: peer_addrs) {
+            InetSocketAddress local=new InetSocketAddress(bind_addr, 0);
+            peer_stubs.add(new RouterStub(local, addr, use_nio, null, socket_factory).receiver(this::handlePeerMessages));
+        }
+        peer_connector=thread_factory.newThread(this::connectPeers, "gossip-peer-connector");
+        peer_connector.start();
+    }
+
+    protected void stopPeers() {
+        Thread t=peer_connector;
+        peer_connector=null;
+        if(t != null)
+            t.interrupt();
+        peer_stubs.forEach(RouterStub::destroy);
+        peer_stubs.clear();
+    }
+
+    /** Connects to peers that are not (or no longer) connected, and sends heartbeats to the connected ones */
+    protected void connectPeers() {
+        while(peer_connector != null) {
+            for(RouterStub stub: peer_stubs) {
+                try {
+                    if(stub.isConnected())
+                        stub.writeRequest(new GossipData(GossipType.HEARTBEAT));
+                    else {
+                        stub.destroy();
+                        stub.connect();
+                        announceLocalMembers(stub);
+                        log.debug("connected to peer %s", stub.remote());
+                    }
+                }
+                catch(Exception ex) {
+                    log.trace("failed connecting to peer %s: %s", stub.remote(), ex);
+                }
+            }
+            Util.sleep(peer_reconnect_interval);
+        }
+    }
 
     protected void sendToAllMembersInGroup(Set<Map.Entry<Address,Entry>> dests, GossipData request) {
         ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(request.serializedSize());
@@ -685,7 +1185,7 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
 
         for(Map.Entry<Address,Entry> entry: dests) {
             Entry e=entry.getValue();
-            if(e == null /* || e.phys_addr == null */)
+            if(e == null || e.remote)
                 continue;
 
             try {
@@ -701,11 +1201,12 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
     protected void sendToAllMembersInGroup(Set<Map.Entry<Address,Entry>> dests, byte[] buf, int offset, int len) {
         for(Map.Entry<Address,Entry> entry: dests) {
             Entry e=entry.getValue();
-            if(e == null /* || e.phys_addr == null */)
+            if(e == null || e.remote)
                 continue;
 
             try {
                 server.send(e.client_addr, buf, offset, len);
+                forwarded(len);
             }
             catch(Exception ex) {
                 log.error("failed sending message to %s (%s): %s", e.logical_name, e.phys_addr, ex);
@@ -716,11 +1217,12 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
     protected void sendToAllMembersInGroup(Set<Map.Entry<Address,Entry>> dests, ByteBuffer buf) {
         for(Map.Entry<Address,Entry> entry: dests) {
             Entry e=entry.getValue();
-            if(e == null /* || e.phys_addr == null */)
+            if(e == null || e.remote)
                 continue;
 
             try {
                 server.send(e.client_addr, buf.duplicate());
+                forwarded(buf.remaining());
             }
             catch(Exception ex) {
                 log.error("failed sending message to %s (%s): %s", e.logical_name, e.phys_addr, ex);
@@ -742,7 +1244,9 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
 
     protected void sendToMember(Address dest, ByteBuffer buf) {
         try {
+            int len=buf.remaining();
             server.send(dest, buf);
+            forwarded(len);
         }
         catch(Exception ex) {
             log.error("failed sending unicast message to %s: %s", dest, ex);
@@ -752,15 +1256,167 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
     protected void sendToMember(Address dest, byte[] buf, int offset, int len) {
         try {
             server.send(dest, buf, offset, len);
+            forwarded(len);
         }
         catch(Exception ex) {
             log.error("failed sending unicast message to %s: %s", dest, ex);
         }
     }
 
-    protected record Entry(Address client_addr, PhysicalAddress phys_addr, String logical_name) {
+    protected void forwarded(int len) {
+        num_msgs_forwarded.increment();
+        num_bytes_forwarded.add(len);
+    }
+
+    /** A registered member. If remote is true, the member is registered with the peer at client_addr */
+    protected record Entry(Address client_addr, PhysicalAddress phys_addr, String logical_name, boolean remote) {
+        public String toString() {
+            return String.format("client=%s, name=%s, addr=%s%s", client_addr, logical_name, phys_addr, remote? " (peer)" : "");
+        }
+    }
+
+    /** A message in a send queue, referencing the buffer shared by all destinations */
+    protected record Queued(RefCountedBuffer buf, int length, long start) {}
+
+    /**
+     * Bounded queue of messages to be sent to a connection. The queue is drained by the shard it is assigned to;
+     * at most one shard thread drains it at any time, so messages are sent in the order in which they were added.
+     * The messages of a queue to a peer are sent in batches
+     */
+    protected class SendQueue {
+        protected final Address                   client_addr;
+        protected final Shard                     shard;
+        protected final boolean                   peer;
+        protected final BlockingQueue<Queued>     queue=new ArrayBlockingQueue<>(fanout_queue_size);
+        protected final AtomicBoolean             scheduled=new AtomicBoolean();
+        // reused for every batch to a peer (only one thread drains a queue at any time)
+        protected final ByteArrayDataOutputStream batch, out;
+
+        protected SendQueue(Address client_addr, Shard shard, boolean peer) {
+            this.client_addr=client_addr;
+            this.shard=shard;
+            this.peer=peer;
+            this.batch=peer? new ByteArrayDataOutputStream(1024) : null;
+            this.out=peer? new ByteArrayDataOutputStream(1024) : null;
+        }
+
+        protected void add(Queued q) {
+            if(!queue.offer(q)) {
+                num_msgs_dropped.increment();
+                q.buf.release();
+                return;
+            }
+            schedule();
+        }
+
+        protected void schedule() {
+            if(scheduled.compareAndSet(false, true))
+                shard.ready.add(this);
+        }
+
+        /** Sends up to max messages, then reschedules itself if more messages were added in the meantime */
+        protected void drain(int max) {
+            if(peer)
+                sendBatch(max);
+            else {
+                Queued q;
+                for(int i=0; i < max && (q=queue.poll()) != null; i++)
+                    send(q);
+            }
+            scheduled.set(false);
+            if(!queue.isEmpty())
+                schedule();
+        }
+
+        protected void send(Queued q) {
+            try {
+                server.send(client_addr, q.buf.array(), q.buf.offset(), q.length);
+                forwarded(q.length);
+                forwarding_latency.add(System.nanoTime() - q.start);
+            }
+            catch(Exception ex) {
+                log.error("failed sending message to %s: %s", client_addr, ex);
+            }
+            finally {
+                q.buf.release();
+            }
+        }
+
+        /** Sends up to max messages (or max_peer_batch_size bytes) as a single PEER_MESSAGES request */
+        protected void sendBatch(int max) {
+            batch.position(0);
+            int count=0;
+            Queued q;
+            while(count < max && batch.position() < max_peer_batch_size && (q=queue.poll()) != null) {
+                try {
+                    batch.writeInt(q.length);
+                    batch.write(q.buf.array(), q.buf.offset(), q.length);
+                    count++;
+                }
+                finally {
+                    q.buf.release();
+                }
+            }
+            if(count == 0)
+                return;
+            try {
+                GossipData data=new GossipData(GossipType.PEER_MESSAGES, null, null, batch.buffer(), 0, batch.position());
+                out.position(0);
+                data.writeTo(out);
+                server.send(client_addr, out.buffer(), 0, out.position());
+                num_peer_msgs_sent.add(count);
+                num_peer_batches_sent.increment();
+            }
+            catch(Exception ex) {
+                log.error("failed sending %d messages to peer %s: %s", count, client_addr, ex);
+            }
+        }
+
+        protected void clear() {
+            Queued q;
+            while((q=queue.poll()) != null)
+                q.buf.release();
+        }
+
         public String toString() {
-            return String.format("client=%s, name=%s, addr=%s", client_addr, logical_name, phys_addr);
+            return String.format("%s: %d msgs (shard %d%s)", client_addr, queue.size(), shard.index, peer? ", peer" : "");
+        }
+    }
+
+    /** Writer thread, sending the messages of the send queues assigned to it */
+    protected class Shard implements Runnable {
+        protected final int                      index;
+        protected final BlockingQueue<SendQueue> ready=new LinkedBlockingQueue<>();
+        protected volatile Thread                thread;
+        protected static final int               MAX_DRAIN=64; // max messages sent from a queue before moving on
+
+        protected Shard(int index) {
+            this.index=index;
+        }
+
+        protected void start() {
+            thread=thread_factory.newThread(this, "gossip-shard-" + index);
+            thread.start();
+        }
+
+        protected void stop() {
+            Thread t=thread;
+            thread=null;
+            if(t != null)
+                t.interrupt();
+        }
+
+        public void run() {
+            while(thread != null) {
+                try {
+                    ready.take().drain(MAX_DRAIN);
+                }
+                catch(InterruptedException ignored) {
+                }
+                catch(Throwable t) {
+                    log.error("shard %d failed sending messages: %s", index, t);
+                }
+            }
         }
     }
 
@@ -781,6 +1437,10 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
         // When sending and non_blocking, how many messages to queue max
         int                    max_send_queue=128;
 
+        boolean                async_fanout=false;
+        int                    num_shards=0, fanout_queue_size=0;
+        String                 peers=null;
+
         TLS tls=new TLS();
         long start=System.currentTimeMillis();
         String bind_addr=null;
@@ -829,6 +1489,22 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
                 max_send_queue=Integer.parseInt(args[++i]);
                 continue;
             }
+            if("-async_fanout".equals(arg)) {
+                async_fanout=Boolean.parseBoolean(args[++i]);
+                continue;
+            }
+            if("-num_shards".equals(arg)) {
+                num_shards=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-fanout_queue_size".equals(arg)) {
+                fanout_queue_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-peers".equals(arg)) {
+                peers=args[++i];
+                continue;
+            }
             if("-suspect".equals(arg)) {
                 suspects=Boolean.parseBoolean(args[++i]);
                 continue;
@@ -943,7 +1619,12 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
           .emitSuspectEvents(suspects)
           .dumpMessages(dump_msgs)
           .maxLength(max_length)
-          .tls(tls).nonBlockingSends(non_blocking_sends).maxSendQueue(max_send_queue);
+          .tls(tls).nonBlockingSends(non_blocking_sends).maxSendQueue(max_send_queue)
+          .asyncFanout(async_fanout).peers(peers);
+        if(num_shards > 0)
+            router.numShards(num_shards);
+        if(fanout_queue_size > 0)
+            router.fanoutQueueSize(fanout_queue_size);
         router.diagHandler().setEnabled(diag_enabled)
           .enableUdp(diag_enable_udp)
           .enableTcp(diag_enable_tcp)
@@ -1010,6 +1691,14 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener,
         System.out.println();
         System.out.println("    -max_send_queue <size>  - When sending and non_blocking, how many messages to queue max");
         System.out.println();
+        System.out.println("    -async_fanout <true|false> - Forward messages asynchronously via per-connection send queues");
+        System.out.println();
+        System.out.println("    -num_shards <num>       - Number of writer threads draining the send queues (async_fanout)");
+        System.out.println();
+        System.out.println("    -fanout_queue_size <size> - Max number of messages queued per connection (async_fanout)");
+        System.out.println();
+        System.out.println("    -peers <hosts>          - The other GossipRouters of a mesh, e.g. \"host1[12001],host2[12001]\"");
+        System.out.println();
         System.out.println("    -max_length <bytes>     - The max size (in bytes) of a message");
         System.out.println();
         System.out.println("    -suspect <true|false>   - Whether or not to use send SUSPECT events when a conn is closed");
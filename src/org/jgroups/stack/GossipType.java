@@ -13,5 +13,8 @@ public enum GossipType {
     MESSAGE,
     HEARTBEAT, // request *and* response
     SUSPECT,
-    GET_MBRS_RSP_LAST // the last response
+    GET_MBRS_RSP_LAST, // the last response
+    PEER_REGISTER,     // a member registered with another GossipRouter of a mesh
+    PEER_UNREGISTER,   // a member unregistered from another GossipRouter of a mesh
+    PEER_MESSAGES      // a batch of messages forwarded by another GossipRouter of a mesh
 }
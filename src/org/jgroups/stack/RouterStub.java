@@ -241,6 +241,7 @@ public class RouterStub extends ReceiverAdapter implements Comparable<RouterStub
                     break;
                 case MESSAGE:
                 case SUSPECT:
+                case PEER_MESSAGES:
                     if(receiver != null)
                         receiver.receive(data);
                     break;
@@ -158,6 +158,23 @@ public class RouterStubManager implements Runnable, RouterStub.CloseListener {
             startReconnector();
     }
 
+    /**
+     * Connects a single stub; if this fails, the stub is added to the reconnect list
+     * @return True if the stub is connected
+     */
+    public boolean connectStub(RouterStub stub) {
+        if(stub.isConnected())
+            return true;
+        try {
+            stub.connect(cluster_name, local_addr, logical_name, phys_addr);
+            return true;
+        }
+        catch(Exception ex) {
+            startReconnector();
+            return false;
+        }
+    }
+
     
     public void disconnectStubs() {
         stopReconnector();
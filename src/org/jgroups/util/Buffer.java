@@ -41,6 +41,9 @@ public abstract class Buffer<T> implements Iterable<T>, Closeable {
     /** The number of non-null elements */
     protected int                 size;
 
+    /** The missing seqnos in [hd+1 .. high-1], maintained by add() and purge(). Null if gap tracking is disabled */
+    protected SeqnoGaps           gaps;
+
 
     public Lock          lock()               {return lock;}
     public AtomicInteger getAdders()          {return adders;}
@@ -51,16 +54,62 @@ public abstract class Buffer<T> implements Iterable<T>, Closeable {
     public long          high()               {return high;}
     public int           size()               {return size;}
     public boolean       isEmpty()            {return size <= 0;}
+    public boolean       trackGaps()          {return gaps != null;}
 
 
     /** Returns the current capacity in the buffer. This value is fixed in a fixed-size buffer
      * (e.g. {@link FixedBuffer}), but can change in a dynamic buffer ({@link DynamicBuffer}) */
     public abstract int  capacity();
+    /** Number of times adders were blocked on a full buffer */
+    public long          numBlockings()       {return 0;}
+    /** Number of elements dropped because the buffer was full */
+    public long          numDroppedMessages() {return 0;}
+    /** The times adders were blocked on a full buffer, or null if the buffer doesn't block */
+    public AverageMinMax avgTimeBlocked()     {return null;}
     public void          resetStats() {}
     public void          open(boolean b) {}
     @Override
     public void          close() {open(false);}
 
+    /**
+     * Enables or disables incremental tracking of missing seqnos. When enabled, {@link #getMissing(int)} and
+     * {@link #getHighestDeliverable()} are O(gaps) instead of scanning the buffer. Subclasses which don't update the
+     * gaps on add() and purge() must override this and ignore it.
+     */
+    public Buffer<T> trackGaps(boolean b) {
+        lock.lock();
+        try {
+            if(!b) {
+                gaps=null;
+                return this;
+            }
+            if(gaps == null) {
+                SeqnoGaps tmp=new SeqnoGaps();
+                forEach(highestDelivered()+1, high(), (seqno,el) -> {
+                    if(el == null)
+                        tmp.add(seqno, seqno); // adjacent seqnos are merged into the same gap
+                    return true;
+                }, false);
+                gaps=tmp;
+            }
+            return this;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of gaps (ranges of missing seqnos), or -1 if gap tracking is disabled */
+    public int numGaps() {
+        lock.lock();
+        try {
+            return gaps != null? gaps.numGaps() : -1;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Adds an element if the element at the given index is null. Returns true if no element existed at the given index,
      * else returns false and doesn't set the element.
@@ -189,6 +238,8 @@ public abstract class Buffer<T> implements Iterable<T>, Closeable {
             int max_size=max_msgs > 0? Math.min(max_msgs, capacity) : capacity;
             if(max_size <= 0)
                 return null;
+            if(gaps != null)
+                return gaps.getMissing(start_seqno, Math.min(start_seqno + max_size - 1, high - 1));
             Missing missing=new Missing(start_seqno, max_size);
             long to=max_size > 0? Math.min(start_seqno + max_size - 1, high - 1) : high - 1;
             forEach(start_seqno, to, missing, false);
@@ -219,6 +270,8 @@ public abstract class Buffer<T> implements Iterable<T>, Closeable {
         HighestDeliverable visitor=new HighestDeliverable();
         lock.lock();
         try {
+            if(gaps != null)
+                return gaps.isEmpty()? high : gaps.first() - 1;
             forEach(visitor, false);
             long retval=visitor.getResult();
             return retval == -1? highestDelivered() : retval;
@@ -243,6 +296,8 @@ public abstract class Buffer<T> implements Iterable<T>, Closeable {
         lock.lock();
         try {
             hd=seqno;
+            if(gaps != null)
+                gaps.purge(seqno);
             return this;
         }
         finally {
@@ -0,0 +1,33 @@
+package org.jgroups.util;
+
+import org.jgroups.Lifecycle;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of {@link ByteBuffer}s, used by the transport and the bundlers to marshal outgoing messages without
+ * allocating a new byte[] array for every send.<br/>
+ * A buffer is acquired before marshalling and released as soon as the send returns, so transports need to either
+ * write the buffer synchronously or copy it. Implementations need to be thread safe.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public interface BufferPool extends Lifecycle {
+
+    /**
+     * Returns a buffer with a capacity of at least size bytes. The position of the buffer is 0 and the limit is set
+     * to its capacity
+     */
+    ByteBuffer acquire(int size);
+
+    /**
+     * Returns a buffer to the pool. Buffers not created by the pool may be ignored. A buffer must not be accessed
+     * after it has been released, and must not be released more than once
+     */
+    void       release(ByteBuffer buf);
+
+    /** Whether the buffers returned by {@link #acquire(int)} are direct (off-heap) buffers */
+    boolean    isDirect();
+
+    default void resetStats() {}
+}
@@ -0,0 +1,36 @@
+package org.jgroups.util;
+
+import java.io.IOException;
+
+/**
+ * A codec compressing and decompressing byte arrays, used by {@link org.jgroups.protocols.COMPRESS}. Instances may
+ * keep state (e.g. buffers or native resources) and are therefore not thread-safe: they're cached per thread or
+ * pooled by the caller.<br/>
+ * The ID is shipped with compressed messages, so that the receiver can use the same codec. IDs 0-15 are reserved for
+ * JGroups; custom codecs need to be installed on both senders and receivers.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public interface Compressor extends AutoCloseable {
+
+    /** The ID of this codec */
+    byte id();
+
+    /**
+     * Compresses {@code in} into {@code out}
+     * @return The number of bytes written to out, or -1 if the compressed data didn't fit into out
+     */
+    int compress(byte[] in, int in_offset, int in_length, byte[] out, int out_offset, int out_length);
+
+    /**
+     * Decompresses {@code in} into {@code out}
+     * @param original_length The length of the uncompressed data; out needs to have space for it
+     * @throws IOException If the data is corrupt, or doesn't decompress to original_length bytes
+     */
+    void decompress(byte[] in, int in_offset, int in_length, byte[] out, int out_offset, int original_length)
+      throws IOException;
+
+    /** Releases resources held by this codec */
+    @Override
+    default void close() {}
+}
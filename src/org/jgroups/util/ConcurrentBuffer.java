@@ -0,0 +1,507 @@
+package org.jgroups.util;
+
+import org.jgroups.annotations.GuardedBy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Ring buffer of fixed capacity, in which adding and getting elements doesn't acquire the lock. As in
+ * {@link FixedBuffer}, seqnos are mapped to an index by <pre>seqno % capacity</pre>.<br/>
+ * Next to the elements, a long array holds the state of every slot: a positive value is the seqno of the element
+ * occupying the slot, a value {@literal <= 0} means that the slot is free and was last used by seqno -value. An adder
+ * claims a slot by CAS'ing its state from free to {@link #CLAIMED}, sets the element and then publishes its seqno as
+ * the state, so that the element is never seen (or freed) before it has been set. Claiming fails if the slot is
+ * already occupied by the same seqno (duplicate), or if it was last used by the same or a higher seqno (the seqno
+ * has already been delivered and purged), so concurrent adders of different seqnos never contend on a lock, and
+ * readers (e.g. retransmission) only read the slot.<br/>
+ * Removing and purging elements ({@link #removeMany(boolean, int, Predicate, Supplier, BiConsumer)}, {@link #purge(long, boolean)})
+ * acquire the lock, which serializes them with each other and is used to block adders when the buffer is full. The
+ * protocols guarantee that only a single thread at a time removes messages from a buffer, so the lock is uncontended
+ * in the common case.<br/>
+ * Gap tracking ({@link #trackGaps(boolean)}) is not supported, as the gaps cannot be updated atomically with a
+ * lock-free add; {@link #getMissing()} and {@link #getHighestDeliverable()} scan the buffer instead.<br/>
+ * Note that 'null' is not a valid element, but signifies a missing element
+ * @param <T> T
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class ConcurrentBuffer<T> extends Buffer<T> {
+    protected final AtomicReferenceArray<T> elements;
+    /** The state of each slot: > 0: seqno of the element in the slot, <= 0: free, last used by seqno -state */
+    protected final AtomicLongArray         slots;
+    /** State of a slot claimed by an adder which hasn't yet set its element */
+    protected static final long             CLAIMED=Long.MIN_VALUE;
+    protected final Condition               buffer_full=lock.newCondition();
+
+    /** Used to unblock blocked senders on close(). When false, senders don't block when full but discard element */
+    protected volatile boolean              open=true;
+
+    protected final LongAdder               num_blockings=new LongAdder();
+    protected final AverageMinMax           avg_time_blocked=new AverageMinMax(512).unit(TimeUnit.NANOSECONDS);
+    /** Number of received messages dropped due to full buffer */
+    protected final LongAdder               num_dropped_msgs=new LongAdder();
+
+    // low, hd, high and size are fields of Buffer, but are read and written concurrently here
+    protected static final VarHandle        LOW, HD, HIGH, SIZE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup=MethodHandles.lookup();
+            LOW=lookup.findVarHandle(Buffer.class, "low", long.class);
+            HD=lookup.findVarHandle(Buffer.class, "hd", long.class);
+            HIGH=lookup.findVarHandle(Buffer.class, "high", long.class);
+            SIZE=lookup.findVarHandle(Buffer.class, "size", int.class);
+        }
+        catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+
+    public ConcurrentBuffer() {
+        this(0);
+    }
+
+    public ConcurrentBuffer(long offset) {
+        this(32, offset);
+    }
+
+    /**
+     * Creates a ConcurrentBuffer
+     * @param capacity The number of elements the buffer should hold
+     * @param offset   The offset. The first element to be added has to be offset +1.
+     */
+    public ConcurrentBuffer(int capacity, long offset) {
+        if(capacity < 1)
+            throw new IllegalArgumentException("incorrect capacity of " + capacity);
+        if(offset < 0)
+            throw new IllegalArgumentException("offset must be >= 0: " + offset);
+        this.elements=new AtomicReferenceArray<>(capacity);
+        this.slots=new AtomicLongArray(capacity);
+        for(int i=0; i < capacity; i++)
+            slots.set(i, -offset);
+        this.low=this.hd=this.high=this.offset=offset;
+    }
+
+    @Override public int           capacity()           {return elements.length();}
+    @Override public long          low()                {return (long)LOW.getVolatile(this);}
+    @Override public long          highestDelivered()   {return (long)HD.getVolatile(this);}
+    @Override public long          hd()                 {return highestDelivered();}
+    @Override public long          high()               {return (long)HIGH.getVolatile(this);}
+    @Override public int           size()               {return (int)SIZE.getVolatile(this);}
+    @Override public boolean       isEmpty()            {return size() <= 0;}
+    @Override public int           numMissing()         {return (int)(high() - highestDelivered() - size());}
+    @Override public long          numBlockings()       {return num_blockings.sum();}
+    @Override public long          numDroppedMessages() {return num_dropped_msgs.sum();}
+    @Override public AverageMinMax avgTimeBlocked()     {return avg_time_blocked;}
+
+    @Override
+    public boolean add(long seqno, T element, Predicate<T> remove_filter, boolean block_if_full) {
+        int index=index(seqno);
+        for(;;) {
+            long l=low();
+            if(seqno - l <= 0)
+                return false; // message already purged
+            if(seqno - l > capacity()) { // buffer is full
+                if(block_if_full && block(seqno))
+                    continue;
+                num_dropped_msgs.increment();
+                return false;
+            }
+            long state=slots.get(index);
+            if(state == CLAIMED) {
+                Thread.onSpinWait(); // a different seqno is being added to the slot
+                continue;
+            }
+            if(state > 0) {
+                if(state - seqno >= 0)
+                    return false; // message already present, or seqno has been purged and the slot reused
+                Thread.onSpinWait(); // the older element in the slot is being purged
+                continue;
+            }
+            if(-state - seqno >= 0)
+                return false; // seqno (or a later seqno) has already been purged from this slot
+            if(slots.compareAndSet(index, state, CLAIMED))
+                break;
+        }
+        // nobody else can modify the slot until its state is set to seqno (free() waits), so the element is
+        // published and counted before it can be freed or removed
+        elements.set(index, element);
+        SIZE.getAndAdd(this, 1);
+        slots.set(index, seqno);
+
+        // see if high needs to be moved forward
+        for(long h=high(); seqno - h > 0 && !HIGH.compareAndSet(this, h, seqno); h=high())
+            ;
+        if(remove_filter != null && seqno - highestDelivered() > 0)
+            removeWhile(remove_filter);
+        return true;
+    }
+
+    @Override
+    public boolean add(MessageBatch batch, Function<T,Long> seqno_getter, boolean remove_from_batch, T const_value) {
+        if(batch == null || batch.isEmpty())
+            return false;
+        Objects.requireNonNull(seqno_getter);
+        boolean retval=false;
+        for(Iterator<?> it=batch.iterator(); it.hasNext(); ) {
+            T msg=(T)it.next();
+            long seqno=seqno_getter.apply(msg);
+            if(seqno < 0)
+                continue;
+            T element=const_value != null? const_value : msg;
+            boolean added=add(seqno, element, null, false);
+            retval=retval || added;
+            if(!added || remove_from_batch)
+                it.remove();
+        }
+        return retval;
+    }
+
+    @Override
+    public boolean add(final List<LongTuple<T>> list, boolean remove_added_elements, T const_value) {
+        if(list == null || list.isEmpty())
+            return false;
+        boolean added=false;
+        for(Iterator<LongTuple<T>> it=list.iterator(); it.hasNext();) {
+            LongTuple<T> tuple=it.next();
+            long seqno=tuple.getVal1();
+            T element=const_value != null? const_value : tuple.getVal2();
+            if(add(seqno, element, null, false))
+                added=true;
+            else if(remove_added_elements)
+                it.remove();
+        }
+        return added;
+    }
+
+    @Override
+    public T get(long seqno) {
+        if(seqno - low() <= 0 || seqno - high() > 0)
+            return null;
+        return element(seqno);
+    }
+
+    /** Only used for testing !! */
+    @Override
+    public T _get(long seqno) {
+        return element(seqno);
+    }
+
+    /**
+     * Removes the next non-null element and advances hd
+     * @return T if there was a non-null element at hd+1, otherwise null
+     */
+    @Override
+    public T remove(boolean nullify) {
+        lock.lock();
+        try {
+            long tmp=highestDelivered() + 1;
+            if(tmp - high() > 0)
+                return null;
+            T element=element(tmp);
+            if(element != null) {
+                HD.setVolatile(this, tmp);
+                SIZE.getAndAdd(this, -1);
+                if(nullify)
+                    free(tmp);
+                buffer_full.signalAll();
+            }
+            return element;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<T> removeMany(boolean nullify, int max_results, Predicate<T> filter) {
+        return removeMany(nullify, max_results, filter, LinkedList::new, LinkedList::add);
+    }
+
+    /**
+     * Removes consecutive elements from hd+1 onwards. The result (e.g. a {@link MessageBatch}) is created by
+     * result_creator only if at least one element is accepted by the filter, so a caller can pass a supplier which
+     * returns the same (reset) batch on every call
+     */
+    @Override
+    public <R> R removeMany(boolean nullify, int max_results, Predicate<T> filter,
+                            Supplier<R> result_creator, BiConsumer<R,T> accumulator) {
+        R result=null;
+        int num_results=0, removed=0;
+        lock.lock();
+        try {
+            long start_low=low();
+            for(long seqno=highestDelivered() + 1; high() - seqno >= 0; seqno++) {
+                T element=element(seqno);
+                if(element == null)
+                    break;
+                if(filter == null || filter.test(element)) {
+                    if(result == null)
+                        result=result_creator.get();
+                    accumulator.accept(result, element);
+                    num_results++;
+                }
+                removed++;
+                HD.setVolatile(this, seqno);
+                if(nullify)
+                    free(seqno);
+                if(max_results > 0 && num_results >= max_results)
+                    break;
+            }
+            if(removed > 0)
+                SIZE.getAndAdd(this, -removed);
+            if(low() - start_low > 0)
+                buffer_full.signalAll();
+            return result;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int purge(long seqno, boolean force) {
+        int purged=0;
+        lock.lock();
+        try {
+            long start_low=low(), old_hd=highestDelivered();
+            if(seqno - start_low <= 0)  // ignore if seqno <= low
+                return 0;
+            if(force) {
+                if(seqno - high() > 0)
+                    seqno=high();
+            }
+            else {
+                if(seqno - old_hd > 0) // we cannot be higher than the highest removed seqno
+                    seqno=old_hd;
+            }
+            int removed=0;
+            for(long s=start_low + 1; seqno - s >= 0; s++) {
+                boolean was_present=free(s);
+                if(was_present) {
+                    purged++;
+                    if(s - old_hd > 0) // forced purge of an element which was not yet removed
+                        removed++;
+                }
+                if(s - highestDelivered() > 0)
+                    HD.setVolatile(this, s);
+            }
+            if(removed > 0)
+                SIZE.getAndAdd(this, -removed);
+            if(low() - start_low > 0)
+                buffer_full.signalAll();
+            return purged;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void forEach(long from, long to, Visitor<T> visitor, boolean nullify) {
+        if(from - to > 0) // same as if(from > to), but prevents long overflow
+            return;
+        lock.lock();
+        try {
+            long start_low=low();
+            for(long seqno=from; to - seqno >= 0; seqno++) {
+                T element=element(seqno);
+                boolean stop=visitor != null && !visitor.visit(seqno, element);
+                if(nullify && element != null)
+                    free(seqno);
+                if(stop)
+                    break;
+            }
+            if(low() - start_low > 0)
+                buffer_full.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Not supported (gap tracking stays disabled): adds are lock-free, so gaps cannot be updated atomically with an add */
+    @Override
+    public Buffer<T> trackGaps(boolean b) {
+        return this;
+    }
+
+    @Override
+    public Buffer<T> highestDelivered(long seqno) {
+        lock.lock();
+        try {
+            HD.setVolatile(this, seqno);
+            return this;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void resetStats() {
+        super.resetStats();
+        num_blockings.reset();
+        num_dropped_msgs.reset();
+        avg_time_blocked.clear();
+    }
+
+    @Override
+    public void open(boolean b) {
+        lock.lock();
+        try {
+            open=b;
+            buffer_full.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns an iterator over the elements in the range [HD+1 .. HIGH] */
+    @Override
+    public Iterator<T> iterator() {
+        return iterator(highestDelivered() + 1, high());
+    }
+
+    @Override
+    public Iterator<T> iterator(long from, long to) {
+        return new ConcurrentBufferIterator(from, to);
+    }
+
+    @Override
+    public Stream<T> stream() {
+        return stream(highestDelivered() + 1, high());
+    }
+
+    @Override
+    public Stream<T> stream(long from, long to) {
+        Spliterator<T> sp=Spliterators.spliterator(iterator(from, to), Math.max(0, to - from + 1), 0);
+        return StreamSupport.stream(sp, false);
+    }
+
+    protected int index(long seqno) {
+        return (int)((seqno-offset-1) % capacity());
+    }
+
+    /** Returns the element for seqno, or null if the slot is free or occupied by a different seqno */
+    protected T element(long seqno) {
+        if(seqno - offset <= 0)
+            return null;
+        int index=index(seqno);
+        if(slots.get(index) != seqno)
+            return null;
+        T element=elements.get(index);
+        // the slot may have been purged and reused by a different seqno after reading the state
+        return slots.get(index) == seqno? element : null;
+    }
+
+    /**
+     * Frees the slot of seqno and moves low to seqno. If the slot doesn't contain seqno (missing element), it is
+     * marked as used by seqno, so that the seqno cannot be added any more
+     * @return True if the slot contained an element for seqno, else false
+     */
+    @GuardedBy("lock")
+    protected boolean free(long seqno) {
+        int index=index(seqno);
+        boolean present=false;
+        for(;;) {
+            long state=slots.get(index);
+            if(state == CLAIMED) {
+                Thread.onSpinWait(); // an adder is setting the element
+                continue;
+            }
+            if(state == seqno) {
+                present=elements.get(index) != null;
+                elements.set(index, null);
+                slots.set(index, -seqno); // no CAS needed: adders only CAS free slots
+                break;
+            }
+            if(state > 0 || -state - seqno >= 0)
+                break; // occupied by a later seqno, or already freed
+            if(slots.compareAndSet(index, state, -seqno))
+                break;
+        }
+        if(seqno - low() > 0)
+            LOW.setVolatile(this, seqno);
+        return present;
+    }
+
+    /** Removes consecutive elements from hd+1 as long as they pass the filter (without nulling them) */
+    protected void removeWhile(Predicate<T> filter) {
+        lock.lock();
+        try {
+            int removed=0;
+            for(long seqno=highestDelivered() + 1; high() - seqno >= 0; seqno++) {
+                T element=element(seqno);
+                if(element == null || !filter.test(element))
+                    break;
+                HD.setVolatile(this, seqno);
+                removed++;
+            }
+            if(removed > 0)
+                SIZE.getAndAdd(this, -removed);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    protected boolean block(long seqno) {
+        lock.lock();
+        try {
+            while(open && seqno - low() > capacity()) {
+                num_blockings.increment();
+                long start=System.nanoTime();
+                try {
+                    buffer_full.await();
+                }
+                catch(InterruptedException e) {
+                }
+                finally {
+                    long time=System.nanoTime()-start;
+                    avg_time_blocked.add(time);
+                }
+            }
+            return open;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    protected class ConcurrentBufferIterator implements Iterator<T> {
+        protected long       current;
+        protected final long to;
+
+        public ConcurrentBufferIterator(long from, long to) {
+            this.current=from;
+            this.to=to;
+        }
+
+        public boolean hasNext() {
+            return to - current >= 0;
+        }
+
+        public T next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            return element(current++);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.jgroups.util;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link Compressor} using {@link Deflater} and {@link Inflater} from java.util.zip
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class DeflateCompressor implements Compressor {
+    public static final byte ID=1;
+    protected final Deflater deflater;
+    protected final Inflater inflater=new Inflater();
+
+    public DeflateCompressor() {
+        this(Deflater.BEST_COMPRESSION);
+    }
+
+    public DeflateCompressor(int compression_level) {
+        deflater=new Deflater(compression_level);
+    }
+
+    public byte id() {return ID;}
+
+    public int compress(byte[] in, int in_offset, int in_length, byte[] out, int out_offset, int out_length) {
+        deflater.reset();
+        deflater.setInput(in, in_offset, in_length);
+        deflater.finish();
+        int size=deflater.deflate(out, out_offset, out_length);
+        return deflater.finished()? size : -1;
+    }
+
+    public void decompress(byte[] in, int in_offset, int in_length, byte[] out, int out_offset, int original_length)
+      throws IOException {
+        inflater.reset();
+        inflater.setInput(in, in_offset, in_length);
+        try {
+            int size=inflater.inflate(out, out_offset, original_length);
+            if(size != original_length)
+                throw new IOException(String.format("inflated %d bytes, but expected %d", size, original_length));
+        }
+        catch(DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public void close() {
+        deflater.end();
+        inflater.end();
+    }
+
+    public String toString() {
+        return "deflate";
+    }
+}
@@ -0,0 +1,133 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+import org.jgroups.Constructable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * The difference between a {@link Digest} and a reference digest of the same membership, used by
+ * {@link org.jgroups.protocols.pbcast.STABLE} to send digests incrementally. Only the entries which differ from the
+ * reference are sent; they're identified by their index (rank) in the membership rather than by address, and their
+ * seqnos are varint-encoded relative to the reference: the hd as the difference to the hd of the reference and the hr
+ * as the difference to the hd.<br/>
+ * The reference is identified by a round: the receiver needs to have the reference of the same round to apply the
+ * delta. Round 0 denotes a reference of all 0s, so a delta of round 0 is self-contained.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class DeltaDigest implements SizeStreamable, Constructable<DeltaDigest> {
+    protected long   ref_round; // the round of the reference digest; 0 if all seqnos of the reference are 0
+    protected int    size;      // number of members
+    protected int[]  ranks;     // indices of the entries that differ from the reference, in ascending order
+    protected long[] deltas;    // 2 per changed entry: hd - reference hd and hr - hd
+
+    public DeltaDigest() {
+    }
+
+    protected DeltaDigest(long ref_round, int size, int[] ranks, long[] deltas) {
+        this.ref_round=ref_round;
+        this.size=size;
+        this.ranks=ranks;
+        this.deltas=deltas;
+    }
+
+    public Supplier<? extends DeltaDigest> create() {return DeltaDigest::new;}
+    public long                            refRound()  {return ref_round;}
+    public int                             size()      {return size;}
+    /** The number of entries that differ from the reference */
+    public int                             numDeltas() {return ranks.length;}
+
+    /**
+     * Creates the delta between digest and a reference digest of the same membership (same members in the same order)
+     * @param digest The digest
+     * @param ref The reference digest; if null, or if its size doesn't match, all seqnos of the reference are 0
+     * @param ref_round The round of the reference, ignored if ref is null
+     */
+    public static DeltaDigest create(Digest digest, Digest ref, long ref_round) {
+        int size=digest.capacity();
+        long[] seqnos=digest.seqnos, ref_seqnos=ref != null && ref.capacity() == size? ref.seqnos : null;
+        int[] ranks=new int[size];
+        long[] deltas=new long[size * 2];
+        int count=0;
+        for(int i=0; i < size; i++) {
+            long hd=seqnos[i*2], hr=seqnos[i*2+1];
+            long ref_hd=ref_seqnos != null? ref_seqnos[i*2] : 0, ref_hr=ref_seqnos != null? ref_seqnos[i*2+1] : 0;
+            if(hd == ref_hd && hr == ref_hr)
+                continue;
+            ranks[count]=i;
+            deltas[count*2]=hd - ref_hd;
+            deltas[count*2+1]=hr - hd;
+            count++;
+        }
+        return new DeltaDigest(ref_seqnos != null? ref_round : 0, size, Arrays.copyOf(ranks, count),
+                               Arrays.copyOf(deltas, count * 2));
+    }
+
+    /**
+     * Applies this delta to the reference and returns the resulting digest
+     * @param members The members of the digest, in the same order as the ones used to create the delta
+     * @param ref The reference digest of round {@link #refRound()}; ignored (may be null) if the round is 0
+     */
+    public Digest apply(Address[] members, Digest ref) {
+        if(members.length != size)
+            throw new IllegalArgumentException(String.format("delta has %d members, but %d were passed", size, members.length));
+        long[] seqnos;
+        if(ref_round == 0)
+            seqnos=new long[size * 2];
+        else {
+            if(ref == null || ref.capacity() != size)
+                throw new IllegalArgumentException(String.format("reference of round %d doesn't match the delta", ref_round));
+            seqnos=Arrays.copyOf(ref.seqnos, size * 2);
+        }
+        for(int i=0; i < ranks.length; i++) {
+            int rank=ranks[i];
+            long hd=seqnos[rank*2] + deltas[i*2];
+            seqnos[rank*2]=hd;
+            seqnos[rank*2+1]=hd + deltas[i*2+1];
+        }
+        return new Digest(members, seqnos);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        Bits.writeLongCompressed(ref_round, out);
+        Bits.writeIntCompressed(size, out);
+        Bits.writeIntCompressed(ranks.length, out);
+        for(int i=0, prev=-1; i < ranks.length; i++) {
+            Bits.writeIntCompressed(ranks[i] - prev - 1, out); // gap to the previous rank
+            prev=ranks[i];
+            Bits.writeLongCompressed(deltas[i*2], out);
+            Bits.writeLongCompressed(deltas[i*2+1], out);
+        }
+    }
+
+    public void readFrom(DataInput in) throws IOException {
+        ref_round=Bits.readLongCompressed(in);
+        size=Bits.readIntCompressed(in);
+        int num=Bits.readIntCompressed(in);
+        ranks=new int[num];
+        deltas=new long[num * 2];
+        for(int i=0, prev=-1; i < num; i++) {
+            prev=ranks[i]=prev + 1 + Bits.readIntCompressed(in);
+            deltas[i*2]=Bits.readLongCompressed(in);
+            deltas[i*2+1]=Bits.readLongCompressed(in);
+        }
+    }
+
+    public int serializedSize() {
+        int retval=Bits.size(ref_round) + Bits.size(size) + Bits.size(ranks.length);
+        for(int i=0, prev=-1; i < ranks.length; i++) {
+            retval+=Bits.size(ranks[i] - prev - 1) + Bits.size(deltas[i*2]) + Bits.size(deltas[i*2+1]);
+            prev=ranks[i];
+        }
+        return retval;
+    }
+
+    public String toString() {
+        return String.format("%d/%d entries (ref-round=%d)", ranks.length, size, ref_round);
+    }
+}
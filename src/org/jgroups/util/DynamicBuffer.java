@@ -132,6 +132,8 @@ public class DynamicBuffer<T> extends Buffer<T> {
                 return false;
             row[index]=element;
             size++;
+            if(gaps != null)
+                gaps.added(seqno, high);
             if(seqno - high > 0)
                 high=seqno;
             if(remove_filter != null && seqno-hd > 0) {
@@ -370,6 +372,8 @@ public class DynamicBuffer<T> extends Buffer<T> {
                     low=hd=seqno;
                 size=computeSize();
             }
+            if(gaps != null)
+                gaps.purge(hd);
             num_purges++;
             if(max_compaction_time <= 0) // see if compaction should be triggered
                 return purged;
@@ -58,10 +58,10 @@ public class FixedBuffer<T> extends Buffer<T> {
         this.low=this.hd=this.high=this.offset=offset;
     }
 
-    @Override public int capacity()           {return buf.length;}
-    public long          numBlockings()       {return num_blockings.sum();}
-    public AverageMinMax avgTimeBlocked()     {return avg_time_blocked;}
-    public long          numDroppedMessages() {return num_dropped_msgs.sum();}
+    @Override public int           capacity()           {return buf.length;}
+    @Override public long          numBlockings()       {return num_blockings.sum();}
+    @Override public AverageMinMax avgTimeBlocked()     {return avg_time_blocked;}
+    @Override public long          numDroppedMessages() {return num_dropped_msgs.sum();}
 
     @Override
     public boolean add(long seqno, T element, Predicate<T> remove_filter, boolean block_if_full) {
@@ -81,6 +81,8 @@ public class FixedBuffer<T> extends Buffer<T> {
                 return false; // message already present
             buf[index]=element;
             size++;
+            if(gaps != null)
+                gaps.added(seqno, high);
 
             // see if high needs to be moved forward
             if(seqno - high > 0)
@@ -257,6 +259,8 @@ public class FixedBuffer<T> extends Buffer<T> {
             }
             if(force)
                 size=computeSize();
+            if(gaps != null)
+                gaps.purge(hd);
             if(low - tmp > 0)
                 buffer_full.signalAll();
             return purged;
@@ -0,0 +1,146 @@
+package org.jgroups.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.jgroups.util.Util.printTime;
+
+/**
+ * Log-linear histogram of non-negative long values (e.g. latencies in ns). Every power of 2 is divided into
+ * 2^precision linear sub-buckets, so the relative error of a percentile is at most 1/2^precision (~3% for the
+ * default precision of 5), across the entire range of longs.<br/>
+ * Recording is thread-safe and allocation-free: {@link #add(long)} increments a counter in an array and updates
+ * count, sum, min and max atomically. Computing percentiles walks all buckets, so it should not be done on the
+ * hot path.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class Histogram {
+    protected final int             precision;    // number of bits of the sub-buckets
+    protected final AtomicLongArray buckets;
+    protected final AtomicLong      count=new AtomicLong(), sum=new AtomicLong();
+    protected final AtomicLong      min=new AtomicLong(Long.MAX_VALUE), max=new AtomicLong();
+    protected TimeUnit              unit;
+
+    public Histogram() {
+        this(5);
+    }
+
+    /**
+     * Creates a histogram
+     * @param precision The number of bits of the sub-buckets (1-10): every power of 2 is divided into 2^precision
+     *                  sub-buckets
+     */
+    public Histogram(int precision) {
+        if(precision < 1 || precision > 10)
+            throw new IllegalArgumentException(String.format("precision (%d) has to be in range [1..10]", precision));
+        this.precision=precision;
+        this.buckets=new AtomicLongArray((64 - precision + 1) << precision);
+    }
+
+    public int       precision()         {return precision;}
+    public long      count()             {return count.get();}
+    public long      sum()               {return sum.get();}
+    public long      min()               {return count() == 0? 0 : min.get();}
+    public long      max()               {return max.get();}
+    public double    mean()              {long c=count(); return c == 0? 0 : sum() / (double)c;}
+    public TimeUnit  unit()              {return unit;}
+    public Histogram unit(TimeUnit u)    {this.unit=u; return this;}
+
+    /** Records a value. Negative values are recorded as 0 */
+    public Histogram add(long value) {
+        if(value < 0)
+            value=0;
+        buckets.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        for(long m=min.get(); value < m && !min.compareAndSet(m, value); m=min.get())
+            ;
+        for(long m=max.get(); value > m && !max.compareAndSet(m, value); m=max.get())
+            ;
+        return this;
+    }
+
+    /** Adds all values of another histogram with the same precision */
+    public Histogram add(Histogram h) {
+        if(h.precision != precision)
+            throw new IllegalArgumentException(String.format("precision of %d doesn't match %d", h.precision, precision));
+        for(int i=0; i < buckets.length(); i++) {
+            long c=h.buckets.get(i);
+            if(c > 0)
+                buckets.addAndGet(i, c);
+        }
+        count.addAndGet(h.count());
+        sum.addAndGet(h.sum());
+        for(long m=min.get(), v=h.min.get(); v < m && !min.compareAndSet(m, v); m=min.get())
+            ;
+        for(long m=max.get(), v=h.max.get(); v > m && !max.compareAndSet(m, v); m=max.get())
+            ;
+        return this;
+    }
+
+    /**
+     * Returns the value at the given percentile (0-100), e.g. 99.9. The value is the highest value of the bucket
+     * containing the percentile, but never higher than the max value
+     */
+    public long percentile(double percentile) {
+        long total=count();
+        if(total == 0)
+            return 0;
+        long target=Math.max(1, (long)Math.ceil(Math.min(percentile, 100.0) / 100.0 * total)), cnt=0;
+        for(int i=0; i < buckets.length(); i++) {
+            cnt+=buckets.get(i);
+            if(cnt >= target)
+                return Math.min(highestValue(i), max());
+        }
+        return max();
+    }
+
+    public long p(double percentile) {return percentile(percentile);}
+
+    public Histogram clear() {
+        for(int i=0; i < buckets.length(); i++)
+            buckets.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        if(count() == 0)
+            return "n/a";
+        return String.format("count=%,d min=%s p50=%s p90=%s p99=%s p99.9=%s max=%s",
+                             count(), print(min()), print(p(50)), print(p(90)), print(p(99)), print(p(99.9)),
+                             print(max()));
+    }
+
+    protected String print(long value) {
+        return unit != null? printTime(value, unit) : String.valueOf(value);
+    }
+
+    protected int index(long value) {
+        int sub_buckets=1 << precision;
+        if(value < sub_buckets)
+            return (int)value;
+        int shift=63 - Long.numberOfLeadingZeros(value) - precision;
+        return ((shift + 1) << precision) + (int)(value >>> shift) - sub_buckets;
+    }
+
+    /** Returns the lowest value that maps to the given bucket */
+    protected long lowestValue(int index) {
+        int sub_buckets=1 << precision, group=index >>> precision;
+        if(group == 0)
+            return index;
+        return ((long)(index & (sub_buckets-1)) + sub_buckets) << (group-1);
+    }
+
+    /** Returns the highest value that maps to the given bucket */
+    protected long highestValue(int index) {
+        int group=index >>> precision;
+        return group == 0? index : lowestValue(index) + (1L << (group-1)) - 1;
+    }
+}
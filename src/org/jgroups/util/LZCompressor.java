@@ -0,0 +1,159 @@
+package org.jgroups.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fast {@link Compressor} based on LZ77, in pure Java. The format is that of LZ4 blocks: a sequence consists of a
+ * token (4 bits literal length, 4 bits match length), the literals, a 2-byte offset of the match and its length.
+ * Matches are found with a single-entry hash table of 4-byte sequences; there is no entropy coding, so compression
+ * is much faster than with {@link DeflateCompressor}, at the expense of the compression ratio.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class LZCompressor implements Compressor {
+    public static final byte   ID=2;
+    protected static final int MIN_MATCH=4, HASH_BITS=12, MAX_OFFSET=0xFFFF,
+      LAST_LITERALS=5,  // the last 5 bytes are always literals
+      MF_LIMIT=12;      // a match has to start at least 12 bytes before the end
+    protected final int[]      table=new int[1 << HASH_BITS]; // positions of 4-byte sequences
+
+    public byte id() {return ID;}
+
+    public int compress(byte[] in, int in_offset, int in_length, byte[] out, int out_offset, int out_length) {
+        int end=in_offset + in_length, out_end=out_offset + out_length, anchor=in_offset, pos=in_offset, op=out_offset;
+        int match_limit=end - LAST_LITERALS, mf_limit=end - MF_LIMIT;
+        Arrays.fill(table, -1);
+        while(pos < mf_limit) {
+            int seq=readInt(in, pos), h=hash(seq), ref=table[h];
+            table[h]=pos;
+            if(ref < 0 || pos - ref > MAX_OFFSET || readInt(in, ref) != seq) {
+                pos++;
+                continue;
+            }
+            while(pos > anchor && ref > in_offset && in[pos-1] == in[ref-1]) { // extend the match backwards
+                pos--;
+                ref--;
+            }
+            int match_len=MIN_MATCH;
+            while(pos + match_len < match_limit && in[ref + match_len] == in[pos + match_len])
+                match_len++;
+            if((op=writeSequence(in, anchor, pos - anchor, pos - ref, match_len - MIN_MATCH, out, op, out_end)) < 0)
+                return -1;
+            pos+=match_len;
+            anchor=pos;
+            if(pos - 2 < mf_limit)
+                table[hash(readInt(in, pos-2))]=pos-2;
+        }
+        if((op=writeLiterals(in, anchor, end - anchor, out, op, out_end)) < 0)
+            return -1;
+        return op - out_offset;
+    }
+
+    public void decompress(byte[] in, int in_offset, int in_length, byte[] out, int out_offset, int original_length)
+      throws IOException {
+        int pos=in_offset, end=in_offset + in_length, op=out_offset, out_end=out_offset + original_length;
+        try {
+            while(pos < end) {
+                int token=in[pos++] & 0xFF, literals=token >>> 4;
+                if(literals == 15) {
+                    int b;
+                    do {
+                        literals+=(b=in[pos++] & 0xFF);
+                    }
+                    while(b == 255);
+                }
+                if(op + literals > out_end || pos + literals > end)
+                    throw new IOException("literals exceed the buffer");
+                System.arraycopy(in, pos, out, op, literals);
+                pos+=literals;
+                op+=literals;
+                if(pos >= end) // the last sequence has only literals
+                    break;
+                int offset=(in[pos++] & 0xFF) | (in[pos++] & 0xFF) << 8, match_len=token & 0x0F;
+                if(match_len == 15) {
+                    int b;
+                    do {
+                        match_len+=(b=in[pos++] & 0xFF);
+                    }
+                    while(b == 255);
+                }
+                match_len+=MIN_MATCH;
+                int ref=op - offset;
+                if(offset == 0 || ref < out_offset || op + match_len > out_end)
+                    throw new IOException(String.format("invalid match (offset=%d, length=%d)", offset, match_len));
+                if(offset >= match_len)
+                    System.arraycopy(out, ref, out, op, match_len);
+                else { // overlapping match, e.g. a run of the same byte
+                    for(int i=0; i < match_len; i++)
+                        out[op + i]=out[ref + i];
+                }
+                op+=match_len;
+            }
+        }
+        catch(ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("truncated input", ex);
+        }
+        if(op != out_end)
+            throw new IOException(String.format("decompressed %d bytes, but expected %d", op - out_offset, original_length));
+    }
+
+    public String toString() {
+        return "lz";
+    }
+
+    protected static int writeSequence(byte[] in, int lit_offset, int literals, int offset, int match_len,
+                                       byte[] out, int op, int out_end) {
+        if(op + 1 + literals + literals / 255 + 1 + 2 + match_len / 255 + 1 > out_end)
+            return -1;
+        int token_pos=op++, token;
+        if(literals >= 15) {
+            token=15 << 4;
+            op=writeLength(literals - 15, out, op);
+        }
+        else
+            token=literals << 4;
+        System.arraycopy(in, lit_offset, out, op, literals);
+        op+=literals;
+        out[op++]=(byte)offset;
+        out[op++]=(byte)(offset >>> 8);
+        if(match_len >= 15) {
+            token|=15;
+            op=writeLength(match_len - 15, out, op);
+        }
+        else
+            token|=match_len;
+        out[token_pos]=(byte)token;
+        return op;
+    }
+
+    protected static int writeLiterals(byte[] in, int lit_offset, int literals, byte[] out, int op, int out_end) {
+        if(op + 1 + literals + literals / 255 + 1 > out_end)
+            return -1;
+        if(literals >= 15) {
+            out[op++]=(byte)(15 << 4);
+            op=writeLength(literals - 15, out, op);
+        }
+        else
+            out[op++]=(byte)(literals << 4);
+        System.arraycopy(in, lit_offset, out, op, literals);
+        return op + literals;
+    }
+
+    protected static int writeLength(int len, byte[] out, int op) {
+        while(len >= 255) {
+            out[op++]=(byte)255;
+            len-=255;
+        }
+        out[op++]=(byte)len;
+        return op;
+    }
+
+    protected static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xFF) | (buf[pos+1] & 0xFF) << 8 | (buf[pos+2] & 0xFF) << 16 | (buf[pos+3] & 0xFF) << 24;
+    }
+
+    protected static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
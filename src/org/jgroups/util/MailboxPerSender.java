@@ -0,0 +1,301 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.conf.AttributeType;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+/**
+ * {@link org.jgroups.stack.MessageProcessingPolicy} which delivers <em>regular</em> messages and message batches of
+ * a given sender in order, like {@link MaxOneThreadPerSender}. Every sender has a mailbox for multicasts and one for
+ * unicasts, each drained by its own thread (a virtual thread if the transport uses virtual threads).
+ * <br/>
+ * Adding messages to a mailbox is lock-free. The drain thread removes all queued messages and passes them up as a
+ * batch. When a mailbox is empty, its thread parks; if no message is received for idle_timeout ms, the thread
+ * terminates, and is re-created when the next message is received. Mailboxes of senders which left are removed
+ * on a view change; their threads deliver the messages which are already queued, then terminate.
+ * <br/>
+ * OOB messages are not ordered, and are passed to the thread pool (as in {@link SubmitToThreadPool}).
+ * <br/>
+ * With platform threads (JDK &lt; 21, or use_vthreads=false), this policy is slower than {@link MaxOneThreadPerSender}
+ * and has a much higher latency (see MessageProcessingPolicyPerf), so it should only be used with virtual threads.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class MailboxPerSender extends SubmitToThreadPool {
+    protected final ConcurrentMap<Address,Mailbox> mcasts=new ConcurrentHashMap<>();
+    protected final ConcurrentMap<Address,Mailbox> ucasts=new ConcurrentHashMap<>();
+
+    @Property(description="Time (ms) after which the thread of an idle mailbox terminates",type=AttributeType.TIME)
+    protected long              idle_timeout=10_000;
+
+    @Property(description="Max number of messages passed up in a single batch by the thread of a mailbox")
+    protected int               max_batch_size=512;
+
+    protected final LongAdder   threads_created=new LongAdder(), threads_reclaimed=new LongAdder();
+
+    public long             idleTimeout()                {return idle_timeout;}
+    public MailboxPerSender idleTimeout(long t)          {idle_timeout=t; return this;}
+    public int              maxBatchSize()               {return max_batch_size;}
+    public MailboxPerSender maxBatchSize(int s)          {max_batch_size=s; return this;}
+
+    @ManagedAttribute(description="Number of mailboxes",type=AttributeType.SCALAR)
+    public int numMailboxes() {return mcasts.size() + ucasts.size();}
+
+    @ManagedAttribute(description="Number of mailboxes with a running (or parked) drain thread",type=AttributeType.SCALAR)
+    public int numActiveMailboxes() {
+        return (int)(mcasts.values().stream().filter(Mailbox::active).count()
+          + ucasts.values().stream().filter(Mailbox::active).count());
+    }
+
+    @ManagedAttribute(description="Number of drain threads created",type=AttributeType.SCALAR)
+    public long numThreadsCreated()   {return threads_created.sum();}
+
+    @ManagedAttribute(description="Number of drain threads terminated after being idle",type=AttributeType.SCALAR)
+    public long numThreadsReclaimed() {return threads_reclaimed.sum();}
+
+    @ManagedOperation(description="Dumps the unicast and multicast mailboxes")
+    public String dump() {
+        return String.format("\nmcasts:\n%s\nucasts:\n%s", print(mcasts), print(ucasts));
+    }
+
+    public void reset() {
+        threads_created.reset();
+        threads_reclaimed.reset();
+        mcasts.values().forEach(Mailbox::reset);
+        ucasts.values().forEach(Mailbox::reset);
+    }
+
+    public void destroy() {
+        mcasts.values().forEach(Mailbox::stop);
+        ucasts.values().forEach(Mailbox::stop);
+        mcasts.clear();
+        ucasts.clear();
+    }
+
+    public boolean loopback(Message msg, boolean oob) {
+        if(oob)
+            return super.loopback(msg, oob);
+        Address sender=msg.getSrc();
+        return sender != null && get(sender, msg.getDest() == null, true).add(msg);
+    }
+
+    public boolean loopback(MessageBatch batch, boolean oob) {
+        if(oob)
+            return super.loopback(batch, oob);
+        return get(batch.sender(), batch.dest() == null, true).add(batch);
+    }
+
+    public boolean process(Message msg, boolean oob) {
+        if(oob)
+            return super.process(msg, oob);
+        Address sender=msg.getSrc();
+        return sender != null && get(sender, msg.getDest() == null, false).add(msg);
+    }
+
+    public boolean process(MessageBatch batch, boolean oob) {
+        if(oob)
+            return super.process(batch, oob);
+        return get(batch.sender(), batch.dest() == null, false).add(batch);
+    }
+
+    /**
+     * Removes the mailboxes of senders which are not members anymore. Messages which are already queued are still
+     * delivered (as in {@link MaxOneThreadPerSender}), e.g. messages from a new member received before the view
+     * including it was installed
+     */
+    public void viewChange(List<Address> members) {
+        for(ConcurrentMap<Address,Mailbox> map: List.of(mcasts, ucasts)) {
+            map.values().removeIf(mb -> {
+                boolean remove=!members.contains(mb.sender);
+                if(remove)
+                    mb.remove();
+                return remove;
+            });
+        }
+    }
+
+    protected Mailbox get(Address sender, boolean multicast, boolean loopback) {
+        ConcurrentMap<Address,Mailbox> map=multicast? mcasts : ucasts;
+        Mailbox mb=map.get(sender);
+        if(mb != null)
+            return mb;
+        Mailbox tmp=map.putIfAbsent(sender, mb=new Mailbox(sender, multicast, loopback));
+        return tmp != null? tmp : mb;
+    }
+
+    protected static String print(ConcurrentMap<Address,Mailbox> map) {
+        return map.entrySet().stream().map(e -> String.format("%s: %s", e.getKey(), e.getValue()))
+          .collect(Collectors.joining("\n"));
+    }
+
+
+    /**
+     * Queue of messages from a given sender, drained by a single thread. Adders increment {@link #wip} after adding
+     * to the queue; the adder incrementing it from 0 wakes up (or creates) the drain thread.
+     */
+    protected class Mailbox implements Runnable {
+        protected final Address                  sender;
+        protected final boolean                  loopback;
+        protected final Queue<Message>           queue=new ConcurrentLinkedQueue<>();
+        protected final AtomicInteger            wip=new AtomicInteger();
+        protected final AtomicReference<Thread>  drainer=new AtomicReference<>();
+        protected final MessageBatch             batch; // only accessed by the drain thread
+        protected final LongAdder                queued_msgs=new LongAdder(), delivered_batches=new LongAdder();
+        protected volatile boolean               running=true;
+        protected volatile boolean               removed; // the drain thread terminates when the queue is empty
+
+        protected Mailbox(Address sender, boolean multicast, boolean loopback) {
+            this.sender=sender;
+            this.loopback=loopback;
+            Address dest=multicast? null : tp.getAddress();
+            batch=new MessageBatch(16).dest(dest).sender(sender).clusterName(tp.getClusterNameAscii())
+              .multicast(multicast).mode(MessageBatch.Mode.REG);
+        }
+
+        protected boolean active() {return drainer.get() != null;}
+
+        protected void reset() {
+            queued_msgs.reset();
+            delivered_batches.reset();
+        }
+
+        protected boolean add(Message msg) {
+            queue.add(msg);
+            queued_msgs.increment();
+            signal();
+            return true;
+        }
+
+        protected boolean add(MessageBatch mb) {
+            for(Message msg: mb)
+                queue.add(msg);
+            queued_msgs.add(mb.size());
+            signal();
+            return true;
+        }
+
+        /** Called when removed from the map: the drain thread terminates as soon as the mailbox is empty */
+        protected void remove() {
+            removed=true;
+            Thread t=drainer.get();
+            if(t != null)
+                LockSupport.unpark(t);
+        }
+
+        protected void stop() {
+            running=false;
+            Thread t=drainer.get();
+            if(t != null)
+                LockSupport.unpark(t);
+            queue.clear();
+        }
+
+        /** Wakes up the drain thread, or creates one if there is none */
+        protected void signal() {
+            if(wip.getAndIncrement() != 0 || !running)
+                return;
+            Thread t=drainer.get();
+            if(t != null) {
+                LockSupport.unpark(t);
+                return;
+            }
+            t=tp.getThreadFactory().newThread(this, "mailbox-" + sender);
+            if(drainer.compareAndSet(null, t)) {
+                threads_created.increment();
+                t.start();
+            }
+            else // the idle drain thread took over again (see run())
+                LockSupport.unpark(drainer.get());
+        }
+
+        public void run() {
+            Thread self=Thread.currentThread();
+            for(;;) {
+                try {
+                    if(wip.get() == 0 && !awaitWork()) {
+                        // idle: terminate unless an adder incremented wip before it saw drainer == null
+                        drainer.set(null);
+                        if(!running || wip.get() == 0 || !drainer.compareAndSet(null, self)) {
+                            threads_reclaimed.increment();
+                            return;
+                        }
+                    }
+                    int missed=wip.get();
+                    drain();
+                    wip.addAndGet(-missed);
+                }
+                catch(Throwable t) {
+                    log.error("failed processing messages from %s: %s", sender, t);
+                }
+            }
+        }
+
+        /**
+         * Parks until work is available (returns true), or idle_timeout elapsed or the mailbox was stopped or removed
+         */
+        protected boolean awaitWork() {
+            long deadline=System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(idle_timeout);
+            while(running && !removed && wip.get() == 0) {
+                long remaining=deadline - System.nanoTime();
+                if(remaining <= 0)
+                    return false;
+                LockSupport.parkNanos(this, remaining);
+            }
+            return running && wip.get() != 0;
+        }
+
+        /** Removes all queued messages and passes them up, in batches of up to max_batch_size messages */
+        protected void drain() {
+            Message msg;
+            int num;
+            do {
+                batch.clear();
+                for(num=0; num < max_batch_size && (msg=queue.poll()) != null; num++)
+                    batch.add(msg);
+                if(num == 0)
+                    return;
+                passUp(batch);
+            }
+            while(num >= max_batch_size); // the batch may have been modified by the protocols above
+        }
+
+        protected void passUp(MessageBatch mb) {
+            if(!mb.multicast()) {
+                // due to an incorrect (e.g. late) view change, the cached batch's destination might be
+                // different from our local address. If this is the case, change the cached batch's dest address
+                if(tp.unicastDestMismatch(mb.dest())) {
+                    Address dest=tp.addr();
+                    if(dest != null)
+                        mb.dest(dest);
+                }
+            }
+            delivered_batches.increment();
+            if(mb.size() == 1) {
+                Message m=mb.first();
+                tp.passMessageUp(m, !loopback, m.dest() == null, !loopback);
+            }
+            else
+                tp.passBatchUp(mb, !loopback, !loopback);
+        }
+
+        public String toString() {
+            return String.format("queued=%,d msgs (%,d total), delivered batches=%,d%s", queue.size(), queued_msgs.sum(),
+                                 delivered_batches.sum(), active()? " [active]" : "");
+        }
+    }
+}
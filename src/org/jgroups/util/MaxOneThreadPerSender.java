@@ -250,6 +250,7 @@ public class MaxOneThreadPerSender extends SubmitToThreadPool {
         }
 
         public void run() {
+            recordQueueWait(submitted);
             while(entry.workAvailable() || entry.adders.decrementAndGet() != 0) {
                 try {
                     MessageBatch mb=entry.batch;
@@ -0,0 +1,43 @@
+package org.jgroups.util;
+
+import org.jgroups.Message;
+import org.jgroups.MessageFactory;
+import org.jgroups.RefBytesMessage;
+
+/**
+ * {@link ByteArrayDataInputStream} over a {@link RefCountedBuffer}. Messages read from this stream create
+ * {@link RefBytesMessage}s instead of {@link org.jgroups.BytesMessage}s, whose payloads reference the buffer (if they
+ * have at least {@link #minSize()} bytes) instead of being copied.
+ * This class is not thread safe.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class PooledDataInputStream extends ByteArrayDataInputStream {
+    protected final RefCountedBuffer ref;
+    protected final int              min_size;
+
+    /**
+     * Creates a stream reading from the given buffer
+     * @param ref The buffer
+     * @param offset The offset into the buffer's array
+     * @param length The number of bytes to read
+     * @param min_size The min size of a payload to reference the buffer instead of being copied
+     */
+    public PooledDataInputStream(RefCountedBuffer ref, int offset, int length, int min_size) {
+        super(ref.array(), offset, length);
+        this.ref=ref;
+        this.min_size=min_size;
+    }
+
+    public RefCountedBuffer ref()     {return ref;}
+    public int              minSize() {return min_size;}
+
+    /** Creates a message of the given type; {@link Message#BYTES_MSG} creates a {@link RefBytesMessage} */
+    public Message createMessage(short type) {
+        return type == Message.BYTES_MSG? new RefBytesMessage() : MessageFactory.create(type);
+    }
+
+    public String toString() {
+        return super.toString() + String.format(" (ref: %s)", ref);
+    }
+}
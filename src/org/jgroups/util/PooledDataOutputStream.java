@@ -0,0 +1,108 @@
+package org.jgroups.util;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Implements {@link java.io.DataOutput} over a {@link ByteBuffer} acquired from a {@link BufferPool}. When more space
+ * is needed, a larger buffer is acquired from the pool, the contents are copied and the old buffer is released.
+ * {@link #close()} returns the buffer to the pool; the stream and the buffer returned by {@link #byteBuffer()} must
+ * not be used after that.
+ * This class is not thread safe.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class PooledDataOutputStream extends BaseDataOutputStream {
+    protected final BufferPool pool;
+    protected ByteBuffer       buf;
+
+    public PooledDataOutputStream(BufferPool pool, int capacity) {
+        this.pool=Objects.requireNonNull(pool);
+        this.buf=pool.acquire(capacity);
+    }
+
+    public int capacity() {return buf.capacity();}
+
+    /** Returns the underlying buffer, with position 0 and the limit set to the number of bytes written */
+    public ByteBuffer byteBuffer() {
+        return buf.limit(pos).position(0);
+    }
+
+    @Override
+    public void writeChar(int v) {
+        writeShort(v);
+    }
+
+    @Override
+    public void writeShort(int v) {
+        ensureCapacity(2);
+        buf.putShort(pos, (short)v);
+        pos+=2;
+    }
+
+    @Override
+    public void writeInt(int v) {
+        ensureCapacity(4);
+        buf.putInt(pos, v);
+        pos+=4;
+    }
+
+    @Override
+    public void writeLong(long v) {
+        ensureCapacity(8);
+        buf.putLong(pos, v);
+        pos+=8;
+    }
+
+    public void write(int b) {
+        ensureCapacity(1);
+        buf.put(pos++, (byte)b);
+    }
+
+    public void write(byte[] b, int off, int len) {
+        if((off < 0) || (off > b.length) || (len < 0) || ((off + len) - b.length > 0))
+            throw new IndexOutOfBoundsException(String.format("off=%d, len=%d, b.length=%d", off, len, b.length));
+        ensureCapacity(len);
+        buf.put(pos, b, off, len);
+        pos+=len;
+    }
+
+    /** Releases the buffer to the pool */
+    @Override
+    public void close() {
+        ByteBuffer tmp=buf;
+        if(tmp != null) {
+            buf=null;
+            pool.release(tmp);
+        }
+    }
+
+    public String toString() {
+        return super.toString() + String.format(", cap=%d", buf != null? buf.capacity() : 0);
+    }
+
+    protected int checkBounds(int pos) {
+        super.checkBounds(pos);
+        if(pos > buf.capacity())
+            throw new IndexOutOfBoundsException("capacity=" + buf.capacity());
+        return pos;
+    }
+
+    /** Grows the buffer by acquiring a buffer of at least twice the size from the pool */
+    protected void ensureCapacity(int bytes) {
+        int min_capacity=pos + bytes;
+        if(min_capacity <= buf.limit())
+            return;
+        if(min_capacity <= buf.capacity()) { // limit was reduced by byteBuffer()
+            buf.limit(buf.capacity());
+            return;
+        }
+        if(min_capacity < 0)
+            throw new OutOfMemoryError();
+        int new_capacity=Math.max(min_capacity, buf.capacity() << 1);
+        ByteBuffer tmp=pool.acquire(new_capacity < 0? min_capacity : new_capacity);
+        tmp.put(0, buf, 0, pos);
+        pool.release(buf);
+        buf=tmp;
+    }
+}
@@ -0,0 +1,75 @@
+package org.jgroups.util;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted receive buffer, acquired from a {@link BufferPool}. The receiving thread holds the initial
+ * reference; every message which references the buffer rather than copying its payload (see
+ * {@link org.jgroups.RefBytesMessage}) holds an additional one.<br/>
+ * The buffer is returned to the pool when the count drops to 0, or - if a reference is never released - when this
+ * instance has been garbage collected, which implies that no message referencing it is reachable any longer.
+ * The latter uses a {@link Cleaner}, which is only registered when the first additional reference is acquired, so
+ * buffers which are not shared by messages are recycled without any GC involvement.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class RefCountedBuffer {
+    protected static final Cleaner    CLEANER=Cleaner.create();
+    protected final ByteBuffer        buf;
+    protected final Recycler          recycler;
+    protected final AtomicInteger     refs=new AtomicInteger(1);
+    protected volatile Cleaner.Cleanable cleanable;
+
+    /** Acquires a heap buffer of at least size bytes from pool */
+    public RefCountedBuffer(BufferPool pool, int size) {
+        Objects.requireNonNull(pool);
+        this.buf=pool.acquire(size);
+        if(!buf.hasArray()) {
+            pool.release(buf);
+            throw new IllegalArgumentException("receive buffers need to be heap buffers");
+        }
+        this.recycler=new Recycler(pool, buf);
+    }
+
+    public byte[] array()    {return buf.array();}
+    public int    offset()   {return buf.arrayOffset();}
+    public int    capacity() {return buf.capacity();}
+    public int    refCount() {return refs.get();}
+
+    /** Acquires an additional reference. Must only be called by a holder of a reference */
+    public RefCountedBuffer retain() {
+        if(cleanable == null) {
+            synchronized(this) {
+                if(cleanable == null)
+                    cleanable=CLEANER.register(this, recycler);
+            }
+        }
+        refs.incrementAndGet();
+        return this;
+    }
+
+    /** Releases a reference; the buffer is returned to the pool when the last reference has been released */
+    public void release() {
+        if(refs.decrementAndGet() == 0) {
+            Cleaner.Cleanable c=cleanable;
+            if(c != null)
+                c.clean(); // runs the recycler at most once, even if this instance is later garbage collected
+            else
+                recycler.run();
+        }
+    }
+
+    public String toString() {
+        return String.format("%s (refs=%d)", Util.printBytes(buf.capacity()), refs.get());
+    }
+
+    /** Returns the buffer to the pool; must not reference the {@link RefCountedBuffer} instance */
+    protected record Recycler(BufferPool pool, ByteBuffer buf) implements Runnable {
+        public void run() {
+            pool.release(buf);
+        }
+    }
+}
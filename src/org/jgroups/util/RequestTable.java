@@ -83,6 +83,16 @@ public class RequestTable<T> {
         }
     }
 
+    /**
+     * Returns the element at the index matching seqno without acquiring the lock. The element may be stale, or may
+     * belong to a different seqno mapping to the same index, so callers need to verify that the element matches
+     * seqno, and fall back to {@link #get(long)} if not
+     */
+    public T getNonBlocking(long seqno) {
+        T[] buf=this.buffer;
+        return buf[index(seqno, buf.length)];
+    }
+
     /**
      * Removes the element at the index matching seqno. If seqno == low, tries to advance low until a non-null element
      * is encountered, up to high
@@ -0,0 +1,185 @@
+package org.jgroups.util;
+
+import org.jgroups.Global;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Append-only log of records, stored in memory-mapped segment files. Every record has a key (e.g. a seqno); keys are
+ * expected to increase. A record is identified by its position (segment ID and offset), returned by
+ * {@link #append(long, byte[], int, int)}. Segments whose records all have a key lower than or equal to a given key
+ * are released by {@link #truncate(long)}; released segments are recycled or deleted.
+ * <p>
+ * The files are created in a new directory, which is removed by {@link #close()}. This class is not thread-safe.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class SegmentLog implements Closeable {
+    protected final Path           dir;
+    protected final int            segment_size;
+    /** Max number of released segments kept for reuse */
+    protected final int            max_free_segments;
+    /** The segments in use, ordered by ID. IDs are contiguous */
+    protected final List<Segment>  segments=new ArrayList<>();
+    protected final Deque<Segment> free_segments=new ArrayDeque<>();
+    protected long                 next_id=1;
+    protected long                 size; // bytes used by the segments in use
+    protected int                  segments_created, segments_recycled;
+    protected boolean              closed;
+
+
+    /**
+     * Creates a segment log
+     * @param parent_dir The directory in which the directory of this log is created
+     * @param prefix The prefix of the name of the directory created
+     * @param segment_size The size of a segment (bytes). Records larger than this get their own segment
+     * @param max_free_segments The max number of released segments kept for reuse
+     */
+    public SegmentLog(Path parent_dir, String prefix, int segment_size, int max_free_segments) throws IOException {
+        if(segment_size <= Global.INT_SIZE)
+            throw new IllegalArgumentException("segment_size has to be > " + Global.INT_SIZE);
+        Files.createDirectories(parent_dir);
+        this.dir=Files.createTempDirectory(parent_dir, prefix);
+        this.segment_size=segment_size;
+        this.max_free_segments=max_free_segments;
+    }
+
+    public Path    dir()               {return dir;}
+    public int     segmentSize()       {return segment_size;}
+    /** The number of bytes used by the segments in use */
+    public long    size()              {return size;}
+    public int     numSegments()       {return segments.size();}
+    public int     numFreeSegments()   {return free_segments.size();}
+    public int     segmentsCreated()   {return segments_created;}
+    public int     segmentsRecycled()  {return segments_recycled;}
+    public boolean isClosed()          {return closed;}
+
+    /** Appends a record and returns its position */
+    public long append(long key, byte[] buf, int off, int len) throws IOException {
+        if(closed)
+            throw new IllegalStateException(String.format("log %s is closed", dir));
+        int required=len + Global.INT_SIZE;
+        Segment seg=segments.isEmpty()? null : segments.get(segments.size() - 1);
+        if(seg == null || seg.remaining() < required)
+            segments.add(seg=newSegment(required));
+        int pos=seg.pos;
+        seg.buf.putInt(pos, len).put(pos + Global.INT_SIZE, buf, off, len);
+        seg.pos+=required;
+        seg.last_key=Math.max(seg.last_key, key);
+        size+=required;
+        return seg.id << 32 | pos;
+    }
+
+    /** Returns the record at the given position, or null if the segment has been released */
+    public ByteBuffer read(long position) {
+        Segment seg=segment(position >>> 32);
+        if(seg == null)
+            return null;
+        int pos=(int)position, len=seg.buf.getInt(pos);
+        return seg.buf.slice(pos + Global.INT_SIZE, len);
+    }
+
+    /** Releases the oldest segments whose records all have a key lower than or equal to key. Returns the number
+     * of released segments */
+    public int truncate(long key) {
+        int count=0;
+        while(!segments.isEmpty() && segments.get(0).last_key <= key) {
+            release(segments.remove(0));
+            count++;
+        }
+        return count;
+    }
+
+    /** Deletes all segments and the directory */
+    @Override
+    public void close() {
+        if(closed)
+            return;
+        closed=true;
+        segments.forEach(this::delete);
+        free_segments.forEach(this::delete);
+        segments.clear();
+        free_segments.clear();
+        size=0;
+        try {
+            Files.deleteIfExists(dir);
+        }
+        catch(IOException ignored) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d segments (%,d bytes), %d free", dir, segments.size(), size, free_segments.size());
+    }
+
+    protected Segment segment(long id) {
+        if(segments.isEmpty())
+            return null;
+        long index=id - segments.get(0).id;
+        return index >= 0 && index < segments.size()? segments.get((int)index) : null;
+    }
+
+    protected Segment newSegment(int required) throws IOException {
+        long id=next_id++;
+        if(required <= segment_size && !free_segments.isEmpty()) {
+            segments_recycled++;
+            return free_segments.poll().reset(id);
+        }
+        int capacity=Math.max(segment_size, required);
+        Path path=dir.resolve("segment-" + id);
+        try(FileChannel ch=FileChannel.open(path, CREATE_NEW, READ, WRITE)) {
+            MappedByteBuffer buf=ch.map(FileChannel.MapMode.READ_WRITE, 0, capacity); // valid after closing ch
+            segments_created++;
+            return new Segment(id, path, buf);
+        }
+    }
+
+    protected void release(Segment seg) {
+        size-=seg.pos;
+        if(seg.buf.capacity() == segment_size && free_segments.size() < max_free_segments)
+            free_segments.add(seg);
+        else
+            delete(seg);
+    }
+
+    /** Deletes the file of a segment; the mapping is released when the buffer is garbage collected */
+    protected void delete(Segment seg) {
+        try {
+            Files.deleteIfExists(seg.path);
+        }
+        catch(IOException ignored) {
+        }
+    }
+
+
+    protected static class Segment {
+        protected long                   id;
+        protected final Path             path;
+        protected final MappedByteBuffer buf;
+        protected int                    pos;      // the write position
+        protected long                   last_key; // the highest key of all records
+
+        protected Segment(long id, Path path, MappedByteBuffer buf) {
+            this.id=id;
+            this.path=path;
+            this.buf=buf;
+            this.last_key=Long.MIN_VALUE;
+        }
+
+        protected int     remaining()     {return buf.capacity() - pos;}
+        protected Segment reset(long new_id) {id=new_id; pos=0; last_key=Long.MIN_VALUE; return this;}
+    }
+}
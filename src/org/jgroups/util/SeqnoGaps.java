@@ -0,0 +1,192 @@
+package org.jgroups.util;
+
+/**
+ * Run-length encoded list of missing seqnos (gaps), maintained incrementally by a {@link Buffer} as elements are
+ * added and purged. Gaps are stored as sorted [from,to] pairs (both inclusive) in a long array, so finding the missing
+ * seqnos is O(gaps) rather than O(window). Adding the next expected seqno (high+1) is O(1); filling a gap is O(1) for
+ * the first gap (retransmissions usually arrive oldest first) and O(log gaps) otherwise.<br/>
+ * Not thread-safe: the caller (buffer) has to hold its lock.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class SeqnoGaps {
+    /** Pairs of from and to seqnos of the gaps, sorted by from */
+    protected long[] gaps;
+    /** The number of gaps (pairs in the array) */
+    protected int    num;
+    protected long   num_missing;
+
+    public SeqnoGaps() {
+        this(8);
+    }
+
+    public SeqnoGaps(int initial_capacity) {
+        gaps=new long[Math.max(1, initial_capacity) * 2];
+    }
+
+    public int     numGaps()    {return num;}
+    public long    numMissing() {return num_missing;}
+    public boolean isEmpty()    {return num == 0;}
+    /** Returns the lowest missing seqno, or -1 if no seqnos are missing */
+    public long    first()      {return num == 0? -1 : gaps[0];}
+    /** Returns the highest missing seqno, or -1 if no seqnos are missing */
+    public long    last()       {return num == 0? -1 : gaps[num*2-1];}
+
+    /**
+     * Called after seqno has been added to a buffer whose highest seqno was high before the addition. Creates a new
+     * gap if seqno is higher than high+1, or removes seqno from its gap if seqno is lower than high
+     */
+    public SeqnoGaps added(long seqno, long high) {
+        long diff=seqno - high;
+        if(diff == 1)
+            return this; // the common case: no new gap
+        if(diff > 1)
+            return add(high+1, seqno-1);
+        remove(seqno);
+        return this;
+    }
+
+    /** Adds a gap [from .. to]. From has to be higher than the highest missing seqno */
+    public SeqnoGaps add(long from, long to) {
+        if(to - from < 0)
+            return this;
+        if(num > 0) {
+            long last=last();
+            if(from - last <= 0)
+                throw new IllegalArgumentException(String.format("from (%d) has to be > last (%d)", from, last));
+            if(from - last == 1) { // adjacent to the last gap: extend it
+                gaps[num*2-1]=to;
+                num_missing+=to - from + 1;
+                return this;
+            }
+        }
+        ensureCapacity();
+        gaps[num*2]=from;
+        gaps[num*2+1]=to;
+        num++;
+        num_missing+=to - from + 1;
+        return this;
+    }
+
+    /** Removes seqno from the gap it's in. Returns true if seqno was missing, else false */
+    public boolean remove(long seqno) {
+        int i=find(seqno);
+        if(i < 0)
+            return false;
+        int idx=i*2;
+        long from=gaps[idx], to=gaps[idx+1];
+        if(from == to) {
+            System.arraycopy(gaps, idx+2, gaps, idx, (num-i-1)*2);
+            num--;
+        }
+        else if(seqno == from)
+            gaps[idx]=from+1;
+        else if(seqno == to)
+            gaps[idx+1]=to-1;
+        else { // split the gap into [from .. seqno-1] and [seqno+1 .. to]
+            ensureCapacity();
+            System.arraycopy(gaps, idx+2, gaps, idx+4, (num-i-1)*2);
+            gaps[idx+1]=seqno-1;
+            gaps[idx+2]=seqno+1;
+            gaps[idx+3]=to;
+            num++;
+        }
+        num_missing--;
+        return true;
+    }
+
+    /** Removes all seqnos {@literal <=} seqno */
+    public SeqnoGaps purge(long seqno) {
+        int i=0;
+        for(; i < num && gaps[i*2+1] - seqno <= 0; i++)
+            num_missing-=gaps[i*2+1] - gaps[i*2] + 1;
+        if(i < num && gaps[i*2] - seqno <= 0) { // the gap contains seqno
+            num_missing-=seqno - gaps[i*2] + 1;
+            gaps[i*2]=seqno+1;
+        }
+        if(i > 0) {
+            System.arraycopy(gaps, i*2, gaps, 0, (num-i)*2);
+            num-=i;
+        }
+        return this;
+    }
+
+    public SeqnoGaps clear() {
+        num=0;
+        num_missing=0;
+        return this;
+    }
+
+    /** Returns true if seqno is missing */
+    public boolean contains(long seqno) {
+        return find(seqno) >= 0;
+    }
+
+    /**
+     * Returns the missing seqnos in range [from .. to] as a {@link SeqnoList} with a capacity of to-from+1 and an
+     * offset of from, or null if no seqnos in the range are missing
+     */
+    public SeqnoList getMissing(long from, long to) {
+        if(num == 0 || to - from < 0)
+            return null;
+        SeqnoList list=null;
+        int i=find(from);
+        if(i < 0)
+            i=0;
+        for(; i < num; i++) {
+            long f=Math.max(gaps[i*2], from), t=Math.min(gaps[i*2+1], to);
+            if(f - to > 0)
+                break;
+            if(t - f < 0)
+                continue;
+            if(list == null)
+                list=new SeqnoList((int)(to - from + 1), from);
+            list.add(f, t);
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb=new StringBuilder().append('[');
+        int max=Math.min(num, Util.MAX_LIST_PRINT_SIZE);
+        for(int i=0; i < max; i++) {
+            long from=gaps[i*2], to=gaps[i*2+1];
+            if(i > 0)
+                sb.append(", ");
+            sb.append(from);
+            if(to != from)
+                sb.append('-').append(to);
+        }
+        if(max < num)
+            sb.append(", ...");
+        return sb.append("] (missing: ").append(num_missing).append(')').toString();
+    }
+
+    /** Returns the index of the gap containing seqno, or -1 if seqno is not missing */
+    protected int find(long seqno) {
+        if(num == 0)
+            return -1;
+        if(seqno - gaps[0] >= 0 && seqno - gaps[1] <= 0) // fast path: retransmissions mostly fill the first gap
+            return 0;
+        int lo=0, hi=num-1;
+        while(lo <= hi) {
+            int mid=(lo + hi) >>> 1;
+            if(gaps[mid*2+1] - seqno < 0)
+                lo=mid+1;
+            else if(gaps[mid*2] - seqno > 0)
+                hi=mid-1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    protected void ensureCapacity() {
+        if((num+1)*2 > gaps.length) {
+            long[] tmp=new long[gaps.length * 2];
+            System.arraycopy(gaps, 0, tmp, 0, num*2);
+            gaps=tmp;
+        }
+    }
+}
@@ -17,7 +17,10 @@ import java.util.function.Supplier;
  * @since  3.1
  */
 public class SeqnoList extends FixedSizeBitSet implements SizeStreamable, Iterable<Long>, Constructable<SeqnoList> {
-    protected long offset; // first seqno
+    protected long    offset;      // first seqno
+    protected boolean run_length;  // whether the list may be serialized as ranges (only read by newer versions)
+    protected int     num_runs=-1; // the number of runs of set bits; -1 if not yet computed (or changed)
+    protected int     rle_size;    // the size of the run-length encoded ranges, valid if num_runs >= 0
 
     /** Only to be used by serialization */
     public SeqnoList() {
@@ -41,9 +44,47 @@ public class SeqnoList extends FixedSizeBitSet implements SizeStreamable, Iterab
         this(size, 0);
     }
 
+    public boolean   runLength()          {return run_length;}
+
+    /**
+     * Whether to serialize the list as run-length encoded ranges if that is smaller than the bitmap. Members running
+     * a version which doesn't support run-length encoding cannot read such a list, so this is off by default
+     */
+    public SeqnoList runLength(boolean b) {this.run_length=b; return this;}
+
+    @Override
+    public boolean set(int index) {
+        num_runs=-1;
+        return super.set(index);
+    }
+
+    @Override
+    public void set(int from, int to) {
+        num_runs=-1;
+        super.set(from, to);
+    }
+
+    @Override
+    public void clear(int index) {
+        num_runs=-1;
+        super.clear(index);
+    }
+
+    @Override
+    public void clear(int from, int to) {
+        num_runs=-1;
+        super.clear(from, to);
+    }
+
+    @Override
+    public void flip() {
+        num_runs=-1;
+        super.flip();
+    }
+
     /** Adds a single seqno */
     public SeqnoList add(long seqno) {
-        super.set(index(seqno));
+        set(index(seqno));
         return this;
     }
 
@@ -63,7 +104,7 @@ public class SeqnoList extends FixedSizeBitSet implements SizeStreamable, Iterab
 
     /** Adds a seqno range */
     public SeqnoList add(long from, long to) {
-        super.set(index(from), index(to));
+        set(index(from), index(to));
         return this;
     }
 
@@ -74,7 +115,7 @@ public class SeqnoList extends FixedSizeBitSet implements SizeStreamable, Iterab
         if(from < 0)
             from=0;
         if(from <= to && from >= 0)
-            super.clear(from, to);
+            clear(from, to);
         return this;
     }
 
@@ -82,7 +123,7 @@ public class SeqnoList extends FixedSizeBitSet implements SizeStreamable, Iterab
     public SeqnoList removeLowerThan(long seqno) {
         int to=index(seqno-1);
         if(to >= 0)
-            super.clear(0, to);
+            clear(0, to);
         return this;
     }
 
@@ -99,27 +140,85 @@ public class SeqnoList extends FixedSizeBitSet implements SizeStreamable, Iterab
         return index < 0? -1 : seqno(index);
     }
 
+    /**
+     * The list is serialized either as bitmap (the words of the bitset) or - if {@link #runLength(boolean)} is
+     * enabled and it is smaller - as a run-length encoded list of ranges of seqnos (negative size). The latter keeps
+     * XMIT requests for large windows with few gaps small.
+     */
     @Override
     public int serializedSize() {
-        return Global.INT_SIZE // number of words
-          + (words.length+1) * Global.LONG_SIZE; // words + offset
+        return Global.INT_SIZE + Global.LONG_SIZE // size + offset
+          + (useRunLength()? rle_size : words.length * Global.LONG_SIZE);
     }
 
     @Override
     public void writeTo(DataOutput out) throws IOException {
-        out.writeInt(size);
+        boolean rle=useRunLength();
+        out.writeInt(rle? -size : size);
         out.writeLong(offset);
-        for(long word: words)
-            out.writeLong(word);
+        if(!rle) {
+            for(long word: words)
+                out.writeLong(word);
+            return;
+        }
+        Bits.writeIntCompressed(num_runs, out);
+        int prev_end=0;
+        for(int start=nextSetBit(0); start >= 0; start=nextSetBit(prev_end)) {
+            int end=endOfRun(start);
+            Bits.writeIntCompressed(start - prev_end, out);
+            Bits.writeIntCompressed(end - start, out);
+            prev_end=end;
+        }
     }
 
     @Override
     public void readFrom(DataInput in) throws IOException {
         size=in.readInt();
         offset=in.readLong();
+        boolean rle=size < 0;
+        if(rle)
+            size=-size;
         words=new long[wordIndex(size - 1) + 1];
-        for(int i=0; i < words.length; i++)
-            words[i]=in.readLong();
+        num_runs=-1;
+        if(!rle) {
+            for(int i=0; i < words.length; i++)
+                words[i]=in.readLong();
+            return;
+        }
+        int num_runs=Bits.readIntCompressed(in), prev_end=0;
+        for(int i=0; i < num_runs; i++) {
+            int start=prev_end + Bits.readIntCompressed(in), end=start + Bits.readIntCompressed(in);
+            super.set(start, end - 1);
+            prev_end=end;
+        }
+    }
+
+    /** Whether to serialize the list run-length encoded: computes the runs if the list changed since last time */
+    protected boolean useRunLength() {
+        if(!run_length)
+            return false;
+        if(num_runs < 0)
+            computeRuns();
+        return rle_size < words.length * Global.LONG_SIZE;
+    }
+
+    /** Computes the number of runs of set bits and the size of their run-length encoding */
+    protected void computeRuns() {
+        int len=0, runs=0, prev_end=0;
+        for(int start=nextSetBit(0); start >= 0; start=nextSetBit(prev_end)) {
+            int end=endOfRun(start);
+            len+=Bits.size(start - prev_end) + Bits.size(end - start);
+            runs++;
+            prev_end=end;
+        }
+        rle_size=len + Bits.size(runs);
+        num_runs=runs;
+    }
+
+    /** Returns the index of the first clear bit after start, or size if all bits up to the end are set */
+    protected int endOfRun(int start) {
+        int end=nextClearBit(start);
+        return end < 0 || end > size? size : end;
     }
 
 
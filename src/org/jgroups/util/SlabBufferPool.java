@@ -0,0 +1,242 @@
+package org.jgroups.util;
+
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.conf.AttributeType;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.jgroups.conf.AttributeType.SCALAR;
+
+/**
+ * {@link BufferPool} with power-of-two size classes, between {@link #min_size} and {@link #max_size}. Each size class
+ * allocates memory in slabs of {@link #slab_size} bytes, which are sliced into buffers of the class' size, so that
+ * the number of (direct) allocations is small. A size class holds at most {@link #max_bytes_per_class} bytes;
+ * requests for larger buffers, or for a size class that has been exhausted, are served by unpooled allocations
+ * (counted as misses).
+ * <br/>
+ * Buffers are direct (off-heap) by default; transports which can only send from heap arrays set {@link #direct}
+ * to false, so that pooled heap buffers can be sent without copying. The type of buffers cannot be changed once
+ * the pool has been initialized.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class SlabBufferPool implements BufferPool {
+
+    @Property(description="Size of the smallest size class. Rounded up to the next power of 2",type=AttributeType.BYTES)
+    protected int        min_size=1024;
+
+    @Property(description="Size of the largest size class. Rounded up to the next power of 2. Larger buffers are " +
+      "allocated on demand and not pooled",type=AttributeType.BYTES)
+    protected int        max_size=128 * 1024;
+
+    @Property(description="Number of bytes allocated at once by a size class. A slab is sliced into buffers of " +
+      "the class' size",type=AttributeType.BYTES)
+    protected int        slab_size=1024 * 1024;
+
+    @Property(description="Max number of bytes allocated by a size class. When exceeded, buffers are allocated " +
+      "unpooled",type=AttributeType.BYTES)
+    protected long       max_bytes_per_class=4 * 1024 * 1024;
+
+    @Property(description="Allocates direct (off-heap) buffers if true, or heap buffers if false")
+    protected boolean    direct=true;
+
+    @ManagedAttribute(description="Number of buffers acquired from the pool",type=SCALAR)
+    protected final LongAdder num_hits=new LongAdder();
+
+    @ManagedAttribute(description="Number of buffers which had to be allocated, including oversized buffers",type=SCALAR)
+    protected final LongAdder num_misses=new LongAdder();
+
+    @ManagedAttribute(description="Number of buffers larger than max_size (never pooled)",type=SCALAR)
+    protected final LongAdder num_oversized=new LongAdder();
+
+    @ManagedAttribute(description="Number of slabs allocated",type=SCALAR)
+    protected final LongAdder num_slabs=new LongAdder();
+
+    @ManagedAttribute(description="Number of buffers returned to the pool",type=SCALAR)
+    protected final LongAdder num_releases=new LongAdder();
+
+    @ManagedAttribute(description="Number of released buffers which were discarded as they didn't belong to " +
+      "a size class, or the size class was full",type=SCALAR)
+    protected final LongAdder num_discards=new LongAdder();
+
+    protected SizeClass[]     classes;
+    protected int             min_shift; // log2(min_size)
+
+
+    public int            minSize()                        {return min_size;}
+    public SlabBufferPool minSize(int s)                   {min_size=s; return this;}
+    public int            maxSize()                        {return max_size;}
+    public SlabBufferPool maxSize(int s)                   {max_size=s; return this;}
+    public int            slabSize()                       {return slab_size;}
+    public SlabBufferPool slabSize(int s)                  {slab_size=s; return this;}
+    public long           maxBytesPerClass()               {return max_bytes_per_class;}
+    public SlabBufferPool maxBytesPerClass(long m)         {max_bytes_per_class=m; return this;}
+    public boolean        isDirect()                       {return direct;}
+    public SlabBufferPool direct(boolean d)                {
+        if(classes != null && d != direct)
+            throw new IllegalStateException("the type of buffers cannot be changed after the pool has been initialized");
+        direct=d; return this;
+    }
+    public long           hits()                           {return num_hits.sum();}
+    public long           misses()                         {return num_misses.sum();}
+    public long           releases()                       {return num_releases.sum();}
+
+    @ManagedAttribute(description="Ratio of acquisitions served from the pool")
+    public double hitRatio() {
+        long hits=num_hits.sum(), total=hits + num_misses.sum();
+        return total == 0? 0.0 : hits / (double)total;
+    }
+
+    @ManagedAttribute(description="Number of bytes allocated by all size classes",type=AttributeType.BYTES,gauge=true)
+    public long pooledBytes() {
+        return classes == null? 0 : Stream.of(classes).mapToLong(c -> c.allocated).sum();
+    }
+
+    @ManagedAttribute(description="Number of buffers currently available in the pool",type=SCALAR,gauge=true)
+    public int freeBuffers() {
+        return classes == null? 0 : Stream.of(classes).mapToInt(c -> c.free.size()).sum();
+    }
+
+    @Override
+    public void init() throws Exception {
+        if(min_size <= 0 || max_size < min_size)
+            throw new IllegalArgumentException(String.format("min_size (%d) must be > 0 and <= max_size (%d)",
+                                                             min_size, max_size));
+        min_size=Util.getNextHigherPowerOfTwo(min_size);
+        max_size=Util.getNextHigherPowerOfTwo(max_size);
+        min_shift=Integer.numberOfTrailingZeros(min_size);
+        int num_classes=Integer.numberOfTrailingZeros(max_size) - min_shift + 1;
+        SizeClass[] tmp=new SizeClass[num_classes];
+        for(int i=0, size=min_size; i < num_classes; i++, size<<=1)
+            tmp[i]=new SizeClass(size);
+        classes=tmp;
+    }
+
+    @Override
+    public void destroy() {
+        if(classes != null)
+            Stream.of(classes).forEach(SizeClass::clear);
+    }
+
+    @Override
+    public ByteBuffer acquire(int size) {
+        if(size > max_size) {
+            num_oversized.increment();
+            num_misses.increment();
+            return allocate(size);
+        }
+        SizeClass cl=classes[index(size)];
+        ByteBuffer buf=cl.free.poll();
+        if(buf != null) {
+            num_hits.increment();
+            return buf;
+        }
+        num_misses.increment();
+        return cl.allocate();
+    }
+
+    @Override
+    public void release(ByteBuffer buf) {
+        if(buf == null)
+            return;
+        num_releases.increment();
+        int cap=buf.capacity();
+        if(buf.isDirect() != direct || cap > max_size || cap < min_size || Integer.bitCount(cap) != 1) {
+            num_discards.increment();
+            return;
+        }
+        if(!classes[index(cap)].free.offer(buf.clear()))
+            num_discards.increment();
+    }
+
+    @Override
+    public void resetStats() {
+        Stream.of(num_hits, num_misses, num_oversized, num_slabs, num_releases, num_discards).forEach(LongAdder::reset);
+    }
+
+    @ManagedOperation(description="Prints the size classes")
+    public String printSizeClasses() {
+        return classes == null? "n/a" : Stream.of(classes).map(SizeClass::toString).collect(Collectors.joining("\n"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s, sizes: %s - %s, hits: %,d, misses: %,d", getClass().getSimpleName(),
+                             direct? "direct" : "heap", Util.printBytes(min_size), Util.printBytes(max_size),
+                             num_hits.sum(), num_misses.sum());
+    }
+
+    /** Returns the index of the smallest size class which can hold size bytes */
+    protected int index(int size) {
+        int shift=size <= 1? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(0, shift - min_shift);
+    }
+
+    protected ByteBuffer allocate(int size) {
+        return direct? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+
+    /** A list of free buffers of the same size, plus the bookkeeping for the slabs allocated for them */
+    protected class SizeClass {
+        protected final int                       size;
+        protected final BlockingQueue<ByteBuffer> free;
+        protected final ReentrantLock             lock=new ReentrantLock();
+        protected volatile long                   allocated; // bytes
+
+        protected SizeClass(int size) {
+            this.size=size;
+            this.free=new ArrayBlockingQueue<>((int)Math.max(1, max_bytes_per_class / size));
+        }
+
+        /**
+         * Allocates a new slab, slices it into buffers, adds all but the first to the free list and returns the
+         * first. Returns an unpooled buffer if this size class is exhausted
+         */
+        protected ByteBuffer allocate() {
+            lock.lock();
+            try {
+                ByteBuffer buf=free.poll(); // another thread might have allocated a slab in the meantime
+                if(buf != null)
+                    return buf;
+                int num_bufs=Math.max(1, slab_size / size);
+                long slab_bytes=(long)num_bufs * size;
+                if(allocated + slab_bytes > max_bytes_per_class)
+                    return SlabBufferPool.this.allocate(size);
+                ByteBuffer slab=SlabBufferPool.this.allocate((int)slab_bytes);
+                allocated+=slab_bytes;
+                num_slabs.increment();
+                for(int i=1; i < num_bufs; i++)
+                    free.offer(slab.slice(i * size, size));
+                return slab.slice(0, size);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        protected void clear() {
+            lock.lock();
+            try {
+                free.clear();
+                allocated=0;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d free, %s allocated", Util.printBytes(size), free.size(), Util.printBytes(allocated));
+        }
+    }
+}
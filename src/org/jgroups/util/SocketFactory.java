@@ -5,10 +5,12 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.net.ProtocolFamily;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
@@ -73,6 +75,11 @@ public interface SocketFactory {
     DatagramSocket createDatagramSocket(String service_name, int port) throws SocketException;
     DatagramSocket createDatagramSocket(String service_name, int port, InetAddress laddr) throws SocketException;
 
+    /** Creates an unbound {@link DatagramChannel} for the given protocol family */
+    default DatagramChannel createDatagramChannel(String service_name, ProtocolFamily family) throws IOException {
+        return DatagramChannel.open(family);
+    }
+
     MulticastSocket createMulticastSocket(String service_name) throws IOException;
     MulticastSocket createMulticastSocket(String service_name, int port) throws IOException;
     MulticastSocket createMulticastSocket(String service_name, SocketAddress bindaddr) throws IOException;
@@ -86,4 +93,7 @@ public interface SocketFactory {
     default void close(ServerSocketChannel channel) {
         Util.close(channel);
     }
+    default void close(DatagramChannel channel) {
+        Util.close(channel);
+    }
 }
@@ -0,0 +1,565 @@
+package org.jgroups.util;
+
+import org.jgroups.Message;
+import org.jgroups.annotations.GuardedBy;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static org.jgroups.Message.Flag.OOB;
+import static org.jgroups.Message.TransientFlag.OOB_DELIVERED;
+
+/**
+ * Send buffer which keeps the most recent messages in memory, and spills older messages to a {@link SegmentLog} of
+ * memory-mapped files. Like {@link FixedBuffer}, the in-memory part is a ring of a fixed capacity. When a message is
+ * added to a full ring, the oldest messages are marshalled and appended to the log, and only their positions
+ * (a long per message) are kept on the heap. A spilled message is unmarshalled when it is retrieved, e.g. for a
+ * retransmission. Segments are released (recycled or deleted) when all of their messages have been purged.
+ * <p>
+ * The seqnos in [low+1 .. spilled] are in the log, the seqnos in [max(low,spilled)+1 .. high] are in memory.
+ * <p>
+ * An adder blocks when the oldest message in memory cannot be spilled: when the log has reached its max size, or when
+ * the message is an OOB message which has not yet been delivered by the local member (delivery of OOB messages is
+ * tracked with a transient flag, which would be lost on a copy).
+ * <p>
+ * Note that a message retrieved from the log is a copy, so changes to it are not reflected in the buffer.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class SpillBuffer extends Buffer<Message> {
+    /** The in-memory ring, holding the seqnos in [max(low,spilled)+1 .. high] */
+    protected final Message[]      mem;
+    /** The highest seqno in the log. low <= spilled <= high always holds */
+    protected long                 spilled;
+    /** The positions in the log of the seqnos in [low+1 .. spilled] (-1 if null), starting at pos_start */
+    protected long[]               positions=new long[1024];
+    protected int                  pos_start;
+    protected final SegmentLog     log;
+    /** Max number of bytes in the log; adders block when it is reached. 0 means no limit */
+    protected final long           max_spill_size;
+    protected final Condition      buffer_full=lock.newCondition();
+    protected final ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(1024);
+    protected boolean              open=true;
+
+    protected final LongAdder      num_blockings=new LongAdder();
+    protected final AverageMinMax  avg_time_blocked=new AverageMinMax(512).unit(TimeUnit.NANOSECONDS);
+    protected final LongAdder      num_dropped_msgs=new LongAdder();
+    protected final LongAdder      num_spilled=new LongAdder();
+    protected final LongAdder      num_spill_reads=new LongAdder();
+
+
+    /**
+     * Creates a SpillBuffer
+     * @param capacity The number of messages kept in memory
+     * @param offset The offset. The first message to be added has to be offset +1
+     * @param dir The directory in which the directory of the log is created
+     * @param segment_size The size of a segment file, in bytes
+     * @param max_spill_size The max size of the log, in bytes. 0 means no limit
+     */
+    public SpillBuffer(int capacity, long offset, Path dir, int segment_size, long max_spill_size) throws IOException {
+        if(capacity < 1)
+            throw new IllegalArgumentException("incorrect capacity of " + capacity);
+        this.mem=new Message[capacity];
+        this.low=this.hd=this.high=this.spilled=this.offset=offset;
+        this.log=new SegmentLog(dir, "spill-", segment_size, 2);
+        this.max_spill_size=max_spill_size;
+    }
+
+    @Override public int           capacity()           {return mem.length;}
+    @Override public long          numBlockings()       {return num_blockings.sum();}
+    @Override public AverageMinMax avgTimeBlocked()     {return avg_time_blocked;}
+    @Override public long          numDroppedMessages() {return num_dropped_msgs.sum();}
+    public long                    numSpilled()         {return num_spilled.sum();}
+    public long                    numSpillReads()      {return num_spill_reads.sum();}
+    public long                    spilled()            {return spilled;}
+    public SegmentLog              log()                {return log;}
+
+    /** The number of bytes in the log */
+    public long spillSize() {
+        lock.lock();
+        try {
+            return log.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean add(long seqno, Message element, Predicate<Message> remove_filter, boolean block_if_full) {
+        lock.lock();
+        try {
+            if(seqno - low <= 0)
+                return false; // message already purged
+            if(seqno - spilled > 0 && seqno - memLow() > mem.length && !spill(seqno)
+              && (!block_if_full || !block(seqno))) {
+                num_dropped_msgs.increment();
+                return false;
+            }
+            if(seqno - low <= 0)
+                return false; // purged while blocked
+            if(seqno - spilled <= 0) // fills a gap in the log, e.g. spilled by a different adder while blocked
+                return addToLog(seqno, element);
+            int index=index(seqno);
+            if(mem[index] != null)
+                return false; // message already present
+            mem[index]=element;
+            size++;
+            if(gaps != null)
+                gaps.added(seqno, high);
+            if(seqno - high > 0)
+                high=seqno;
+
+            if(remove_filter != null && seqno - hd > 0) {
+                Visitor<Message> v=(seq,msg) -> {
+                    if(msg == null || !remove_filter.test(msg))
+                        return false;
+                    if(seq - hd > 0)
+                        hd=seq;
+                    size=Math.max(size-1, 0);
+                    return true;
+                };
+                forEach(highestDelivered()+1, high(), v, false, true);
+            }
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean add(MessageBatch batch, Function<Message,Long> seqno_getter, boolean remove_from_batch,
+                       Message const_value) {
+        if(batch == null || batch.isEmpty())
+            return false;
+        Objects.requireNonNull(seqno_getter);
+        boolean retval=false;
+        lock.lock();
+        try {
+            for(Iterator<Message> it=batch.iterator(); it.hasNext(); ) {
+                Message msg=it.next();
+                long seqno=seqno_getter.apply(msg);
+                if(seqno < 0)
+                    continue;
+                boolean added=add(seqno, const_value != null? const_value : msg, null, false);
+                retval=retval || added;
+                if(!added || remove_from_batch)
+                    it.remove();
+            }
+            return retval;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean add(List<LongTuple<Message>> list, boolean remove_added_elements, Message const_value) {
+        if(list == null || list.isEmpty())
+            return false;
+        boolean added=false;
+        lock.lock();
+        try {
+            for(Iterator<LongTuple<Message>> it=list.iterator(); it.hasNext();) {
+                LongTuple<Message> tuple=it.next();
+                if(add(tuple.getVal1(), const_value != null? const_value : tuple.getVal2(), null, false))
+                    added=true;
+                else if(remove_added_elements)
+                    it.remove();
+            }
+            return added;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message get(long seqno) {
+        lock.lock();
+        try {
+            return element(seqno);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message _get(long seqno) {
+        return get(seqno);
+    }
+
+    @Override
+    public Message remove(boolean nullify) {
+        lock.lock();
+        try {
+            long tmp=hd + 1;
+            if(tmp - high > 0)
+                return null;
+            Message element=element(tmp);
+            if(element != null) {
+                hd=tmp;
+                size=Math.max(size-1, 0);
+                if(nullify)
+                    advanceLow(hd);
+                buffer_full.signalAll();
+            }
+            return element;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Message> removeMany(boolean nullify, int max_results, Predicate<Message> filter) {
+        return removeMany(nullify, max_results, filter, LinkedList::new, LinkedList::add);
+    }
+
+    @Override
+    public <R> R removeMany(boolean nullify, int max_results, Predicate<Message> filter, Supplier<R> result_creator,
+                            BiConsumer<R,Message> accumulator) {
+        Remover<R> remover=new Remover<>(max_results, filter, result_creator, accumulator);
+        lock.lock();
+        try {
+            forEach(remover, nullify);
+            buffer_full.signalAll(); // undelivered OOB messages may now be spilled
+            return remover.getResult();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int purge(long seqno, boolean force) {
+        lock.lock();
+        try {
+            if(seqno - low <= 0)
+                return 0;
+            if(force) {
+                if(seqno - high > 0)
+                    seqno=high;
+            }
+            else if(seqno - hd > 0)
+                seqno=hd;
+            int purged=0, undelivered=0;
+            for(long i=low+1; i - seqno <= 0; i++) {
+                if(exists(i)) {
+                    purged++;
+                    if(i - hd > 0)
+                        undelivered++;
+                }
+            }
+            advanceLow(seqno);
+            hd=Math.max(hd, low);
+            if(force)
+                size=Math.max(size - undelivered, 0);
+            if(gaps != null)
+                gaps.purge(hd);
+            return purged;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void forEach(long from, long to, Visitor<Message> visitor, boolean nullify) {
+        forEach(from, to, visitor, nullify, false);
+    }
+
+    public void forEach(long from, long to, Visitor<Message> visitor, boolean nullify, boolean respect_stop) {
+        if(from - to > 0)
+            return;
+        lock.lock();
+        try {
+            long new_low=low;
+            for(; from - to <= 0; from++) {
+                Message element=element(from);
+                boolean stop=visitor != null && !visitor.visit(from, element);
+                if(stop && respect_stop)
+                    break;
+                if(nullify && element != null && from - new_low > 0)
+                    new_low=from;
+                if(stop)
+                    break;
+            }
+            if(new_low - low > 0)
+                advanceLow(new_low);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Counts the elements in [hd+1 .. high] without reading spilled messages */
+    @Override
+    public int computeSize() {
+        int count=0;
+        for(long i=hd+1; i - high <= 0; i++)
+            if(exists(i))
+                count++;
+        return count;
+    }
+
+    @Override
+    public int getNumDeliverable() {
+        lock.lock();
+        try {
+            int count=0;
+            for(long i=hd+1; i - high <= 0 && exists(i); i++)
+                count++;
+            return count;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getHighestDeliverable() {
+        lock.lock();
+        try {
+            if(gaps != null)
+                return gaps.isEmpty()? high : gaps.first() - 1;
+            long i=hd;
+            while(i - high < 0 && exists(i+1))
+                i++;
+            return i;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void resetStats() {
+        super.resetStats();
+        Stream.of(num_blockings, num_dropped_msgs, num_spilled, num_spill_reads).forEach(LongAdder::reset);
+        avg_time_blocked.clear();
+    }
+
+    @Override
+    public void open(boolean b) {
+        lock.lock();
+        try {
+            open=b;
+            buffer_full.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Unblocks blocked adders and deletes the log */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            open(false);
+            log.close();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Message> iterator() {
+        return iterator(hd+1, high);
+    }
+
+    @Override
+    public Iterator<Message> iterator(long from, long to) {
+        return new Iterator<>() {
+            long current=from;
+            public boolean hasNext() {return to - current >= 0;}
+            public Message next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                return get(current++);
+            }
+        };
+    }
+
+    @Override
+    public Stream<Message> stream() {
+        return stream(hd+1, high);
+    }
+
+    @Override
+    public Stream<Message> stream(long from, long to) {
+        Spliterator<Message> sp=Spliterators.spliterator(iterator(from, to), Math.max(to - from + 1, 0), 0);
+        return StreamSupport.stream(sp, false);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (spilled: %,d, log: %,d bytes)", super.toString(), spilled, log.size());
+    }
+
+    protected long memLow()            {return Math.max(low, spilled);}
+    protected int  index(long seqno)   {return (int)((seqno - offset - 1) % mem.length);}
+    protected int  posIndex(long seqno) {return pos_start + (int)(seqno - low - 1);}
+
+    @GuardedBy("lock")
+    protected boolean exists(long seqno) {
+        if(seqno - low <= 0 || seqno - high > 0)
+            return false;
+        return seqno - spilled > 0? mem[index(seqno)] != null : positions[posIndex(seqno)] >= 0;
+    }
+
+    @GuardedBy("lock")
+    protected Message element(long seqno) {
+        if(seqno - low <= 0 || seqno - high > 0)
+            return null;
+        if(seqno - spilled > 0)
+            return mem[index(seqno)];
+        long pos=positions[posIndex(seqno)];
+        return pos < 0? null : read(pos);
+    }
+
+    /** Spills the oldest messages in memory until seqno fits into the ring. Returns false if a message could not be
+     * spilled */
+    @GuardedBy("lock")
+    protected boolean spill(long seqno) {
+        while(seqno - memLow() > mem.length) {
+            long next=memLow() + 1;
+            int index=index(next);
+            Message msg=mem[index];
+            long pos=-1;
+            if(msg != null) {
+                if(next - hd > 0 && msg.isFlagSet(OOB) && !msg.isFlagSet(OOB_DELIVERED))
+                    return false; // not yet delivered locally
+                if(log.isClosed() || (max_spill_size > 0 && log.size() >= max_spill_size))
+                    return false;
+                if((pos=write(next, msg)) < 0)
+                    return false;
+            }
+            addPosition(pos);
+            mem[index]=null;
+            spilled=next;
+        }
+        return true;
+    }
+
+    /** Adds a message whose seqno is already covered by the log (it was null when spilled) */
+    @GuardedBy("lock")
+    protected boolean addToLog(long seqno, Message msg) {
+        int index=posIndex(seqno);
+        if(positions[index] >= 0 || log.isClosed())
+            return false;
+        long pos=write(seqno, msg);
+        if(pos < 0)
+            return false;
+        positions[index]=pos;
+        if(seqno - hd > 0)
+            size++;
+        if(gaps != null)
+            gaps.added(seqno, high);
+        return true;
+    }
+
+    /** Marshals a message, including its transient flags, and appends it to the log. Returns the position, or -1 */
+    @GuardedBy("lock")
+    protected long write(long seqno, Message msg) {
+        try {
+            out.position(0);
+            out.writeByte(msg.getFlags(true));
+            out.writeShort(msg.getType());
+            msg.writeTo(out);
+            long pos=log.append(seqno, out.buffer(), 0, out.position());
+            num_spilled.increment();
+            return pos;
+        }
+        catch(Exception ex) {
+            throw new IllegalStateException(String.format("failed spilling message #%d to %s", seqno, log.dir()), ex);
+        }
+    }
+
+    @GuardedBy("lock")
+    protected Message read(long pos) {
+        ByteBuffer buf=log.read(pos);
+        if(buf == null)
+            return null;
+        try {
+            DataInput in=new ByteBufferInputStream(buf);
+            byte transient_flags=in.readByte();
+            Message msg=Util.readMessage(in);
+            if(transient_flags != 0)
+                msg.setFlag(transient_flags, true, false);
+            num_spill_reads.increment();
+            return msg;
+        }
+        catch(Exception ex) {
+            throw new IllegalStateException(String.format("failed reading message from %s", log.dir()), ex);
+        }
+    }
+
+    @GuardedBy("lock")
+    protected void addPosition(long pos) {
+        int index=pos_start + (int)(spilled - low);
+        if(index >= positions.length) {
+            int count=(int)(spilled - low);
+            long[] tmp=count * 2 > positions.length? new long[positions.length * 2] : positions;
+            System.arraycopy(positions, pos_start, tmp, 0, count); // grows or compacts
+            positions=tmp;
+            pos_start=0;
+            index=count;
+        }
+        positions[index]=pos;
+    }
+
+    /** Nulls all elements in [low+1 .. new_low] and sets low to new_low. Releases the segments which are not needed
+     * anymore and unblocks blocked adders */
+    @GuardedBy("lock")
+    protected void advanceLow(long new_low) {
+        if(new_low - low <= 0)
+            return;
+        if(new_low - high > 0)
+            new_low=high;
+        for(long i=memLow() + 1; i - new_low <= 0; i++)
+            mem[index(i)]=null;
+        if(new_low - spilled >= 0) {
+            spilled=new_low;
+            pos_start=0;
+        }
+        else
+            pos_start+=(int)(new_low - low);
+        low=new_low;
+        log.truncate(low);
+        buffer_full.signalAll();
+    }
+
+    @GuardedBy("lock")
+    protected boolean block(long seqno) {
+        while(open && seqno - spilled > 0 && seqno - memLow() > mem.length && !spill(seqno)) {
+            num_blockings.increment();
+            long start=System.nanoTime();
+            try {
+                buffer_full.await();
+            }
+            catch(InterruptedException e) {
+            }
+            finally {
+                avg_time_blocked.add(System.nanoTime() - start);
+            }
+        }
+        return open;
+    }
+}
@@ -14,11 +14,16 @@ import java.util.Iterator;
  * @since  4.0
  */
 public class SubmitToThreadPool implements MessageProcessingPolicy {
-    protected TP    tp;
-    protected Log   log;
+    protected TP                 tp;
+    protected Log                log;
+    protected volatile Histogram queue_wait; // if non-null: time between submission and execution of a task
 
     protected TP getTransport() {return tp;}
 
+    public Histogram          queueWaitHistogram()            {return queue_wait;}
+    /** Records the time between submitting a message or batch to the thread pool and processing it. Null disables it */
+    public SubmitToThreadPool queueWaitHistogram(Histogram h) {this.queue_wait=h; return this;}
+
     public void init(TP transport) {
         this.tp=transport;
         this.log=tp.getLog();
@@ -71,20 +76,34 @@ public class SubmitToThreadPool implements MessageProcessingPolicy {
         return removed;
     }
 
+    /** Returns the current time if the queue wait time is recorded, else 0 */
+    protected long submitTime() {
+        return queue_wait != null? System.nanoTime() : 0;
+    }
+
+    protected void recordQueueWait(long submitted) {
+        Histogram h=queue_wait;
+        if(h != null && submitted > 0)
+            h.add(System.nanoTime() - submitted);
+    }
+
     public class SingleLoopbackHandler implements Runnable {
         protected final Message msg;
+        protected final long    submitted=submitTime();
 
         public SingleLoopbackHandler(Message msg) {
             this.msg=msg;
         }
 
         public void run() {
+            recordQueueWait(submitted);
             tp.passMessageUp(msg, false, msg.getDest() == null, false);
         }
     }
 
     public class SingleMessageHandler implements Runnable {
         protected final Message msg;
+        protected final long    submitted=submitTime();
 
         protected SingleMessageHandler(final Message msg) {
             this.msg=msg;
@@ -93,6 +112,7 @@ public class SubmitToThreadPool implements MessageProcessingPolicy {
         public Message getMessage() {return msg;}
 
         public void run() {
+            recordQueueWait(submitted);
             Address dest=msg.getDest();
             boolean multicast=dest == null;
             try {
@@ -107,6 +127,7 @@ public class SubmitToThreadPool implements MessageProcessingPolicy {
     public class BatchHandler implements Runnable {
         protected MessageBatch batch;
         protected boolean      loopback;
+        protected final long   submitted=submitTime();
 
         public BatchHandler(final MessageBatch batch, boolean loopback) {
             this.batch=batch;
@@ -114,6 +135,7 @@ public class SubmitToThreadPool implements MessageProcessingPolicy {
         }
 
         public void run() {
+            recordQueueWait(submitted);
             if(batch == null || batch.isEmpty() || (!batch.multicast() && tp.unicastDestMismatch(batch.dest())))
                 return;
             passBatchUp();
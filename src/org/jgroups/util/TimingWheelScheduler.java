@@ -0,0 +1,577 @@
+package org.jgroups.util;
+
+
+import org.jgroups.Global;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+
+/**
+ * Implementation of {@link TimeScheduler} based on a hierarchical hashed timing wheel. Scheduling and cancelling a
+ * task are O(1), which makes this implementation a good fit for a large number of short-lived tasks which are
+ * mostly cancelled before they expire (e.g. RPC timeouts or retransmission tasks).
+ * <br/>
+ * The wheel has {@link #levels} levels of {@link #wheel_size} slots each. A slot in level 0 covers 1 tick, a slot in
+ * level 1 covers wheel_size ticks and so on. Tasks are placed into the slot of the lowest level covering their
+ * expiration time, and moved (cascaded) to lower levels as time advances.
+ * <br/>
+ * Only the runner thread accesses the wheel: new and cancelled tasks are added to queues, which are drained by the
+ * runner at every tick. The tasks expiring in a tick are submitted to the thread pool (or run by the runner, if
+ * they're non-blocking) in one go. The precision of this timer is the length of a tick: tasks are executed up to
+ * 1 tick later than scheduled.
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class TimingWheelScheduler implements TimeScheduler, Runnable {
+    /** Thread pool used to execute the tasks */
+    protected Executor                    pool;
+    protected ThreadPool                  thread_pool;
+
+    /** The length of a tick (ns) */
+    protected final long                  tick;
+
+    /** Number of slots per level (a power of 2) */
+    protected final int                   wheel_size;
+
+    protected final int                   bits, mask, levels;
+
+    /** The slots of all levels: slot i of level l is at index l * wheel_size + i */
+    protected final Slot[]                slots;
+
+    /** Tasks added by schedule(), placed into the wheel by the runner */
+    protected final Queue<Task>           new_tasks=new ConcurrentLinkedQueue<>();
+
+    /** Cancelled tasks, removed from the wheel by the runner */
+    protected final Queue<Task>           cancelled_tasks=new ConcurrentLinkedQueue<>();
+
+    /** Number of tasks in the wheel and in new_tasks */
+    protected final AtomicInteger         num_tasks=new AtomicInteger();
+
+    protected final long                  start_time=System.nanoTime();
+
+    /** The next tick to be processed, relative to start_time. Only accessed by the runner */
+    protected long                        current_tick;
+
+    /** Thread which advances the wheel and submits expired tasks to the thread pool */
+    protected volatile Thread             runner;
+
+    /** Set when the runner waits for tasks to be added */
+    protected volatile boolean            idle;
+
+    protected static final Log            log=LogFactory.getLog(TimingWheelScheduler.class);
+
+    protected ThreadFactory               timer_thread_factory;
+
+    // if true, non-blocking timer tasks are run directly by the runner thread and not submitted to the thread pool
+    protected boolean                     non_blocking_task_handling=true;
+
+    protected boolean                     shut_down_pool;
+
+    protected enum TaskType               {dynamic, fixed_rate, fixed_delay}
+
+
+    /** Creates a timer with a tick of 10 ms and 512 slots per level, which executes tasks on its own pool */
+    public TimingWheelScheduler() {
+        this(10, 512);
+    }
+
+    /** Creates a timer which executes tasks on its own pool */
+    public TimingWheelScheduler(long tick, int wheel_size) {
+        this(tick, wheel_size, null);
+        pool=new ThreadPoolExecutor(4, 10,
+                                    30000, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(100),
+                                    Executors.defaultThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+        shut_down_pool=true;
+        start();
+    }
+
+    public TimingWheelScheduler(ThreadPool thread_pool, ThreadFactory factory, long tick, int wheel_size, boolean start) {
+        this(tick, wheel_size, factory);
+        this.thread_pool=Objects.requireNonNull(thread_pool);
+        pool=thread_pool.getThreadPool();
+        if(start)
+            start();
+    }
+
+    /**
+     * @param tick The length of a tick (ms)
+     * @param wheel_size The number of slots per level; will be rounded up to a power of 2
+     * @param factory The factory to create the runner thread; may be null
+     */
+    protected TimingWheelScheduler(long tick, int wheel_size, ThreadFactory factory) {
+        if(tick <= 0)
+            throw new IllegalArgumentException("tick must be > 0: " + tick);
+        this.tick=TimeUnit.MILLISECONDS.toNanos(tick);
+        this.wheel_size=Util.getNextHigherPowerOfTwo(Math.max(2, wheel_size));
+        bits=Integer.numberOfTrailingZeros(this.wheel_size);
+        mask=this.wheel_size - 1;
+        levels=(32 + bits - 1) / bits; // covers 2^32 ticks; tasks further in the future are cascaded more than once
+        slots=new Slot[levels * this.wheel_size];
+        for(int i=0; i < slots.length; i++)
+            slots[i]=new Slot();
+        timer_thread_factory=factory;
+    }
+
+    public void    setThreadFactory(ThreadFactory f)     {condSet((p) -> p.setThreadFactory(f));}
+    public void    setThreadPool(Executor new_pool)      {pool=new_pool;}
+    public int     getMinThreads()                       {return condGet(ThreadPoolExecutor::getCorePoolSize, 0);}
+    public void    setMinThreads(int size)               {condSet(p -> p.setCorePoolSize(size));}
+    public int     getMaxThreads()                       {return condGet(ThreadPoolExecutor::getMaximumPoolSize, 0);}
+    public void    setMaxThreads(int size)               {condSet(p -> p.setMaximumPoolSize(size));}
+    public long    getKeepAliveTime()                    {return condGet(p -> p.getKeepAliveTime(TimeUnit.MILLISECONDS), 0L);}
+    public void    setKeepAliveTime(long time)           {condSet(p -> p.setKeepAliveTime(time, TimeUnit.MILLISECONDS));}
+    public int     getCurrentThreads()                   {return condGet(ThreadPoolExecutor::getPoolSize, 0);}
+    public int     getQueueSize()                        {return condGet(p -> p.getQueue().size(), 0);}
+    public int     size()                                {return num_tasks.get();}
+    public long    tick()                                {return TimeUnit.NANOSECONDS.toMillis(tick);}
+    public int     wheelSize()                           {return wheel_size;}
+    public int     levels()                              {return levels;}
+    public String  toString()                            {return getClass().getSimpleName();}
+    public boolean isShutdown()                          {return condGet(ThreadPoolExecutor::isShutdown, false);}
+    public boolean getNonBlockingTaskHandling()          {return non_blocking_task_handling;}
+    public void    setNonBlockingTaskHandling(boolean b) {this.non_blocking_task_handling=b;}
+
+
+    /** The wheel is only accessed by the runner, so only the number of tasks is returned */
+    public String dumpTimerTasks() {
+        return String.format("%d tasks (%d levels of %d slots, tick=%d ms)", size(), levels, wheel_size, tick());
+    }
+
+    /** Cancelled tasks are removed by the runner at every tick */
+    public void removeCancelledTasks() {
+    }
+
+
+    public void execute(Runnable task, boolean can_block) {
+        submitToPool(task instanceof TimeScheduler.Task?
+                       new RecurringTask(task, TaskType.dynamic, 0, ((TimeScheduler.Task)task).nextInterval(), TimeUnit.MILLISECONDS, can_block)
+                       : new Task(task, can_block));
+    }
+
+
+    public Future<?> schedule(Runnable work, long initial_delay, TimeUnit unit, boolean can_block) {
+        return doSchedule(new Task(work, initial_delay, unit, can_block), initial_delay);
+    }
+
+
+    public Future<?> scheduleWithFixedDelay(Runnable work, long initial_delay, long delay, TimeUnit unit, boolean can_block) {
+        return scheduleRecurring(work, TaskType.fixed_delay, initial_delay, delay, unit, can_block);
+    }
+
+
+    public Future<?> scheduleAtFixedRate(Runnable work, long initial_delay, long delay, TimeUnit unit, boolean can_block) {
+        return scheduleRecurring(work, TaskType.fixed_rate, initial_delay, delay, unit, can_block);
+    }
+
+
+    public Future<?> scheduleWithDynamicInterval(TimeScheduler.Task work, boolean can_block) {
+        return scheduleRecurring(work, TaskType.dynamic, work.nextInterval(), 0, TimeUnit.MILLISECONDS, can_block);
+    }
+
+
+    public synchronized void start() {
+        if(runner == null || !runner.isAlive()) {
+            current_tick=ticks(System.nanoTime()); // the wheel is empty: cleared by the previous runner or stop()
+            runner=timer_thread_factory != null? timer_thread_factory.newThread(this, "Timer runner") : new Thread(this, "Timer runner");
+            runner.start();
+        }
+    }
+
+    /**
+     * Stops the timer, cancelling all tasks. The wheel is cleared by the runner when it terminates; unless called by
+     * the runner itself (from a task run by it), this method waits until the runner has terminated
+     */
+    public synchronized void stop() {
+        Thread tmp=runner;
+        runner=null;
+        if(tmp == null)
+            clearWheel();
+        else {
+            tmp.interrupt();
+            if(tmp != Thread.currentThread()) {
+                try {
+                    tmp.join();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        if(pool instanceof ThreadPoolExecutor p && shut_down_pool) {
+            List<Runnable> remaining_tasks=p.shutdownNow();
+            remaining_tasks.stream().filter(task -> task instanceof Future).forEach(task -> ((Future<?>)task).cancel(true));
+            p.getQueue().clear();
+            try {
+                p.awaitTermination(Global.THREADPOOL_SHUTDOWN_WAIT_TIME, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e) {
+            }
+        }
+
+        // clears the threads list (https://issues.redhat.com/browse/JGRP-1971)
+        if(timer_thread_factory instanceof LazyThreadFactory)
+            ((LazyThreadFactory)timer_thread_factory).destroy();
+    }
+
+
+    public void run() {
+        final List<Task> expired=new ArrayList<>();
+        while(Thread.currentThread() == runner) {
+            try {
+                if(num_tasks.get() == 0 && waitForTasks())
+                    current_tick=Math.max(current_tick, ticks(System.nanoTime()));
+                long now=System.nanoTime(), next=start_time + current_tick * tick;
+                if(next > now) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+                removeCancelledTasks(cancelled_tasks);
+                addNewTasks(expired);
+                advance(expired);
+                submit(expired);
+            }
+            catch(Throwable t) {
+                log.error(Util.getMessage("FailedSubmittingTaskToThreadPool"), t);
+            }
+            finally {
+                expired.clear();
+            }
+        }
+        clearWheel();
+    }
+
+    /** Removes all tasks. Called by the runner when it terminates, or by stop() if there is no runner */
+    protected void clearWheel() {
+        for(Slot slot: slots)
+            slot.clear();
+        for(Task t; (t=new_tasks.poll()) != null;)
+            t.cancel(true);
+        cancelled_tasks.clear();
+        num_tasks.set(0);
+    }
+
+    /** Blocks until a task is added or the runner is stopped. Returns true if the runner was idle */
+    protected boolean waitForTasks() {
+        idle=true;
+        try {
+            // a concurrent schedule() either sees idle == true (and unparks us), or we see its task
+            if(num_tasks.get() > 0)
+                return false;
+            LockSupport.park(this);
+            return true;
+        }
+        finally {
+            idle=false;
+        }
+    }
+
+    /** Processes the current tick: cascades tasks from higher levels and removes the expired tasks of level 0 */
+    protected void advance(List<Task> expired) {
+        long t=current_tick;
+        for(int level=1; level < levels && (t & mask) == 0; level++) { // the lower level wrapped around: cascade
+            t>>>=bits;
+            Slot slot=slots[level * wheel_size + (int)(t & mask)];
+            for(Task task; (task=slot.poll()) != null;)
+                place(task, expired);
+        }
+        Slot slot=slots[(int)(current_tick & mask)];
+        for(Task task; (task=slot.poll()) != null;)
+            expire(task, expired);
+        current_tick++;
+    }
+
+    /** Places a task into the slot of the lowest level covering its expiration time */
+    protected void place(Task task, List<Task> expired) {
+        long deadline_tick=ticks(task.deadline()), delta=deadline_tick - current_tick;
+        if(delta < 0) {
+            expire(task, expired);
+            return;
+        }
+        long max=1L << (bits * levels);
+        if(delta >= max) // too far in the future: place into the farthest slot, and re-place when cascaded
+            deadline_tick=current_tick + max - 1;
+        int level=0;
+        for(long d=delta >>> bits; d > 0 && level < levels-1; d>>>=bits)
+            level++;
+        int index=(int)((deadline_tick >>> (bits * level)) & mask);
+        slots[level * wheel_size + index].add(task);
+    }
+
+    protected void expire(Task task, List<Task> expired) {
+        num_tasks.decrementAndGet();
+        if(!task.isDone())
+            expired.add(task);
+    }
+
+    protected void addNewTasks(List<Task> expired) {
+        for(Task task; (task=new_tasks.poll()) != null;) {
+            if(task.isDone())
+                num_tasks.decrementAndGet();
+            else
+                place(task, expired);
+        }
+    }
+
+    protected void removeCancelledTasks(Queue<Task> cancelled) {
+        for(Task task; (task=cancelled.poll()) != null;) {
+            if(task.slot != null && task.slot.remove(task))
+                num_tasks.decrementAndGet();
+        }
+    }
+
+    /** Runs non-blocking tasks directly (if enabled); submits the other tasks in one batch to the thread pool */
+    protected void submit(List<Task> expired) {
+        if(expired.isEmpty())
+            return;
+        List<Task> non_blocking=null;
+        for(Task task: expired) {
+            if(!task.canBlock()) {
+                if(non_blocking_task_handling)
+                    task.run();
+                else {
+                    if(non_blocking == null)
+                        non_blocking=new ArrayList<>();
+                    non_blocking.add(task);
+                }
+            }
+            else
+                submitToPool(task);
+        }
+        if(non_blocking != null) {
+            final List<Task> batch=non_blocking;
+            submitToPool(new Task(() -> batch.forEach(Task::run), false) {
+                public String toString() {return String.format("batch of %d timer tasks", batch.size());}
+            });
+        }
+    }
+
+    protected long ticks(long time) {
+        long elapsed=time - start_time;
+        return elapsed <= 0? 0 : (elapsed + tick - 1) / tick;
+    }
+
+    protected Future<?> scheduleRecurring(Runnable work, TaskType type, long initial_delay, long delay, TimeUnit unit, boolean can_block) {
+        return doSchedule(new RecurringTask(work, type, initial_delay, delay, unit, can_block), initial_delay);
+    }
+
+
+    protected Future<?> doSchedule(Task task, long initial_delay) {
+        if(task.getRunnable() == null)
+            throw new NullPointerException();
+        if(isShutdown())
+            return null;
+
+        if(initial_delay <= 0) {
+            submitToPool(task);
+            return task;
+        }
+        return add(task);
+    }
+
+    protected Task add(Task task) {
+        num_tasks.incrementAndGet();
+        new_tasks.add(task);
+        if(idle)
+            LockSupport.unpark(runner);
+        return task;
+    }
+
+    protected void condSet(Consumer<ThreadPoolExecutor> setter) {
+        if(pool instanceof ThreadPoolExecutor)
+            setter.accept((ThreadPoolExecutor)pool);
+    }
+
+    protected <T> T condGet(Function<ThreadPoolExecutor,T> getter, T default_value) {
+        if(pool instanceof ThreadPoolExecutor)
+            return getter.apply((ThreadPoolExecutor)pool);
+        return default_value;
+    }
+
+
+    protected void submitToPool(Task task) {
+        if(non_blocking_task_handling && !task.canBlock()) {
+            task.run();
+            return;
+        }
+
+        try {
+            if(pool == null) {
+                if((pool=thread_pool.getThreadPool()) == null) {
+                    log.warn("timer: thread pool is null, will use caller's thread to execute task %s", task);
+                    task.run();
+                    return;
+                }
+            }
+            pool.execute(task);
+        }
+        catch(RejectedExecutionException rejected) { // only thrown if rejection policy is "abort"
+            Thread thread=timer_thread_factory != null?
+              timer_thread_factory.newThread(task, "Timer temp thread")
+              : new Thread(task, "Timer temp thread");
+            thread.start();
+        }
+    }
+
+
+    /** A doubly-linked list of tasks; only accessed by the runner */
+    protected static class Slot {
+        protected Task head;
+
+        protected void add(Task task) {
+            task.slot=this;
+            task.prev=null;
+            task.next=head;
+            if(head != null)
+                head.prev=task;
+            head=task;
+        }
+
+        protected Task poll() {
+            Task task=head;
+            if(task != null)
+                remove(task);
+            return task;
+        }
+
+        protected boolean remove(Task task) {
+            if(task.slot != this)
+                return false;
+            if(task.prev != null)
+                task.prev.next=task.next;
+            else
+                head=task.next;
+            if(task.next != null)
+                task.next.prev=task.prev;
+            task.slot=null;
+            task.prev=task.next=null;
+            return true;
+        }
+
+        protected void clear() {
+            for(Task task; (task=poll()) != null;)
+                task.cancel(true);
+        }
+    }
+
+
+    public class Task implements Runnable, Future<Object> {
+        protected final Runnable   runnable;      // the task to execute
+        protected long             creation_time; // time (in ns) at which the task was created
+        protected long             delay;         // time (in ns) after which the task should execute
+        protected volatile boolean cancelled;
+        protected volatile boolean done;
+        protected final boolean    can_block;
+        protected Slot             slot;          // the slot this task is in; only accessed by the runner
+        protected Task             prev, next;
+
+        public Task(Runnable runnable, boolean can_block) {
+            this.runnable=runnable;
+            this.can_block=can_block;
+        }
+
+        public Task(Runnable runnable, long initial_delay, TimeUnit unit, boolean can_block) {
+            this.can_block=can_block;
+            this.creation_time=System.nanoTime();
+            this.delay=TimeUnit.NANOSECONDS.convert(initial_delay, unit);
+            this.runnable=runnable;
+            if(runnable == null)
+                throw new IllegalArgumentException("runnable cannot be null");
+        }
+
+        public Runnable getRunnable() {return runnable;}
+        public boolean  canBlock()    {return can_block;}
+        public long     deadline()    {return creation_time + delay;}
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean retval=!isDone();
+            cancelled=true;
+            if(retval)
+                cancelled_tasks.add(this); // removed from the wheel by the runner
+            return retval;
+        }
+
+        public boolean isCancelled() {return cancelled;}
+        public boolean isDone()      {return done || cancelled;}
+        public Object  get() throws InterruptedException, ExecutionException {return null;}
+        public Object  get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return null;
+        }
+
+        public void run() {
+            if(isDone())
+                return;
+            try {
+                runnable.run();
+            }
+            catch(Throwable t) {
+                log.error(Util.getMessage("FailedExecutingTask") + ' ' + runnable, t);
+            }
+            finally {
+                done=true;
+            }
+        }
+
+        public String toString() {
+            return String.format("%s (can block=%b)", runnable.toString(), can_block);
+        }
+    }
+
+    /** Tasks which runs more than once, either dynamic, fixed-rate or fixed-delay, until cancelled */
+    protected class RecurringTask extends Task {
+        protected final TaskType type;
+        protected final long     period; // ns
+        protected final long     initial_delay; // ns
+        protected int            cnt=1; // number of invocations (for fixed rate invocations)
+
+        public RecurringTask(Runnable runnable, TaskType type, long initial_delay, long delay, TimeUnit unit, boolean can_block) {
+            super(runnable, initial_delay, unit, can_block);
+            this.initial_delay=TimeUnit.NANOSECONDS.convert(initial_delay, TimeUnit.MILLISECONDS);
+            this.type=type;
+            period=TimeUnit.NANOSECONDS.convert(delay, unit);
+            if(type == TaskType.dynamic && !(runnable instanceof TimeScheduler.Task))
+                throw new IllegalArgumentException("Need to provide a TimeScheduler.Task as runnable when type is dynamic");
+        }
+
+        public void run() {
+            if(isDone())
+                return;
+            super.run();
+            if(cancelled)
+                return;
+            done=false; // run again
+
+            switch(type) {
+                case dynamic:
+                    long next_interval=TimeUnit.NANOSECONDS.convert(((TimeScheduler.Task)runnable).nextInterval(), TimeUnit.MILLISECONDS);
+                    if(next_interval <= 0) {
+                        if(log.isTraceEnabled())
+                            log.trace("task will not get rescheduled as interval is " + next_interval);
+                        done=true;
+                        return;
+                    }
+                    creation_time=System.nanoTime();
+                    delay=next_interval;
+                    break;
+                case fixed_rate:
+                    delay=initial_delay + cnt++ * period;
+                    break;
+                case fixed_delay:
+                    creation_time=System.nanoTime();
+                    delay=period;
+                    break;
+            }
+            add(this); // schedule this task again
+        }
+    }
+}
@@ -1621,7 +1621,8 @@ public class Util {
         int len=in.readInt();
         for(int i=0; i < len; i++) {
             short type=in.readShort();
-            Message msg=MessageFactory.create(type).setDest(dest).setSrc(src);
+            Message msg=(in instanceof PooledDataInputStream pin? pin.createMessage(type) : MessageFactory.create(type))
+              .setDest(dest).setSrc(src);
             msg.readFrom(in);
             boolean oob=msg.isFlagSet(Message.Flag.OOB);
             int index=0;
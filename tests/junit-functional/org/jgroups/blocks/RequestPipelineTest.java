@@ -0,0 +1,236 @@
+package org.jgroups.blocks;
+
+import org.jgroups.*;
+import org.jgroups.protocols.DROP;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.RspList;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tests {@link RequestPipeline} and {@link RequestCorrelator} with a request table
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class RequestPipelineTest {
+    protected JChannel          a, b;
+    protected RpcDispatcher     da, db;
+    protected final Server      server=new Server();
+    protected static final String CLUSTER=RequestPipelineTest.class.getSimpleName();
+    protected static final short  ADD=0, FAIL=1, BLOCK=2;
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=new JChannel(Util.getTestStack()).name("A");
+        b=new JChannel(Util.getTestStack()).name("B");
+        da=new RpcDispatcher(a, server).useRequestTable(true);
+        db=new RpcDispatcher(b, server).useRequestTable(true);
+        da.setMethodLookup(Server::method);
+        db.setMethodLookup(Server::method);
+        a.connect(CLUSTER);
+        b.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameView(5000, 100, a, b);
+        server.sum.reset();
+    }
+
+    @AfterMethod protected void destroy() {
+        Util.close(db, da, b, a);
+    }
+
+    public void testSyncRpcsWithRequestTable() throws Exception {
+        assert da.getCorrelator().useRequestTable();
+        for(int i=1; i <= 10; i++) {
+            int rsp=da.callRemoteMethod(b.getAddress(), new MethodCall(ADD, i), RequestOptions.SYNC());
+            assert rsp == i;
+        }
+        RspList<Integer> rsps=da.callRemoteMethods(null, new MethodCall(ADD, 5), RequestOptions.SYNC());
+        assert rsps.size() == 2 && rsps.getResults().stream().allMatch(r -> r == 5);
+        assert da.getCorrelator().numPendingRequests() == 0;
+    }
+
+    public void testPipelinedRpcs() throws Exception {
+        final int NUM=1000;
+        LongAdder sum=new LongAdder(), num_rsps=new LongAdder();
+        Collection<Throwable> errors=new ConcurrentLinkedQueue<>();
+        try(RequestPipeline<Integer> p=da.pipeline(16, RequestOptions.SYNC(), (id, target, rsp, ex) -> {
+            if(ex != null)
+                errors.add(ex);
+            else
+                sum.add(rsp);
+            num_rsps.increment();
+        })) {
+            for(int i=1; i <= NUM; i++) {
+                long id=p.send(new ObjectMessage(b.getAddress(), new MethodCall(ADD, i)));
+                assert id > 0;
+            }
+            assert p.flush(10_000) : p;
+            assert p.outstanding() == 0;
+        }
+        assert errors.isEmpty() : errors;
+        assert num_rsps.sum() == NUM;
+        assert sum.sum() == NUM * (NUM+1) / 2;
+        assert server.sum.sum() == sum.sum();
+        assert da.getCorrelator().numPendingRequests() == 0;
+    }
+
+    public void testPipelinedRpcsWithMap() throws Exception {
+        da.useRequestTable(false);
+        LongAdder num_rsps=new LongAdder();
+        try(RequestPipeline<Integer> p=da.pipeline(4, RequestOptions.SYNC(), (id, t, rsp, ex) -> num_rsps.increment())) {
+            for(int i=1; i <= 100; i++)
+                p.send(new ObjectMessage(b.getAddress(), new MethodCall(ADD, i)));
+            assert p.flush(10_000) : p;
+        }
+        assert num_rsps.sum() == 100;
+        assert da.getCorrelator().numPendingRequests() == 0;
+    }
+
+    /** Switching back to the map must not reuse request IDs handed out by the request table */
+    public void testSwitchBackToMap() throws Exception {
+        RequestCorrelator corr=da.getCorrelator();
+        for(int i=1; i <= 10; i++)
+            da.callRemoteMethod(b.getAddress(), new MethodCall(ADD, i), RequestOptions.SYNC());
+        long high=corr.request_table.high();
+        da.useRequestTable(false);
+        assert RequestCorrelator.REQUEST_ID.get() >= high : String.format("next ID: %d, high: %d",
+                                                                          RequestCorrelator.REQUEST_ID.get(), high);
+        int rsp=da.callRemoteMethod(b.getAddress(), new MethodCall(ADD, 5), RequestOptions.SYNC());
+        assert rsp == 5 && corr.numPendingRequests() == 0;
+    }
+
+    public void testExceptionIsPassedToHandler() throws Exception {
+        Collection<Throwable> errors=new ConcurrentLinkedQueue<>();
+        try(RequestPipeline<Object> p=da.pipeline(2, RequestOptions.SYNC(), (id, t, rsp, ex) -> {
+            if(ex != null)
+                errors.add(ex);
+        })) {
+            p.send(new ObjectMessage(b.getAddress(), new MethodCall(FAIL)));
+            assert p.flush(10_000);
+        }
+        assert errors.size() == 1 && errors.iterator().next() instanceof IllegalArgumentException : errors;
+    }
+
+    public void testWindowAndTargetLeaving() throws Exception {
+        Collection<Throwable> errors=new ConcurrentLinkedQueue<>();
+        server.latch=new CountDownLatch(1);
+        try(RequestPipeline<Object> p=da.pipeline(2, RequestOptions.SYNC().timeout(500), (id, t, rsp, ex) -> {
+            if(ex != null)
+                errors.add(ex);
+        }).rspTimeout(0)) { // the requests block until B leaves
+            p.send(new ObjectMessage(b.getAddress(), new MethodCall(BLOCK)).setFlag(Message.Flag.OOB));
+            p.send(new ObjectMessage(b.getAddress(), new MethodCall(BLOCK)).setFlag(Message.Flag.OOB));
+            try {
+                p.send(new ObjectMessage(b.getAddress(), new MethodCall(BLOCK)));
+                assert false : "the window is full, send() should have timed out";
+            }
+            catch(TimeoutException ex) {
+                System.out.printf("got exception as expected: %s\n", ex);
+            }
+            assert p.outstanding() == 2;
+            Util.close(db, b); // fails the 2 outstanding requests with SuspectedExceptions
+            server.latch.countDown();
+            assert p.flush(10_000) : p;
+        }
+        assert errors.size() == 2 && errors.stream().allMatch(ex -> ex instanceof SuspectedException) : errors;
+    }
+
+    /** Senders blocked on a full window are woken up by close() */
+    public void testCloseWakesBlockedSenders() throws Exception {
+        server.latch=new CountDownLatch(1);
+        Collection<Throwable> errors=new ConcurrentLinkedQueue<>();
+        RequestPipeline<Object> p=da.pipeline(1, RequestOptions.SYNC().timeout(0), (id, t, rsp, ex) -> {
+            if(ex != null)
+                errors.add(ex);
+        }).rspTimeout(0);
+        try {
+            p.send(new ObjectMessage(b.getAddress(), new MethodCall(BLOCK)).setFlag(Message.Flag.OOB));
+            Collection<Throwable> send_errors=new ConcurrentLinkedQueue<>();
+            Thread sender=new Thread(() -> {
+                try {
+                    p.send(new ObjectMessage(b.getAddress(), new MethodCall(ADD, 1)));
+                }
+                catch(Throwable t) {
+                    send_errors.add(t);
+                }
+            }, "sender");
+            sender.start();
+            Util.waitUntilTrue(2000, 50, () -> sender.getState() == Thread.State.WAITING);
+            assert sender.getState() == Thread.State.WAITING : sender.getState();
+            p.close();
+            sender.join(5000);
+            assert !sender.isAlive() : "sender is still blocked";
+            assert send_errors.size() == 1 && send_errors.iterator().next() instanceof IllegalStateException
+              : send_errors;
+            assert errors.size() == 1 && errors.iterator().next() instanceof IllegalStateException : errors;
+            assert p.outstanding() == 0;
+        }
+        finally {
+            server.latch.countDown();
+        }
+        assert server.sum.sum() == 0;
+    }
+
+    /** B drops its responses: the requests time out and release their slots, so that later sends don't block */
+    public void testLostResponses() throws Exception {
+        short corr_id=db.getCorrelator().corr_id;
+        DROP drop=new DROP().addDownFilter(m -> m.getHeader(corr_id) != null);
+        b.stack().insertProtocol(drop, ProtocolStack.Position.BELOW, UNICAST3.class);
+        Collection<Throwable> errors=new ConcurrentLinkedQueue<>();
+        try(RequestPipeline<Integer> p=da.<Integer>pipeline(2, RequestOptions.SYNC().timeout(5000), (id, t, rsp, ex) -> {
+            if(ex != null)
+                errors.add(ex);
+        }).rspTimeout(200)) {
+            for(int i=1; i <= 4; i++) // more requests than the window: sends block until earlier requests time out
+                p.send(new ObjectMessage(b.getAddress(), new MethodCall(ADD, i)));
+            assert p.flush(10_000) : p;
+            assert p.outstanding() == 0;
+        }
+        assert errors.size() == 4 && errors.stream().allMatch(ex -> ex instanceof TimeoutException) : errors;
+        assert server.sum.sum() == 10; // the requests were executed, but the responses were dropped
+        assert da.getCorrelator().numPendingRequests() == 0;
+    }
+
+    public static class Server {
+        protected final LongAdder       sum=new LongAdder();
+        protected volatile CountDownLatch latch;
+
+        public int add(int num) {
+            sum.add(num);
+            return num;
+        }
+
+        public void fail() {
+            throw new IllegalArgumentException("booom");
+        }
+
+        public void block() throws InterruptedException {
+            CountDownLatch l=latch;
+            if(l != null)
+                l.await(10, TimeUnit.SECONDS);
+        }
+
+        protected static java.lang.reflect.Method method(short id) {
+            try {
+                switch(id) {
+                    case ADD:   return Server.class.getMethod("add", int.class);
+                    case FAIL:  return Server.class.getMethod("fail");
+                    case BLOCK: return Server.class.getMethod("block");
+                }
+                return null;
+            }
+            catch(NoSuchMethodException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
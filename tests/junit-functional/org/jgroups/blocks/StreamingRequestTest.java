@@ -0,0 +1,232 @@
+package org.jgroups.blocks;
+
+import org.jgroups.*;
+import org.jgroups.util.Rsp;
+import org.jgroups.util.RspList;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link StreamingGroupRequest} and chunked responses ({@link Response#sendChunk(Object)})
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class StreamingRequestTest {
+    protected JChannel            a, b, c;
+    protected MessageDispatcher   da, db, dc;
+    protected final Handler[]     handlers={new Handler(), new Handler(), new Handler()};
+    protected static final String CLUSTER=StreamingRequestTest.class.getSimpleName();
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=new JChannel(Util.getTestStack()).name("A");
+        b=new JChannel(Util.getTestStack()).name("B");
+        c=new JChannel(Util.getTestStack()).name("C");
+        da=new MessageDispatcher(a, handlers[0]).asyncDispatching(true);
+        db=new MessageDispatcher(b, handlers[1]).asyncDispatching(true);
+        dc=new MessageDispatcher(c, handlers[2]).asyncDispatching(true);
+        for(JChannel ch: List.of(a, b, c))
+            ch.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameView(5000, 100, a, b, c);
+        for(Handler h: handlers)
+            h.reset();
+    }
+
+    @AfterMethod protected void destroy() {
+        Util.close(dc, db, da, c, b, a);
+    }
+
+    public void testStreamingToConsumer() throws Exception {
+        final int NUM=500;
+        Map<Address,List<StreamedRsp<Object>>> items=new ConcurrentHashMap<>();
+        StreamingGroupRequest<Object> req=da.castMessageStreaming(null, new ObjectMessage(null, NUM),
+                                                                  RequestOptions.SYNC(), 10,
+                                                                  rsp -> items.computeIfAbsent(rsp.sender(), k -> new ArrayList<>()).add(rsp));
+        RspList<Object> rsps=req.get(10, TimeUnit.SECONDS);
+        assert rsps.size() == 3 && rsps.values().stream().allMatch(Rsp::wasReceived) : rsps;
+        assert rsps.getResults().stream().allMatch(Objects::isNull) : "values must not be retained: " + rsps;
+        assert items.size() == 3;
+        for(List<StreamedRsp<Object>> l: items.values()) {
+            assert l.size() == NUM+1 : String.format("expected %d items but got %d", NUM+1, l.size());
+            for(int i=0; i < NUM; i++) {
+                StreamedRsp<Object> item=l.get(i);
+                assert !item.last() && (int)item.rsp().getValue() == i+1 : item;
+            }
+            StreamedRsp<Object> last=l.get(NUM);
+            assert last.last() && "done".equals(last.rsp().getValue()) : last;
+        }
+        assert da.getCorrelator().numPendingRequests() == 0;
+    }
+
+    public void testBackPressure() throws Exception {
+        final int NUM=100, CREDITS=10;
+        MySubscriber sub=new MySubscriber();
+        StreamingGroupRequest<Object> req=da.castMessageStreaming(List.of(b.getAddress()), new ObjectMessage(null, NUM),
+                                                                  RequestOptions.SYNC(), CREDITS);
+        req.subscribe(sub);
+        // no demand: the responder blocks after sending all of its credits
+        Util.waitUntil(5000, 100, () -> handlers[1].sent.get() == CREDITS);
+        Util.sleep(500);
+        assert handlers[1].sent.get() == CREDITS : String.format("sent=%d", handlers[1].sent.get());
+        assert sub.items.isEmpty();
+
+        sub.request(5);
+        Util.waitUntil(5000, 100, () -> sub.items.size() == 5);
+        // 5 chunks were consumed, of which 5 (threshold = CREDITS/2) are returned to the responder
+        Util.waitUntil(5000, 100, () -> handlers[1].sent.get() == CREDITS + 5);
+
+        sub.request(Long.MAX_VALUE);
+        RspList<Object> rsps=req.get(10, TimeUnit.SECONDS);
+        assert rsps.isReceived(b.getAddress());
+        Util.waitUntil(5000, 100, () -> sub.completed);
+        assert sub.items.size() == NUM+1 && sub.items.getLast().last();
+        assert handlers[1].sent.get() == NUM;
+    }
+
+    public void testCancel() throws Exception {
+        MySubscriber sub=new MySubscriber();
+        StreamingGroupRequest<Object> req=da.castMessageStreaming(List.of(b.getAddress(), c.getAddress()),
+                                                                  new ObjectMessage(null, 1000), RequestOptions.SYNC(), 4);
+        req.subscribe(sub);
+        sub.request(2);
+        Util.waitUntil(5000, 100, () -> sub.items.size() == 2);
+        sub.subscription.cancel();
+        assert req.isCancelled();
+        for(int i=1; i < handlers.length; i++) {
+            Handler h=handlers[i];
+            Util.waitUntil(5000, 100, () -> h.exception instanceof CancellationException, () -> "exception: " + h.exception);
+            assert h.sent.get() < 1000;
+        }
+        assert da.getCorrelator().numPendingRequests() == 0;
+    }
+
+    /** A cancellation (sent as OOB message) which overtakes the request must cancel the stream on reception */
+    public void testCancelOvertakesRequest() throws Exception {
+        RequestCorrelator corr=db.getCorrelator();
+        short id=corr.corr_id;
+        Message credit=new ObjectMessage(b.getAddress(), -1).setSrc(a.getAddress())
+          .putHeader(id, new RequestCorrelator.Header(RequestCorrelator.Header.CREDIT, 22, id));
+        corr.handleCredits(credit, credit.getHeader(id));
+
+        Message req=new ObjectMessage(b.getAddress(), 10).setSrc(a.getAddress());
+        Response rsp=corr.createResponse(req, new RequestCorrelator.StreamingHeader(RequestCorrelator.Header.REQ,
+                                                                                    22, id, 4, 0));
+        try {
+            rsp.sendChunk(1);
+            assert false : "the stream should have been cancelled";
+        }
+        catch(CancellationException ex) {
+            System.out.printf("got exception as expected: %s\n", ex);
+        }
+        assert corr.chunked_rsps.isEmpty();
+    }
+
+    /** A responder without credits gives up after the timeout of the request */
+    public void testNoCreditsWithinTimeout() throws Exception {
+        RequestCorrelator corr=db.getCorrelator();
+        Message req=new ObjectMessage(b.getAddress(), 10).setSrc(a.getAddress());
+        Response rsp=corr.createResponse(req, new RequestCorrelator.StreamingHeader(RequestCorrelator.Header.REQ,
+                                                                                    23, corr.corr_id, 1, 500));
+        rsp.sendChunk(1); // consumes the only credit
+        long start=System.nanoTime();
+        try {
+            rsp.sendChunk(2);
+            assert false : "sendChunk() should have timed out";
+        }
+        catch(TimeoutException ex) {
+            System.out.printf("got exception as expected: %s\n", ex);
+        }
+        long time=TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assert time >= 400 && time < 5000 : String.format("waited for %d ms", time);
+        assert corr.chunked_rsps.isEmpty();
+    }
+
+    public void testResponderLeaves() throws Exception {
+        handlers[2].latch=new CountDownLatch(1);
+        Map<Address,StreamedRsp<Object>> last=new ConcurrentHashMap<>();
+        StreamingGroupRequest<Object> req=da.castMessageStreaming(List.of(b.getAddress(), c.getAddress()),
+                                                                  new ObjectMessage(null, 10), RequestOptions.SYNC(), 4,
+                                                                  rsp -> {if(rsp.last()) last.put(rsp.sender(), rsp);});
+        Util.waitUntil(5000, 100, () -> last.containsKey(b.getAddress()));
+        Address addr_c=c.getAddress();
+        Util.close(dc, c);
+        RspList<Object> rsps=req.get(10, TimeUnit.SECONDS);
+        assert rsps.isSuspected(addr_c);
+        assert last.size() == 2 && last.get(addr_c).rsp().wasSuspected();
+        handlers[2].latch.countDown();
+    }
+
+    public void testChunksWithRegularRequestFail() throws Exception {
+        RspList<Object> rsps=da.castMessage(List.of(b.getAddress()), new ObjectMessage(null, 5), RequestOptions.SYNC());
+        Rsp<Object> rsp=rsps.get(b.getAddress());
+        assert rsp.hasException() && rsp.getException() instanceof UnsupportedOperationException : rsp;
+    }
+
+    public void testEmptyDestinations() throws Exception {
+        MySubscriber sub=new MySubscriber();
+        StreamingGroupRequest<Object> req=da.castMessageStreaming(List.of(), new ObjectMessage(null, 5),
+                                                                  RequestOptions.SYNC(), 4);
+        req.subscribe(sub);
+        assert req.isDone() && sub.completed && sub.items.isEmpty();
+    }
+
+
+    /** Sends chunks 1..N on a separate thread, N being the request's payload, then "done" */
+    protected static class Handler implements RequestHandler {
+        protected final AtomicInteger     sent=new AtomicInteger();
+        protected volatile Throwable      exception;
+        protected volatile CountDownLatch latch;
+
+        protected void reset() {
+            sent.set(0);
+            exception=null;
+            latch=null;
+        }
+
+        public Object handle(Message msg) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public void handle(Message request, Response response) throws Exception {
+            int num=request.getObject();
+            new Thread(() -> {
+                try {
+                    for(int i=1; i <= num; i++) {
+                        response.sendChunk(i);
+                        sent.incrementAndGet();
+                    }
+                    CountDownLatch l=latch;
+                    if(l != null)
+                        l.await(10, TimeUnit.SECONDS);
+                    response.send("done", false);
+                }
+                catch(Throwable t) {
+                    exception=t;
+                    response.send(t, true);
+                }
+            }).start();
+        }
+    }
+
+    protected static class MySubscriber implements Flow.Subscriber<StreamedRsp<Object>> {
+        protected final LinkedList<StreamedRsp<Object>> items=new LinkedList<>();
+        protected volatile Flow.Subscription            subscription;
+        protected volatile boolean                      completed;
+
+        public void onSubscribe(Flow.Subscription s) {subscription=s;}
+        public void onNext(StreamedRsp<Object> item) {
+            synchronized(items) {
+                items.add(item);
+            }
+        }
+        public void onError(Throwable t)             {t.printStackTrace(System.err);}
+        public void onComplete()                     {completed=true;}
+        protected void request(long n)               {subscription.request(n);}
+    }
+}
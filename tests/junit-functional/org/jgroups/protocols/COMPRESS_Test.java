@@ -1,14 +1,15 @@
 package org.jgroups.protocols;
 
-import org.jgroups.BytesMessage;
-import org.jgroups.Global;
-import org.jgroups.JChannel;
-import org.jgroups.Message;
-import org.jgroups.util.MyReceiver;
-import org.jgroups.util.Util;
+import org.jgroups.*;
+import org.jgroups.util.*;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * @author Bela Ban
  * @since  5.0
@@ -17,6 +18,7 @@ import org.testng.annotations.Test;
 public class COMPRESS_Test {
     protected JChannel a, b;
     protected MyReceiver<Message> r1=new MyReceiver<Message>().rawMsgs(true), r2=new MyReceiver<Message>().rawMsgs(true);
+    protected static final String CLUSTER=COMPRESS_Test.class.getSimpleName();
 
     @AfterMethod
     protected void destroy() {Util.close(r2, r1, b, a);}
@@ -37,8 +39,124 @@ public class COMPRESS_Test {
 
 
 
+    public void testLZCompressionWithThreadLocalCodecs() throws Exception {
+        a=create("A", new COMPRESS().setMinSize(50).setCompressor("lz").threadLocal(true)).connect(CLUSTER);
+        b=create("B", new COMPRESS().setMinSize(50).setCompressor("lz").threadLocal(true)).connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a,b);
+        b.setReceiver(r2);
+        byte[] array=new byte[1000];
+        for(int i=0; i < array.length; i++)
+            array[i]=(byte)(i % 10);
+        for(int i=0; i < 10; i++)
+            a.send(new BytesMessage(b.getAddress(), array));
+        Util.waitUntil(10000, 500, () -> r2.size() == 10);
+        for(Message msg: r2.list())
+            assert Arrays.equals(array, msg.getArray());
+        COMPRESS ca=a.getProtocolStack().findProtocol(COMPRESS.class);
+        assert ca.getNumCompressions() == 10 && ca.getBytesSaved() > 0 && ca.getCompressionRatio() < 1.0;
+        System.out.printf("saved %d bytes, ratio: %.2f, %.2f bytes saved/ms\n",
+                          ca.getBytesSaved(), ca.getCompressionRatio(), ca.getBytesSavedPerMs());
+    }
+
+    /** A receiver uncompresses messages with the codec which compressed them, regardless of its own codec */
+    public void testDifferentCodecs() throws Exception {
+        a=create("A", new COMPRESS().setMinSize(50).setCompressor("lz")).connect(CLUSTER);
+        b=create("B", new COMPRESS().setMinSize(50)).connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a,b);
+        a.setReceiver(r1); b.setReceiver(r2);
+        byte[] array=Util.generateArray(1000);
+        a.send(new BytesMessage(b.getAddress(), array));
+        b.send(new BytesMessage(a.getAddress(), array));
+        Util.waitUntil(10000, 500, () -> r1.size() == 1 && r2.size() == 1);
+        Util.verifyArray(r1.list().get(0).getArray());
+        Util.verifyArray(r2.list().get(0).getArray());
+    }
+
+    /** The payload of a BatchMessage is compressed in one pass */
+    public void testBatchMessage() throws Exception {
+        a=create("A").connect(CLUSTER);
+        b=create("B").connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a,b);
+        b.setReceiver(r2);
+        final int NUM=100;
+        BatchMessage batch=new BatchMessage(b.getAddress(), NUM);
+        for(int i=0; i < NUM; i++) // small messages, each below min_size
+            batch.add(new ObjectMessage(b.getAddress(), "hello world " + i).putHeader((short)1999, new FragHeader(i, 0, 1)));
+        a.send(batch);
+        Util.waitUntil(10000, 500, () -> r2.size() == 1);
+        BatchMessage msg=(BatchMessage)r2.list().get(0);
+        assert msg.getNumberOfMessages() == NUM;
+        for(int i=0; i < NUM; i++) {
+            Message m=msg.get(i);
+            assert m.getObject().equals("hello world " + i);
+            assert ((FragHeader)m.getHeader((short)1999)).id == i;
+        }
+        COMPRESS ca=a.getProtocolStack().findProtocol(COMPRESS.class);
+        assert ca.getNumCompressions() == 1 && ca.getCompressionRatio() < 0.5 : ca.getCompressionRatio();
+    }
+
+    public void testCodecs() throws IOException {
+        Random r=new Random(322649);
+        byte[] random=new byte[10_000], text=new byte[100_000], zeros=new byte[70_000];
+        r.nextBytes(random);
+        for(int i=0; i < text.length; i++)
+            text[i]=(byte)("the quick brown fox jumps over the lazy dog ".charAt(i % 44) + (i % 1000 == 0? 1 : 0));
+        for(Compressor c: new Compressor[]{new DeflateCompressor(), new LZCompressor()}) {
+            try(c) {
+                for(byte[] in: new byte[][]{new byte[0], {1}, Arrays.copyOf(random, 13), random, text, zeros}) {
+                    byte[] out=new byte[in.length + in.length/255 + 64];
+                    int size=c.compress(in, 0, in.length, out, 0, out.length);
+                    assert size >= 0 : String.format("%s: %d bytes", c, in.length);
+                    byte[] copy=new byte[in.length + 2];
+                    c.decompress(out, 0, size, copy, 1, in.length);
+                    assert Arrays.equals(in, 0, in.length, copy, 1, in.length + 1) : c;
+                    System.out.printf("%s: %,d -> %,d bytes\n", c, in.length, size);
+                }
+                byte[] out=new byte[10];
+                assert c.compress(random, 0, random.length, out, 0, out.length) == -1; // doesn't fit
+            }
+        }
+    }
+
+
+    /** Thread-local codecs are closed when their thread has terminated, or when the protocol is destroyed */
+    public void testThreadLocalCodecsAreClosed() throws Exception {
+        COMPRESS compress=new COMPRESS().setMinSize(50).setCompressor(CountingCompressor.class.getName()).threadLocal(true);
+        compress.init();
+        byte[] array=new byte[1000];
+        for(int i=0; i < 3; i++) {
+            Thread t=new Thread(() -> {
+                assert compress.compress(new BytesMessage(null, array)) != null;
+            });
+            t.start();
+            t.join();
+        }
+        // the codecs of terminated threads are closed when the next thread creates its codec
+        assert compress.compress(new BytesMessage(null, array)) != null;
+        assert CountingCompressor.created.get() == 5 : CountingCompressor.created; // 1 created and closed by init()
+        assert CountingCompressor.closed.get() == 4 : CountingCompressor.closed;
+        compress.destroy();
+        assert CountingCompressor.closed.get() == 5 : CountingCompressor.closed;
+    }
+
+
     protected static JChannel create(String name) throws Exception {
-        return new JChannel(Util.getTestStack(new COMPRESS().setMinSize(50))).name(name);
+        return create(name, new COMPRESS().setMinSize(50));
+    }
+
+    protected static JChannel create(String name, COMPRESS compress) throws Exception {
+        return new JChannel(Util.getTestStack(compress)).name(name);
+    }
+
+    public static class CountingCompressor extends LZCompressor {
+        protected static final AtomicInteger created=new AtomicInteger(), closed=new AtomicInteger();
+
+        public CountingCompressor() {
+            created.incrementAndGet();
+        }
+
+        @Override public byte id() {return 16;}
+        @Override public void close() {closed.incrementAndGet();}
     }
 
 }
@@ -5,9 +5,12 @@ package org.jgroups.protocols;
 
 
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.jgroups.BatchMessage;
 import org.jgroups.BytesMessage;
 import org.jgroups.Global;
 import org.jgroups.Message;
@@ -151,6 +154,77 @@ public class ENCRYPTKeystoreTest extends EncryptGroupUtil {
         assert "hello world".equals(temp);
     }
 
+    public void testBatchDecryptedInParallel() throws Exception {
+        SYM_ENCRYPT encrypt=create(EncryptGroupUtil.KEY_STORE_FILE), encrypt2=create(EncryptGroupUtil.KEY_STORE_FILE);
+        encrypt2.parallelDecryptThreshold(10);
+        MockProtocol mock=new MockProtocol();
+        encrypt.setDownProtocol(mock);
+        for(int i=0; i < 100; i++)
+            encrypt.down(new BytesMessage(null, ("hello-" + i).getBytes()));
+        MessageBatch batch=new MessageBatch(100);
+        for(int i=0; i < 100; i++)
+            batch.add(mock.getDownMessages().get("message" + i));
+        batch.add(new BytesMessage(null, "no encrypt header".getBytes())); // must be dropped
+
+        encrypt2.setUpProtocol(mock);
+        encrypt2.up(batch);
+        assert encrypt2.numParallelDecryptions() == 1;
+        assert mock.getUpBatches().size() == 1;
+        MessageBatch decrypted=mock.getUpBatches().get(0);
+        assert decrypted.size() == 100 : decrypted.size();
+        int i=0;
+        for(Message msg: decrypted)
+            assert ("hello-" + i++).equals(new String(msg.getArray(), msg.getOffset(), msg.getLength()));
+    }
+
+    /** Parallel decryption must not block workers of the common pool when all pooled ciphers are in use */
+    public void testBatchDecryptedInParallelWithCiphersInUse() throws Exception {
+        SYM_ENCRYPT encrypt=create(EncryptGroupUtil.KEY_STORE_FILE), encrypt2=create(EncryptGroupUtil.KEY_STORE_FILE);
+        encrypt2.parallelDecryptThreshold(10);
+        MockProtocol mock=new MockProtocol();
+        encrypt.setDownProtocol(mock);
+        for(int i=0; i < 100; i++)
+            encrypt.down(new BytesMessage(null, ("hello-" + i).getBytes()));
+        MessageBatch batch=new MessageBatch(100);
+        for(int i=0; i < 100; i++)
+            batch.add(mock.getDownMessages().get("message" + i));
+
+        List<Object> in_use=new ArrayList<>();
+        encrypt2.decoding_ciphers.drainTo(in_use);
+        encrypt2.setUpProtocol(mock);
+        encrypt2.up(batch);
+        assert encrypt2.numParallelDecryptions() == 1;
+        assert encrypt2.numExtraCiphers() > 0;
+        assert encrypt2.decoding_ciphers.isEmpty(); // the extra ciphers are not added to the pool
+        MessageBatch decrypted=mock.getUpBatches().get(0);
+        assert decrypted.size() == 100 : decrypted.size();
+        int i=0;
+        for(Message msg: decrypted)
+            assert ("hello-" + i++).equals(new String(msg.getArray(), msg.getOffset(), msg.getLength()));
+    }
+
+    public void testBatchMessageEncryptedInOnePass() throws Exception {
+        SYM_ENCRYPT encrypt=create(EncryptGroupUtil.KEY_STORE_FILE), encrypt2=create(EncryptGroupUtil.KEY_STORE_FILE);
+        MockProtocol mock=new MockProtocol();
+        encrypt.setDownProtocol(mock);
+        BatchMessage batch_msg=new BatchMessage(null, 10);
+        for(int i=0; i < 10; i++)
+            batch_msg.add(new BytesMessage(null, ("hello-" + i).getBytes()));
+        encrypt.down(batch_msg);
+        Message encrypted=mock.getDownMessages().get("message0");
+        EncryptHeader hdr=encrypted.getHeader(ENCRYPT_ID);
+        assert encrypted instanceof BytesMessage && hdr.needsDeserialization();
+
+        encrypt2.setUpProtocol(mock);
+        encrypt2.up(encrypted);
+        Message msg=mock.getUpMessages().get("message1");
+        assert msg instanceof BatchMessage && ((BatchMessage)msg).getNumberOfMessages() == 10;
+        for(int i=0; i < 10; i++) {
+            Message m=((BatchMessage)msg).getMessages()[i];
+            assert ("hello-" + i).equals(new String(m.getArray(), m.getOffset(), m.getLength()));
+        }
+    }
+
     protected SYM_ENCRYPT create(String keystore) throws Exception {
         SYM_ENCRYPT encrypt=new SYM_ENCRYPT().keystoreName(keystore).symAlgorithm(symAlgorithm()).symIvLength(symIvLength());
         encrypt.init();
@@ -161,10 +235,12 @@ public class ENCRYPTKeystoreTest extends EncryptGroupUtil {
     protected static class MockProtocol extends Protocol {
         private final Map<String,Message> upMessages=new HashMap<>();
         private final Map<String,Message> downMessages=new HashMap<>();
+        private final List<MessageBatch>  upBatches=new ArrayList<>();
         private int                       counter;
 
         public Map<String,Message> getDownMessages() {return downMessages;}
         public Map<String,Message> getUpMessages()   {return upMessages;}
+        public List<MessageBatch>  getUpBatches()    {return upBatches;}
 
         public Object down(Message msg) {
             downMessages.put("message" + counter++, msg);
@@ -176,7 +252,7 @@ public class ENCRYPTKeystoreTest extends EncryptGroupUtil {
             return null;
         }
 
-        public void up(MessageBatch batch) {throw new UnsupportedOperationException();}
+        public void up(MessageBatch batch) {upBatches.add(batch);}
     }
 
 
@@ -0,0 +1,30 @@
+package org.jgroups.protocols;
+
+import org.jgroups.BytesMessage;
+import org.jgroups.Message;
+
+/**
+ * Exercise ENCRYPTKeystoreTest with GCM (authenticated encryption)
+ */
+public class ENCRYPTKeystoreTestGcm extends ENCRYPTKeystoreTest {
+    @Override protected String symAlgorithm() { return "AES/GCM/NoPadding"; }
+    @Override protected int symIvLength() { return 12; }
+
+    /** For some obscure TestNG reasons, this method is needed. Remove it and all tests are executed in separate threads,
+     * which makes the testsuite fail!!! */
+    public void dummy2() {}
+
+    public void testTamperedMessageIsDropped() throws Exception {
+        SYM_ENCRYPT encrypt=create(EncryptGroupUtil.KEY_STORE_FILE), encrypt2=create(EncryptGroupUtil.KEY_STORE_FILE);
+        assert encrypt.aead();
+        MockProtocol mock=new MockProtocol();
+        encrypt.setDownProtocol(mock);
+        encrypt.down(new BytesMessage(null, "hello world".getBytes()));
+        Message encrypted=mock.getDownMessages().get("message0");
+        encrypted.getArray()[encrypted.getOffset()]^=1; // flip a bit: the tag doesn't match anymore
+
+        encrypt2.setUpProtocol(mock);
+        encrypt2.up(encrypted);
+        assert mock.getUpMessages().isEmpty();
+    }
+}
@@ -0,0 +1,142 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MyReceiver;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests parallel fragmentation and reassembly of {@link FRAG4}. The size of the large messages is 64MB by default;
+ * to measure the throughput of 1GB messages, run with -DFRAG4_Test.size=1000000000 (and -Xmx4g)
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class FRAG4_Test {
+    protected JChannel                  a, b;
+    protected final MyReceiver<Message> rb=new MyReceiver<Message>().rawMsgs(true);
+    protected static final String       CLUSTER=FRAG4_Test.class.getSimpleName();
+    protected static final int          SIZE=Integer.getInteger("FRAG4_Test.size", 64_000_000);
+    protected static final int          LANES=4;
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=create("A").connect(CLUSTER);
+        b=create("B").connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameView(5000, 100, a, b);
+        b.setReceiver(rb.reset());
+    }
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+    public void testParallelUnicast() throws Exception {
+        sendAndCheck(b.getAddress(), false);
+    }
+
+    public void testParallelMulticast() throws Exception {
+        sendAndCheck(null, false);
+    }
+
+    /** OOB fragments are delivered in any order */
+    public void testParallelOOB() throws Exception {
+        sendAndCheck(b.getAddress(), true);
+    }
+
+    public void testOffHeapReassembly() throws Exception {
+        frag(b).offHeap(true);
+        byte[] array=array(SIZE / 8);
+        a.send(new BytesMessage(b.getAddress(), array));
+        Util.waitUntil(10000, 100, () -> rb.size() == 1);
+        Message msg=rb.list().get(0);
+        assert msg instanceof NioMessage && ((NioMessage)msg).isDirect();
+        ByteBuffer buf=((NioMessage)msg).getBuf();
+        assert buf.remaining() == array.length;
+        for(int i=0; i < array.length; i+=997)
+            assert buf.get(i) == array[i];
+    }
+
+    public void testSmallMessagesAreNotSentInParallel() throws Exception {
+        byte[] array=array(frag(a).parallelThreshold() - 1);
+        a.send(new BytesMessage(b.getAddress(), array));
+        Util.waitUntil(10000, 100, () -> rb.size() == 1);
+        assert frag(a).getNumParallelSent() == 0 && frag(b).getNumParallelReceived() == 0;
+        assert Arrays.equals(array, rb.list().get(0).getArray());
+    }
+
+    /** Fragments received after their message was reassembled (e.g. duplicates) must not create a new reassembly */
+    public void testLateFragmentsAreDropped() throws Exception {
+        FRAG4 frag=frag(b);
+        Address sender=a.getAddress();
+        byte[] array=array(2000);
+        Message[] frags=new Message[2];
+        for(int i=0; i < frags.length; i++) {
+            frags[i]=new BytesMessage(b.getAddress(), array, i * 1000, 1000).setSrc(sender)
+              .putHeader(frag.getId(), new Frag4Header(1000, i, frags.length, array.length, i * 1000));
+        }
+        assert frag.unfragment(frags[0], frags[0].getHeader(frag.getId())) == null;
+        Message msg=frag.unfragment(frags[1], frags[1].getHeader(frag.getId()));
+        assert msg != null && Arrays.equals(array, msg.getArray());
+
+        for(Message f: frags) // late duplicates
+            assert frag.unfragment(f, f.getHeader(frag.getId())) == null;
+        assert frag.getNumLateFragsDropped() == 2;
+        assert frag.reassemblies.get(sender).isEmpty();
+        assert frag.getReassemblyMemory() == 0;
+    }
+
+    protected void sendAndCheck(Address dest, boolean oob) throws Exception {
+        byte[] array=array(SIZE);
+        Message msg=new BytesMessage(dest, array).putHeader((short)1999, new FragHeader(5, 6, 7));
+        if(oob)
+            msg.setFlag(Message.Flag.OOB);
+        long start=System.nanoTime();
+        a.send(msg);
+        Util.waitUntil(60_000, 10, () -> rb.size() == 1);
+        long time=System.nanoTime() - start;
+        FRAG4 fa=frag(a), fb=frag(b);
+        System.out.printf("-- sent %s in %s (%s/sec), reassembly: %s, max reassembly memory: %s\n",
+                          Util.printBytes(SIZE), Util.printTime(time, TimeUnit.NANOSECONDS),
+                          Util.printBytes(SIZE / (time / 1_000_000_000.0)), fb.getAvgReassemblyTime(),
+                          Util.printBytes(fb.getReassemblyMemoryMax()));
+        Message m=rb.list().get(0);
+        assert m.getLength() == SIZE;
+        assert m.getHeader((short)1999) != null : "headers of the first fragment should have been copied";
+        assert Arrays.equals(array, 0, SIZE, m.getArray(), m.getOffset(), m.getOffset() + m.getLength());
+        assert fa.getNumParallelSent() == 1 && fb.getNumParallelReceived() == 1;
+        assert fb.getAvgReassemblyTime().count() == 1;
+        assert fb.getReassemblyMemoryMax() >= SIZE && fb.getReassemblyMemory() == 0;
+    }
+
+    protected static byte[] array(int size) {
+        byte[] array=new byte[size];
+        for(int i=0; i < array.length; i++)
+            array[i]=(byte)(i % 127);
+        return array;
+    }
+
+    protected static FRAG4 frag(JChannel ch) {
+        return ch.getProtocolStack().findProtocol(FRAG4.class);
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        Protocol[] prots={
+          new SHARED_LOOPBACK(),
+          new LOCAL_PING(),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS().setJoinTimeout(100),
+          new FRAG4().lanes(LANES).parallelThreshold(1_000_000).setFragSize(60_000)
+        };
+        return new JChannel(prots).name(name);
+    }
+}
@@ -0,0 +1,137 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.blocks.MessageDispatcher;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Histogram;
+import org.jgroups.util.MyReceiver;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests {@link LATENCY}
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class LATENCY_Test {
+    protected JChannel                  a, b;
+    protected MyReceiver<Integer>       rb=new MyReceiver<>();
+    protected static final String       CLUSTER=LATENCY_Test.class.getSimpleName();
+    protected static final int          NUM=100;
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=create("A").connect(CLUSTER);
+        b=create("B").connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameView(5000, 100, a, b);
+        b.setReceiver(rb.reset());
+    }
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+    public void testProbesAreInserted() {
+        List<Protocol> prots=a.getProtocolStack().getProtocols();
+        long num_probes=prots.stream().filter(p -> p instanceof LATENCY.Probe).count();
+        assert num_probes == prots.size() - num_probes - 2 : a.getProtocolStack().printProtocolSpec(false);
+        assert prots.get(0) instanceof LATENCY;
+        assert prots.get(prots.size()-1) instanceof TP;
+        assert prots.get(prots.size()-2) instanceof LATENCY.Probe;
+    }
+
+    public void testProtocolHistograms() throws Exception {
+        for(int i=1; i <= NUM; i++)
+            a.send(b.getAddress(), i);
+        for(int i=1; i <= NUM; i++)
+            a.send(null, i);
+        Util.waitUntil(5000, 100, () -> rb.size() == NUM * 2, () -> "B received " + rb.size());
+        LATENCY la=a.getProtocolStack().findProtocol(LATENCY.class), lb=b.getProtocolStack().findProtocol(LATENCY.class);
+        System.out.printf("A:\n%s\nB:\n%s\n", la.print(null), lb.print(null));
+        for(String name: List.of("down.UNICAST3", "down.NAKACK2", "down.SHARED_LOOPBACK"))
+            assert la.histogram(name).count() >= NUM : name + ": " + la.histogram(name);
+        for(String name: List.of("up.UNICAST3", "up.NAKACK2", "up.application"))
+            assert lb.histogram(name).count() > 0 : name + ": " + lb.histogram(name);
+        Histogram h=la.histogram("bundler.wait");
+        assert h != null && h.count() > 0;
+        assert lb.histogram("thread-pool.wait").count() > 0;
+
+        la.resetStats();
+        assert la.histogram("down.NAKACK2").count() == 0;
+    }
+
+    public void testRpcHistogram() throws Exception {
+        try(MessageDispatcher da=new MessageDispatcher(a); MessageDispatcher db=new MessageDispatcher(b, m -> "ok")) {
+            for(int i=0; i < 10; i++) {
+                String rsp=da.sendMessage(new ObjectMessage(b.getAddress(), i), RequestOptions.SYNC());
+                assert "ok".equals(rsp);
+            }
+            assert db != null;
+        }
+        LATENCY la=a.getProtocolStack().findProtocol(LATENCY.class);
+        Histogram h=la.histogram("rpc.rtt");
+        System.out.println("rpc.rtt = " + h);
+        assert h.count() == 10;
+        assert h.p(50) > 0;
+    }
+
+    public void testProbeAndText() throws Exception {
+        a.send(b.getAddress(), 1);
+        Util.waitUntil(5000, 100, () -> rb.size() == 1);
+        LATENCY la=a.getProtocolStack().findProtocol(LATENCY.class);
+        Map<String,String> map=la.handleProbe("latency=down.", "latency-text");
+        System.out.printf("probe:\n%s\n", map);
+        assert map.get("latency=down.").contains("down.UNICAST3");
+        assert !map.get("latency=down.").contains("up.");
+        String text=map.get("latency-text");
+        assert text.contains("name=\"down.UNICAST3\",quantile=\"0.99\"");
+        assert text.contains("jgroups_latency_seconds_count{cluster=\"" + CLUSTER + "\",member=\"A\",name=\"down.UNICAST3\"}");
+    }
+
+    public void testHttpEndpoint() throws Exception {
+        Util.close(b, a);
+        a=create("A");
+        LATENCY la=a.getProtocolStack().findProtocol(LATENCY.class);
+        la.httpPort(0);
+        a.connect(CLUSTER);
+        int port=la.httpPort();
+        assert port > 0;
+        HttpURLConnection conn=(HttpURLConnection)new URL("http://localhost:" + port + "/metrics").openConnection();
+        try(InputStream in=conn.getInputStream()) {
+            assert conn.getResponseCode() == 200;
+            String body=new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            System.out.printf("body:\n%s\n", body);
+            assert body.startsWith("# HELP jgroups_latency_seconds");
+            assert body.contains("name=\"down.GMS\"");
+        }
+        finally {
+            conn.disconnect();
+        }
+        a.disconnect();
+        assert la.httpPort() == 0; // the server was stopped
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        Protocol[] prots={
+          new SHARED_LOOPBACK(),
+          new LOCAL_PING(),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS().setJoinTimeout(100),
+          new LATENCY()
+        };
+        return new JChannel(prots).name(name);
+    }
+}
@@ -0,0 +1,95 @@
+package org.jgroups.protocols;
+
+import org.jgroups.BytesMessage;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Table;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Tests {@link STABLE} with delta digests and with aggregation of digests by group leaders
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class STABLE_DeltaTest {
+    protected JChannel[]   channels;
+    protected final String GRP=STABLE_DeltaTest.class.getSimpleName();
+
+    @AfterMethod protected void destroy() {Util.closeReverse(channels);}
+
+    public void testDeltaDigests() throws Exception {
+        create(3, true, 0);
+        for(int i=1; i <= 3; i++) {
+            sendAndPurge();
+            for(JChannel ch: channels)
+                assert stable(ch).round() >= i : String.format("%s: round is %d", ch.getName(), stable(ch).round());
+        }
+        assert Stream.of(channels).mapToLong(ch -> stable(ch).getDeltasRejected()).sum() == 0;
+    }
+
+    /** 8 members in groups of 3: the coordinator receives the digests of its own group and 2 merged digests */
+    public void testGroupAggregation() throws Exception {
+        create(8, false, 3);
+        sendAndPurge();
+        assert stable(channels[0]).getStableReceived() == 3 + 2
+          : String.format("coord received %d digests", stable(channels[0]).getStableReceived());
+        for(int i: new int[]{3, 6})
+            assert stable(channels[i]).getDigestsForwarded() == 1;
+        assert Stream.of(channels).filter(ch -> ch != channels[3] && ch != channels[6])
+          .allMatch(ch -> stable(ch).getDigestsForwarded() == 0);
+    }
+
+    public void testGroupAggregationWithDeltaDigests() throws Exception {
+        create(8, true, -1); // sqrt(8) -> groups of 3
+        for(int i=1; i <= 3; i++)
+            sendAndPurge();
+        assert Stream.of(channels).mapToLong(ch -> stable(ch).getDeltasRejected()).sum() == 0;
+        assert stable(channels[3]).getDigestsForwarded() == 3;
+    }
+
+    /** Sends 10 messages from every member, waits until they're received by all, then runs a STABLE round and waits
+     * until all tables are purged up to the highest delivered seqno */
+    protected void sendAndPurge() throws Exception {
+        long[] highest=Stream.of(channels).mapToLong(sender -> table(sender, sender).getHighestDelivered() + 10).toArray();
+        for(JChannel ch: channels)
+            for(int i=0; i < 10; i++)
+                ch.send(new BytesMessage(null, new byte[100]));
+        Util.waitUntil(10000, 100, () -> Stream.of(channels).allMatch(ch -> IntStream.range(0, channels.length)
+          .allMatch(i -> table(ch, channels[i]).getHighestDelivered() >= highest[i])));
+        for(JChannel ch: channels)
+            stable(ch).gc();
+        Util.waitUntil(10000, 100, () -> Stream.of(channels).allMatch(ch -> Stream.of(channels)
+          .map(sender -> table(ch, sender)).allMatch(t -> t.getLow() == t.getHighestDelivered())),
+                       () -> Arrays.toString(Stream.of(channels).map(ch -> table(ch, channels[0])).toArray()));
+    }
+
+    protected void create(int num, boolean delta, int group_size) throws Exception {
+        channels=new JChannel[num];
+        for(int i=0; i < num; i++) {
+            channels[i]=new JChannel(Util.getTestStack()).name(String.valueOf((char)('A' + i)));
+            stable(channels[i]).setDesiredAverageGossip(0).setMaxBytes(0).deltaDigests(delta).groupSize(group_size);
+            channels[i].connect(GRP);
+        }
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, channels);
+        for(JChannel ch: channels)
+            stable(ch).resetStats();
+    }
+
+    protected static STABLE stable(JChannel ch) {
+        return ch.getProtocolStack().findProtocol(STABLE.class);
+    }
+
+    protected static Table<Message> table(JChannel ch, JChannel sender) {
+        return ((NAKACK2)ch.getProtocolStack().findProtocol(NAKACK2.class)).getWindow(sender.getAddress());
+    }
+}
@@ -0,0 +1,267 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.STATE_PARALLEL;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.Digest;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Tests {@link STATE_PARALLEL}
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class STATE_PARALLEL_Test {
+    protected JChannel[]          channels;
+    protected static final String GRP=STATE_PARALLEL_Test.class.getSimpleName();
+    protected static final int    NUM_PARTITIONS=8, PARTITION_SIZE=200_000;
+
+    @AfterMethod protected void destroy() {
+        if(channels != null)
+            Util.closeReverse(channels);
+        channels=null;
+    }
+
+    /** D fetches the state from A, B and C */
+    public void testParallelTransfer() throws Exception {
+        byte[][] data=createData();
+        create(data, 3);
+        JChannel d=join("D", new State(null));
+        d.getState(null, 20000);
+        assertState(d, data);
+        for(int i=0; i < 3; i++)
+            assert prot(channels[i]).getPartitionsSent() > 0 : channels[i].getName() + " didn't send any partitions";
+        assert Stream.of(channels).limit(3).mapToLong(ch -> prot(ch).getPartitionsSent()).sum() == NUM_PARTITIONS;
+        assert prot(d).getBytesReceived() == (long)NUM_PARTITIONS * PARTITION_SIZE;
+        assertSnapshotsReleased(3);
+    }
+
+    /** The partitions are changed while they're being sent: D has to get the partitions of the snapshots */
+    public void testSnapshotIsolation() throws Exception {
+        byte[][] data=createData();
+        create(data, 2);
+        State a_state=(State)channels[0].getReceiver(), b_state=(State)channels[1].getReceiver();
+        CountDownLatch latch=new CountDownLatch(1);
+        a_state.block=b_state.block=latch;
+        JChannel c=join("C", new State(null));
+        Thread t=new Thread(() -> {
+            try {
+                Util.waitUntil(10000, 50, () -> a_state.blocked.get() && b_state.blocked.get());
+                byte[][] other=new byte[NUM_PARTITIONS][PARTITION_SIZE];
+                for(State st: List.of(a_state, b_state))
+                    System.arraycopy(other, 0, st.partitions, 0, other.length); // as if messages had been delivered
+                latch.countDown();
+            }
+            catch(Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.start();
+        c.getState(null, 20000);
+        t.join();
+        assertState(c, data);
+        assertSnapshotsReleased(2);
+    }
+
+    /** B's digest is different from A's, so the partitions are fetched from A and C only */
+    public void testProviderWithDifferentDigest() throws Exception {
+        byte[][] data=createData();
+        create(data, 3);
+        channels[1].getProtocolStack().insertProtocol(new DigestChanger(), ProtocolStack.Position.BELOW, STATE_PARALLEL.class);
+        JChannel d=join("D", new State(null));
+        d.getState(null, 20000);
+        assertState(d, data);
+        assert prot(d).getRejectedProviders() == 1;
+        assert prot(channels[1]).getPartitionsSent() == 0;
+        assert prot(channels[0]).getPartitionsSent() + prot(channels[2]).getPartitionsSent() == NUM_PARTITIONS;
+        assertSnapshotsReleased(3);
+    }
+
+    /** B leaves after sending parts of its partitions: the partitions are restarted at A and C */
+    public void testRestartAfterProviderLeft() throws Exception {
+        byte[][] data=createData();
+        create(data, 3);
+        State b_state=(State)channels[1].getReceiver();
+        b_state.block=new CountDownLatch(1);
+        JChannel d=join("D", new State(null));
+        Thread t=new Thread(() -> {
+            try {
+                Util.waitUntil(10000, 50, () -> b_state.blocked.get());
+                Util.close(channels[1]);
+            }
+            catch(Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.start();
+        d.getState(null, 20000);
+        t.join();
+        assertState(d, data);
+        assert prot(d).getRestarted() > 0;
+    }
+
+    /** A corrupted chunk is detected by its checksum and requested again */
+    public void testChecksumFailure() throws Exception {
+        byte[][] data=createData();
+        create(data, 2);
+        JChannel c=join("C", new State(null));
+        c.getProtocolStack().insertProtocol(new Corrupter(), ProtocolStack.Position.BELOW, STATE_PARALLEL.class);
+        c.getState(null, 20000);
+        assertState(c, data);
+        assert prot(c).getChecksumFailures() == 1;
+    }
+
+    public void testHeaderMarshalling() throws Exception {
+        STATE_PARALLEL.StateHeader hdr=new STATE_PARALLEL.StateHeader(STATE_PARALLEL.StateHeader.CHUNK)
+          .partition(5).offset(1_000_000).snapshot(3).attempt(2).checksum(-12345);
+        byte[] buf=Util.streamableToByteBuffer(hdr);
+        assert buf.length == hdr.serializedSize();
+        STATE_PARALLEL.StateHeader hdr2=Util.streamableFromByteBuffer(STATE_PARALLEL.StateHeader::new, buf);
+        assert hdr2.type() == STATE_PARALLEL.StateHeader.CHUNK && hdr2.toString().equals(hdr.toString());
+    }
+
+    protected void create(byte[][] data, int num) throws Exception {
+        channels=new JChannel[num + 1];
+        for(int i=0; i < num; i++)
+            channels[i]=join(String.valueOf((char)('A' + i)), new State(data));
+    }
+
+    protected JChannel join(String name, State state) throws Exception {
+        JChannel ch=new JChannel(Util.getTestStack(new STATE_PARALLEL().setChunkSize(16_000)))
+          .name(name).setReceiver(state).connect(GRP);
+        channels[name.charAt(0) - 'A']=ch;
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, Stream.of(channels).filter(c -> c != null && c.isConnected())
+          .toArray(JChannel[]::new));
+        return ch;
+    }
+
+    protected static void assertState(JChannel ch, byte[][] data) {
+        State state=(State)ch.getReceiver();
+        for(int i=0; i < data.length; i++)
+            assert Arrays.equals(state.partitions[i], data[i]) : String.format("partition %d differs", i);
+        assert state.received == data.length;
+    }
+
+    protected void assertSnapshotsReleased(int num) throws TimeoutException {
+        for(int i=0; i < num; i++) {
+            JChannel ch=channels[i];
+            if(ch.isConnected())
+                Util.waitUntil(5000, 50, () -> prot(ch).getSnapshots() == 0 && ((State)ch.getReceiver()).snapshots.get() == 0,
+                               () -> ch.getName() + " has unreleased snapshots");
+        }
+    }
+
+    protected static byte[][] createData() {
+        Random r=new Random(1);
+        byte[][] data=new byte[NUM_PARTITIONS][PARTITION_SIZE];
+        for(byte[] p: data)
+            r.nextBytes(p);
+        return data;
+    }
+
+    protected static STATE_PARALLEL prot(JChannel ch) {
+        return ch.getProtocolStack().findProtocol(STATE_PARALLEL.class);
+    }
+
+    /** Partitions of random bytes; a requester creates the partitions when the chunks are set */
+    protected static class State implements Receiver, PartitionedState {
+        protected final byte[][]      partitions=new byte[NUM_PARTITIONS][];
+        protected final AtomicBoolean blocked=new AtomicBoolean();
+        protected final AtomicInteger snapshots=new AtomicInteger(); // snapshots which have not been released
+        protected CountDownLatch      block; // if set, getState() blocks after writing half of a partition
+        protected int                 received;
+
+        protected State(byte[][] data) {
+            if(data != null)
+                System.arraycopy(data, 0, partitions, 0, data.length);
+        }
+
+        public int numPartitions() {return partitions.length;}
+
+        public Object snapshot() {
+            snapshots.incrementAndGet();
+            return partitions.clone(); // the partitions are replaced, but never changed
+        }
+
+        public void release(Object snapshot) {
+            snapshots.decrementAndGet();
+        }
+
+        public void getState(Object snapshot, int partition, long offset, OutputStream out) throws Exception {
+            byte[] p=((byte[][])snapshot)[partition];
+            for(int off=(int)offset; off < p.length; off+=1000) {
+                if(block != null && off >= p.length / 2) {
+                    blocked.set(true);
+                    block.await();
+                }
+                out.write(p, off, Math.min(1000, p.length - off));
+            }
+        }
+
+        public synchronized void setState(int partition, long offset, byte[] buf, int off, int len) {
+            byte[] p=partitions[partition];
+            if(p == null || offset == 0) // a restarted partition discards the bytes received before
+                p=partitions[partition]=new byte[0];
+            assert offset <= p.length : String.format("offset %d > length %d", offset, p.length);
+            if(offset + len > p.length)
+                p=partitions[partition]=Arrays.copyOf(p, (int)offset + len);
+            System.arraycopy(buf, off, p, (int)offset, len);
+        }
+
+        public synchronized void partitionReceived(int partition, long length) {
+            assert partitions[partition].length == length;
+            received++;
+        }
+    }
+
+    /** Changes the highest delivered seqno of the first member in the digest returned by GET_DIGEST */
+    protected static class DigestChanger extends Protocol {
+        public Object down(Event evt) {
+            Object retval=down_prot.down(evt);
+            if(evt.getType() == Event.GET_DIGEST && retval instanceof Digest d) {
+                Map<Address,long[]> map=new LinkedHashMap<>();
+                for(Digest.Entry e: d)
+                    map.put(e.member(), new long[]{map.isEmpty()? e.hd() + 1 : e.hd(), Math.max(e.hr(), e.hd() + 1)});
+                return new Digest(map);
+            }
+            return retval;
+        }
+    }
+
+    /** Corrupts the first chunk received */
+    protected static class Corrupter extends Protocol {
+        protected final AtomicBoolean corrupted=new AtomicBoolean();
+
+        public Object up(Message msg) {
+            corrupt(msg);
+            return up_prot.up(msg);
+        }
+
+        public void up(MessageBatch batch) {
+            for(Message msg: batch)
+                corrupt(msg);
+            up_prot.up(batch);
+        }
+
+        protected void corrupt(Message msg) {
+            if(msg.getLength() > 1000 && corrupted.compareAndSet(false, true)) {
+                byte[] buf=Arrays.copyOfRange(msg.getArray(), msg.getOffset(), msg.getOffset() + msg.getLength());
+                buf[buf.length / 2]^=0xff;
+                msg.setArray(buf);
+            }
+        }
+    }
+}
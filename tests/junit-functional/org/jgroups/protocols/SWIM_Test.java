@@ -0,0 +1,193 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.TimeScheduler;
+import org.jgroups.util.TimeScheduler3;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Tests {@link SWIM}
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class SWIM_Test {
+    protected JChannel[]          channels;
+    protected static final String GRP=SWIM_Test.class.getSimpleName();
+
+    @AfterMethod protected void destroy() {
+        if(channels != null)
+            Util.closeReverse(channels);
+        channels=null;
+    }
+
+    /** Kills a member and checks that it is excluded from the view */
+    public void testDetection() throws Exception {
+        channels=new JChannel[5];
+        for(int i=0; i < channels.length; i++)
+            channels[i]=create(String.valueOf((char)('A' + i)), swim()).connect(GRP);
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, channels);
+        JChannel dead=channels[2];
+        kill(dead);
+        JChannel[] rest=Stream.of(channels).filter(ch -> ch != dead).toArray(JChannel[]::new);
+        Util.waitUntil(10000, 100, () -> Stream.of(rest).allMatch(ch -> ch.getView().size() == rest.length),
+                       () -> Util.printViews(rest));
+        assert Stream.of(rest).noneMatch(ch -> ch.getView().containsMember(dead.getAddress()));
+    }
+
+    /** A member which is suspected wrongly refutes the suspicion and is not excluded */
+    public void testRefutation() throws Exception {
+        channels=new JChannel[3];
+        for(int i=0; i < channels.length; i++)
+            channels[i]=create(String.valueOf((char)('A' + i)), swim().setTimeout(3000)).connect(GRP);
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, channels);
+        Address b=channels[1].getAddress();
+        swim(channels[0]).handleUpdate(new SWIM.Update(SWIM.Update.SUSPECT, b, 0));
+        Util.waitUntil(5000, 100, () -> swim(channels[1]).incarnation() > 0);
+        Util.waitUntil(5000, 100, () -> swim(channels[0]).suspicions.isEmpty());
+        Util.sleep(3000); // the suspicion timeout
+        assert Stream.of(channels).allMatch(ch -> ch.getView().size() == 3);
+        assert swim(channels[1]).getRefutations() >= 1;
+    }
+
+    /** Updates are piggybacked on a copy of a regular message; the caller's message is not modified */
+    public void testPiggybackOnCopy() throws Exception {
+        SWIM swim=new SWIM();
+        DownRecorder recorder=new DownRecorder();
+        swim.setDownProtocol(recorder);
+        swim.addUpdate(new SWIM.Update(SWIM.Update.ALIVE, Util.createRandomAddress("A"), 1));
+        Message msg=new BytesMessage(null, "hello".getBytes());
+        swim.down(msg);
+        assert msg.getHeader(swim.getId()) == null;
+        assert recorder.sent.size() == 1;
+        Message sent=recorder.sent.get(0);
+        assert sent != msg && sent.getArray() == msg.getArray();
+        SWIM.SwimHeader hdr=sent.getHeader(swim.getId());
+        assert hdr != null && hdr.type() == SWIM.SwimHeader.DATA && hdr.updates().size() == 1;
+    }
+
+    public void testHeaderMarshalling() throws Exception {
+        Address a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B");
+        SWIM.SwimHeader hdr=new SWIM.SwimHeader(SWIM.SwimHeader.PING_REQ).seqno(322649).addr(a)
+          .updates(List.of(new SWIM.Update(SWIM.Update.SUSPECT, b, 3), new SWIM.Update(SWIM.Update.ALIVE, a, 1)));
+        byte[] buf=Util.streamableToByteBuffer(hdr);
+        assert buf.length == hdr.serializedSize();
+        SWIM.SwimHeader hdr2=Util.streamableFromByteBuffer(SWIM.SwimHeader::new, buf);
+        assert hdr2.type() == SWIM.SwimHeader.PING_REQ && hdr2.seqno() == 322649 && a.equals(hdr2.addr());
+        assert hdr2.updates().size() == 2 && b.equals(hdr2.updates().get(0).mbr())
+          && hdr2.updates().get(0).incarnation() == 3;
+    }
+
+    /**
+     * Simulates a 1000-member cluster over {@link SHARED_LOOPBACK} (without GMS; views are injected), crashes a member
+     * and measures the time until the coordinator suspects it. The number of messages sent per member and period has
+     * to stay constant. The members share a timer and a thread pool, so the test can run on a small box.
+     */
+    public void testLargeCluster() throws Exception {
+        final int NUM=1000, INTERVAL=500, TIMEOUT=2000;
+        channels=new JChannel[NUM];
+        List<Address> mbrs=new ArrayList<>(NUM);
+        ExecutorService pool=Executors.newFixedThreadPool(4);
+        TimeScheduler timer=new TimeScheduler3();
+        try {
+            for(int i=0; i < NUM; i++) {
+                SHARED_LOOPBACK tp=new SHARED_LOOPBACK().setBundlerType("no-bundler").setTimer(timer);
+                channels[i]=new JChannel(tp, new SWIM().setPingTimeout(200).setInterval(INTERVAL).setTimeout(TIMEOUT),
+                                         new SuspectRecorder()).name(String.valueOf(i));
+                tp.setThreadPool(pool);
+                tp.getDiagnosticsHandler().setEnabled(false);
+                channels[i].connect(GRP);
+                mbrs.add(channels[i].getAddress());
+            }
+            View view=View.create(mbrs.get(0), 1, mbrs);
+            for(JChannel ch: channels)
+                ch.down(new Event(Event.VIEW_CHANGE, view));
+
+            Util.sleep(INTERVAL * 4);
+            long msgs=Stream.of(channels).mapToLong(ch -> swim(ch).getMessagesSent()).sum();
+            long pings=Stream.of(channels).mapToLong(ch -> swim(ch).getPingsSent()).sum();
+            double msgs_per_period=(double)msgs / pings; // ~2: a ping and an ack
+            System.out.printf("-- %d members: %.2f msgs sent per member and period\n", NUM, msgs_per_period);
+            assert msgs_per_period < 3.0 : String.format("%.2f msgs per member and period", msgs_per_period);
+
+            JChannel dead=channels[NUM/2];
+            long start=System.nanoTime();
+            kill(dead);
+            SuspectRecorder coord=channels[0].getProtocolStack().findProtocol(SuspectRecorder.class);
+            Util.waitUntil(30000, 100, () -> coord.suspected.containsKey(dead.getAddress()));
+            long time=TimeUnit.NANOSECONDS.toMillis(coord.suspected.get(dead.getAddress()) - start);
+            System.out.printf("-- %s was suspected by the coordinator after %,d ms\n", dead.getAddress(), time);
+            // every member probes a target per period, so the dead member is probed after ~1-2 periods
+            assert time < TIMEOUT + INTERVAL * 10 : String.format("detection took %,d ms", time);
+            assert Stream.of(channels).filter(ch -> ch != dead).allMatch(ch -> {
+                SuspectRecorder r=ch.getProtocolStack().findProtocol(SuspectRecorder.class);
+                return r.suspected.keySet().stream().allMatch(dead.getAddress()::equals);
+            }) : "false suspicions";
+        }
+        finally {
+            Util.closeReverse(channels);
+            channels=null;
+            timer.stop();
+            pool.shutdownNow();
+        }
+    }
+
+    protected static JChannel create(String name, SWIM swim) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(), new SHARED_LOOPBACK_PING(), swim, new NAKACK2(), new UNICAST3(),
+                            new STABLE(), new GMS().setJoinTimeout(1000)).name(name);
+    }
+
+    protected static SWIM swim() {
+        return new SWIM().setPingTimeout(100).setInterval(300).setTimeout(1000);
+    }
+
+    protected static SWIM swim(JChannel ch) {
+        return ch.getProtocolStack().findProtocol(SWIM.class);
+    }
+
+    /** Simulates a crash by discarding all traffic to and from ch */
+    protected static void kill(JChannel ch) throws Exception {
+        DISCARD discard=new DISCARD().setAddress(ch.getAddress()).discardAll(true);
+        ch.getProtocolStack().insertProtocol(discard, ProtocolStack.Position.ABOVE, TP.class);
+    }
+
+    /** Records the messages sent down */
+    protected static class DownRecorder extends Protocol {
+        protected final List<Message> sent=new ArrayList<>();
+
+        public Object down(Message msg) {
+            sent.add(msg);
+            return null;
+        }
+    }
+
+    /** Records the time at which members were suspected */
+    protected static class SuspectRecorder extends Protocol {
+        protected final Map<Address,Long> suspected=new ConcurrentHashMap<>();
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.SUSPECT) {
+                long now=System.nanoTime();
+                List<Address> suspects=evt.getArg();
+                suspects.forEach(s -> suspected.putIfAbsent(s, now));
+            }
+            return up_prot.up(evt);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.jgroups.protocols;
+
+/**
+ * Exercise SYM_ENCRYPT_Test with GCM (authenticated encryption)
+ */
+public class SYM_ENCRYPT_TestGcm extends SYM_ENCRYPT_Test {
+
+    @Override protected String symAlgorithm() { return "AES/GCM/NoPadding"; }
+    @Override protected int symIvLength() { return 12; }
+
+    /**
+     * For some obscure TestNG reasons, this method is needed. Remove it and all tests are executed in separate threads,
+     * which makes the testsuite fail!!!
+     */
+    public void dummy2() {}
+
+}
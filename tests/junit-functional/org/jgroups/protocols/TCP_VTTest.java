@@ -0,0 +1,74 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.MyReceiver;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.stream.Stream;
+
+/**
+ * Tests {@link TCP_VT}
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class TCP_VTTest {
+    protected JChannel[]          channels;
+    protected static final String CLUSTER=TCP_VTTest.class.getSimpleName();
+    protected static final int    NUM=2000;
+
+    @BeforeMethod protected void init() throws Exception {
+        channels=new JChannel[4];
+        for(int i=0; i < channels.length; i++)
+            channels[i]=create(String.valueOf((char)('A' + i))).connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, channels);
+    }
+
+    @AfterMethod protected void destroy() {
+        Util.closeReverse(channels);
+    }
+
+    public void testSendAndReceive() throws Exception {
+        MyReceiver<Integer>[] receivers=new MyReceiver[channels.length];
+        for(int i=0; i < channels.length; i++)
+            channels[i].setReceiver(receivers[i]=new MyReceiver<Integer>().name(channels[i].name()));
+        for(int i=1; i <= NUM; i++) {
+            for(JChannel ch: channels) {
+                ch.send(null, i);
+                ch.send(channels[0].address(), i);
+            }
+        }
+        int expected_a=NUM * channels.length * 2, expected=NUM * channels.length;
+        Util.waitUntil(10000, 100,
+                       () -> receivers[0].size() == expected_a
+                         && Stream.of(receivers).skip(1).allMatch(r -> r.size() == expected),
+                       () -> Stream.of(receivers).map(r -> r.name() + ": " + r.size()).reduce((x,y) -> x + ", " + y).get());
+        for(JChannel ch: channels) {
+            TCP_VT tp=(TCP_VT)ch.stack().getTransport();
+            assert tp.getOpenConnections() == channels.length-1 : tp.printConnections();
+            assert tp.nonBlockingSends() && !tp.useLockToSend();
+            assert tp.virtualConnectionThreads() == Util.virtualThreadsAvailable();
+        }
+    }
+
+    public void testNonBlockingSendsCannotBeDisabled() throws Exception {
+        TCP_VT tp=(TCP_VT)new TCP_VT().nonBlockingSends(false);
+        try(JChannel ignored=new JChannel(tp.setBindAddress(Util.getLoopback()), new LOCAL_PING(), new NAKACK2(), new GMS())) {
+            assert tp.nonBlockingSends(); // the stack is initialized by the constructor
+        }
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        TCP_VT tp=new TCP_VT();
+        tp.setBindAddress(Util.getLoopback());
+        return new JChannel(tp, new LOCAL_PING(), new NAKACK2(), new UNICAST3(), new STABLE(),
+                            new GMS().setJoinTimeout(500), new FRAG2()).name(name);
+    }
+}
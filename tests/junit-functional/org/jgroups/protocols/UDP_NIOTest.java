@@ -0,0 +1,73 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.MyReceiver;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link UDP_NIO}
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class UDP_NIOTest {
+    protected JChannel            a, b;
+    protected static final String CLUSTER=UDP_NIOTest.class.getSimpleName();
+    protected static final int    NUM=5000;
+
+    @AfterMethod protected void destroy() {
+        Util.close(b, a);
+    }
+
+    @DataProvider
+    static Object[][] bufferPools() {
+        return new Object[][]{
+          {null},
+          {"slab"}
+        };
+    }
+
+    @Test(dataProvider="bufferPools")
+    public void testSendAndReceive(String buffer_pool) throws Exception {
+        a=create("A", buffer_pool).connect(CLUSTER);
+        b=create("B", buffer_pool).connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+        MyReceiver<Integer> ra=new MyReceiver<Integer>().name("A"), rb=new MyReceiver<Integer>().name("B");
+        a.setReceiver(ra);
+        b.setReceiver(rb);
+        for(int i=1; i <= NUM; i++) {
+            a.send(null, i);
+            a.send(b.address(), i);
+        }
+        a.send(b.address(), new byte[100_000]); // fragmented
+        Util.waitUntil(10000, 100, () -> ra.size() == NUM && rb.size() == NUM * 2 + 1,
+                       () -> String.format("A: %d, B: %d", ra.size(), rb.size()));
+
+        UDP_NIO tb=(UDP_NIO)b.stack().getTransport(), ta=(UDP_NIO)a.stack().getTransport();
+        assert ta.numPacketsSent() > 0;
+        assert tb.numPacketsReceived() > 0 && tb.numWakeups() > 0;
+        assert tb.numWakeups() <= tb.numPacketsReceived();
+        System.out.printf("B: %d packets received in %d wakeups (%s per wakeup)\n",
+                          tb.numPacketsReceived(), tb.numWakeups(), tb.avg_packets_per_wakeup);
+        if(buffer_pool != null)
+            assert ta.getBufferPool().isDirect();
+    }
+
+    protected static JChannel create(String name, String buffer_pool) throws Exception {
+        UDP_NIO tp=new UDP_NIO();
+        tp.setMulticasting(false);
+        tp.setBindAddress(Util.getLoopback());
+        if(buffer_pool != null)
+            tp.setBufferPoolType(buffer_pool);
+        return new JChannel(tp, new LOCAL_PING(), new NAKACK2(), new UNICAST3(), new STABLE(),
+                            new GMS().setJoinTimeout(500), new FRAG2().setFragSize(60_000))
+          .name(name);
+    }
+}
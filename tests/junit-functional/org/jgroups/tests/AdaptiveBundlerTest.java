@@ -0,0 +1,74 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.AdaptiveBundler;
+import org.jgroups.protocols.TP;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MyReceiver;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the switching between immediate and batched mode of {@link AdaptiveBundler}
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class AdaptiveBundlerTest {
+    protected JChannel            a,b;
+    protected MyReceiver<Integer> rb;
+    protected static final String CLUSTER=AdaptiveBundlerTest.class.getSimpleName();
+
+    @BeforeMethod protected void init() throws Exception {
+        a=create("A").connect(CLUSTER);
+        b=create("B").connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameView(5000, 100, a,b);
+        b.setReceiver(rb=new MyReceiver<Integer>().name("B"));
+    }
+
+    @AfterMethod protected void destroy() {
+        Util.closeReverse(a,b);
+    }
+
+    public void testSparseTrafficIsNotBundled() throws Exception {
+        AdaptiveBundler bundler=bundler(a);
+        bundler.resetStats();
+        for(int i=1; i <= 10; i++) {
+            a.send(b.address(), i);
+            Util.sleep(20);
+        }
+        Util.waitUntil(5000, 100, () -> rb.size() == 10);
+        assert !bundler.isBatching(b.address());
+        assert bundler.numImmediateSends() >= 10;
+        assert bundler.numBatchedDestinations() == 0 : bundler.dests();
+        System.out.printf("histogram:\n%s\n", bundler.histogram());
+    }
+
+    public void testSwitchToBatchedModeAndBack() throws Exception {
+        AdaptiveBundler bundler=bundler(a);
+        final int NUM=20_000;
+        for(int i=1; i <= NUM; i++)
+            a.send(b.address(), i);
+        Util.waitUntil(5000, 100, () -> rb.size() == NUM, () -> String.format("B: %d msgs", rb.size()));
+        assert bundler.numModeSwitches() > 0;
+        assert bundler.avgBatchSize() > 1.0 : bundler.avgBatchSize();
+        System.out.printf("dests:\n%s\nhistogram:\n%s\n", bundler.dests(), bundler.histogram());
+
+        // no traffic: switches back to immediate mode
+        Util.waitUntil(5000, 100, () -> !bundler.isBatching(b.address()), bundler::dests);
+    }
+
+    protected static AdaptiveBundler bundler(JChannel ch) {
+        return (AdaptiveBundler)ch.stack().getTransport().getBundler();
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        Protocol[] stack=Util.getTestStack();
+        TP tp=stack[0].getTransport();
+        tp.setBundler(new AdaptiveBundler().rateThreshold(1000).evalInterval(50));
+        return new JChannel(stack).name(name);
+    }
+}
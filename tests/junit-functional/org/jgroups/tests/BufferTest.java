@@ -38,10 +38,16 @@ public class BufferTest {
     static Object[][] windowCreator() {
         return new Object[][]{
           // {new DynamicBuffer<>(0)},
-          {new FixedBuffer<>(0)}
+          {new FixedBuffer<>(0)},
+          {new ConcurrentBuffer<>(0)}
         };
     }
 
+    /** Creates a buffer of fixed capacity of the same type as buf ({@link FixedBuffer} or {@link ConcurrentBuffer}) */
+    protected static <T> Buffer<T> fixed(Buffer<?> buf, int capacity, long offset) {
+        return buf instanceof ConcurrentBuffer? new ConcurrentBuffer<>(capacity, offset) : new FixedBuffer<>(capacity, offset);
+    }
+
     static {
         NAKACK3_ID=ClassConfigurator.getProtocolId(NAKACK3.class);
         SEQNO_GETTER=m -> {
@@ -477,8 +483,8 @@ public class BufferTest {
 
     /** Runs NUM adders, each adds 1 unique seqno. When all adders are done, we should have NUM elements in the buf */
     public void testConcurrentAdd(Buffer<Integer> buf) {
-        if(buf instanceof FixedBuffer)
-            buf=new FixedBuffer<>(100, 0);
+        if(!(buf instanceof DynamicBuffer))
+            buf=fixed(buf, 100, 0);
         final int NUM=100;
         CountDownLatch latch=new CountDownLatch(1);
         Adder[] adders=new Adder[NUM];
@@ -977,8 +983,8 @@ public class BufferTest {
     }
 
     public void testRemoveManyWithMaxBatchSize(Buffer<Message> buf) {
-        if(buf instanceof FixedBuffer)
-            buf=new FixedBuffer<>(1024, 0);
+        if(!(buf instanceof DynamicBuffer))
+            buf=fixed(buf, 1024, 0);
         final Buffer<Message> b=buf;
         IntStream.rangeClosed(1, 1024).forEach(n -> b.add(n,new ObjectMessage(null, "hello-" + n)));
         assert buf.size() == 1024;
@@ -1041,8 +1047,8 @@ public class BufferTest {
     }
 
     public void testGetNullMessages(Buffer<Integer> buf) {
-        if(buf instanceof FixedBuffer)
-            buf=new FixedBuffer<>(100, 0);
+        if(!(buf instanceof DynamicBuffer))
+            buf=fixed(buf, 100, 0);
         buf.add(1, 1);
         buf.add(100, 100);
         System.out.println("buf = " + buf);
@@ -1189,8 +1195,8 @@ public class BufferTest {
 
 
     public void testGetMissingWithMaxSize(Buffer<Integer> buf) {
-        if(buf instanceof FixedBuffer)
-            buf=new FixedBuffer<>(50, 0);
+        if(!(buf instanceof DynamicBuffer))
+            buf=fixed(buf, 50, 0);
         for(int i=1; i <= 50; i++) {
             if(i % 2 == 0)
                 buf.add(i,i);
@@ -1209,8 +1215,8 @@ public class BufferTest {
     public void testGetMissingWithMaxBundleSize(Buffer<Integer> buf) {
         final int max_bundle_size=64000, missing_msgs=1_000_000;
         final int max_xmit_req_size=(max_bundle_size -50) * Global.LONG_SIZE;
-        if(buf instanceof FixedBuffer)
-            buf=new FixedBuffer<>(missing_msgs, 0);
+        if(!(buf instanceof DynamicBuffer))
+            buf=fixed(buf, missing_msgs, 0);
         buf.add(0, 0);
         buf.add(missing_msgs, missing_msgs);
         System.out.println("buf = " + buf);
@@ -1226,8 +1232,8 @@ public class BufferTest {
     public void testGetMissingWithMaxBundleSize2(Buffer<Integer> buf) {
         final int max_bundle_size=64000, missing_msgs=2_000_000;
         final int max_xmit_req_size=(max_bundle_size -50) * Global.LONG_SIZE;
-        if(buf instanceof FixedBuffer)
-            buf=new FixedBuffer<>(missing_msgs, 0);
+        if(!(buf instanceof DynamicBuffer))
+            buf=fixed(buf, missing_msgs, 0);
         for(int i=0; i < missing_msgs/2; i++)
             buf.add(i, i);
 
@@ -1378,8 +1384,8 @@ public class BufferTest {
     }
 
     public void testResizeWithPurge(Buffer<Integer> buf) {
-        if(buf instanceof FixedBuffer)
-            buf=new FixedBuffer<>(100, 0);
+        if(!(buf instanceof DynamicBuffer))
+            buf=fixed(buf, 100, 0);
         for(int i=1; i <= 100; i++)
             addAndGet(buf, i);
         System.out.println("buf: " + buf);
@@ -1397,8 +1403,8 @@ public class BufferTest {
     }
 
     public void testResizeWithPurgeAndGetOfNonExistingElement(Buffer<Integer> buf) {
-        if(buf instanceof FixedBuffer)
-            buf=new FixedBuffer<>(50, 0);
+        if(!(buf instanceof DynamicBuffer))
+            buf=fixed(buf, 50, 0);
         for(int i=1; i <= 50; i++)
             addAndGet(buf, i);
         System.out.println("buf: " + buf);
@@ -1426,7 +1432,10 @@ public class BufferTest {
             list.add(i);
         list.add(55);
 
-        for(long i=buf.offset(); i < buf.capacity() + buf.offset(); i++) {
+        // ConcurrentBuffer only returns an element if its slot holds the given seqno: iterate over seqnos, not slots
+        boolean by_seqno=buf instanceof ConcurrentBuffer;
+        long from=by_seqno? buf.low() + 1 : buf.offset(), to=by_seqno? buf.high() + 1 : buf.capacity() + buf.offset();
+        for(long i=from; i < to; i++) {
             Integer num=buf._get(i);
             if(num != null) {
                 System.out.println("num=" + num);
@@ -1508,8 +1517,8 @@ public class BufferTest {
 
 
     public void testPurge(Buffer<Integer> buf) {
-        if(buf instanceof FixedBuffer)
-            buf=new FixedBuffer<>(50, 0);
+        if(!(buf instanceof DynamicBuffer))
+            buf=fixed(buf, 50, 0);
         for(int seqno=1; seqno <= 25; seqno++)
             buf.add(seqno, seqno);
 
@@ -1585,8 +1594,8 @@ public class BufferTest {
     }
 
     public void testPurge4(Buffer<Integer> buf) {
-        if(buf instanceof FixedBuffer)
-            buf=new FixedBuffer<>(100, 0);
+        if(!(buf instanceof DynamicBuffer))
+            buf=fixed(buf, 100, 0);
         for(int i=1; i <= 100; i++)
             buf.add(i, i);
         System.out.println("buf = " + buf);
@@ -1596,8 +1605,8 @@ public class BufferTest {
     }
 
     public void testPurge5(Buffer<Integer> buf) {
-        if(buf instanceof FixedBuffer)
-            buf=new FixedBuffer<>(100, 0);
+        if(!(buf instanceof DynamicBuffer))
+            buf=fixed(buf, 100, 0);
         for(int i=1; i <= 100; i++)
             buf.add(i, i);
         System.out.println("buf = " + buf);
@@ -1608,8 +1617,8 @@ public class BufferTest {
     }
 
     public void testPurge6(Buffer<Integer> buf) {
-        if(buf instanceof FixedBuffer)
-            buf=new FixedBuffer<>(100, 0);
+        if(!(buf instanceof DynamicBuffer))
+            buf=fixed(buf, 100, 0);
         for(int i=1; i <= 100; i++)
             buf.add(i, i);
         System.out.println("buf = " + buf);
@@ -1996,7 +2005,7 @@ public class BufferTest {
     }
 
     public void testIncreaseCapacity(Buffer<Integer> buf) {
-        if(buf instanceof DynamicBuffer)
+        if(!(buf instanceof FixedBuffer))
             return;
         int cap=buf.capacity();
         assert cap == 32;
@@ -2007,7 +2016,7 @@ public class BufferTest {
     }
 
     public void testDecreaseCapacity(Buffer<Integer> buf) {
-        if(buf instanceof DynamicBuffer)
+        if(!(buf instanceof FixedBuffer))
             return;
         int cap=buf.capacity();
         assert cap == 32;
@@ -51,7 +51,9 @@ public class BundlerTest extends ChannelTestBase {
         return new Object[][]{
           {TransferQueueBundler.class},
           {NoBundler.class},
-          {PerDestinationBundler.class}
+          {PerDestinationBundler.class},
+          {StripedRingBundler.class},
+          {AdaptiveBundler.class}
         };
     }
 
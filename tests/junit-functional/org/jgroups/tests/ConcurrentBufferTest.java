@@ -0,0 +1,238 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ObjectMessage;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.ConcurrentBuffer;
+import org.jgroups.util.MyReceiver;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Tests {@link ConcurrentBuffer} with concurrent adders and a single remover, and {@link NAKACK4} and
+ * {@link UNICAST4} using concurrent buffers
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class ConcurrentBufferTest {
+    protected static final int NUM=100_000, NUM_ADDERS=8;
+
+    /**
+     * Adders add seqnos 1..NUM concurrently, including duplicates (as in retransmissions). The thread which
+     * increments the adders counter from 0 removes and checks that every seqno is removed exactly once, and in order
+     */
+    public void testConcurrentAddAndRemove() throws Exception {
+        ConcurrentBuffer<Long> buf=new ConcurrentBuffer<>(1024, 0);
+        AtomicLong next=new AtomicLong(1), expected=new AtomicLong(1);
+        AtomicInteger errors=new AtomicInteger();
+        CountDownLatch latch=new CountDownLatch(1);
+        Thread[] adders=new Thread[NUM_ADDERS];
+        for(int i=0; i < adders.length; i++) {
+            adders[i]=new Thread(() -> {
+                try {
+                    latch.await();
+                }
+                catch(InterruptedException e) {
+                    return;
+                }
+                for(;;) {
+                    long seqno=next.getAndIncrement();
+                    if(seqno > NUM)
+                        break;
+                    buf.add(seqno, seqno, null, true); // false if already added as duplicate by a different thread
+
+                    // add a duplicate of a recent seqno, which may or may not have been removed
+                    long dupe=seqno - ThreadLocalRandom.current().nextInt(10), removed=expected.get();
+                    if(dupe > 0 && buf.add(dupe, dupe, null, false) && dupe - removed < 0)
+                        errors.incrementAndGet(); // added a seqno that was already removed
+                    removeAndCheck(buf, expected, errors);
+                }
+            });
+            adders[i].start();
+        }
+        latch.countDown();
+        for(Thread t: adders)
+            t.join(30000);
+        removeAndCheck(buf, expected, errors);
+        assert errors.get() == 0 : String.format("%d errors", errors.get());
+        assert expected.get() == NUM+1 : String.format("expected=%d, buf=%s", expected.get(), buf);
+        assert buf.isEmpty() && buf.highestDelivered() == NUM && buf.low() == NUM : buf;
+    }
+
+    /**
+     * Adders add seqnos concurrently while a different thread purges (forced) up to high: every add which succeeded
+     * must be counted exactly once, and no element must be left in a freed slot
+     */
+    public void testConcurrentAddAndForcedPurge() throws Exception {
+        MyConcurrentBuffer<Long> buf=new MyConcurrentBuffer<>(1024, 0);
+        AtomicLong next=new AtomicLong(1);
+        CountDownLatch latch=new CountDownLatch(1);
+        Thread[] adders=new Thread[NUM_ADDERS];
+        for(int i=0; i < adders.length; i++) {
+            adders[i]=new Thread(() -> {
+                try {
+                    latch.await();
+                }
+                catch(InterruptedException e) {
+                    return;
+                }
+                for(long seqno; (seqno=next.getAndIncrement()) <= NUM;)
+                    buf.add(seqno, seqno, null, true);
+            });
+            adders[i].start();
+        }
+        Thread purger=new Thread(() -> {
+            while(Stream.of(adders).anyMatch(Thread::isAlive)) {
+                buf.purge(buf.high(), true);
+                Thread.yield();
+            }
+        });
+        purger.start();
+        latch.countDown();
+        for(Thread t: adders)
+            t.join(30000);
+        purger.join(30000);
+        buf.purge(buf.high(), true);
+        assert buf.high() == NUM && buf.low() == NUM : buf;
+        assert buf.size() == 0 : String.format("size is %d: %s", buf.size(), buf);
+        assert buf.numElements() == 0 : String.format("%d elements left in freed slots", buf.numElements());
+    }
+
+    public void testGetAfterPurge() {
+        ConcurrentBuffer<Integer> buf=new ConcurrentBuffer<>(8, 0);
+        for(int i=1; i <= 8; i++)
+            assert buf.add(i, i);
+        assert !buf.add(9, 9, null, false); // full
+        assert buf.numDroppedMessages() == 1;
+        List<Integer> list=buf.removeMany(false, 0);
+        assert list.size() == 8;
+        assert buf.get(5) == 5; // not yet purged
+        buf.purge(4);
+        assert buf.get(4) == null && buf.get(5) == 5;
+        assert buf.add(12, 12) && buf._get(12) == 12 && buf._get(4) == null;
+        assert !buf.add(3, 3) && !buf.add(5, 5); // purged and duplicate
+        assert buf.add(9, 9) && buf.numMissing() == 2;
+        assert buf.getMissing().size() == 2;
+    }
+
+    public void testBlockingAdd() throws Exception {
+        ConcurrentBuffer<Integer> buf=new ConcurrentBuffer<>(8, 0);
+        for(int i=1; i <= 8; i++)
+            buf.add(i, i);
+        CountDownLatch added=new CountDownLatch(1);
+        Thread t=new Thread(() -> {
+            buf.add(9, 9, null, true);
+            added.countDown();
+        });
+        t.start();
+        Util.waitUntil(5000, 10, () -> buf.numBlockings() > 0);
+        assert added.getCount() == 1;
+        buf.removeMany(true, 1);
+        t.join(5000);
+        assert added.getCount() == 0 && buf.get(9) == 9;
+    }
+
+    public void testNakackAndUnicastWithConcurrentBuffers() throws Exception {
+        JChannel a=create("A"), b=create("B");
+        try {
+            a.connect(ConcurrentBufferTest.class.getSimpleName());
+            b.connect(ConcurrentBufferTest.class.getSimpleName());
+            Util.waitUntilAllChannelsHaveSameView(10000, 100, a,b);
+            MyReceiver<Integer> rb=new MyReceiver<Integer>().name("B");
+            b.setReceiver(rb);
+            final int num=5000;
+            List<Thread> senders=new ArrayList<>();
+            for(int i=0; i < 4; i++) {
+                final boolean oob=i % 2 == 0, mcast=i < 2;
+                Thread t=new Thread(() -> {
+                    for(int j=1; j <= num; j++) {
+                        Message msg=new ObjectMessage(mcast? null : b.address(), j);
+                        if(oob)
+                            msg.setFlag(Message.Flag.OOB);
+                        try {
+                            a.send(msg);
+                        }
+                        catch(Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+                senders.add(t);
+                t.start();
+            }
+            for(Thread t: senders)
+                t.join();
+            Util.waitUntil(10000, 100, () -> rb.size() == num * 4, () -> String.format("B: %d msgs", rb.size()));
+            assert ((NAKACK4)b.stack().findProtocol(NAKACK4.class)).getBuf(a.address()) instanceof ConcurrentBuffer;
+        }
+        finally {
+            Util.close(b, a);
+        }
+    }
+
+    /** ConcurrentBuffers cannot be resized: changeCapacity() fails and leaves the capacity unchanged */
+    public void testChangeCapacityWithConcurrentBuffers() {
+        NAKACK4 nak=new NAKACK4().concurrentBuffers(true).capacity(1024);
+        UNICAST4 uni=new UNICAST4().concurrentBuffers(true).capacity(1024);
+        for(Runnable r: List.<Runnable>of(() -> nak.changeCapacity(2048), () -> uni.changeCapacity(2048))) {
+            try {
+                r.run();
+                assert false : "changeCapacity() should have thrown an exception";
+            }
+            catch(IllegalStateException expected) {
+            }
+        }
+        assert nak.capacity() == 1024 && uni.capacity() == 1024;
+    }
+
+    protected static void removeAndCheck(ConcurrentBuffer<Long> buf, AtomicLong expected, AtomicInteger errors) {
+        AtomicInteger adders=buf.getAdders();
+        if(adders.getAndIncrement() != 0)
+            return;
+        do {
+            List<Long> list;
+            while((list=buf.removeMany(true, 100)) != null) {
+                for(long seqno: list) {
+                    if(seqno != expected.getAndIncrement())
+                        errors.incrementAndGet();
+                }
+            }
+        }
+        while(adders.decrementAndGet() != 0);
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(), new SHARED_LOOPBACK_PING(),
+                            new NAKACK4().concurrentBuffers(true).capacity(1024),
+                            new UNICAST4().concurrentBuffers(true).capacity(1024),
+                            new STABLE(), new GMS().setJoinTimeout(500)).name(name);
+    }
+
+    protected static class MyConcurrentBuffer<T> extends ConcurrentBuffer<T> {
+        public MyConcurrentBuffer(int capacity, long offset) {
+            super(capacity, offset);
+        }
+
+        /** Returns the number of non-null elements, including those in freed slots */
+        protected int numElements() {
+            int num=0;
+            for(int i=0; i < elements.length(); i++)
+                if(elements.get(i) != null)
+                    num++;
+            return num;
+        }
+    }
+}
@@ -5,6 +5,7 @@ package org.jgroups.tests;
 import org.jgroups.Address;
 import org.jgroups.Global;
 import org.jgroups.View;
+import org.jgroups.util.DeltaDigest;
 import org.jgroups.util.Digest;
 import org.jgroups.util.MutableDigest;
 import org.jgroups.util.Util;
@@ -434,4 +435,65 @@ public class DigestTest {
     }
 
 
+    public void testDeltaDigest() throws Exception {
+        Digest ref=new Digest(members, new long[]{490,500, 26,26, 20,33});
+        DeltaDigest delta=DeltaDigest.create(d, ref, 5);
+        assert delta.refRound() == 5 && delta.size() == 3 && delta.numDeltas() == 2;
+        byte[] buf=Util.streamableToByteBuffer(delta);
+        assert buf.length == delta.serializedSize();
+        DeltaDigest delta2=Util.streamableFromByteBuffer(DeltaDigest::new, buf);
+        assert delta2.refRound() == 5 && delta2.numDeltas() == 2;
+        assert d.equals(delta2.apply(members, ref));
+    }
+
+    public void testDeltaDigestWithoutReference() throws Exception {
+        DeltaDigest delta=DeltaDigest.create(d, null, 5);
+        assert delta.refRound() == 0 && delta.numDeltas() == 3;
+        DeltaDigest delta2=Util.streamableFromByteBuffer(DeltaDigest::new, Util.streamableToByteBuffer(delta));
+        assert d.equals(delta2.apply(members, null));
+
+        // a reference with a different membership is ignored
+        Digest ref=new Digest(new Address[]{a1,a2}, new long[]{500,501, 26,26});
+        delta=DeltaDigest.create(d, ref, 5);
+        assert delta.refRound() == 0;
+        assert d.equals(delta.apply(members, null));
+    }
+
+    public void testDeltaDigestWithMissingReference() {
+        DeltaDigest delta=DeltaDigest.create(d, d, 3);
+        assert delta.numDeltas() == 0;
+        assert d.equals(delta.apply(members, d));
+        try {
+            delta.apply(members, null);
+            assert false : "applying a delta without its reference should have failed";
+        }
+        catch(IllegalArgumentException ex) {
+            System.out.printf("caught exception as expected: %s\n", ex);
+        }
+    }
+
+    public void testDeltaDigestSize() throws Exception {
+        final int SIZE=1000;
+        Address[] mbrs=new Address[SIZE];
+        long[] seqnos=new long[SIZE*2];
+        for(int i=0; i < SIZE; i++) {
+            mbrs[i]=Util.createRandomAddress(String.valueOf(i));
+            seqnos[i*2]=seqnos[i*2+1]=1_000_000 + i;
+        }
+        Digest ref=new Digest(mbrs, seqnos);
+        long[] seqnos2=Arrays.copyOf(seqnos, seqnos.length);
+        for(int i=0; i < SIZE; i+=100) { // 10 members sent 5 new messages each, 2 of which are missing
+            seqnos2[i*2]+=3;
+            seqnos2[i*2+1]+=5;
+        }
+        Digest digest=new Digest(mbrs, seqnos2);
+        DeltaDigest delta=DeltaDigest.create(digest, ref, 1);
+        assert delta.numDeltas() == 10;
+        int full_size=Util.streamableToByteBuffer(digest).length, delta_size=delta.serializedSize();
+        System.out.printf("full digest: %,d bytes, delta digest: %,d bytes\n", full_size, delta_size);
+        assert delta_size * 100 < full_size;
+        DeltaDigest delta2=Util.streamableFromByteBuffer(DeltaDigest::new, Util.streamableToByteBuffer(delta));
+        assert digest.equals(delta2.apply(mbrs, ref));
+    }
+
 }
@@ -0,0 +1,170 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.stack.GossipData;
+import org.jgroups.stack.GossipRouter;
+import org.jgroups.stack.GossipType;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.stack.RouterStub;
+import org.jgroups.util.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Tests {@link GossipRouter} with async_fanout enabled
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true,dataProvider="configs")
+public class GossipRouterFanOutTest {
+    protected GossipRouter                     router;
+    protected RouterStub[]                     stubs;
+    protected final Address[]                  addrs=new Address[3];
+    protected final Map<Address,List<Integer>> received=new ConcurrentHashMap<>();
+    protected static final String              GROUP=GossipRouterFanOutTest.class.getSimpleName();
+    protected static final int                 NUM=500, OFFSET=1_000_000; // values sent by member i: i*OFFSET+n
+
+    @DataProvider
+    static Object[][] configs() {
+        return new Object[][]{{false}, {true}}; // use_nio
+    }
+
+    @AfterMethod protected void destroy() {
+        if(stubs != null)
+            Stream.of(stubs).forEach(RouterStub::destroy);
+        stubs=null;
+        if(router != null)
+            router.stop();
+        received.clear();
+    }
+
+    /** Every member sends NUM multicasts; all members receive all messages, in the order in which they were sent */
+    public void testMulticasts(boolean use_nio) throws Exception {
+        create(use_nio, NUM * addrs.length); // large enough to never drop a message
+        for(int i=1; i <= NUM; i++)
+            for(int j=0; j < stubs.length; j++)
+                send(stubs[j], null, addrs[j], j * OFFSET + i);
+        int expected=NUM * stubs.length;
+        Util.waitUntil(10000, 100, () -> received.values().stream().allMatch(l -> l.size() == expected),
+                       () -> print(received));
+        for(List<Integer> list: received.values())
+            assertOrdered(list);
+        assert router.numMsgsForwarded() == (long)expected * stubs.length;
+        assert router.forwardingLatency().count() == router.numMsgsForwarded();
+        assert router.getNumQueuedMessages() == 0;
+        String stats=router.handleProbe("router-stats").get("router-stats");
+        assert stats != null && stats.contains("forwarded=");
+    }
+
+    public void testUnicasts(boolean use_nio) throws Exception {
+        create(use_nio, 1024);
+        for(int i=1; i <= NUM; i++)
+            send(stubs[0], addrs[1], addrs[0], i);
+        Util.waitUntil(10000, 100, () -> received.get(addrs[1]).size() == NUM);
+        assertOrdered(received.get(addrs[1]));
+        assert received.get(addrs[0]).isEmpty() && received.get(addrs[2]).isEmpty();
+    }
+
+    /** Messages to a member whose queue is full are dropped; the other messages are forwarded in order */
+    public void testSmallSendQueues(boolean use_nio) throws Exception {
+        create(use_nio, 10);
+        for(int i=1; i <= NUM; i++)
+            send(stubs[0], null, addrs[0], i);
+        Util.waitUntil(10000, 100, () -> router.numMsgsForwarded() + router.numMsgsDropped() == NUM * 3L);
+        router.stop();
+        assert router.getNumQueuedMessages() == 0;
+        for(List<Integer> list: received.values())
+            assertOrdered(list);
+    }
+
+    /** A message to a client whose connection was closed must not (re-)create a send queue */
+    public void testEnqueueAfterConnectionClosed(boolean use_nio) throws Exception {
+        create(use_nio, 1024);
+        MyRouter r=(MyRouter)router;
+        Address client_addr=new IpAddress(Util.getLoopback(), 1); // no connection to this address
+        RefCountedBuffer buf=r.enqueue(client_addr, 100);
+        assert buf.refCount() == 0 : buf.refCount();
+        assert !r.hasSendQueue(client_addr);
+        assert router.getNumQueuedMessages() == 0;
+    }
+
+    protected void create(boolean use_nio, int queue_size) throws Exception {
+        InetAddress bind_addr=Util.getLoopback();
+        int port=ResourceManager.getNextTcpPort(bind_addr);
+        router=new MyRouter(bind_addr, port).useNio(use_nio).asyncFanout(true).numShards(2)
+          .fanoutQueueSize(queue_size);
+        router.diagHandler().setEnabled(false);
+        router.start();
+        stubs=new RouterStub[addrs.length];
+        for(int i=0; i < stubs.length; i++) {
+            Address addr=addrs[i]=Util.createRandomAddress(String.valueOf((char)('A' + i)));
+            List<Integer> list=Collections.synchronizedList(new ArrayList<>());
+            received.put(addr, list);
+            stubs[i]=new RouterStub(null, new InetSocketAddress(bind_addr, port), use_nio, null, new DefaultSocketFactory())
+              .receiver(data -> add(data, list));
+            stubs[i].connect(GROUP, addr, addr.toString(), null);
+        }
+        Util.waitUntil(5000, 100, () -> router.numRegisteredClients() == addrs.length);
+    }
+
+    protected static void send(RouterStub stub, Address dest, Address sender, int value) throws Exception {
+        byte[] buf=Util.objectToByteBuffer(value);
+        if(dest == null)
+            stub.sendToAllMembers(GROUP, sender, buf, 0, buf.length);
+        else
+            stub.sendToMember(GROUP, dest, sender, buf, 0, buf.length);
+    }
+
+    protected static void add(GossipData data, List<Integer> list) {
+        if(data.getType() != GossipType.MESSAGE)
+            return;
+        try {
+            list.add(Util.objectFromByteBuffer(data.getBuffer(), data.getOffset(), data.getLength()));
+        }
+        catch(Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** The messages from a single sender need to be received in the order in which they were sent */
+    protected static void assertOrdered(List<Integer> list) {
+        Map<Integer,Integer> prev=new HashMap<>(); // sender -> previous value
+        synchronized(list) {
+            for(int n: list) {
+                int sender=n / OFFSET, p=prev.getOrDefault(sender, 0);
+                assert n % OFFSET > p : String.format("%d received after %d from sender %d", n % OFFSET, p, sender);
+                prev.put(sender, n % OFFSET);
+            }
+        }
+    }
+
+    protected static class MyRouter extends GossipRouter {
+        protected MyRouter(InetAddress bind_addr, int port) throws Exception {
+            super(bind_addr, port);
+        }
+
+        /** Enqueues a message of the given length to client_addr, returns its buffer */
+        protected RefCountedBuffer enqueue(Address client_addr, int length) {
+            RefCountedBuffer buf=new RefCountedBuffer(buffer_pool, length);
+            enqueue(client_addr, buf, length, System.nanoTime(), false);
+            buf.release();
+            return buf;
+        }
+
+        protected boolean hasSendQueue(Address client_addr) {return send_queues.containsKey(client_addr);}
+    }
+
+    protected static String print(Map<Address,List<Integer>> map) {
+        StringBuilder sb=new StringBuilder();
+        map.forEach((k,v) -> sb.append(String.format("%s: %d msgs\n", k, v.size())));
+        return sb.toString();
+    }
+}
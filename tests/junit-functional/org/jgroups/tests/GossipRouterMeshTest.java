@@ -0,0 +1,184 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.stack.GossipRouter;
+import org.jgroups.stack.GossipType;
+import org.jgroups.stack.RouterStub;
+import org.jgroups.util.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Tests a mesh of {@link GossipRouter}s, with every member registered with a different router
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true,dataProvider="configs")
+public class GossipRouterMeshTest {
+    protected GossipRouter[]                   routers;
+    protected RouterStub[]                     stubs;
+    protected final Address[]                  addrs=new Address[3];
+    protected final Map<Address,List<Integer>> received=new ConcurrentHashMap<>();
+    protected final Map<Address,List<Address>> suspected=new ConcurrentHashMap<>();
+    protected static final String              GROUP=GossipRouterMeshTest.class.getSimpleName();
+    protected static final int                 NUM=500, OFFSET=1_000_000; // values sent by member i: i*OFFSET+n
+
+    @DataProvider
+    static Object[][] configs() {
+        return new Object[][]{ // use_nio, async_fanout
+          {false, false},
+          {false, true},
+          {true,  true}
+        };
+    }
+
+    @AfterMethod protected void destroy() {
+        if(stubs != null)
+            Stream.of(stubs).forEach(RouterStub::destroy);
+        stubs=null;
+        if(routers != null)
+            Stream.of(routers).filter(Objects::nonNull).forEach(GossipRouter::stop);
+        routers=null;
+        received.clear();
+        suspected.clear();
+    }
+
+    /** Every member sends NUM multicasts; all members receive all messages, in the order in which they were sent */
+    public void testMulticasts(boolean use_nio, boolean async_fanout) throws Exception {
+        create(use_nio, async_fanout);
+        for(int i=1; i <= NUM; i++)
+            for(int j=0; j < stubs.length; j++)
+                send(stubs[j], null, addrs[j], j * OFFSET + i);
+        int expected=NUM * stubs.length;
+        Util.waitUntil(10000, 100, () -> received.values().stream().allMatch(l -> l.size() == expected),
+                       () -> GossipRouterFanOutTest.print(received));
+        for(List<Integer> list: received.values())
+            GossipRouterFanOutTest.assertOrdered(list);
+
+        // every router forwarded the multicasts of its member once to each of the 2 peers
+        for(GossipRouter r: routers) {
+            assert r.numPeerMsgsSent() == NUM * 2L : r.printStats();
+            assert r.numPeerMsgsReceived() == NUM * 2L : r.printStats();
+            assert r.numPeerBatchesSent() > 0 && r.numPeerBatchesSent() <= r.numPeerMsgsSent();
+            assert r.numMsgsForwarded() == expected; // only to the local member
+        }
+    }
+
+    /** Unicasts to a member registered with a different router */
+    public void testUnicasts(boolean use_nio, boolean async_fanout) throws Exception {
+        create(use_nio, async_fanout);
+        for(int i=1; i <= NUM; i++)
+            send(stubs[0], addrs[2], addrs[0], i);
+        Util.waitUntil(10000, 100, () -> received.get(addrs[2]).size() == NUM);
+        GossipRouterFanOutTest.assertOrdered(received.get(addrs[2]));
+        assert received.get(addrs[0]).isEmpty() && received.get(addrs[1]).isEmpty();
+        assert routers[0].numPeerMsgsSent() == NUM && routers[1].numPeerMsgsSent() == 0;
+    }
+
+    /** A member unregistering from its router is removed from the other routers, too */
+    public void testUnregister(boolean use_nio, boolean async_fanout) throws Exception {
+        create(use_nio, async_fanout);
+        stubs[1].disconnect(GROUP, addrs[1]);
+        Util.waitUntil(5000, 100, () -> Stream.of(routers).allMatch(r -> r.numRegisteredClients() == 2),
+                       this::printRouters);
+        assert routers[0].numRemoteClients() == 1 && routers[1].numRemoteClients() == 2;
+    }
+
+    /**
+     * C is registered with routers 2 and 0. When it unregisters from router 0, router 0 keeps the registration
+     * announced by router 2, so that messages to C are still forwarded
+     */
+    public void testUnregisterWithPeerRegistration(boolean use_nio, boolean async_fanout) throws Exception {
+        create(use_nio, async_fanout);
+        InetSocketAddress router_0=new InetSocketAddress(Util.getLoopback(), routers[0].port());
+        RouterStub stub=new RouterStub(null, router_0, use_nio, null, new DefaultSocketFactory()).receiver(data -> {});
+        try {
+            stub.connect(GROUP, addrs[2], addrs[2].toString(), null);
+            Util.waitUntil(5000, 100, () -> routers[0].numRemoteClients() == 1, this::printRouters);
+            stub.disconnect(GROUP, addrs[2]);
+            Util.waitUntil(5000, 100, () -> routers[0].numRemoteClients() == 2, this::printRouters);
+            assert Stream.of(routers).allMatch(r -> r.numRegisteredClients() == addrs.length) : printRouters();
+            for(int i=1; i <= 10; i++)
+                send(stubs[0], addrs[2], addrs[0], i);
+            Util.waitUntil(5000, 100, () -> received.get(addrs[2]).size() == 10);
+            assert suspected.values().stream().allMatch(List::isEmpty) : suspected;
+        }
+        finally {
+            stub.destroy();
+        }
+    }
+
+    /** When a router is stopped, its members are removed from the other routers, and suspected */
+    public void testRouterStopped(boolean use_nio, boolean async_fanout) throws Exception {
+        create(use_nio, async_fanout);
+        routers[2].stop();
+        Util.waitUntil(5000, 100, () -> IntStream.range(0, 2).allMatch(i -> routers[i].numRegisteredClients() == 2),
+                       this::printRouters);
+        Util.waitUntil(5000, 100, () -> suspected.get(addrs[0]).contains(addrs[2])
+                         && suspected.get(addrs[1]).contains(addrs[2]));
+        for(int i=1; i <= 10; i++)
+            send(stubs[0], null, addrs[0], i);
+        Util.waitUntil(5000, 100, () -> received.get(addrs[1]).size() == 10);
+        assert received.get(addrs[2]).isEmpty();
+    }
+
+    protected void create(boolean use_nio, boolean async_fanout) throws Exception {
+        InetAddress bind_addr=Util.getLoopback();
+        int[] ports=ResourceManager.getNextTcpPorts(bind_addr, addrs.length).stream().mapToInt(Integer::intValue).toArray();
+        routers=new GossipRouter[addrs.length];
+        for(int i=0; i < routers.length; i++) {
+            final int index=i;
+            String peers=IntStream.range(0, ports.length).filter(j -> j != index)
+              .mapToObj(j -> String.format("%s[%d]", bind_addr.getHostAddress(), ports[j]))
+              .collect(Collectors.joining(","));
+            routers[i]=new GossipRouter(bind_addr, ports[i]).useNio(use_nio).asyncFanout(async_fanout).numShards(2)
+              .fanoutQueueSize(NUM * addrs.length).peers(peers).peerReconnectInterval(100);
+            routers[i].diagHandler().setEnabled(false);
+            routers[i].start();
+        }
+        Util.waitUntil(5000, 100, () -> Stream.of(routers).allMatch(r -> r.getNumConnectedPeers() == 2));
+
+        stubs=new RouterStub[addrs.length];
+        for(int i=0; i < stubs.length; i++) {
+            Address addr=addrs[i]=Util.createRandomAddress(String.valueOf((char)('A' + i)));
+            List<Integer> list=Collections.synchronizedList(new ArrayList<>());
+            List<Address> suspects=Collections.synchronizedList(new ArrayList<>());
+            received.put(addr, list);
+            suspected.put(addr, suspects);
+            stubs[i]=new RouterStub(null, new InetSocketAddress(bind_addr, ports[i]), use_nio, null, new DefaultSocketFactory())
+              .receiver(data -> {
+                  if(data.getType() == GossipType.SUSPECT)
+                      suspects.add(data.getAddress());
+                  else
+                      GossipRouterFanOutTest.add(data, list);
+              });
+            stubs[i].connect(GROUP, addr, addr.toString(), null);
+        }
+        Util.waitUntil(5000, 100, () -> Stream.of(routers).allMatch(r -> r.numRegisteredClients() == addrs.length),
+                       this::printRouters);
+        for(GossipRouter r: routers)
+            assert r.numRemoteClients() == addrs.length - 1;
+    }
+
+    protected static void send(RouterStub stub, Address dest, Address sender, int value) throws Exception {
+        byte[] buf=Util.objectToByteBuffer(value);
+        if(dest == null)
+            stub.sendToAllMembers(GROUP, sender, buf, 0, buf.length);
+        else
+            stub.sendToMember(GROUP, dest, sender, buf, 0, buf.length);
+    }
+
+    protected String printRouters() {
+        return Stream.of(routers).map(GossipRouter::dumpAddressMappings).collect(Collectors.joining("\n"));
+    }
+}
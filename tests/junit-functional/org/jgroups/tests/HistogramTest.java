@@ -0,0 +1,99 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.Histogram;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.LongStream;
+
+/**
+ * Tests {@link Histogram}
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class HistogramTest {
+
+    public void testEmpty() {
+        Histogram h=new Histogram();
+        assert h.count() == 0 && h.min() == 0 && h.max() == 0;
+        assert h.p(50) == 0 && h.p(99.9) == 0;
+    }
+
+    public void testPrecision() {
+        for(int p: new int[]{0, 11}) {
+            try {
+                new Histogram(p);
+                assert false : "precision " + p + " should have been rejected";
+            }
+            catch(IllegalArgumentException ex) {
+                System.out.printf("got exception as expected: %s\n", ex);
+            }
+        }
+    }
+
+    public void testSmallValuesAreExact() {
+        Histogram h=new Histogram(5);
+        LongStream.rangeClosed(1, 32).forEach(h::add);
+        assert h.count() == 32 && h.min() == 1 && h.max() == 32;
+        assert h.sum() == 32 * 33 / 2;
+        assert h.p(50) == 16 : h.p(50);
+        assert h.p(100) == 32;
+    }
+
+    public void testPercentiles() {
+        Histogram h=new Histogram(5);
+        LongStream.rangeClosed(1, 100_000).forEach(h::add);
+        System.out.println("h = " + h);
+        for(double p: new double[]{10, 50, 90, 99, 99.9}) {
+            long expected=(long)(p * 1000), actual=h.p(p);
+            assert actual >= expected && actual <= expected * (1 + 1/32.0) : String.format("p%s: %d", p, actual);
+        }
+        assert h.p(100) == 100_000;
+    }
+
+    public void testRandomValues() {
+        Histogram h=new Histogram(7);
+        long[] values=new long[10_000];
+        for(int i=0; i < values.length; i++)
+            h.add(values[i]=ThreadLocalRandom.current().nextLong(Long.MAX_VALUE >> 2));
+        java.util.Arrays.sort(values);
+        long expected=values[(int)(values.length * 0.99) - 1], actual=h.p(99);
+        assert actual >= expected && actual <= expected * (1 + 1/128.0) : String.format("%d vs %d", actual, expected);
+        assert h.max() == values[values.length-1] && h.min() == values[0];
+    }
+
+    public void testNegativeAndLargeValues() {
+        Histogram h=new Histogram();
+        h.add(-5).add(Long.MAX_VALUE);
+        assert h.min() == 0 && h.max() == Long.MAX_VALUE;
+        assert h.p(100) == Long.MAX_VALUE;
+    }
+
+    public void testMerge() {
+        Histogram h1=new Histogram(), h2=new Histogram();
+        LongStream.rangeClosed(1, 1000).forEach(h1::add);
+        LongStream.rangeClosed(1001, 2000).forEach(h2::add);
+        h1.add(h2);
+        assert h1.count() == 2000 && h1.min() == 1 && h1.max() == 2000;
+        long p50=h1.p(50);
+        assert p50 >= 1000 && p50 <= 1000 * (1 + 1/32.0) : p50;
+        try {
+            h1.add(new Histogram(6));
+            assert false : "merging histograms with different precisions should fail";
+        }
+        catch(IllegalArgumentException ex) {
+            System.out.printf("got exception as expected: %s\n", ex);
+        }
+    }
+
+    public void testClear() {
+        Histogram h=new Histogram();
+        LongStream.rangeClosed(1, 100).forEach(h::add);
+        h.clear();
+        assert h.count() == 0 && h.sum() == 0 && h.min() == 0 && h.max() == 0 && h.p(99) == 0;
+        h.add(50);
+        assert h.min() == 50 && h.max() == 50;
+    }
+}
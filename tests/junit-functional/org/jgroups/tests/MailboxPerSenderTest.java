@@ -0,0 +1,230 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.UnicastHeader3;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.MailboxPerSender;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Tests {@link MailboxPerSender}
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class MailboxPerSenderTest {
+    protected JChannel          a, b, c;
+    protected MyReceiver        ra, rb, rc;
+    protected static final int  NUM=5000;
+    protected static final long IDLE_TIMEOUT=500;
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=create("A");
+        b=create("B");
+        c=create("C");
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b, c);
+        a.setReceiver(ra=new MyReceiver());
+        b.setReceiver(rb=new MyReceiver());
+        c.setReceiver(rc=new MyReceiver());
+    }
+
+    @AfterMethod protected void destroy() {Util.close(c, b, a);}
+
+    public void testSelection() {
+        for(JChannel ch: List.of(a, b, c))
+            assert policy(ch) != null;
+    }
+
+    /**
+     * All members concurrently multicast and send unicasts to the next member. The order in which the policy passes
+     * messages up is checked directly above the transport, as NAKACK2 and UNICAST3 would re-establish it
+     */
+    public void testOrdering() throws Exception {
+        JChannel[] channels={a, b, c};
+        List<OrderCheck> checks=new ArrayList<>();
+        for(JChannel ch: channels) {
+            OrderCheck check=new OrderCheck();
+            ch.stack().insertProtocol(check, ProtocolStack.Position.ABOVE, TP.class);
+            checks.add(check);
+        }
+        List<Thread> senders=new ArrayList<>();
+        for(int i=0; i < channels.length; i++) {
+            JChannel ch=channels[i];
+            Address next=channels[(i + 1) % channels.length].getAddress();
+            Thread t=new Thread(() -> {
+                try {
+                    for(int j=1; j <= NUM; j++) {
+                        ch.send(new ObjectMessage(null, j));
+                        ch.send(new ObjectMessage(next, j));
+                    }
+                }
+                catch(Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }, "sender-" + ch.getName());
+            senders.add(t);
+            t.start();
+        }
+        for(Thread t: senders)
+            t.join();
+        // every member receives NUM multicasts from each of the 3 members, plus NUM unicasts from its predecessor
+        Util.waitUntil(10000, 100, () -> Stream.of(ra, rb, rc).allMatch(r -> r.size() == 4 * NUM),
+                       () -> String.format("A: %s\nB: %s\nC: %s", ra, rb, rc));
+        for(MyReceiver r: List.of(ra, rb, rc))
+            r.checkOrder();
+        for(OrderCheck check: checks) {
+            assert check.errors.isEmpty() : check.errors;
+            assert check.checked.sum() >= 4 * NUM;
+        }
+        for(JChannel ch: channels) {
+            MailboxPerSender p=policy(ch);
+            System.out.printf("%s: mailboxes: %d, threads created: %d%s\n", ch.getAddress(), p.numMailboxes(),
+                              p.numThreadsCreated(), p.dump());
+            assert p.numMailboxes() == 4; // multicasts from A, B and C, unicasts from the predecessor
+        }
+    }
+
+    /** Threads of idle mailboxes are terminated, and are re-created when new messages are received */
+    public void testIdleMailboxes() throws Exception {
+        a.send(null, 1);
+        Util.waitUntil(5000, 100, () -> Stream.of(ra, rb, rc).allMatch(r -> r.size() == 1));
+        MailboxPerSender p=policy(b);
+        Util.waitUntil(IDLE_TIMEOUT * 10, 100, () -> p.numActiveMailboxes() == 0 && p.numThreadsReclaimed() > 0,
+                       () -> String.format("active mailboxes: %d, reclaimed threads: %d", p.numActiveMailboxes(),
+                                           p.numThreadsReclaimed()));
+        long created=p.numThreadsCreated();
+        for(int i=2; i <= 10; i++)
+            a.send(null, i);
+        Util.waitUntil(5000, 100, () -> Stream.of(ra, rb, rc).allMatch(r -> r.size() == 10));
+        rb.checkOrder();
+        assert p.numThreadsCreated() > created;
+    }
+
+    /** The mailboxes of a member which left are removed */
+    public void testViewChange() throws Exception {
+        c.send(null, 1);
+        c.send(a.getAddress(), 1);
+        Util.waitUntil(5000, 100, () -> ra.size() == 2);
+        MailboxPerSender p=policy(a);
+        int num_mailboxes=p.numMailboxes();
+        Util.close(c);
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+        Util.waitUntil(5000, 100, () -> p.numMailboxes() < num_mailboxes);
+        assert !p.dump().contains("C:") : p.dump();
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        JChannel ch=new JChannel(Util.getTestStack()).name(name);
+        TP tp=ch.stack().getTransport();
+        tp.setMessageProcessingPolicy("mailbox");
+        ((MailboxPerSender)tp.getMessageProcessingPolicy()).idleTimeout(IDLE_TIMEOUT);
+        return ch.connect(MailboxPerSenderTest.class.getSimpleName());
+    }
+
+    protected static MailboxPerSender policy(JChannel ch) {
+        return (MailboxPerSender)ch.stack().getTransport().getMessageProcessingPolicy();
+    }
+
+    /** Checks that the regular messages of each sender are passed up by the transport in the order of their seqnos */
+    protected static class OrderCheck extends Protocol {
+        protected final short              nak_id=ClassConfigurator.getProtocolId(NAKACK2.class),
+                                           uni_id=ClassConfigurator.getProtocolId(UNICAST3.class);
+        protected final Map<String,Long>   last_seqnos=new ConcurrentHashMap<>();
+        protected final Collection<String> errors=new ConcurrentLinkedQueue<>();
+        protected final LongAdder          checked=new LongAdder();
+
+        public Object up(Message msg) {
+            check(msg);
+            return up_prot.up(msg);
+        }
+
+        public void up(MessageBatch batch) {
+            for(Message msg: batch)
+                check(msg);
+            up_prot.up(batch);
+        }
+
+        protected void check(Message msg) {
+            if(msg.isFlagSet(Message.Flag.OOB))
+                return;
+            String key;
+            long seqno;
+            NakAckHeader2 nak_hdr=msg.getHeader(nak_id);
+            UnicastHeader3 uni_hdr=msg.getHeader(uni_id);
+            if(nak_hdr != null && nak_hdr.getType() == NakAckHeader2.MSG) {
+                key="mcast-" + msg.getSrc();
+                seqno=nak_hdr.getSeqno();
+            }
+            else if(uni_hdr != null && uni_hdr.type() == UnicastHeader3.DATA) {
+                key="ucast-" + msg.getSrc() + "-" + uni_hdr.connId();
+                seqno=uni_hdr.seqno();
+            }
+            else
+                return;
+            Long prev=last_seqnos.put(key, seqno);
+            if(prev != null && seqno <= prev)
+                errors.add(String.format("%s: %d received after %d", key, seqno, prev));
+            checked.increment();
+        }
+    }
+
+    protected static class MyReceiver implements Receiver {
+        protected final Map<Address,List<Integer>> mcasts=new ConcurrentHashMap<>(), ucasts=new ConcurrentHashMap<>();
+
+        public void receive(Message msg) {
+            Map<Address,List<Integer>> map=msg.getDest() == null? mcasts : ucasts;
+            List<Integer> list=map.computeIfAbsent(msg.getSrc(), s -> new ArrayList<>());
+            synchronized(list) {
+                list.add(msg.getObject());
+            }
+        }
+
+        protected int size() {
+            return Stream.of(mcasts, ucasts).flatMap(m -> m.values().stream()).mapToInt(l -> {
+                synchronized(l) {
+                    return l.size();
+                }
+            }).sum();
+        }
+
+        /** Checks that the messages of each sender were received in the order in which they were sent */
+        protected void checkOrder() {
+            for(Map<Address,List<Integer>> map: List.of(mcasts, ucasts)) {
+                for(Map.Entry<Address,List<Integer>> e: map.entrySet()) {
+                    List<Integer> list=e.getValue();
+                    for(int i=0; i < list.size(); i++)
+                        assert list.get(i) == i + 1 : String.format("msgs from %s out of order: %s", e.getKey(), list);
+                }
+            }
+        }
+
+        public String toString() {
+            return String.format("%d msgs (mcasts: %s, ucasts: %s)", size(), sizes(mcasts), sizes(ucasts));
+        }
+
+        protected static String sizes(Map<Address,List<Integer>> map) {
+            StringBuilder sb=new StringBuilder();
+            map.forEach((k,v) -> sb.append(k).append('=').append(v.size()).append(' '));
+            return sb.toString();
+        }
+    }
+}
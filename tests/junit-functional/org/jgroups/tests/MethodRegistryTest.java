@@ -0,0 +1,204 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.*;
+import org.jgroups.util.Bits;
+import org.jgroups.util.RspList;
+import org.jgroups.util.SizeStreamable;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests {@link MethodRegistry} and {@link ArgsMarshaller}
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class MethodRegistryTest {
+    protected static final short ADD=1, ALL=2, STATIC=3, FAIL=4, VOID=5, PRIVATE=6, NONE=7;
+    protected static final Method ADD_M, ALL_M, STATIC_M, FAIL_M, VOID_M, PRIVATE_M;
+
+    static {
+        try {
+            ADD_M=Target.class.getMethod("add", int.class, long.class);
+            ALL_M=Target.class.getMethod("all", boolean.class, Integer.class, Long.class, String.class, byte[].class,
+                                         double.class, Person.class, Object.class);
+            STATIC_M=Target.class.getMethod("mul", int.class, int.class);
+            FAIL_M=Target.class.getMethod("fail", String.class);
+            VOID_M=Target.class.getMethod("set", String.class);
+            PRIVATE_M=Target.class.getDeclaredMethod("secret");
+        }
+        catch(NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void testInvoke() throws Exception {
+        MethodRegistry r=registry();
+        Target t=new Target();
+        assert (int)r.invoke(t, ADD, new Object[]{5, 10L}) == 15;
+        assert (int)r.invoke(null, STATIC, new Object[]{3, 4}) == 12;
+        assert r.invoke(t, VOID, new Object[]{"hello"}) == null && "hello".equals(t.name);
+        assert "secret".equals(r.invoke(t, PRIVATE, null));
+        try {
+            r.invoke(t, FAIL, new Object[]{"booom"});
+            assert false : "should have thrown an exception";
+        }
+        catch(IllegalStateException ex) {
+            assert "booom".equals(ex.getMessage());
+        }
+        try {
+            r.invoke(t, NONE, null);
+            assert false : "should have thrown an exception";
+        }
+        catch(NoSuchMethodException ex) {
+            System.out.printf("got exception as expected: %s\n", ex);
+        }
+        assert r.findMethod(ADD).equals(ADD_M) && r.findMethod(NONE) == null;
+    }
+
+    public void testMarshalling() throws Exception {
+        MethodRegistry r=registry();
+        byte[] bytes="bela".getBytes();
+        Person p=new Person("Bela", 55);
+        Object[] args={true, 322649, null, "hello", bytes, 3.14, p, List.of(1, 2)};
+        MethodCall call=r.call(ALL, args);
+        assert call.argsMarshaller() != null;
+        MethodCall copy=Util.streamableFromByteBuffer(MethodCall.class, Util.streamableToByteBuffer(call));
+        System.out.println("copy = " + copy);
+        Object[] a=copy.getArgs();
+        assert a.length == args.length;
+        assert (boolean)a[0] && (int)a[1] == 322649 && a[2] == null && "hello".equals(a[3]);
+        assert Arrays.equals(bytes, (byte[])a[4]) && (double)a[5] == 3.14;
+        assert a[6] instanceof Person && ((Person)a[6]).name.equals("Bela") && ((Person)a[6]).age == 55;
+        assert List.of(1, 2).equals(a[7]);
+        assert r.invoke(new Target(), ALL, a).equals(new Target().all(true, 322649, null, "hello", bytes, 3.14, p, List.of(1, 2)));
+    }
+
+    public void testMarshallingOfSubclassAndNulls() throws Exception {
+        MethodRegistry r=registry();
+        Object[] args={false, null, 5L, null, null, 0.0, new Employee("Bela", 55), null};
+        MethodCall copy=Util.streamableFromByteBuffer(MethodCall.class, Util.streamableToByteBuffer(r.call(ALL, args)));
+        Object[] a=copy.getArgs();
+        assert a[1] == null && (long)a[2] == 5 && a[3] == null && a[4] == null && a[7] == null;
+        assert a[6] instanceof Employee;
+    }
+
+    public void testMarshalledSizeIsSmaller() throws Exception {
+        MethodRegistry r=registry();
+        MethodCall tagged=new MethodCall(ADD, 5, 10L), marshalled=r.call(ADD, 5, 10L);
+        int tagged_size=Util.streamableToByteBuffer(tagged).length,
+          marshalled_size=Util.streamableToByteBuffer(marshalled).length;
+        System.out.printf("tagged: %d bytes, marshalled: %d bytes\n", tagged_size, marshalled_size);
+        assert marshalled_size < tagged_size;
+    }
+
+    public void testMismatchedArgsFallBackToTags() throws Exception {
+        MethodCall call=registry().call(ADD, 5); // wrong number of args
+        MethodCall copy=Util.streamableFromByteBuffer(MethodCall.class, Util.streamableToByteBuffer(call));
+        assert copy.argsMarshaller() == null && copy.getArgs().length == 1;
+    }
+
+    public void testSignatureCollision() {
+        ArgsMarshaller m1=ArgsMarshaller.register(int.class, String.class), m2=ArgsMarshaller.register(int.class, String.class);
+        assert m1 == m2 && ArgsMarshaller.get(m1.signature()) == m1;
+        assert ArgsMarshaller.register(String.class, int.class).signature() != m1.signature();
+    }
+
+    public void testRpcDispatcher() throws Exception {
+        String cluster=MethodRegistryTest.class.getSimpleName();
+        try(JChannel a=new JChannel(Util.getTestStack()).name("A");
+            JChannel b=new JChannel(Util.getTestStack()).name("B")) {
+            Target ta=new Target(), tb=new Target();
+            RpcDispatcher da=new RpcDispatcher(a, ta).methodRegistry(registry()),
+              db=new RpcDispatcher(b, tb).methodRegistry(registry());
+            a.connect(cluster);
+            b.connect(cluster);
+            Util.waitUntilAllChannelsHaveSameView(5000, 100, a, b);
+            int sum=da.callRemoteMethod(b.getAddress(), new MethodCall(ADD, 1, 2L), RequestOptions.SYNC());
+            assert sum == 3;
+            RspList<Void> rsps=da.callRemoteMethods(null, new MethodCall(VOID, "hello"), RequestOptions.SYNC());
+            assert rsps.size() == 2 && "hello".equals(ta.name) && "hello".equals(tb.name);
+            try {
+                da.callRemoteMethod(b.getAddress(), new MethodCall(FAIL, "booom"), RequestOptions.SYNC());
+                assert false : "should have thrown an exception";
+            }
+            catch(IllegalStateException ex) {
+                assert "booom".equals(ex.getMessage());
+            }
+            Util.close(db, da);
+        }
+    }
+
+    protected static MethodRegistry registry() {
+        return new MethodRegistry().register(ADD, ADD_M).register(ALL, ALL_M).register(STATIC, STATIC_M)
+          .register(FAIL, FAIL_M).register(VOID, VOID_M).register(PRIVATE, PRIVATE_M);
+    }
+
+
+    public static class Target {
+        protected String name;
+
+        public int add(int a, long b) {return (int)(a + b);}
+
+        public String all(boolean b, Integer i, Long l, String s, byte[] buf, double d, Person p, Object o) {
+            return String.format("%b %s %s %s %s %s %s %s", b, i, l, s, Arrays.toString(buf), d, p, o);
+        }
+
+        public static int mul(int a, int b) {return a * b;}
+
+        public void fail(String msg) {throw new IllegalStateException(msg);}
+
+        public void set(String name) {this.name=name;}
+
+        private String secret() {return "secret";}
+    }
+
+    protected static class Person implements SizeStreamable {
+        protected String name;
+        protected int    age;
+
+        public Person() {
+        }
+
+        public Person(String name, int age) {
+            this.name=name;
+            this.age=age;
+        }
+
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeInt(age);
+            Bits.writeString(name, out);
+        }
+
+        public void readFrom(DataInput in) throws IOException {
+            age=in.readInt();
+            name=Bits.readString(in);
+        }
+
+        public int serializedSize() {
+            return Global.INT_SIZE + Bits.size(name);
+        }
+
+        public String toString() {
+            return String.format("name=%s, age=%d", name, age);
+        }
+    }
+
+    public static class Employee extends Person {
+        public Employee() {
+        }
+
+        public Employee(String name, int age) {
+            super(name, age);
+        }
+    }
+}
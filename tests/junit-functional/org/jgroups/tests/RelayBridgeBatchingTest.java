@@ -0,0 +1,127 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.relay.RELAY3;
+import org.jgroups.protocols.relay.Route;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.MyReceiver;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Tests {@link RELAY3} with bridge_batching enabled: relayed messages are sent as batches over multiple lanes
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups={Global.FUNCTIONAL,Global.RELAY},singleThreaded=true)
+public class RelayBridgeBatchingTest extends RelayTests {
+    protected JChannel a, b;  // members in site "lon"
+    protected JChannel x, y;  // members in site "sfo"
+
+    protected static final String BRIDGE_CLUSTER="global";
+    protected static final String LON="lon", SFO="sfo";
+    protected static final int    NUM=1000;
+
+    @AfterMethod protected void destroy() {Util.closeReverse(a,b,x,y);}
+
+    /**
+     * A and B send multicasts concurrently; all members receive them in the order in which they were sent. A lane
+     * is drained by one of its adders (and a pool thread), so A and B need to share the lane for batches to be created
+     */
+    public void testMulticasts() throws Exception {
+        create(1);
+        // slows down sending over the bridge, so that messages queue up in the lanes and are sent as batches
+        getRoute(a, SFO).bridge().stack().insertProtocol(new SlowDown(), ProtocolStack.Position.ABOVE, TP.class);
+        send(null, a, b);
+        Util.waitUntil(10000, 100, () -> Stream.of(a,b,x,y).allMatch(ch -> receivedMessages(ch) == NUM * 2),
+                       () -> msgs(a,b,x,y));
+        for(JChannel ch: List.of(a,b,x,y))
+            assertOrdered(ch);
+        Route route=getRoute(a, SFO);
+        assert route.batching() && route.numLanes() == 1;
+        assert route.numMsgsSent() >= NUM * 2L : route.printStats(); // plus a few admin messages
+        assert route.numBatchesSent() > 0 && route.numBatchedMsgsSent() <= route.numMsgsSent();
+        assert route.avgBatchSize() > 1 : route.printStats();
+        assert route.numHandOffs() > 0 : route.printStats(); // adders send at most one batch
+        assert route.queueSize() == 0;
+        RELAY3 relay=a.getProtocolStack().findProtocol(RELAY3.class);
+        assert relay.printRouteStats().contains("batches=");
+    }
+
+    /** A and B send unicasts to Y in the remote site */
+    public void testUnicasts() throws Exception {
+        create(2);
+        send(y.address(), a, b);
+        Util.waitUntil(10000, 100, () -> receivedMessages(y) == NUM * 2, () -> msgs(y));
+        assertOrdered(y);
+        assert receivedMessages(a) + receivedMessages(b) + receivedMessages(x) == 0;
+        Route route=getRoute(a, SFO);
+        assert route.numLanes() == 2 && route.numMsgsSent() >= NUM * 2L : route.printStats();
+    }
+
+    protected void create(int lanes) throws Exception {
+        a=createNode(LON, "A", lanes);
+        b=createNode(LON, "B", lanes);
+        x=createNode(SFO, "X", lanes);
+        y=createNode(SFO, "Y", lanes);
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a,b);
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, x,y);
+        waitForBridgeView(2, 5000, 100, BRIDGE_CLUSTER, a, x);
+        for(JChannel ch: List.of(a,b,x,y))
+            ch.setReceiver(new MyReceiver<Message>().rawMsgs(true).name(ch.name()));
+    }
+
+    protected static JChannel createNode(String site, String name, int lanes) throws Exception {
+        JChannel ch=createNode(RELAY3.class, site, name, BRIDGE_CLUSTER, false, LON, SFO);
+        RELAY3 relay=ch.getProtocolStack().findProtocol(RELAY3.class);
+        relay.bridgeBatching(true).bridgeLanes(lanes).maxBridgeBatchSize(8000);
+        return ch.connect(site);
+    }
+
+    /** Every sender sends NUM messages, each from a separate thread */
+    protected static void send(Address dest, JChannel... senders) throws Exception {
+        List<Thread> threads=new ArrayList<>();
+        for(JChannel ch: senders) {
+            Thread t=new Thread(() -> {
+                for(int i=1; i <= NUM; i++) {
+                    try {
+                        ch.send(dest, i);
+                    }
+                    catch(Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for(Thread t: threads)
+            t.join();
+    }
+
+    protected static void assertOrdered(JChannel ch) throws Exception {
+        Map<Address,Integer> prev=new HashMap<>();
+        List<Message> list=getReceiver(ch).list();
+        synchronized(list) {
+            for(Message msg: list) {
+                int n=msg.getObject(), p=prev.getOrDefault(msg.src(), 0);
+                assert n == p + 1 : String.format("%s: %d received after %d from %s", ch.address(), n, p, msg.src());
+                prev.put(msg.src(), n);
+            }
+        }
+    }
+
+    /** Sleeps for 1 ms before sending a message */
+    protected static class SlowDown extends Protocol {
+        public Object down(Message msg) {
+            Util.sleep(1);
+            return down_prot.down(msg);
+        }
+    }
+}
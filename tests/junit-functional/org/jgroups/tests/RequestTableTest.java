@@ -444,6 +444,19 @@ public class RequestTableTest {
     }
 
 
+    public void testGetNonBlocking() {
+        RequestTable<Integer> table=create(8, 0, 8);
+        for(int i=0; i < 8; i++)
+            assert table.getNonBlocking(i) == i;
+        remove(table, 0, 4);
+        assert table.getNonBlocking(2) == null;
+        add(table, 8, 10); // wraps around: 8 -> index 0, 9 -> index 1
+        assert table.getNonBlocking(8) == 8;
+        assert table.getNonBlocking(0) == 8; // same index as 8: the caller needs to verify the element
+        add(table, 10, 20); // grows the table
+        for(int i=4; i < 20; i++)
+            assert table.getNonBlocking(i) == i;
+    }
 
     protected static RequestTable<Integer> create(int capacity, int from, int to) {
         RequestTable<Integer> table=new RequestTable<>(capacity);
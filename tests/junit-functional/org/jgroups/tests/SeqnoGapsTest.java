@@ -0,0 +1,118 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.*;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.LongStream;
+
+/**
+ * Tests {@link SeqnoGaps} and buffers tracking gaps
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class SeqnoGapsTest {
+
+    @DataProvider
+    static Object[][] createBuffer() {
+        return new Object[][]{
+          {new FixedBuffer<Long>(1024, 0)},
+          {new DynamicBuffer<Long>(0)}
+        };
+    }
+
+    public void testAdded() {
+        SeqnoGaps gaps=new SeqnoGaps();
+        gaps.added(1, 0).added(2, 1);
+        assert gaps.isEmpty() && gaps.first() == -1;
+        gaps.added(10, 2); // 3-9 missing
+        gaps.added(15, 10); // 11-14 missing
+        assert gaps.numGaps() == 2 && gaps.numMissing() == 11;
+        assert gaps.first() == 3 && gaps.last() == 14;
+        gaps.added(3, 15);
+        assert gaps.first() == 4 && gaps.numMissing() == 10;
+        gaps.added(6, 15); // splits 4-9 into 4-5 and 7-9
+        assert gaps.numGaps() == 3 && gaps.numMissing() == 9;
+        gaps.added(14, 15);
+        assert gaps.last() == 13;
+        for(long seqno: new long[]{4, 5, 7, 8, 9})
+            gaps.added(seqno, 15);
+        assert gaps.numGaps() == 1 && gaps.first() == 11 && gaps.last() == 13 && gaps.numMissing() == 3;
+        assert !gaps.remove(20) && !gaps.remove(5);
+    }
+
+    public void testAdjacentGapsAreMerged() {
+        SeqnoGaps gaps=new SeqnoGaps(1).add(1, 5).add(6, 10).add(12, 12);
+        assert gaps.numGaps() == 2 && gaps.numMissing() == 11;
+    }
+
+    public void testPurge() {
+        SeqnoGaps gaps=new SeqnoGaps(1).add(1, 5).add(10, 20).add(30, 40);
+        gaps.purge(0);
+        assert gaps.numMissing() == 27;
+        gaps.purge(5);
+        assert gaps.numGaps() == 2 && gaps.first() == 10;
+        gaps.purge(15);
+        assert gaps.first() == 16 && gaps.numMissing() == 16;
+        gaps.purge(100);
+        assert gaps.isEmpty() && gaps.numMissing() == 0;
+    }
+
+    public void testGetMissing() {
+        SeqnoGaps gaps=new SeqnoGaps().add(3, 5).add(8, 8).add(10, 20);
+        SeqnoList list=gaps.getMissing(3, 12);
+        assert list.size() == 7 && list.getFirst() == 3 && list.getLast() == 12;
+        list=gaps.getMissing(4, 9);
+        assert list.size() == 3 && list.getFirst() == 4 && list.getLast() == 8;
+        assert gaps.getMissing(6, 7) == null;
+        assert gaps.getMissing(21, 30) == null;
+    }
+
+    @Test(dataProvider="createBuffer")
+    public void testTrackGapsEnabledLater(Buffer<Long> buf) {
+        for(long seqno: new long[]{1, 2, 5, 6, 9})
+            buf.add(seqno, seqno);
+        assert buf.numGaps() == -1;
+        SeqnoList expected=buf.getMissing();
+        buf.trackGaps(true);
+        assert buf.numGaps() == 2;
+        assert buf.getMissing().toString().equals(expected.toString());
+        assert buf.getHighestDeliverable() == 2;
+    }
+
+    /** Adds seqnos in random order and compares the results of a buffer with and one without gap tracking */
+    @Test(dataProvider="createBuffer")
+    public void testSameResultsAsScan(Buffer<Long> buf) {
+        Buffer<Long> scan=buf instanceof FixedBuffer? new FixedBuffer<>(1024, 0) : new DynamicBuffer<>(0);
+        buf.trackGaps(true);
+        List<Long> seqnos=new ArrayList<>(LongStream.rangeClosed(1, 1000).boxed().toList());
+        Collections.shuffle(seqnos);
+        for(int i=0; i < seqnos.size(); i++) {
+            long seqno=seqnos.get(i);
+            buf.add(seqno, seqno, null, false);
+            scan.add(seqno, seqno, null, false);
+            if(i % 10 == 0) {
+                int max=ThreadLocalRandom.current().nextInt(50);
+                assert String.valueOf(buf.getMissing(max)).equals(String.valueOf(scan.getMissing(max)));
+                assert buf.getHighestDeliverable() == scan.getHighestDeliverable();
+            }
+            if(i % 50 == 0) {
+                buf.removeMany(true, 0);
+                scan.removeMany(true, 0);
+                buf.purge(buf.highestDelivered());
+                scan.purge(scan.highestDelivered());
+            }
+            assert buf.numMissing() == scan.numMissing();
+        }
+        buf.purge(800, true);
+        scan.purge(800, true);
+        assert String.valueOf(buf.getMissing()).equals(String.valueOf(scan.getMissing()));
+        assert buf.getMissing() == null && buf.numGaps() == 0;
+    }
+}
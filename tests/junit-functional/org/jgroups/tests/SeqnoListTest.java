@@ -216,6 +216,45 @@ public class SeqnoListTest {
         }
     }
 
+    public void testRunLengthSerialization() throws Exception {
+        SeqnoList list=new SeqnoList(100_000, 5000).add(5000, 5010).add(20_000).add(50_000, 60_000).add(104_999);
+        int bitmap_size=list.serializedSize(); // run-length encoding is off by default
+        assert bitmap_size == Global.INT_SIZE + Global.LONG_SIZE + (100_000 / 64 + 1) * Global.LONG_SIZE;
+        assert Util.streamableToByteBuffer(list).length == bitmap_size;
+
+        list.runLength(true);
+        int expected_size=list.serializedSize();
+        assert expected_size < 50 : String.format("size of a sparse list should be small (was %d)", expected_size);
+        byte[] buf=Util.streamableToByteBuffer(list);
+        assert buf.length == expected_size;
+        SeqnoList list2=Util.streamableFromByteBuffer(SeqnoList::new, buf);
+        assert list2.size() == list.size() && list2.getFirst() == 5000 && list2.getLast() == 104_999;
+        List<Long> l1=new ArrayList<>(), l2=new ArrayList<>();
+        list.forEach(l1::add);
+        list2.forEach(l2::add);
+        assert l1.equals(l2);
+
+        // the cached size of the runs is recomputed when the list changes
+        list.add(30_000).add(40_000, 40_010);
+        assert list.serializedSize() > expected_size;
+        buf=Util.streamableToByteBuffer(list);
+        assert buf.length == list.serializedSize();
+        list2=Util.streamableFromByteBuffer(SeqnoList::new, buf);
+        assert list2.size() == list.size() && list2.size() == l1.size() + 12;
+        list.removeHigherThan(20_000);
+        assert Util.streamableToByteBuffer(list).length == list.serializedSize();
+        list2=Util.streamableFromByteBuffer(SeqnoList::new, Util.streamableToByteBuffer(list));
+        assert list2.size() == 12 && list2.getLast() == 20_000;
+
+        // a dense list of alternating seqnos is smaller as bitmap
+        list=new SeqnoList(1000).runLength(true);
+        for(int i=0; i < 1000; i+=2)
+            list.add(i);
+        assert list.serializedSize() == Global.INT_SIZE + Global.LONG_SIZE + 16 * Global.LONG_SIZE;
+        list2=Util.streamableFromByteBuffer(SeqnoList::new, Util.streamableToByteBuffer(list));
+        assert list2.size() == 500 && list2.getLast() == 998;
+    }
+
     public void testSerialization2() {
         SeqnoList list=new SeqnoList(8000);
         for(int i=0; i < 8000; i++)
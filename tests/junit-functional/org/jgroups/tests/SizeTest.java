@@ -262,6 +262,19 @@ public class SizeTest {
 
         hdr=new STABLE.StableHeader(STABLE.StableHeader.STABILITY, null);
         _testSize(hdr);
+
+        // without rounds and ranks (no delta digests or groups), the format is the same as without these fields
+        hdr=new STABLE.StableHeader(STABLE.StableHeader.STABLE_GOSSIP, view.getViewId());
+        assert hdr.serializedSize() == Global.BYTE_SIZE + Util.size(view.getViewId());
+
+        hdr=new STABLE.StableHeader(STABLE.StableHeader.STABLE_GOSSIP, view.getViewId()).round(322).ranks(5, 10);
+        _testSize(hdr);
+        STABLE.StableHeader hdr2=Util.streamableFromByteBuffer(STABLE.StableHeader.class, Util.streamableToByteBuffer(hdr));
+        assert hdr2.round() == 322 && hdr2.toString().equals(hdr.toString()) : hdr2;
+
+        hdr=new STABLE.StableHeader(STABLE.StableHeader.STABILITY, view.getViewId()).round(5);
+        hdr2=Util.streamableFromByteBuffer(STABLE.StableHeader.class, Util.streamableToByteBuffer(hdr));
+        assert hdr2.round() == 5 && hdr2.toString().equals(hdr.toString()) : hdr2;
     }
 
 
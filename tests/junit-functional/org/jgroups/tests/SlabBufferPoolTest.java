@@ -0,0 +1,166 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Tests {@link SlabBufferPool} and {@link PooledDataOutputStream}
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class SlabBufferPoolTest {
+    protected JChannel a, b;
+
+    @AfterMethod protected void destroy() {
+        Util.close(b, a);
+    }
+
+    @DataProvider
+    static Object[][] transports() {
+        return new Object[][]{
+          {TCP.class},
+          {TCP_NIO2.class}
+        };
+    }
+
+    public void testSizeClasses() throws Exception {
+        SlabBufferPool pool=create(true);
+        for(int size: new int[]{1, 100, 1024}) {
+            ByteBuffer buf=pool.acquire(size);
+            assert buf.capacity() == 1024 && buf.position() == 0 && buf.limit() == 1024;
+            assert buf.isDirect();
+            pool.release(buf);
+        }
+        assert pool.acquire(1025).capacity() == 2048;
+        assert pool.acquire(8192).capacity() == 8192;
+        assert pool.acquire(8193).capacity() == 8193; // oversized
+    }
+
+    public void testHitsAndMisses() throws Exception {
+        SlabBufferPool pool=create(false);
+        ByteBuffer buf=pool.acquire(1000);
+        assert !buf.isDirect();
+        assert pool.misses() == 1 && pool.hits() == 0;
+        assert pool.freeBuffers() == 3; // 4K slab sliced into 4 buffers of 1K
+        pool.release(buf);
+        assert pool.freeBuffers() == 4;
+        buf=pool.acquire(500);
+        assert pool.hits() == 1 && pool.misses() == 1;
+        pool.release(buf);
+        assert pool.releases() == 2;
+        assert pool.pooledBytes() == 4096;
+    }
+
+    public void testExhaustedSizeClass() throws Exception {
+        SlabBufferPool pool=create(true);
+        List<ByteBuffer> bufs=IntStream.range(0, 10).mapToObj(i -> pool.acquire(4096)).collect(Collectors.toList());
+        assert pool.pooledBytes() == 8192; // max_bytes_per_class
+        assert bufs.stream().allMatch(b -> b.capacity() == 4096);
+        bufs.forEach(pool::release);
+        assert pool.freeBuffers() == 2; // the unpooled buffers were discarded
+    }
+
+    public void testReleaseOfForeignBuffers() throws Exception {
+        SlabBufferPool pool=create(true);
+        pool.release(ByteBuffer.allocate(1024)); // heap buffer
+        pool.release(ByteBuffer.allocateDirect(1000));
+        pool.release(pool.acquire(10_000));
+        assert pool.freeBuffers() == 0;
+    }
+
+    public void testDirectCannotBeChangedAfterInit() throws Exception {
+        SlabBufferPool pool=create(true);
+        try {
+            pool.direct(false);
+            assert false : "changing the buffer type should have thrown an exception";
+        }
+        catch(IllegalStateException ex) {
+            System.out.printf("caught exception as expected: %s\n", ex);
+        }
+    }
+
+    public void testPooledDataOutputStream() throws Exception {
+        SlabBufferPool pool=create(true);
+        Message msg=new BytesMessage(Util.createRandomAddress("A"), new byte[5000])
+          .putHeader((short)22, NakAckHeader2.createMessageHeader(322649)).setSrc(Util.createRandomAddress("B"));
+        ByteBuffer buf;
+        try(PooledDataOutputStream out=new PooledDataOutputStream(pool, 16)) {
+            assert out.capacity() == 1024;
+            Util.writeMessage(msg, out, false);
+            assert out.capacity() == 8192; // grown from 1K to 8K directly
+            buf=out.byteBuffer();
+            assert buf.position() == 0 && buf.limit() == out.position();
+
+            byte[] array=new byte[buf.remaining()];
+            buf.get(0, array);
+            ByteArrayDataInputStream in=new ByteArrayDataInputStream(array);
+            in.readShort(); // version
+            in.readByte();  // flags
+            Message copy=MessageFactory.create(in.readShort());
+            copy.readFrom(in);
+            assert copy.getLength() == msg.getLength();
+            assert copy.getHeader((short)22) != null;
+
+            out.writeInt(322649); // the limit is reset
+            assert out.position() == array.length + Global.INT_SIZE;
+        }
+        assert pool.freeBuffers() == 4 + 1; // 4 x 1K from the first slab and the 8K buffer
+        assert pool.releases() == 2;
+    }
+
+    @Test(dataProvider="transports")
+    public void testSendAndReceive(Class<? extends BasicTCP> cl) throws Exception {
+        a=create(cl, "A");
+        b=create(cl, "B");
+        a.connect("SlabBufferPoolTest");
+        b.connect("SlabBufferPoolTest");
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+        MyReceiver<Message> ra=new MyReceiver<Message>().rawMsgs(true), rb=new MyReceiver<Message>().rawMsgs(true);
+        a.setReceiver(ra);
+        b.setReceiver(rb);
+        for(int i=1; i <= 10; i++) {
+            a.send(null, i);
+            a.send(b.address(), i);
+        }
+        Message large=new BytesMessage(b.address(), new byte[200_000]);
+        a.send(large);
+        Util.waitUntil(5000, 100, () -> ra.size() == 10 && rb.size() == 21,
+                       () -> String.format("A: %d msgs, B: %d msgs", ra.size(), rb.size()));
+        assert rb.list().stream().anyMatch(m -> m.getLength() == 200_000);
+        BufferPool pool=a.stack().getTransport().getBufferPool();
+        assert pool instanceof SlabBufferPool;
+        SlabBufferPool sp=(SlabBufferPool)pool;
+        assert sp.isDirect();
+        assert sp.hits() > 0 : sp;
+        System.out.printf("%s: %s\n", cl.getSimpleName(), sp);
+    }
+
+    protected static SlabBufferPool create(boolean direct) throws Exception {
+        SlabBufferPool pool=new SlabBufferPool().minSize(1000).maxSize(8192).slabSize(4096)
+          .maxBytesPerClass(8192).direct(direct);
+        pool.init();
+        return pool;
+    }
+
+    protected static JChannel create(Class<? extends BasicTCP> cl, String name) throws Exception {
+        BasicTCP tp=cl.getConstructor().newInstance();
+        tp.setBindAddress(Util.getLoopback());
+        tp.setBufferPoolType("slab");
+        return new JChannel(tp, new LOCAL_PING(), new NAKACK2(), new UNICAST3(), new STABLE(), new GMS().setJoinTimeout(500))
+          .name(name);
+    }
+}
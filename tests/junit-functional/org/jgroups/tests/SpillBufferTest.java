@@ -0,0 +1,195 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Tests {@link SpillBuffer} and {@link NAKACK4} and {@link UNICAST4} spilling sent messages
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class SpillBufferTest {
+    protected Path        dir;
+    protected SpillBuffer buf;
+
+    @BeforeMethod protected void setup() throws Exception {
+        dir=Files.createTempDirectory("spill-test-");
+    }
+
+    @AfterMethod protected void destroy() throws Exception {
+        Util.close(buf);
+        try(Stream<Path> s=Files.list(dir)) {
+            assert s.findAny().isEmpty() : "spill files were not deleted";
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    public void testSpillAndGet() throws Exception {
+        buf=create(8, 0);
+        for(int i=1; i <= 1000; i++)
+            assert buf.add(i, msg(i), null, false);
+        assert buf.numSpilled() == 992 && buf.spilled() == 992 && buf.spillSize() > 0;
+        assert buf.size() == 1000 && buf.high() == 1000;
+        for(int i=1; i <= 1000; i++)
+            assert value(buf.get(i)) == i;
+        assert buf.numSpillReads() == 992;
+        assert buf.getHighestDeliverable() == 1000 && buf.getNumDeliverable() == 1000;
+        assert !buf.add(5, msg(5)) && !buf.add(995, msg(995)); // duplicates
+    }
+
+    /** Messages are removed (delivered) from the log in order, but stay there until purged */
+    public void testRemoveMany() throws Exception {
+        buf=create(8, 0);
+        for(int i=1; i <= 100; i++)
+            buf.add(i, msg(i), null, false);
+        List<Message> list=buf.removeMany(false, 0);
+        assert list.size() == 100;
+        for(int i=0; i < list.size(); i++)
+            assert value(list.get(i)) == i+1;
+        assert buf.highestDelivered() == 100 && buf.isEmpty() && buf.low() == 0;
+        assert value(buf.get(50)) == 50; // still available for retransmission
+    }
+
+    public void testPurge() throws Exception {
+        buf=new SpillBuffer(8, 0, dir, 1024, 0);
+        for(int i=1; i <= 1000; i++)
+            buf.add(i, msg(i), null, false);
+        int segments=buf.log().numSegments();
+        assert segments > 10 : buf.log();
+        assert buf.purge(500, true) == 500;
+        assert buf.low() == 500 && buf.size() == 500;
+        assert buf.log().numSegments() < segments / 2 + 2 : buf.log();
+        assert buf.get(500) == null && value(buf.get(501)) == 501 && value(buf.get(1000)) == 1000;
+
+        buf.purge(1000, true);
+        assert buf.isEmpty() && buf.spillSize() == 0 && buf.log().numSegments() == 0;
+        for(int i=1001; i <= 1100; i++)
+            buf.add(i, msg(i), null, false);
+        assert buf.log().segmentsRecycled() > 0;
+        for(int i=1001; i <= 1100; i++)
+            assert value(buf.get(i)) == i;
+    }
+
+    /** An OOB message which has not yet been delivered locally is not spilled */
+    public void testUndeliveredOOBMessageIsNotSpilled() throws Exception {
+        buf=create(4, 0);
+        for(int i=1; i <= 4; i++)
+            buf.add(i, msg(i).setFlag(Message.Flag.OOB), null, false);
+        assert !buf.add(5, msg(5), null, false);
+        assert buf.numDroppedMessages() == 1 && buf.numSpilled() == 0;
+        buf.get(1).setFlag(Message.TransientFlag.OOB_DELIVERED);
+        assert buf.add(5, msg(5), null, false);
+        Message m=buf.get(1);
+        assert m.isFlagSet(Message.Flag.OOB) && m.isFlagSet(Message.TransientFlag.OOB_DELIVERED);
+    }
+
+    /** Adders block when the log has reached its max size, until messages are purged */
+    public void testBlockingOnMaxSpillSize() throws Exception {
+        buf=new SpillBuffer(4, 0, dir, 4096, 1000);
+        int seqno=0;
+        while(buf.add(++seqno, msg(seqno), null, false))
+            ;
+        assert buf.spillSize() >= 1000;
+        final int next=seqno;
+        final Message msg=msg(next);
+        Thread t=new Thread(() -> buf.add(next, msg, null, true));
+        t.start();
+        Util.waitUntil(5000, 10, () -> buf.numBlockings() > 0);
+        assert t.isAlive();
+        buf.purge(next - 1, true);
+        t.join(5000);
+        assert !t.isAlive() && value(buf.get(next)) == next;
+    }
+
+    public void testNakackAndUnicastWithSpilling() throws Exception {
+        JChannel a=create("A"), b=create("B");
+        try {
+            a.connect(SpillBufferTest.class.getSimpleName());
+            b.connect(SpillBufferTest.class.getSimpleName());
+            Util.waitUntilAllChannelsHaveSameView(10000, 100, a,b);
+            MyReceiver<Integer> rb=new MyReceiver<Integer>().name("B");
+            b.setReceiver(rb);
+            // drops messages, so that A's send buffers grow and retransmissions are served from the spilled messages
+            b.stack().insertProtocol(new DISCARD().setUpDiscardRate(0.05), ProtocolStack.Position.ABOVE, TP.class);
+            final int num=1000;
+            List<Thread> senders=new ArrayList<>();
+            for(int i=0; i < 4; i++) {
+                final boolean oob=i % 2 == 0, mcast=i < 2;
+                Thread t=new Thread(() -> {
+                    for(int j=1; j <= num; j++) {
+                        Message msg=new ObjectMessage(mcast? null : b.address(), j);
+                        if(oob)
+                            msg.setFlag(Message.Flag.OOB);
+                        try {
+                            a.send(msg);
+                        }
+                        catch(Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+                senders.add(t);
+                t.start();
+            }
+            for(Thread t: senders)
+                t.join();
+            Util.waitUntil(30000, 100, () -> rb.size() == num * 4, () -> String.format("B: %d msgs", rb.size()));
+            NAKACK4 nak=a.stack().findProtocol(NAKACK4.class);
+            UNICAST4 uni=a.stack().findProtocol(UNICAST4.class);
+            assert nak.getBuf(a.address()) instanceof SpillBuffer;
+            assert nak.getNumSpilled() + uni.getNumSpilled() > 0;
+        }
+        finally {
+            Util.close(b, a);
+        }
+    }
+
+    /** The spill files of NAKACK4's send buffer are deleted when the channel disconnects and reconnects */
+    public void testReconnect() throws Exception {
+        try(JChannel a=create("A")) {
+            for(int i=0; i < 3; i++) {
+                a.connect(SpillBufferTest.class.getSimpleName());
+                for(int j=1; j <= 200; j++) // more than capacity: spills
+                    a.send(null, j);
+                try(Stream<Path> s=Files.list(dir)) {
+                    assert s.count() == 1 : "spill dirs of previous send buffers were not deleted";
+                }
+                a.disconnect();
+            }
+        }
+    }
+
+    protected SpillBuffer create(int capacity, long offset) throws Exception {
+        return new SpillBuffer(capacity, offset, dir, 64 * 1024, 0);
+    }
+
+    protected JChannel create(String name) throws Exception {
+        String spill_dir=dir.toString();
+        return new JChannel(new SHARED_LOOPBACK(), new SHARED_LOOPBACK_PING(),
+                            new NAKACK4().spillDir(spill_dir).capacity(64).setXmitInterval(100),
+                            new UNICAST4().spillDir(spill_dir).capacity(64).setXmitInterval(100),
+                            new STABLE(), new GMS().setJoinTimeout(500)).name(name);
+    }
+
+    protected static Message msg(int i) throws Exception {
+        return new BytesMessage(null, Util.objectToByteBuffer(i)).setFlag(Message.Flag.NO_FC);
+    }
+
+    protected static int value(Message msg) throws Exception {
+        return Util.objectFromByteBuffer(msg.getArray(), msg.getOffset(), msg.getLength());
+    }
+}
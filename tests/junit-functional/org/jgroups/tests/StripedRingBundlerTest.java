@@ -0,0 +1,91 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.StripedRingBundler;
+import org.jgroups.protocols.TP;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MyReceiver;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+
+/**
+ * Tests {@link StripedRingBundler} with concurrent senders
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class StripedRingBundlerTest {
+    protected JChannel            a,b;
+    protected static final String CLUSTER=StripedRingBundlerTest.class.getSimpleName();
+    protected static final int    NUM_SENDERS=16, NUM_MSGS=1000;
+
+    @BeforeMethod protected void init() throws Exception {
+        a=create("A").connect(CLUSTER);
+        b=create("B").connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameView(5000, 100, a,b);
+    }
+
+    @AfterMethod protected void destroy() {
+        Util.closeReverse(a,b);
+    }
+
+    public void testConcurrentSenders() throws Exception {
+        MyReceiver<Integer> ra=new MyReceiver<Integer>().name("A"), rb=new MyReceiver<Integer>().name("B");
+        a.setReceiver(ra);
+        b.setReceiver(rb);
+        CountDownLatch latch=new CountDownLatch(1);
+        Thread[] senders=new Thread[NUM_SENDERS];
+        for(int i=0; i < senders.length; i++) {
+            final Address dest=i % 2 == 0? null : b.address();
+            senders[i]=new Thread(() -> {
+                try {
+                    latch.await();
+                    for(int j=1; j <= NUM_MSGS; j++)
+                        a.send(dest, j);
+                }
+                catch(Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            senders[i].start();
+        }
+        latch.countDown();
+        for(Thread t: senders)
+            t.join();
+        int expected_mcasts=NUM_SENDERS/2 * NUM_MSGS;
+        Util.waitUntil(20000, 100, () -> ra.size() == expected_mcasts && rb.size() == NUM_SENDERS * NUM_MSGS,
+                       () -> String.format("A: %d, B: %d", ra.size(), rb.size()));
+        StripedRingBundler bundler=(StripedRingBundler)a.stack().getTransport().getBundler();
+        System.out.printf("avg batch size: %.2f\n", bundler.avgBatchSize());
+        assert bundler.getQueueSize() == 0;
+    }
+
+    /** When no messages are available, the drainer thread parks */
+    public void testDrainerParks() throws Exception {
+        StripedRingBundler bundler=(StripedRingBundler)a.stack().getTransport().getBundler();
+        assert bundler.ringCapacity() == 4096; // capacity=16384, 4 stripes
+        for(int i=0; i < 10; i++)
+            a.send(b.address(), i);
+        Util.waitUntil(5000, 100, () -> bundler.size() == 0);
+        List<Thread> drainers=Thread.getAllStackTraces().keySet().stream()
+          .filter(t -> t.getName().contains("SR-Bundler")).collect(Collectors.toList());
+        assert drainers.size() == 2 : drainers;
+        Util.waitUntil(5000, 100, () -> drainers.stream().allMatch(t -> t.getState() == Thread.State.WAITING),
+                       () -> drainers.stream().map(t -> t.getName() + ": " + t.getState()).collect(Collectors.joining(", ")));
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        Protocol[] stack=Util.getTestStack();
+        TP tp=stack[0].getTransport();
+        tp.setBundler(new StripedRingBundler().numStripes(3));
+        return new JChannel(stack).name(name);
+    }
+}
@@ -0,0 +1,101 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.TP;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.TimingWheelScheduler;
+import org.jgroups.util.Util;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the tests of {@link TimeSchedulerTest} against {@link TimingWheelScheduler}, plus tests specific to the
+ * timing wheel
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.TIME_SENSITIVE,singleThreaded=true)
+public class TimingWheelSchedulerTest extends TimeSchedulerTest {
+
+    @BeforeMethod @Override protected void init() {
+        timer=new TimingWheelScheduler();
+    }
+
+    /** With a small wheel, tasks are placed into the higher levels and cascaded down to level 0 */
+    public void testCascading() throws Exception {
+        timer.stop();
+        TimingWheelScheduler wheel=new TimingWheelScheduler(1, 4);
+        timer=wheel;
+        assert wheel.wheelSize() == 4 && wheel.levels() == 16;
+        final List<Long> delays=List.of(2L, 3L, 5L, 17L, 70L, 300L, 1100L);
+        List<Long> executed=new ArrayList<>();
+        long start=System.nanoTime();
+        for(long delay: delays) {
+            timer.schedule(() -> {
+                long time=TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assert time >= delay : String.format("task with delay %d executed after %d ms", delay, time);
+                synchronized(executed) {
+                    executed.add(delay);
+                }
+            }, delay, TimeUnit.MILLISECONDS, false);
+        }
+        Util.waitUntil(5000, 100, () -> executed.size() == delays.size());
+        assert executed.equals(delays) : executed; // executed in order of expiration
+        Util.waitUntil(1000, 10, () -> timer.size() == 0);
+    }
+
+    /** Cancelled tasks are never executed, and are removed from the wheel */
+    public void testCancelMany() throws Exception {
+        final int NUM=100_000;
+        AtomicInteger count=new AtomicInteger();
+        List<Future<?>> futures=new ArrayList<>(NUM);
+        for(int i=0; i < NUM; i++)
+            futures.add(timer.schedule(count::incrementAndGet, 500 + i % 1000, TimeUnit.MILLISECONDS, false));
+        for(int i=0; i < NUM; i++)
+            if(i % 10 != 0)
+                futures.get(i).cancel(false);
+        Util.waitUntil(5000, 100, () -> count.get() == NUM / 10 && timer.size() == 0,
+                       () -> String.format("executed: %d, size: %d", count.get(), timer.size()));
+        for(int i=0; i < NUM; i++)
+            assert futures.get(i).isDone() && futures.get(i).isCancelled() == (i % 10 != 0);
+    }
+
+    /** stop() waits for the runner to clear the wheel; tasks scheduled before stop() are cancelled */
+    public void testStop() throws Exception {
+        final int NUM=10_000;
+        AtomicInteger count=new AtomicInteger();
+        for(int i=0; i < NUM; i++)
+            timer.schedule(count::incrementAndGet, 1000 + i % 1000, TimeUnit.MILLISECONDS, false);
+        timer.stop();
+        assert timer.size() == 0 : timer.size();
+        Util.sleep(2500);
+        assert count.get() == 0 : count.get();
+
+        // stop() called by a task run by the runner itself must not wait for the runner
+        timer=new TimingWheelScheduler();
+        CountDownLatch stopped=new CountDownLatch(1);
+        timer.schedule(() -> {timer.stop(); stopped.countDown();}, 10, TimeUnit.MILLISECONDS, false);
+        assert stopped.await(5, TimeUnit.SECONDS);
+        Util.waitUntil(5000, 100, () -> timer.size() == 0);
+    }
+
+    public void testSelectionInTransport() throws Exception {
+        Protocol[] stack=Util.getTestStack();
+        TP tp=((TP)stack[0]).setTimerType("wheel").setTimerTick(5).setTimerWheelSize(256);
+        try(JChannel ch=new JChannel(stack)) {
+            ch.connect(TimingWheelSchedulerTest.class.getSimpleName());
+            assert tp.getTimer() instanceof TimingWheelScheduler;
+            TimingWheelScheduler wheel=(TimingWheelScheduler)tp.getTimer();
+            assert wheel.tick() == 5 && wheel.wheelSize() == 256;
+            assert wheel.size() > 0; // tasks of the protocols, e.g. STABLE, MERGE3
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests {@link RefCountedBuffer}, {@link RefBytesMessage} and the zero-copy receive path of the transports
+ * (zero_copy_receive)
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class ZeroCopyReceiveTest {
+    protected JChannel           a, b;
+    protected static final int   MIN_SIZE=1024;
+
+    @AfterMethod protected void destroy() {
+        Util.close(b, a);
+    }
+
+    @DataProvider
+    static Object[][] transports() {
+        return new Object[][]{
+          {UDP.class},
+          {TCP.class},
+          {TCP_NIO2.class}
+        };
+    }
+
+    public void testRefCount() throws Exception {
+        SlabBufferPool pool=createPool();
+        RefCountedBuffer buf=new RefCountedBuffer(pool, 1000);
+        assert buf.refCount() == 1 && buf.capacity() == 4096;
+        assert pool.freeBuffers() == 0;
+        buf.retain();
+        buf.release();
+        assert pool.freeBuffers() == 0;
+        buf.release();
+        assert buf.refCount() == 0;
+        assert pool.freeBuffers() == 1;
+    }
+
+    public void testDirectBuffersAreRejected() throws Exception {
+        SlabBufferPool pool=new SlabBufferPool();
+        pool.init();
+        try {
+            new RefCountedBuffer(pool, 100);
+            assert false : "direct buffers should have been rejected";
+        }
+        catch(IllegalArgumentException ex) {
+            System.out.printf("caught exception as expected: %s\n", ex);
+        }
+    }
+
+    public void testReadPayload() throws Exception {
+        SlabBufferPool pool=createPool();
+        RefCountedBuffer buf=new RefCountedBuffer(pool, 4096);
+        byte[] small=array(100, 'a'), large=array(2000, 'b');
+        int len=marshal(buf, new BytesMessage(null, small), new BytesMessage(null, large));
+
+        PooledDataInputStream in=new PooledDataInputStream(buf, buf.offset(), len, MIN_SIZE);
+        RefBytesMessage m1=read(in), m2=read(in);
+        assert m1.ref() == null && m1.getOffset() == 0 && Arrays.equals(m1.getArray(), small);
+        assert m2.ref() == buf && m2.getArray() == buf.array() && m2.getLength() == large.length;
+        assert Arrays.equals(m2.getBytes(), large);
+        assert buf.refCount() == 2;
+
+        Message copy=m2.copy(true, true);
+        assert copy instanceof RefBytesMessage && ((RefBytesMessage)copy).ref() == buf;
+        assert buf.refCount() == 3;
+
+        buf.release(); // the reference of the receiver thread
+        assert buf.refCount() == 2 && pool.freeBuffers() == 0; // still referenced by m2 and its copy
+        assert copy.getArray() == buf.array() && Arrays.equals(m2.getBytes(), large);
+    }
+
+    /** A buffer referenced by messages which are never released is returned to the pool when they're GC'd */
+    public void testRecyclingOnGC() throws Exception {
+        SlabBufferPool pool=createPool();
+        receiveAndDrop(pool);
+        assert pool.freeBuffers() == 0;
+        Util.waitUntil(10000, 200, () -> {System.gc(); return pool.freeBuffers() == 1;});
+    }
+
+    @Test(dataProvider="transports")
+    public void testZeroCopyReceive(Class<? extends TP> cl) throws Exception {
+        a=create(cl, "A");
+        b=create(cl, "B");
+        a.connect("ZeroCopyReceiveTest");
+        b.connect("ZeroCopyReceiveTest");
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+        MyReceiver<Message> rb=new MyReceiver<Message>().rawMsgs(true);
+        b.setReceiver(rb);
+        byte[] small=array(100, 's'), large=array(20_000, 'l');
+        for(int i=0; i < 5; i++) {
+            a.send(b.address(), small);
+            a.send(b.address(), large);
+            a.send(null, large);
+        }
+        Util.waitUntil(5000, 100, () -> rb.size() == 15, () -> String.format("B: %d msgs", rb.size()));
+        for(Message msg: rb.list()) {
+            assert msg instanceof RefBytesMessage;
+            RefBytesMessage m=(RefBytesMessage)msg;
+            if(m.getLength() == large.length) {
+                assert m.ref() != null : m;
+                assert Arrays.equals(m.getBytes(), large);
+            }
+            else {
+                assert m.ref() == null : m;
+                assert Arrays.equals(m.getBytes(), small);
+            }
+        }
+        BufferPool pool=b.stack().getTransport().getReceiveBufferPool();
+        assert pool != null && !pool.isDirect();
+    }
+
+    /** UDP receives into buffers of 64KB, but a message referencing its packet keeps only a buffer sized to the packet */
+    public void testUdpBufferSizedToPacket() throws Exception {
+        a=create(UDP.class, "A");
+        b=create(UDP.class, "B");
+        a.connect("ZeroCopyReceiveTest");
+        b.connect("ZeroCopyReceiveTest");
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+        MyReceiver<Message> rb=new MyReceiver<Message>().rawMsgs(true);
+        b.setReceiver(rb);
+        byte[] payload=array(2000, 'p');
+        for(int i=0; i < 10; i++)
+            a.send(b.address(), payload);
+        Util.waitUntil(5000, 100, () -> rb.size() == 10, () -> String.format("B: %d msgs", rb.size()));
+        for(Message msg: rb.list()) {
+            RefBytesMessage m=(RefBytesMessage)msg;
+            assert m.ref() != null && m.ref().capacity() < 64 * 1024 : m.ref();
+            assert Arrays.equals(m.getBytes(), payload);
+        }
+    }
+
+    protected static void receiveAndDrop(SlabBufferPool pool) throws Exception {
+        RefCountedBuffer buf=new RefCountedBuffer(pool, 4096);
+        int len=marshal(buf, new BytesMessage(null, array(2000, 'x')));
+        RefBytesMessage msg=read(new PooledDataInputStream(buf, buf.offset(), len, MIN_SIZE));
+        assert msg.ref() == buf;
+        buf.release();
+        assert buf.refCount() == 1; // referenced by msg, which is dropped without being released
+    }
+
+    protected static int marshal(RefCountedBuffer buf, Message ... msgs) throws Exception {
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(buf.capacity());
+        for(Message msg: msgs) {
+            out.writeShort(msg.getType());
+            msg.writeTo(out);
+        }
+        System.arraycopy(out.buffer(), 0, buf.array(), buf.offset(), out.position());
+        return out.position();
+    }
+
+    protected static RefBytesMessage read(PooledDataInputStream in) throws Exception {
+        Message msg=in.createMessage(in.readShort());
+        msg.readFrom(in);
+        return (RefBytesMessage)msg;
+    }
+
+    protected static byte[] array(int length, char c) {
+        byte[] retval=new byte[length];
+        Arrays.fill(retval, (byte)c);
+        return retval;
+    }
+
+    protected static SlabBufferPool createPool() throws Exception {
+        SlabBufferPool pool=new SlabBufferPool().minSize(4096).maxSize(4096).slabSize(4096).direct(false);
+        pool.init();
+        return pool;
+    }
+
+    protected static JChannel create(Class<? extends TP> cl, String name) throws Exception {
+        TP tp=cl.getConstructor().newInstance();
+        tp.setBindAddress(Util.getLoopback());
+        tp.zeroCopyReceive(true).zeroCopyMinSize(MIN_SIZE);
+        if(tp instanceof UDP)
+            ((UDP)tp).setMulticasting(false);
+        return new JChannel(tp, new LOCAL_PING(), new NAKACK2(), new UNICAST3(), new STABLE(),
+                            new GMS().setJoinTimeout(500), new FRAG2().setFragSize(60_000))
+          .name(name);
+    }
+}
@@ -194,6 +194,21 @@ public class TUNNEL_Test extends ChannelTestBase {
      }
 
 
+    /**
+     * With router_subset=1, members whose router (picked by their address) is down connect to the next router
+     * instead, so that all members form a cluster
+     */
+    public void testRouterSubsetWithUnreachableRouter() throws Exception {
+        int down_port=ResourceManager.getNextTcpPort(gossip_router_bind_addr); // no router listens on this port
+        String hosts=String.format("%s[%d],%s", gossip_router_bind_addr.getHostAddress(), down_port, gossip_router_hosts);
+        coordinator=createTunnelChannel("B", true, hosts, 1);
+        channel=createTunnelChannel("A", true, hosts, 1);
+        c=createTunnelChannel("C", true, hosts, 1);
+        for(JChannel ch: Arrays.asList(coordinator, channel, c))
+            ch.connect(GROUP);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, coordinator, channel, c);
+    }
+
      /**
       * Tests connect-disconnect-connect sequence for a group with two members
       * (using TUNNEL).
@@ -246,9 +261,14 @@ public class TUNNEL_Test extends ChannelTestBase {
     }
 
     protected JChannel createTunnelChannel(String name, boolean include_failure_detection) throws Exception {
-        TUNNEL tunnel=new TUNNEL().setBindAddress(gossip_router_bind_addr);
+        return createTunnelChannel(name, include_failure_detection, gossip_router_hosts, 0);
+    }
+
+    protected JChannel createTunnelChannel(String name, boolean include_failure_detection, String hosts,
+                                           int router_subset) throws Exception {
+        TUNNEL tunnel=new TUNNEL().routerSubset(router_subset).setBindAddress(gossip_router_bind_addr);
         FD_ALL3 fd_all=new FD_ALL3().setTimeout(2000).setInterval(500);
-        tunnel.setGossipRouterHosts(gossip_router_hosts);
+        tunnel.setGossipRouterHosts(hosts);
         List<Protocol> protocols=new ArrayList<>(Arrays.asList(tunnel, new PING(),
                                                                new MERGE3().setMinInterval(1000)
                                                                  .setMaxInterval(3000)));
@@ -0,0 +1,150 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.Address;
+import org.jgroups.JChannel;
+import org.jgroups.LongMessage;
+import org.jgroups.Message;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.TP;
+import org.jgroups.stack.MessageProcessingPolicy;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.jgroups.util.UUID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares {@link MessageProcessingPolicy} implementations: a number of threads pass regular multicasts from a
+ * (large) number of senders to the policy of a transport, as if they had been received by the transport. A protocol
+ * directly above the transport measures the latency between reception and delivery, and checks that the messages
+ * of each sender are delivered in order.
+ * <br/>
+ * Example: java MessageProcessingPolicyPerf -policies max,mailbox -senders 1000 -threads 4 -msgs 1000000<br/>
+ * The threads of the policies (e.g. the drain threads of {@link org.jgroups.util.MailboxPerSender}) are virtual
+ * threads if the JDK supports them (JDK 21+), unless -vthreads false is given
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class MessageProcessingPolicyPerf {
+    protected String policies="max,mailbox";
+    protected int    senders=1000;
+    protected int    threads=4;
+    protected int    msgs=1_000_000; // total number of messages
+    protected boolean vthreads=true;
+
+    protected void start() throws Exception {
+        for(String policy: policies.split(","))
+            run(policy.trim());
+    }
+
+    protected void run(String policy) throws Exception {
+        Sink sink=new Sink();
+        TP tp=new SHARED_LOOPBACK().useVirtualThreads(vthreads);
+        try(JChannel ch=new JChannel(tp, sink).name("A")) {
+            tp.setMessageProcessingPolicy(policy);
+            ch.connect(MessageProcessingPolicyPerf.class.getSimpleName());
+            MessageProcessingPolicy p=tp.getMessageProcessingPolicy();
+            Address[] addrs=new Address[senders];
+            for(int i=0; i < addrs.length; i++)
+                addrs[i]=UUID.randomUUID();
+            int msgs_per_thread=Math.max(1, msgs / threads), expected=msgs_per_thread * threads;
+
+            System.out.printf("-- %s: %d threads passing up %,d msgs from %,d senders (%s threads)\n",
+                              p.getClass().getSimpleName(), threads, expected, senders,
+                              tp.useVirtualThreads()? "virtual" : "platform");
+            List<Thread> drivers=new ArrayList<>(threads);
+            long start=System.nanoTime();
+            for(int i=0; i < threads; i++) {
+                final int index=i;
+                // every sender is driven by a single thread, so the timestamps of its messages are increasing
+                Thread t=new Thread(() -> {
+                    for(int j=0, k=index; j < msgs_per_thread; j++) {
+                        Message msg=new LongMessage(null, System.nanoTime()).setSrc(addrs[k]);
+                        p.process(msg, false);
+                        if((k+=threads) >= addrs.length)
+                            k=index;
+                    }
+                }, "driver-" + i);
+                drivers.add(t);
+                t.start();
+            }
+            for(Thread t: drivers)
+                t.join();
+            Util.waitUntilTrue(60_000, 10, () -> sink.received.sum() >= expected);
+            long time=System.nanoTime() - start, received=sink.received.sum();
+            double secs=time / 1_000_000_000.0;
+            System.out.printf("   received: %,d (%,.0f msgs/sec), out of order: %,d, latency: avg=%,.0f us max=%,d us\n\n",
+                              received, received / secs, sink.out_of_order.sum(),
+                              received > 0? sink.latency.sum() / (double)received / 1000 : 0,
+                              TimeUnit.NANOSECONDS.toMicros(sink.max_latency.get()));
+        }
+    }
+
+    protected static class Sink extends Protocol {
+        protected final Map<Address,Long> last=new ConcurrentHashMap<>();
+        protected final LongAdder         received=new LongAdder(), out_of_order=new LongAdder(), latency=new LongAdder();
+        protected final LongAccumulator   max_latency=new LongAccumulator(Math::max, 0);
+
+        public Object up(Message msg) {
+            deliver(msg, System.nanoTime());
+            return null;
+        }
+
+        public void up(MessageBatch batch) {
+            long now=System.nanoTime();
+            for(Message msg: batch)
+                deliver(msg, now);
+        }
+
+        protected void deliver(Message msg, long now) {
+            if(!(msg instanceof LongMessage lm))
+                return;
+            long sent=lm.getValue(), diff=now - sent;
+            Long prev=last.put(msg.getSrc(), sent);
+            if(prev != null && sent < prev)
+                out_of_order.increment();
+            latency.add(diff);
+            max_latency.accumulate(diff);
+            received.increment();
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        MessageProcessingPolicyPerf test=new MessageProcessingPolicyPerf();
+        for(int i=0; i < args.length; i++) {
+            if("-policies".equals(args[i])) {
+                test.policies=args[++i];
+                continue;
+            }
+            if("-senders".equals(args[i])) {
+                test.senders=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-threads".equals(args[i])) {
+                test.threads=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-msgs".equals(args[i])) {
+                test.msgs=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-vthreads".equals(args[i])) {
+                test.vthreads=Boolean.parseBoolean(args[++i]);
+                continue;
+            }
+            System.out.printf("%s [-policies <max,mailbox,submit,...>] [-senders <n>] [-threads <n>] " +
+                                "[-msgs <total number of msgs>] [-vthreads <true|false>]\n",
+                              MessageProcessingPolicyPerf.class.getSimpleName());
+            return;
+        }
+        test.start();
+    }
+}
@@ -0,0 +1,141 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.util.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stress test of {@link TimeScheduler} implementations: a number of threads schedule short-lived tasks at a given
+ * rate, and cancel most of them (like RPC timeouts or retransmission tasks), for a given time. Prints the achieved
+ * rate, the cost of schedule() and cancel() and by how much the executed tasks were late.
+ * <br/>
+ * Example: java TimerPerf -type both -rate 1000000 -time 10
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class TimerPerf {
+    protected String type="both";
+    protected int    rate=1_000_000;   // timers / sec
+    protected int    time=10;          // secs
+    protected int    threads=4;
+    protected long   timeout=500;      // ms
+    protected double cancel=0.99;      // ratio of tasks cancelled before they expire
+    protected long   tick=10;          // ms (TimingWheelScheduler)
+    protected int    wheel_size=512;   // TimingWheelScheduler
+
+    protected void start() throws Exception {
+        if("both".equals(type) || "default".equals(type))
+            run(new TimeScheduler3());
+        if("both".equals(type) || "wheel".equals(type))
+            run(new TimingWheelScheduler(tick, wheel_size));
+    }
+
+    protected void run(TimeScheduler timer) throws Exception {
+        LongAdder scheduled=new LongAdder(), cancelled=new LongAdder(), executed=new LongAdder(),
+          schedule_time=new LongAdder(), cancel_time=new LongAdder(), late=new LongAdder();
+        AverageMinMax lateness=new AverageMinMax().unit(TimeUnit.MILLISECONDS);
+        int rate_per_thread=Math.max(1, rate / threads);
+        long end=System.nanoTime() + TimeUnit.SECONDS.toNanos(time);
+        int max_size=0;
+
+        System.out.printf("-- %s: %d threads scheduling %,d timers/sec (timeout: %d ms, %.0f%% cancelled) for %d secs\n",
+                          timer, threads, rate, timeout, cancel * 100, time);
+        List<Thread> senders=new ArrayList<>(threads);
+        for(int i=0; i < threads; i++) {
+            Thread t=new Thread(() -> {
+                long interval=TimeUnit.SECONDS.toNanos(1) / rate_per_thread, next=System.nanoTime();
+                while(next < end) {
+                    long start=System.nanoTime();
+                    final long deadline=start + TimeUnit.MILLISECONDS.toNanos(timeout);
+                    Future<?> f=timer.schedule(() -> {
+                        long diff=System.nanoTime() - deadline;
+                        executed.increment();
+                        if(diff > 0) {
+                            late.increment();
+                            synchronized(lateness) {
+                                lateness.add(TimeUnit.NANOSECONDS.toMillis(diff));
+                            }
+                        }
+                    }, timeout, TimeUnit.MILLISECONDS, false);
+                    long time=System.nanoTime();
+                    schedule_time.add(time - start);
+                    scheduled.increment();
+                    if(Util.tossWeightedCoin(cancel)) {
+                        f.cancel(false);
+                        cancel_time.add(System.nanoTime() - time);
+                        cancelled.increment();
+                    }
+                    next+=interval;
+                    long wait=next - System.nanoTime();
+                    if(wait > 0)
+                        LockSupport.parkNanos(wait);
+                }
+            }, "scheduler-" + i);
+            senders.add(t);
+            t.start();
+        }
+        while(senders.stream().anyMatch(Thread::isAlive)) {
+            max_size=Math.max(max_size, timer.size());
+            Util.sleep(100);
+        }
+        long expected=scheduled.sum() - cancelled.sum();
+        Util.waitUntilTrue(timeout * 4, 100, () -> executed.sum() >= expected);
+        timer.removeCancelledTasks(); // TimeScheduler3.stop() is O(n^2) with many cancelled tasks
+        timer.stop();
+
+        double secs=time, sched=scheduled.sum(), canc=cancelled.sum();
+        System.out.printf("   scheduled: %,.0f (%,.0f/sec), cancelled: %,.0f, executed: %,d (late: %,d), max size: %,d\n" +
+                            "   schedule(): %,.0f ns/op, cancel(): %,.0f ns/op, lateness: %s\n\n",
+                          sched, sched / secs, canc, executed.sum(), late.sum(), max_size,
+                          schedule_time.sum() / sched, canc > 0? cancel_time.sum() / canc : 0, lateness);
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        TimerPerf test=new TimerPerf();
+        for(int i=0; i < args.length; i++) {
+            if("-type".equals(args[i])) {
+                test.type=args[++i];
+                continue;
+            }
+            if("-rate".equals(args[i])) {
+                test.rate=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-time".equals(args[i])) {
+                test.time=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-threads".equals(args[i])) {
+                test.threads=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-timeout".equals(args[i])) {
+                test.timeout=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-cancel".equals(args[i])) {
+                test.cancel=Double.parseDouble(args[++i]);
+                continue;
+            }
+            if("-tick".equals(args[i])) {
+                test.tick=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-wheel_size".equals(args[i])) {
+                test.wheel_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            System.out.printf("%s [-type default|wheel|both] [-rate <timers/sec>] [-time <secs>] [-threads <n>] " +
+                                "[-timeout <ms>] [-cancel <ratio of cancelled timers [0..1]>] [-tick <ms>] " +
+                                "[-wheel_size <slots per level>]\n", TimerPerf.class.getSimpleName());
+            return;
+        }
+        test.start();
+    }
+}
@@ -2,6 +2,8 @@ package org.jgroups.tests;
 
 import org.jgroups.EmptyMessage;
 import org.jgroups.Message;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.ConcurrentBuffer;
 import org.jgroups.util.FixedBuffer;
 import org.jgroups.util.Util;
 
@@ -14,6 +16,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class FixedBufferStressTest {
     static int NUM_THREADS=10;
     static int NUM_MSGS=1000000;
+    static int CAPACITY;
+    static String TYPE="fixed";
 
     static final Message MSG=new EmptyMessage();
 
@@ -24,7 +28,8 @@ public class FixedBufferStressTest {
     public static void main(String[] args) throws InterruptedException {
         for(int i=0; i < args.length; i++) {
             if(args[i].startsWith("-h")) {
-                System.out.println("FixedBufferStressTest [-num messages] [-adders <number of adder threads>]");
+                System.out.println("FixedBufferStressTest [-num messages] [-adders <number of adder threads>] " +
+                                     "[-type fixed|concurrent] [-capacity <capacity, default: num messages>]");
                 return;
             }
             if(args[i].equals("-num")) {
@@ -33,10 +38,20 @@ public class FixedBufferStressTest {
             }
             if(args[i].equals("-adders")) {
                 NUM_THREADS=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-type")) {
+                TYPE=args[++i];
+                continue;
+            }
+            if(args[i].equals("-capacity")) {
+                CAPACITY=Integer.parseInt(args[++i]);
             }
         }
 
-        FixedBuffer<Message> buf=new FixedBuffer<>(NUM_MSGS, 0);
+        int capacity=CAPACITY > 0? CAPACITY : NUM_MSGS;
+        Buffer<Message> buf="concurrent".equalsIgnoreCase(TYPE)? new ConcurrentBuffer<>(capacity, 0)
+          : new FixedBuffer<>(capacity, 0);
 
         final CountDownLatch latch=new CountDownLatch(1);
 
@@ -60,17 +75,18 @@ public class FixedBufferStressTest {
         long diff=System.currentTimeMillis() - start;
 
         System.out.println("added messages: " + added + ", removed messages: " + removed);
-        System.out.println("took " + diff + " ms to insert and remove " + NUM_MSGS + " messages");
+        System.out.println("took " + diff + " ms to insert and remove " + NUM_MSGS + " messages with " +
+                             buf.getClass().getSimpleName());
         buf.close();
     }
 
 
     protected static class Adder extends Thread {
-        protected final FixedBuffer<Message> buf;
+        protected final Buffer<Message> buf;
         protected final AtomicInteger num;
         protected final CountDownLatch latch;
 
-        public Adder(FixedBuffer<Message> buf, CountDownLatch latch, AtomicInteger num) {
+        public Adder(Buffer<Message> buf, CountDownLatch latch, AtomicInteger num) {
             this.buf=buf;
             this.num=num;
             this.latch=latch;
@@ -97,10 +113,10 @@ public class FixedBufferStressTest {
     }
 
     protected static class Remover extends Thread {
-        protected final FixedBuffer<Message> buf;
+        protected final Buffer<Message> buf;
         protected final CountDownLatch latch;
 
-        public Remover(FixedBuffer<Message> buf, CountDownLatch latch) {
+        public Remover(Buffer<Message> buf, CountDownLatch latch) {
             this.buf=buf;
             this.latch=latch;
             setName("Remover");
@@ -123,7 +139,7 @@ public class FixedBufferStressTest {
                 }
                 if(cnt >= NUM_MSGS)
                     break;
-                Util.sleep(500);
+                Util.sleep(CAPACITY > 0? 1 : 500);
             }
             System.out.println("-- removed " + cnt + " messages");
         }
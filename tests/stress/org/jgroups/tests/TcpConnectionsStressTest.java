@@ -0,0 +1,256 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Compares the memory footprint and the latency of {@link TCP} and {@link TCP_VT} with a large number of connections.
+ * Creates a hub and N peers in the same process; every peer has a connection to the hub. Then num_sender_threads
+ * threads send requests from the hub to random peers, which send back a response. The round-trip times are measured.
+ * <br/>
+ * Example: java TcpConnectionsStressTest -peers 1000 -requests 50000 -transports tcp,tcp_vt
+ * @author Bela Ban
+ * @since  5.6.0
+ */
+public class TcpConnectionsStressTest {
+    protected final String[]                    transports;
+    protected final int                         peers, num_requests, num_sender_threads, msg_size;
+    protected JChannel                          hub;
+    protected JChannel[]                        channels;
+    protected final Map<Long,Promise<Boolean>>  sender_threads=new ConcurrentHashMap<>();
+    protected static final String               CLUSTER=TcpConnectionsStressTest.class.getSimpleName();
+    protected static final MemoryMXBean         MEM=ManagementFactory.getMemoryMXBean();
+
+
+    public TcpConnectionsStressTest(String[] transports, int peers, int num_requests, int num_sender_threads,
+                                    int msg_size) {
+        this.transports=transports;
+        this.peers=peers;
+        this.num_requests=num_requests;
+        this.num_sender_threads=num_sender_threads;
+        this.msg_size=msg_size;
+    }
+
+    protected void start() throws Exception {
+        StringBuilder sb=new StringBuilder();
+        for(String transport: transports) {
+            try {
+                sb.append(run(transport)).append("\n");
+            }
+            finally {
+                stop();
+            }
+        }
+        System.out.printf(Util.bold("\n%-10s %12s %14s %18s %10s %10s %10s %10s\n"),
+                          "transport", "connections", "heap", "platform threads", "avg", "p50", "p99", "max");
+        System.out.print(sb);
+    }
+
+    protected String run(String transport) throws Exception {
+        long heap_before=usedHeap();
+        int threads_before=ManagementFactory.getThreadMXBean().getThreadCount();
+        createChannels(transport);
+        long heap=usedHeap() - heap_before;
+        int platform_threads=ManagementFactory.getThreadMXBean().getThreadCount() - threads_before;
+        TCP tp=(TCP)hub.stack().getTransport();
+        int connections=tp.getOpenConnections();
+        System.out.printf("-- %s: %d connections on the hub, heap: %s, platform threads: %d\n",
+                          transport, connections, Util.printBytes(heap), platform_threads);
+
+        sendRequests(peers, null); // warmup: establishes the connections from the peers to the hub
+        AverageMinMax rtt=new AverageMinMax().usePercentiles(num_requests).unit(NANOSECONDS);
+        long start=System.nanoTime();
+        sendRequests(num_requests, rtt);
+        long time=System.nanoTime() - start;
+        System.out.printf("-- %s: %,d requests in %s (%,.2f reqs/sec), round-trip time: %s\n",
+                          transport, num_requests, Util.printTime(time, NANOSECONDS),
+                          num_requests / (time / 1_000_000_000.0), rtt);
+        return String.format("%-10s %,12d %14s %,18d %10s %10s %10s %10s",
+                             transport, connections, Util.printBytes(heap), platform_threads,
+                             Util.printTime(rtt.average(), NANOSECONDS), Util.printTime(rtt.p(50), NANOSECONDS),
+                             Util.printTime(rtt.p(99), NANOSECONDS), Util.printTime(rtt.max(), NANOSECONDS));
+    }
+
+    protected void createChannels(String transport) throws Exception {
+        System.out.printf("-- creating %d peers with %s", peers, transport);
+        // LOCAL_PING is removed before the channels are closed, so every run needs its own cluster
+        String cluster=CLUSTER + "-" + transport;
+        hub=create(transport, "hub").connect(cluster);
+        channels=new JChannel[peers];
+        for(int i=0; i < channels.length; i++) {
+            channels[i]=create(transport, "peer-" + (i+1)).connect(cluster);
+            if((i+1) % 100 == 0) {
+                System.out.print(".");
+                System.out.flush();
+            }
+        }
+        Util.waitUntil(60_000, 500, () -> hub.view().size() == peers+1);
+        System.out.printf("\n-- view: %d members\n", hub.view().size());
+        removeProtocols(hub);
+        for(JChannel ch: channels)
+            removeProtocols(ch);
+        hub.setReceiver(new HubReceiver());
+        for(JChannel ch: channels)
+            ch.setReceiver(new PeerReceiver(ch));
+    }
+
+    protected void stop() {
+        if(channels != null)
+            Util.closeReverse(channels);
+        Util.close(hub);
+        channels=null;
+        hub=null;
+    }
+
+    protected void sendRequests(int num, AverageMinMax rtt) throws Exception {
+        CountDownLatch latch=new CountDownLatch(1);
+        AtomicInteger remaining=new AtomicInteger(num);
+        Thread[] threads=new Thread[num_sender_threads];
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread(() -> {
+                long id=Thread.currentThread().getId();
+                Promise<Boolean> promise=new Promise<>();
+                sender_threads.put(id, promise);
+                byte[] buf=new byte[msg_size]; // the first 8 bytes are the thread-id
+                Bits.writeLong(id, buf, 0);
+                try {
+                    latch.await();
+                    while(remaining.decrementAndGet() >= 0) {
+                        promise.reset(false);
+                        Address dest=channels[Util.random(channels.length) - 1].address();
+                        long start=System.nanoTime();
+                        hub.send(new BytesMessage(dest, buf));
+                        promise.getResult(5000);
+                        long time=System.nanoTime() - start;
+                        if(rtt != null) {
+                            synchronized(rtt) {
+                                rtt.add(time);
+                            }
+                        }
+                    }
+                }
+                catch(Exception ex) {
+                    ex.printStackTrace();
+                }
+                finally {
+                    sender_threads.remove(id);
+                }
+            }, "sender-" + i);
+            threads[i].start();
+        }
+        latch.countDown();
+        for(Thread t: threads)
+            t.join();
+    }
+
+    protected static JChannel create(String transport, String name) throws Exception {
+        TCP tp="tcp_vt".equalsIgnoreCase(transport)? new TCP_VT() : new TCP();
+        tp.setBindAddress(Util.getLoopback());
+        tp.setBindPort(0);
+        tp.setPortRange(0);
+        return new JChannel(tp, new LOCAL_PING(), new NAKACK2(), new UNICAST3(),
+                            new GMS().printLocalAddress(false).setJoinTimeout(5000)).name(name);
+    }
+
+    /** Removes all protocols but the transport, so that messages are sent directly between the transports */
+    protected static void removeProtocols(JChannel ch) {
+        UNICAST3 uni=ch.stack().findProtocol(UNICAST3.class);
+        if(uni != null) {
+            uni.stopRetransmitTask();
+            uni.sendPendingAcks();
+        }
+        ProtocolStack stack=ch.stack();
+        Protocol prot=stack.getTopProtocol();
+        while(prot != null && !(prot instanceof TP)) {
+            try {
+                stack.removeProtocol(prot);
+            }
+            catch(Throwable ignored) {}
+            prot=stack.getTopProtocol();
+        }
+    }
+
+    protected static long usedHeap() {
+        for(int i=0; i < 3; i++) {
+            System.gc();
+            Util.sleep(100);
+        }
+        return MEM.getHeapMemoryUsage().getUsed();
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        String[] transports={"tcp", "tcp_vt"};
+        int peers=1000, num_requests=50_000, num_sender_threads=16, msg_size=100;
+        for(int i=0; i < args.length; i++) {
+            if("-transports".equals(args[i])) {
+                transports=args[++i].split(",");
+                continue;
+            }
+            if("-peers".equals(args[i])) {
+                peers=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-requests".equals(args[i])) {
+                num_requests=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-num_sender_threads".equals(args[i])) {
+                num_sender_threads=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-msg_size".equals(args[i])) {
+                msg_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            System.out.print("TcpConnectionsStressTest [-transports tcp,tcp_vt] [-peers num] [-requests num] " +
+                               "[-num_sender_threads num] [-msg_size size]\n");
+            return;
+        }
+        new TcpConnectionsStressTest(transports, peers, num_requests, num_sender_threads, Math.max(8, msg_size)).start();
+    }
+
+
+    protected class HubReceiver implements Receiver {
+        @Override
+        public void receive(Message msg) {
+            long id=Bits.readLong(msg.getArray(), msg.getOffset());
+            Promise<Boolean> promise=sender_threads.get(id);
+            if(promise != null)
+                promise.setResult(true); // wakes up the sender
+        }
+    }
+
+    /** Sends the request back to the hub */
+    protected static class PeerReceiver implements Receiver {
+        protected final JChannel ch;
+
+        protected PeerReceiver(JChannel ch) {
+            this.ch=ch;
+        }
+
+        @Override
+        public void receive(Message msg) {
+            try {
+                ch.send(new BytesMessage(msg.src(), msg.getArray(), msg.getOffset(), msg.getLength()));
+            }
+            catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}